@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+
+/** AsciiSequence
+ *
+ * A CharSequence view over a range of ASCII bytes in a ByteBuffer.
+ *
+ * Lets the Lexer read expressions straight out of a memory-mapped file
+ * without decoding every line into a String. Each byte is one character.
+ *
+ * The view can be re-pointed at a new range with wrap(), so a single
+ * instance serves every line of a file.
+ */
+public final class AsciiSequence implements CharSequence {
+    private ByteBuffer bytes;
+    private int start;
+    private int length;
+
+    public AsciiSequence() {}
+
+    public AsciiSequence(ByteBuffer bytes, int start, int end) {
+        wrap(bytes, start, end);
+    }
+
+    // Points the view at bytes[start, end)
+    public AsciiSequence wrap(ByteBuffer bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.length = end - start;
+        return this;
+    }
+
+    @Override
+    public int length() { return length; }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        return (char) (bytes.get(start + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > length || from > to) throw new IndexOutOfBoundsException("range [" + from + ", " + to + ")");
+        return new AsciiSequence(bytes, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) chars[i] = (char) (bytes.get(start + i) & 0xFF);
+        return new String(chars);
+    }
+}
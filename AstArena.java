@@ -0,0 +1,269 @@
+import java.util.*;
+
+/** AstArena
+ *
+ * An AST stored as parallel primitive arrays instead of one object per node.
+ *
+ * Every node is an int id into the arrays:
+ *
+ *   id    kind       op      left   right   value
+ *    0    NUMBER     -        -      -       3
+ *    1    VARIABLE   -        -      -       0      (the slot of x)
+ *    2    BINARY     PLUS     0      1       -
+ *    3    NUMBER     -        -      -       5
+ *    4    BINARY     STAR     2      3       -      (3 + x) * 5
+ *
+ * Unary nodes keep their operand in right. Children are always created
+ * before their parents, so a child's id is lower than its parent's.
+ *
+ * Nodes are hash-consed: asking for a node that already exists returns the
+ * existing id. Structurally identical subtrees therefore share one node, in
+ * one expression ("(a + b) * (a + b)" has 4 nodes, not 7) and across every
+ * expression built into the same arena. Nodes are immutable once created.
+ *
+ * Variables are resolved through the arena's own SlotTable, so all the
+ * expressions in an arena agree on the slot of each name.
+ */
+public final class AstArena {
+    public static final int NUMBER = 0;
+    public static final int VARIABLE = 1;
+    public static final int UNARY = 2;
+    public static final int BINARY = 3;
+
+    // Operation codes written by flatten(), after NUMBER and VARIABLE, so evaluators switch on a single byte
+    static final byte NEGATE = 2;
+    static final byte IDENTITY = 3;
+    static final byte ADD = 4;
+    static final byte SUBTRACT = 5;
+    static final byte MULTIPLY = 6;
+    static final byte DIVIDE = 7;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final SlotTable slots;
+    private byte[] kinds;
+    private byte[] ops;
+    private int[] lefts;
+    private int[] rights;
+    private int[] values;
+    private int count;
+
+    // Open-addressing hash table of node id + 1 (0 marks an empty bucket)
+    private int[] table;
+
+    public AstArena() { this(64); }
+
+    public AstArena(int capacity) { this(capacity, new SlotTable()); }
+
+    public AstArena(int capacity, SlotTable slots) {
+        capacity = Math.max(capacity, 1);
+        this.slots = slots;
+        kinds = new byte[capacity];
+        ops = new byte[capacity];
+        lefts = new int[capacity];
+        rights = new int[capacity];
+        values = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity) * 4];
+    }
+
+    public SlotTable slots() { return slots; }
+
+    public int number(int value) { return intern(NUMBER, 0, -1, -1, value); }
+
+    public int variable(String name) { return intern(VARIABLE, 0, -1, -1, slots.slotOf(name)); }
+
+    public int unary(TokenType op, int operand) { return intern(UNARY, op.ordinal(), -1, operand, 0); }
+
+    public int binary(TokenType op, int left, int right) { return intern(BINARY, op.ordinal(), left, right, 0); }
+
+    /**
+     * Adds an Expr tree to the arena, bottom-up and without recursion, and
+     * returns the id of its root. Subtrees already in the arena are reused.
+     */
+    public int add(Expr root) {
+        Expr[] pending = new Expr[16];
+        boolean[] expanded = new boolean[16];
+        int[] ids = new int[16];
+        int sp = 0;
+        int ip = 0;
+        pending[sp] = root;
+        expanded[sp++] = false;
+        while (sp > 0) {
+            Expr e = pending[sp - 1];
+            if (e instanceof NumberExpr || e instanceof VariableExpr) {
+                sp--;
+                if (ip == ids.length) ids = Arrays.copyOf(ids, ip * 2);
+                ids[ip++] = e instanceof NumberExpr ? number(((NumberExpr) e).value) : variable(((VariableExpr) e).name);
+            } else if (!expanded[sp - 1]) {
+                expanded[sp - 1] = true;
+                if (sp + 2 > pending.length) {
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                    expanded = Arrays.copyOf(expanded, expanded.length * 2);
+                }
+                // The right operand is pushed first so the left one is added first
+                if (e instanceof BinaryExpr) {
+                    pending[sp] = ((BinaryExpr) e).right;
+                    expanded[sp++] = false;
+                    pending[sp] = ((BinaryExpr) e).left;
+                    expanded[sp++] = false;
+                } else if (e instanceof UnaryExpr) {
+                    pending[sp] = ((UnaryExpr) e).right;
+                    expanded[sp++] = false;
+                } else {
+                    throw new RuntimeException("Bad expression");
+                }
+            } else {
+                pending[--sp] = null;
+                if (e instanceof BinaryExpr) {
+                    int r = ids[--ip];
+                    int l = ids[--ip];
+                    ids[ip++] = binary(((BinaryExpr) e).operator.type, l, r);
+                } else {
+                    ids[ip - 1] = unary(((UnaryExpr) e).operator.type, ids[ip - 1]);
+                }
+            }
+        }
+        return ids[0];
+    }
+
+    // The number of distinct nodes in the arena
+    public int size() { return count; }
+
+    public int kind(int id) { return kinds[id]; }
+
+    public TokenType op(int id) { return TYPES[ops[id]]; }
+
+    public int left(int id) { return lefts[id]; }
+
+    public int right(int id) { return rights[id]; }
+
+    // The literal of a NUMBER node, or the slot of a VARIABLE node
+    public int value(int id) { return values[id]; }
+
+    /**
+     * Copies the nodes into arrays of at least size() entries for the
+     * engines that evaluate the arena in id order (ExpressionDag and
+     * IncrementalEvaluator): code[id] is NUMBER, VARIABLE or one of the
+     * operation codes NEGATE to DIVIDE, and left, right and value are as in
+     * the arena.
+     */
+    void flatten(byte[] code, int[] left, int[] right, int[] value) {
+        for (int id = 0; id < count; id++) {
+            left[id] = lefts[id];
+            right[id] = rights[id];
+            value[id] = values[id];
+            switch (kinds[id]) {
+                case NUMBER: code[id] = NUMBER; break;
+                case VARIABLE: code[id] = VARIABLE; break;
+                case UNARY: code[id] = op(id) == TokenType.MINUS ? NEGATE : IDENTITY; break;
+                default:
+                    switch (op(id)) {
+                        case PLUS: code[id] = ADD; break;
+                        case MINUS: code[id] = SUBTRACT; break;
+                        case STAR: code[id] = MULTIPLY; break;
+                        default: code[id] = DIVIDE;
+                    }
+            }
+        }
+    }
+
+    // Bytes held by the node arrays and the hash table
+    public long memoryBytes() {
+        return (long) kinds.length * (1 + 1 + 4 + 4 + 4) + (long) table.length * 4;
+    }
+
+    public Builder builder() { return new Builder(); }
+
+    /**
+     * An AstSink that builds into the arena. Operand ids are kept on a stack
+     * until the operator that consumes them arrives.
+     */
+    public final class Builder implements AstSink {
+        private int[] stack = new int[16];
+        private int size;
+
+        @Override
+        public void number(int value) { push(AstArena.this.number(value)); }
+
+        @Override
+        public void variable(String name, int slot) { push(AstArena.this.variable(name)); }
+
+        @Override
+        public void unary(TokenBuffer tokens, int operator) {
+            int right = stack[--size];
+            push(AstArena.this.unary(tokens.type(operator), right));
+        }
+
+        @Override
+        public void binary(TokenBuffer tokens, int operator) {
+            int right = stack[--size];
+            int left = stack[--size];
+            push(AstArena.this.binary(tokens.type(operator), left, right));
+        }
+
+        // The id of the finished expression's root
+        public int result() {
+            if (size != 1) throw new IllegalStateException("Incomplete expression: " + size + " operands left");
+            return stack[0];
+        }
+
+        private void push(int id) {
+            if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+            stack[size++] = id;
+        }
+    }
+
+    private int intern(int kind, int op, int left, int right, int value) {
+        int mask = table.length - 1;
+        int bucket = hash(kind, op, left, right, value) & mask;
+        while (true) {
+            int entry = table[bucket];
+            if (entry == 0) break;
+            int id = entry - 1;
+            if (kinds[id] == kind && ops[id] == op && lefts[id] == left && rights[id] == right && values[id] == value) {
+                return id;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+
+        if (count == kinds.length) grow();
+        int id = count++;
+        kinds[id] = (byte) kind;
+        ops[id] = (byte) op;
+        lefts[id] = left;
+        rights[id] = right;
+        values[id] = value;
+        table[bucket] = id + 1;
+
+        // Keep the table at most half full
+        if (count * 2 > table.length) rehash();
+        return id;
+    }
+
+    private static int hash(int kind, int op, int left, int right, int value) {
+        int h = kind * 31 + op;
+        h = h * 0x9E3779B1 + left;
+        h = h * 0x9E3779B1 + right;
+        h = h * 0x9E3779B1 + value;
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        ops = Arrays.copyOf(ops, capacity);
+        lefts = Arrays.copyOf(lefts, capacity);
+        rights = Arrays.copyOf(rights, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int bucket = hash(kinds[id], ops[id], lefts[id], rights[id], values[id]) & mask;
+            while (table[bucket] != 0) bucket = (bucket + 1) & mask;
+            table[bucket] = id + 1;
+        }
+    }
+}
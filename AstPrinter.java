@@ -1,38 +1,254 @@
+import java.io.*;
+import java.util.*;
+
 /** AST Printer
- * 
+ *
  * This class walks through the Abstract Syntax Tree and prints it in a readable format.
  * Each level of indentation visually represents the structure of the parsed expression.
- */ 
-
+ *
+ * Output goes to System.out unless another destination is given, e.g. a
+ * StringBuilder when the tree should be captured instead of printed, or a
+ * Writer (which the caller flushes and closes).
+ *
+ * Besides the indented tree, the printer can write Graphviz DOT or compact
+ * JSON for other tools:
+ *
+ *   new AstPrinter(writer, AstPrinter.Format.DOT).print(expr);     // dot -Tsvg
+ *   new AstPrinter(sb, AstPrinter.Format.JSON).print(expr);
+ *
+ *   {"type":"binary","op":"*","left":{"type":"variable","name":"x"},"right":{"type":"number","value":3}}
+ *
+ * Large trees can be cut off: nodes deeper than maxDepth (the root is at
+ * depth 0), and all nodes after the first maxNodes, are printed as a single
+ * truncation marker in place of their subtree.
+ *
+ * Trees stored in an AstArena print exactly like the equivalent Expr tree.
+ *
+ * The walk does not recurse: nodes waiting to be printed are kept on an
+ * explicit stack, and the indentation prefix is one shared buffer that is
+ * cut back to the depth of each node, so arbitrarily deep trees print without
+ * a StackOverflowError. Output is built in one reused buffer and handed to
+ * the destination in large chunks (a StringBuilder is written directly), and
+ * labels are appended without creating strings. DOT and JSON output grows
+ * linearly with the number of nodes; every line of the indented tree repeats
+ * its ancestors' guides, so that output grows with depth times node count
+ * unless maxDepth bounds it.
+ */
 
 public class AstPrinter {
+    public enum Format { TREE, DOT, JSON }
+
+    // Buffered output is handed to the destination once it reaches this many characters
+    private static final int CHUNK = 8192;
+    private static final String NL = System.lineSeparator();
+
+    private final Appendable out;
+    private final StringBuilder buffer;
+    private final Format format;
+    private final int maxDepth;
+    private final int maxNodes;
+
+    // Prefix of the line being printed: one 3-character segment per ancestor
+    private final StringBuilder prefix = new StringBuilder();
+
+    // Set while an arena tree is printed
+    private AstArena arena;
+
+    // Entries still to be printed: a node (an Expr, or an arena id) with its
+    // depth, whether it is a last child and its parent's DOT number, or a
+    // piece of text that closes a JSON object
+    private Expr[] nodes = new Expr[16];
+    private int[] ids = new int[16];
+    private int[] depths = new int[16];
+    private boolean[] last = new boolean[16];
+    private int[] parents = new int[16];
+    private String[] texts = new String[16];
+
+    public AstPrinter() { this(System.out); }
+
+    public AstPrinter(Appendable out) { this(out, Format.TREE); }
+
+    public AstPrinter(Appendable out, Format format) { this(out, format, Integer.MAX_VALUE, Integer.MAX_VALUE); }
+
+    public AstPrinter(Appendable out, Format format, int maxDepth, int maxNodes) {
+        if (maxDepth < 0 || maxNodes < 1) throw new IllegalArgumentException("maxDepth must be >= 0 and maxNodes >= 1");
+        this.out = out;
+        this.buffer = out instanceof StringBuilder ? (StringBuilder) out : new StringBuilder(CHUNK + 256);
+        this.format = format;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+    }
 
     public void print(Expr e) {
-        print(e, "", true);
+        walk(e, -1);
     }
 
-    private void print(Expr e, String prefix, boolean isLast) {
-        String connector = isLast ? "└─ " : "├─ ";
+    public void print(AstArena arena, int node) {
+        this.arena = arena;
+        try {
+            walk(null, node);
+        } finally {
+            this.arena = null;
+        }
+    }
 
-        if (e instanceof NumberExpr) {
-            NumberExpr n = (NumberExpr) e;
-            System.out.println(prefix + connector + n.value);
-            return;
+    private void walk(Expr root, int rootId) {
+        // Left over if an earlier print failed
+        if (buffer != out) buffer.setLength(0);
+        if (format == Format.DOT) buffer.append("digraph AST {").append(NL);
+        int printed = 0;
+        int numbered = 0;
+        int sp = push(0, root, rootId, 0, true, -1);
+
+        while (sp > 0) {
+            sp--;
+            String text = texts[sp];
+            if (text != null) {
+                texts[sp] = null;
+                buffer.append(text);
+                continue;
+            }
+            Expr node = nodes[sp];
+            nodes[sp] = null;
+            int id = ids[sp];
+            int depth = depths[sp];
+            boolean isLast = last[sp];
+            boolean truncated = depth > maxDepth || printed == maxNodes;
+            int arity = truncated ? 0 : arity(node, id);
+            // The node's DOT number, which its children need
+            int number = -1;
+
+            switch (format) {
+                case TREE:
+                    prefix.setLength(3 * depth);
+                    buffer.append(prefix).append(isLast ? "└─ " : "├─ ");
+                    if (truncated) buffer.append('…');
+                    else label(node, id);
+                    buffer.append(NL);
+                    if (arity > 0) prefix.append(isLast ? "   " : "│  ");
+                    break;
+                case DOT: {
+                    number = numbered++;
+                    buffer.append("  n").append(number).append(" [label=\"");
+                    // Labels are numbers, identifiers and operators, none of which need escaping
+                    if (truncated) buffer.append("…\", shape=plaintext];");
+                    else label(node, id).append("\"];");
+                    buffer.append(NL);
+                    int parent = parents[sp];
+                    if (parent >= 0) buffer.append("  n").append(parent).append(" -> n").append(number).append(';').append(NL);
+                    break;
+                }
+                default:
+                    if (truncated) {
+                        buffer.append("{\"type\":\"truncated\"}");
+                    } else if (arity == 0) {
+                        boolean variable = arena != null ? arena.kind(id) == AstArena.VARIABLE : node instanceof VariableExpr;
+                        buffer.append(variable ? "{\"type\":\"variable\",\"name\":\"" : "{\"type\":\"number\",\"value\":");
+                        label(node, id).append(variable ? "\"}" : "}");
+                    } else {
+                        buffer.append(arity == 1 ? "{\"type\":\"unary\",\"op\":\"" : "{\"type\":\"binary\",\"op\":\"");
+                        label(node, id).append(arity == 1 ? "\",\"operand\":" : "\",\"left\":");
+                    }
+            }
+
+            if (!truncated) printed++;
+            if (arity > 0) {
+                if (format == Format.JSON) sp = pushText(sp, "}");
+                // The right child is pushed first so the left one is printed first
+                sp = push(sp, right(node), arena != null ? arena.right(id) : -1, depth + 1, true, number);
+                if (arity == 2) {
+                    if (format == Format.JSON) sp = pushText(sp, ",\"right\":");
+                    sp = push(sp, left(node), arena != null ? arena.left(id) : -1, depth + 1, false, number);
+                }
+            }
+            if (buffer != out && buffer.length() >= CHUNK) flush();
         }
 
-        if (e instanceof UnaryExpr) {
-            UnaryExpr u = (UnaryExpr) e;
-            System.out.println(prefix + connector + u.operator.lexeme);
-            print(u.right, prefix + (isLast ? "   " : "│  "), true);
-            return;
+        if (format == Format.DOT) buffer.append('}').append(NL);
+        else if (format == Format.JSON) buffer.append(NL);
+        if (buffer != out) flush();
+    }
+
+    // 0 for a leaf, 1 for a unary operator, 2 for a binary one
+    private int arity(Expr node, int id) {
+        if (arena != null) {
+            int kind = arena.kind(id);
+            return kind == AstArena.UNARY ? 1 : kind == AstArena.BINARY ? 2 : 0;
         }
+        return node instanceof UnaryExpr ? 1 : node instanceof BinaryExpr ? 2 : 0;
+    }
+
+    private static Expr left(Expr node) {
+        return node instanceof BinaryExpr ? ((BinaryExpr) node).left : null;
+    }
+
+    // The right operand of a binary operator, or the operand of a unary one
+    private static Expr right(Expr node) {
+        if (node instanceof BinaryExpr) return ((BinaryExpr) node).right;
+        return node instanceof UnaryExpr ? ((UnaryExpr) node).right : null;
+    }
+
+    // Appends the node's number, name or operator to the buffer
+    private StringBuilder label(Expr node, int id) {
+        if (arena != null) {
+            switch (arena.kind(id)) {
+                case AstArena.NUMBER: return buffer.append(arena.value(id));
+                case AstArena.VARIABLE: return buffer.append(arena.slots().name(arena.value(id)));
+                default: return buffer.append(lexeme(arena.op(id)));
+            }
+        }
+        if (node instanceof NumberExpr) return buffer.append(((NumberExpr) node).value);
+        if (node instanceof BigNumberExpr) return buffer.append(((BigNumberExpr) node).value);
+        if (node instanceof VariableExpr) return buffer.append(((VariableExpr) node).name);
+        if (node instanceof UnaryExpr) return buffer.append(((UnaryExpr) node).operator.lexeme);
+        if (node instanceof BinaryExpr) return buffer.append(((BinaryExpr) node).operator.lexeme);
+        return buffer;
+    }
 
-        if (e instanceof BinaryExpr) {
-            BinaryExpr b = (BinaryExpr) e;
-            System.out.println(prefix + connector + b.operator.lexeme);
+    private void flush() {
+        try {
+            out.append(buffer);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            buffer.setLength(0);
+        }
+    }
+
+    private int push(int sp, Expr child, int id, int depth, boolean isLast, int parent) {
+        if (sp == nodes.length) grow();
+        nodes[sp] = child;
+        texts[sp] = null;
+        ids[sp] = id;
+        depths[sp] = depth;
+        last[sp] = isLast;
+        parents[sp] = parent;
+        return sp + 1;
+    }
+
+    private int pushText(int sp, String text) {
+        if (sp == nodes.length) grow();
+        nodes[sp] = null;
+        texts[sp] = text;
+        return sp + 1;
+    }
+
+    private void grow() {
+        int capacity = nodes.length * 2;
+        nodes = Arrays.copyOf(nodes, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        depths = Arrays.copyOf(depths, capacity);
+        last = Arrays.copyOf(last, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+    }
 
-            print(b.left, prefix + (isLast ? "   " : "│  "), false);
-            print(b.right, prefix + (isLast ? "   " : "│  "), true);
+    private static String lexeme(TokenType op) {
+        switch (op) {
+            case PLUS: return "+";
+            case MINUS: return "-";
+            case STAR: return "*";
+            default: return "/";
         }
     }
 }
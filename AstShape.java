@@ -0,0 +1,130 @@
+import java.math.BigInteger;
+import java.util.*;
+
+/** AstShape
+ *
+ * The node count and depth of an AST, a single leaf having depth 1.
+ *
+ * An AstShape can be measured from a finished tree with of(), or while the
+ * tree is being parsed by placing it between the Parser and another AstSink:
+ * every event is counted and then passed on unchanged.
+ *
+ *   AstShape shape = new AstShape(builder);
+ *   parser.parse(shape);
+ *   shape.nodes(), shape.depth()
+ *
+ * Neither way recurses, so arbitrarily deep trees can be measured.
+ */
+public final class AstShape implements AstSink {
+    private final AstSink target;
+    // Depth of each operand not yet consumed by an operator
+    private int[] depths = new int[16];
+    private int size;
+    private int nodes;
+    private int depth;
+
+    public AstShape(AstSink target) { this.target = target; }
+
+    public int nodes() { return nodes; }
+
+    public int depth() { return depth; }
+
+    @Override
+    public void number(int value) {
+        leaf();
+        target.number(value);
+    }
+
+    @Override
+    public void bigNumber(BigInteger value) {
+        leaf();
+        target.bigNumber(value);
+    }
+
+    @Override
+    public void variable(String name, int slot) {
+        leaf();
+        target.variable(name, slot);
+    }
+
+    @Override
+    public void unary(TokenBuffer tokens, int operator) {
+        nodes++;
+        depth = Math.max(depth, ++depths[size - 1]);
+        target.unary(tokens, operator);
+    }
+
+    @Override
+    public void binary(TokenBuffer tokens, int operator) {
+        nodes++;
+        int right = depths[--size];
+        depths[size - 1] = Math.max(depths[size - 1], right) + 1;
+        depth = Math.max(depth, depths[size - 1]);
+        target.binary(tokens, operator);
+    }
+
+    private void leaf() {
+        nodes++;
+        if (size == depths.length) depths = Arrays.copyOf(depths, size * 2);
+        depths[size++] = 1;
+        depth = Math.max(depth, 1);
+    }
+
+    public static AstShape of(Expr root) {
+        AstShape shape = new AstShape(null);
+        Expr[] nodes = new Expr[16];
+        int[] levels = new int[16];
+        int sp = 0;
+        nodes[sp] = root;
+        levels[sp++] = 1;
+        while (sp > 0) {
+            Expr e = nodes[--sp];
+            int level = levels[sp];
+            shape.nodes++;
+            shape.depth = Math.max(shape.depth, level);
+            if (sp + 2 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            if (e instanceof BinaryExpr) {
+                nodes[sp] = ((BinaryExpr) e).left;
+                levels[sp++] = level + 1;
+                nodes[sp] = ((BinaryExpr) e).right;
+                levels[sp++] = level + 1;
+            } else if (e instanceof UnaryExpr) {
+                nodes[sp] = ((UnaryExpr) e).right;
+                levels[sp++] = level + 1;
+            }
+        }
+        return shape;
+    }
+
+    // Counts tree nodes, so a node shared by several parents counts once per parent
+    public static AstShape of(AstArena arena, int root) {
+        AstShape shape = new AstShape(null);
+        int[] ids = new int[16];
+        int[] levels = new int[16];
+        int sp = 0;
+        ids[sp] = root;
+        levels[sp++] = 1;
+        while (sp > 0) {
+            int id = ids[--sp];
+            int level = levels[sp];
+            shape.nodes++;
+            shape.depth = Math.max(shape.depth, level);
+            if (sp + 2 > ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            if (arena.kind(id) == AstArena.BINARY) {
+                ids[sp] = arena.left(id);
+                levels[sp++] = level + 1;
+            }
+            if (arena.kind(id) == AstArena.UNARY || arena.kind(id) == AstArena.BINARY) {
+                ids[sp] = arena.right(id);
+                levels[sp++] = level + 1;
+            }
+        }
+        return shape;
+    }
+}
@@ -0,0 +1,37 @@
+import java.math.BigInteger;
+
+/** AstSink
+ *
+ * Receives the nodes of an expression from the Parser in postfix order:
+ * every operand is reported before the operator that applies to it.
+ *
+ * Example:
+ *   Input: "(3 + x) * 5"
+ *
+ *   Events:
+ *     number(3)
+ *     variable("x", 0)
+ *     binary(tokens, 2)      the '+' token
+ *     number(5)
+ *     binary(tokens, 5)      the '*' token
+ *
+ * Operators are passed as an index into the parser's TokenBuffer, so a sink
+ * that only needs the operator type never materializes a Token.
+ */
+public interface AstSink {
+
+    void number(int value);
+
+    // A literal too large for an int, only seen when the Lexer allows big literals
+    default void bigNumber(BigInteger value) {
+        throw new ArithmeticException("Literal " + value + " does not fit in an int");
+    }
+
+    void variable(String name, int slot);
+
+    // Applies the unary operator at tokens[operator] to the last operand
+    void unary(TokenBuffer tokens, int operator);
+
+    // Applies the binary operator at tokens[operator] to the last two operands
+    void binary(TokenBuffer tokens, int operator);
+}
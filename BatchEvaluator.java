@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** BatchEvaluator
+ *
+ * Evaluates a stream of expressions, one per line, on all cores.
+ *
+ * Lines are read in chunks; each chunk is lexed, parsed and evaluated by a
+ * worker from a fixed thread pool, and the output of the chunks is written
+ * back in input order. Only a bounded number of chunks is in flight at a
+ * time, so arbitrarily long inputs are processed in constant memory.
+ *
+ * Each line produces its result, or an error tagged with its line number:
+ *
+ *   Input:             Output:
+ *     (3 + 2) * 5        25
+ *     3 +                Line 2: Parse Error: Unexpected token '' at position 3
+ *     10 / 0             Line 3: Arithmetic Error: / by zero
+ *
+ * Lines are lexed and parsed in diagnostics mode, so an invalid line is
+ * reported without an exception being thrown.
+ *
+ * Token lists and ASTs are only printed when asked for, so by default the
+ * workers do no output formatting beyond the result itself.
+ *
+ * With optimize set, each expression goes through the Optimizer before it is
+ * evaluated (and printed).
+ *
+ * An optional ExpressionCache, shared by all workers, skips lexing and parsing
+ * for repeated lines. It is bypassed when tokens are printed.
+ */
+public class BatchEvaluator {
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private final int threads;
+    private final int chunkSize;
+    private final boolean printTokens;
+    private final boolean printAst;
+    private final ExpressionCache cache;
+    private final boolean optimize;
+
+    public BatchEvaluator() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, false, false);
+    }
+
+    public BatchEvaluator(int threads, int chunkSize, boolean printTokens, boolean printAst) {
+        this(threads, chunkSize, printTokens, printAst, null, false);
+    }
+
+    public BatchEvaluator(int threads, int chunkSize, boolean printTokens, boolean printAst,
+                          ExpressionCache cache, boolean optimize) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1");
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.printTokens = printTokens;
+        this.printAst = printAst;
+        this.cache = printTokens ? null : cache;
+        this.optimize = optimize;
+    }
+
+    /**
+     * Evaluates every line of the input and writes the results, in order,
+     * to the output. Returns the number of lines processed.
+     */
+    public long run(BufferedReader in, Writer out) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "batch-evaluator");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        int maxInFlight = threads * 4;
+        long lineNumber = 0;
+
+        try {
+            List<String> chunk = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = in.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == chunkSize) {
+                    long first = lineNumber + 1;
+                    List<String> work = chunk;
+                    pending.add(pool.submit(() -> evaluateChunk(work, first)));
+                    lineNumber += chunk.size();
+                    chunk = new ArrayList<>(chunkSize);
+
+                    // Keep memory bounded: wait for the oldest chunk before reading more
+                    if (pending.size() >= maxInFlight) out.write(await(pending.poll()));
+                }
+            }
+            if (!chunk.isEmpty()) {
+                long first = lineNumber + 1;
+                List<String> work = chunk;
+                pending.add(pool.submit(() -> evaluateChunk(work, first)));
+                lineNumber += chunk.size();
+            }
+            while (!pending.isEmpty()) out.write(await(pending.poll()));
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+        return lineNumber;
+    }
+
+    private static String await(Future<String> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for results");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch worker failed", e.getCause());
+        }
+    }
+
+    // Lexes, parses and evaluates one chunk of lines, returning its output text
+    String evaluateChunk(List<String> lines, long firstLine) {
+        StringBuilder out = new StringBuilder(lines.size() * 8);
+        TokenBuffer tokens = new TokenBuffer();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Evaluator evaluator = new Evaluator();
+        Optimizer optimizer = new Optimizer();
+        String nl = System.lineSeparator();
+
+        for (int i = 0; i < lines.size(); i++) {
+            long lineNumber = firstLine + i;
+            String input = lines.get(i).trim();
+
+            if (input.isEmpty()) {
+                out.append("Line ").append(lineNumber).append(": Error: Empty input provided").append(nl);
+                continue;
+            }
+
+            try {
+                Expr expr;
+                if (cache != null) {
+                    expr = cache.get(input);
+                } else {
+                    // Invalid lines are common, so they are rejected without exceptions
+                    diagnostics.clear();
+                    new Lexer(input).tokenize(tokens, diagnostics);
+                    ExprBuilder builder = new ExprBuilder();
+                    if (diagnostics.isEmpty()) {
+                        if (printTokens) out.append("Tokens: ").append(tokens.toList()).append(nl);
+                        new Parser(tokens).parse(builder, diagnostics);
+                    }
+                    if (!diagnostics.isEmpty()) {
+                        Diagnostic first = diagnostics.get(0);
+                        out.append("Line ").append(lineNumber).append(first.isLexical() ? ": Error: " : ": Parse Error: ")
+                            .append(first.message()).append(nl);
+                        continue;
+                    }
+                    expr = builder.result();
+                }
+                if (optimize) expr = optimizer.optimize(expr);
+                if (printAst) {
+                    out.append("AST:").append(nl);
+                    new AstPrinter(out).print(expr);
+                }
+
+                out.append(evaluator.evaluate(expr)).append(nl);
+            } catch (ParseException e) {
+                out.append("Line ").append(lineNumber).append(": Parse Error: ").append(e.getMessage()).append(nl);
+            } catch (ArithmeticException e) {
+                out.append("Line ").append(lineNumber).append(": Arithmetic Error: ").append(e.getMessage()).append(nl);
+            } catch (RuntimeException e) {
+                out.append("Line ").append(lineNumber).append(": Error: ").append(e.getMessage()).append(nl);
+            } catch (StackOverflowError e) {
+                out.append("Line ").append(lineNumber).append(": Error: Expression is nested too deeply").append(nl);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,499 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntSupplier;
+
+/** BenchmarkRunner
+ *
+ * Micro benchmarks comparing the evaluation engines on the same expressions.
+ *
+ * Each case is warmed up first so the JIT has compiled the hot loops, then
+ * timed over a fixed number of iterations. Results are reported in
+ * nanoseconds per evaluation.
+ *
+ * Run with:
+ *     java BenchmarkRunner
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ITERATIONS = 2_000_000;
+
+    // Prevents the JIT from discarding results as dead code
+    private static int sink;
+
+    private static final String[] CORPUS = {
+        "(3 + 2) * 5 - 1",
+        "(1 + 2) * (3 + 4) - 100 / (7 - 2)",
+        "-(12 * (4 + 9) / 3) + 88 * (2 - 7) - (((5)))",
+        "((((1 + 2) * 3 - 4) * 5 + 6) * 7 - 8) / 9 + 10 * (11 - 12 * (13 + 14))",
+    };
+
+    // Formulas over variables: the bindings change on every iteration, so
+    // nothing can be constant folded away
+    private static final String[] FORMULAS = {
+        "x * (y + 3) - z / 2",
+        "(price * qty - discount) * (100 + tax) / 100",
+        "-(a * b + c) / (d - a * 3 + 1000000) + a * a - b * (c - d)",
+        "days * (60 * 60 * 24) + (hours + 0) * 3600 * 1 - (-(offset)) + 2 * 0",
+    };
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Evaluation engines (ns per evaluation, lower is better)");
+        System.out.printf("  %-70s %12s %12s %12s%n", "expression", "tree walk", "stack", "bytecode");
+
+        for (String source : CORPUS) {
+            Expr expr = new Parser(new Lexer(source).tokenize()).parse();
+            Evaluator evaluator = new Evaluator();
+            StackProgram program = new StackCompiler().compile(expr);
+            StackMachine machine = new StackMachine();
+            CompiledExpression compiled = new BytecodeCompiler().compile(expr);
+
+            double tree = measure(i -> evaluator.evaluate(expr));
+            double stack = measure(i -> machine.run(program));
+            double jit = measure(i -> compiled.evaluate());
+            System.out.printf("  %-70s %12.2f %12.2f %12.2f%n", source, tree, stack, jit);
+        }
+
+        System.out.println();
+        System.out.println("Bound variables, one parse and new bindings per evaluation (ns per evaluation)");
+        System.out.printf("  %-70s %12s %12s %12s%n", "formula", "tree walk", "stack", "bytecode");
+
+        for (String source : FORMULAS) {
+            Parser parser = new Parser(new Lexer(source).tokenize());
+            Expr expr = parser.parse();
+            int[] slots = new int[parser.slots().size()];
+            Evaluator evaluator = new Evaluator();
+            StackProgram program = new StackCompiler().compile(expr);
+            StackMachine machine = new StackMachine();
+            CompiledExpression compiled = new BytecodeCompiler().compile(expr);
+
+            double tree = measure(i -> evaluator.evaluate(expr, bind(slots, i)));
+            double stack = measure(i -> machine.run(program, bind(slots, i)));
+            double jit = measure(i -> compiled.evaluate(bind(slots, i)));
+            System.out.printf("  %-70s %12.2f %12.2f %12.2f%n", source, tree, stack, jit);
+        }
+
+        System.out.println();
+        System.out.println("Optimizer, tree walk before and after (nodes, ns per evaluation)");
+        System.out.printf("  %-70s %12s %12s %12s %12s%n", "expression", "nodes", "optimized", "tree walk", "optimized");
+
+        List<String> all = new ArrayList<>(Arrays.asList(CORPUS));
+        all.addAll(Arrays.asList(FORMULAS));
+        for (String source : all) {
+            Parser parser = new Parser(new Lexer(source).tokenize());
+            Expr expr = parser.parse();
+            Expr optimized = new Optimizer().optimize(expr);
+            int[] slots = new int[parser.slots().size()];
+            Evaluator evaluator = new Evaluator();
+
+            double plain = measure(i -> evaluator.evaluate(expr, bind(slots, i)));
+            double folded = measure(i -> evaluator.evaluate(optimized, bind(slots, i)));
+            System.out.printf("  %-70s %12d %12d %12.2f %12.2f%n", source,
+                Optimizer.countNodes(expr), Optimizer.countNodes(optimized), plain, folded);
+        }
+
+        System.out.println();
+        System.out.println("Exact arithmetic, int tree walk against exact tree walk (ns per evaluation)");
+        System.out.printf("  %-70s %12s %12s%n", "expression", "int", "exact");
+
+        for (String source : all) {
+            Parser parser = new Parser(new Lexer(source).tokenize());
+            Expr expr = parser.parse();
+            int[] slots = new int[parser.slots().size()];
+            Evaluator evaluator = new Evaluator();
+            ExactEvaluator exact = new ExactEvaluator();
+
+            double plain = measure(i -> evaluator.evaluate(expr, bind(slots, i)));
+            double checked = measure(i -> exact.evaluate(expr, bind(slots, i)).intValue());
+            System.out.printf("  %-70s %12.2f %12.2f%n", source, plain, checked);
+        }
+
+        System.out.println();
+        System.out.println("Column evaluation of 1,000,000 rows, one core (ns per row, lower is better)");
+        System.out.printf("  %-70s %12s %12s %12s%n", "formula", "tree walk", "stack", "columns");
+
+        Random values = new Random(17);
+        for (String source : FORMULAS) {
+            Parser parser = new Parser(new Lexer(source).tokenize());
+            Expr expr = parser.parse();
+            int rows = 1_000_000;
+            int[][] columns = new int[parser.slots().size()][rows];
+            for (int[] column : columns) for (int r = 0; r < rows; r++) column[r] = values.nextInt(100) + 1;
+            int[] out = new int[rows];
+            int[] slots = new int[columns.length];
+            Evaluator evaluator = new Evaluator();
+            StackProgram program = new StackCompiler().compile(expr);
+            StackMachine machine = new StackMachine();
+            ColumnEvaluator columnar = new ColumnEvaluator(program);
+
+            double tree = best(() -> {
+                for (int r = 0; r < rows; r++) out[r] = evaluator.evaluate(expr, row(columns, r, slots));
+                return out[rows - 1];
+            }) / (double) rows;
+            double stack = best(() -> {
+                for (int r = 0; r < rows; r++) out[r] = machine.run(program, row(columns, r, slots));
+                return out[rows - 1];
+            }) / (double) rows;
+            double vector = best(() -> {
+                columnar.evaluate(columns, out);
+                return out[rows - 1];
+            }) / (double) rows;
+            System.out.printf("  %-70s %12.2f %12.2f %12.2f%n", source, tree, stack, vector);
+        }
+
+        System.out.println();
+        System.out.println("Lexing and parsing (bytes allocated per parsed expression)");
+        System.out.printf("  %-70s %12s %12s%n", "expression", "List<Token>", "TokenBuffer");
+
+        TokenBuffer buffer = new TokenBuffer();
+        for (String source : CORPUS) {
+            long list = allocatedPerOp(() -> new Parser(new Lexer(source).tokenize()).parse());
+            long buffered = allocatedPerOp(() -> {
+                new Lexer(source).tokenize(buffer);
+                return new Parser(buffer).parse();
+            });
+            System.out.printf("  %-70s %12d %12d%n", source, list, buffered);
+        }
+
+        System.out.println();
+        System.out.println("Accepting and rejecting input (ns per lex and parse, lower is better)");
+        System.out.printf("  %-70s %12s %12s%n", "expression", "exceptions", "diagnostics");
+
+        String[] inputs = {
+            "(1 + 2) * (3 + 4) - 100 / (7 - 2)",
+            "(1 + 2) * (3 + 4) - 100 / (7 - 2",
+            "(1 + 2) * (3 + 4) - 100 / * (7 - 2)",
+            "(1 + 2) * (3 $ 4) - 100 / (7 - 2)",
+            "(1 + 2) * (3 4) - 100 / (7 - 2)",
+        };
+        TokenBuffer reused = new TokenBuffer();
+        List<Diagnostic> found = new ArrayList<>();
+        for (String source : inputs) {
+            double thrown = measure(i -> {
+                try {
+                    new Lexer(source).tokenize(reused);
+                    return new Parser(reused).parse() == null ? 0 : 1;
+                } catch (ParseException | RuntimeException e) {
+                    return 2;
+                }
+            });
+            double diagnosed = measure(i -> {
+                found.clear();
+                new Lexer(source).tokenize(reused, found);
+                if (found.isEmpty()) new Parser(reused).parse(new ExprBuilder(), found);
+                return found.size();
+            });
+            System.out.printf("  %-70s %12.2f %12.2f%n", source, thrown, diagnosed);
+        }
+
+        System.out.println();
+        System.out.println("AST memory for 200,000 parsed expressions (heap bytes per parsed node)");
+        String[] sources = new String[200_000];
+        for (int i = 0; i < sources.length; i++) {
+            String group = "(a" + (i % 100) + " + " + (i % 1000) + ")";
+            sources[i] = group + " * (b - c) + " + group + " / 7 - " + i;
+        }
+        long before = usedHeap();
+        List<Expr> trees = new ArrayList<>(sources.length);
+        long nodes = 0;
+        for (String source : sources) {
+            new Lexer(source).tokenize(buffer);
+            Expr expr = new Parser(buffer).parse();
+            nodes += Optimizer.countNodes(expr);
+            trees.add(expr);
+        }
+        long objects = usedHeap() - before;
+        sink += trees.size();
+        trees = null;
+
+        // The arena's arrays are its whole footprint, so they are measured directly
+        AstArena arena = new AstArena();
+        for (String source : sources) {
+            new Lexer(source).tokenize(buffer);
+            sink += new Parser(buffer).parse(arena);
+        }
+        long packed = arena.memoryBytes();
+        System.out.printf("  %-32s %12d nodes %10.1f bytes/node%n", "Expr objects", nodes, (double) objects / nodes);
+        System.out.printf("  %-32s %12d nodes %10.1f bytes/node (%d bytes per distinct node)%n", "AstArena (hash-consed)",
+            arena.size(), (double) packed / nodes, packed / arena.size());
+
+        System.out.println();
+        System.out.println("Bulk evaluation of a memory-mapped file");
+        Path input = Files.createTempFile("bulk", ".txt");
+        Path output = Files.createTempFile("bulk", ".bin");
+        try (BufferedWriter out = Files.newBufferedWriter(input)) {
+            for (int i = 0; i < 2_000_000; i++) {
+                out.write(CORPUS[i % CORPUS.length]);
+                out.newLine();
+            }
+        }
+        BulkEvaluator bulk = new BulkEvaluator();
+        bulk.run(input, output);
+        System.out.println("  " + bulk.run(input, output));
+        Files.delete(input);
+        Files.delete(output);
+        Files.delete(BulkEvaluator.errorPath(output));
+
+        System.out.println();
+        System.out.println("Batch evaluation of 2,000,000 lines (ms, lower is better)");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 2_000_000; i++) lines.append(CORPUS[i % CORPUS.length]).append('\n');
+        String text = lines.toString();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : cores == 1 ? new int[] { 1 } : new int[] { 1, cores }) {
+            BatchEvaluator batch = new BatchEvaluator(threads, 1024, false, false);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                batch.run(new BufferedReader(new StringReader(text)), Writer.nullWriter());
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("  %2d thread(s): %8.1f ms%n", threads, best / 1e6);
+        }
+
+        System.out.println();
+        System.out.println("Parallel evaluation of a balanced tree of 4,194,303 nodes (ms, lower is better)");
+        Expr tree = balanced(21, new Random(21));
+        Evaluator sequential = new Evaluator();
+        System.out.printf("  %-14s %8.1f ms%n", "Evaluator:", best(() -> sequential.evaluate(tree)) / 1e6);
+        for (int threads : cores == 1 ? new int[] { 1 } : new int[] { 1, cores }) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelEvaluator parallel = new ParallelEvaluator(pool, ParallelEvaluator.DEFAULT_THRESHOLD);
+            System.out.printf("  %2d thread(s):  %8.1f ms%n", threads, best(() -> parallel.evaluate(tree)) / 1e6);
+            pool.shutdown();
+        }
+
+        System.out.println();
+        System.out.println("Warm start of 100,000 optimized formulas (ms, lower is better)");
+        List<String> formulas = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            formulas.add("(a" + (i % 50) + " + " + i + ") * (b - c / " + (i % 9 + 1) + ") + " + CORPUS[i % CORPUS.length]);
+        }
+        Path saved = Files.createTempFile("formulas", ".mexl");
+        ProgramLibrary.compile(formulas, true).writeTo(saved);
+        long reparse = Long.MAX_VALUE;
+        long load = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            sink += ProgramLibrary.compile(formulas, true).size();
+            reparse = Math.min(reparse, System.nanoTime() - start);
+            start = System.nanoTime();
+            sink += ProgramLibrary.load(saved).size();
+            load = Math.min(load, System.nanoTime() - start);
+        }
+        System.out.printf("  %-32s %8.1f ms%n", "lex, parse, optimize, lower:", reparse / 1e6);
+        System.out.printf("  %-32s %8.1f ms (%d KB file)%n", "ProgramLibrary.load:", load / 1e6, Files.size(saved) / 1024);
+        Files.delete(saved);
+
+        System.out.println();
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < 1_000_000; i++) huge.append("(a + ").append(i % 97).append(") * 3 - ");
+        huge.append('1');
+        String expression = huge.toString();
+        System.out.printf("One expression of %,d characters (ms, lower is better)%n", expression.length());
+        int[] bound = { 5 };
+        long whole = Long.MAX_VALUE;
+        long streamed = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            TokenBuffer tokens = new TokenBuffer();
+            new Lexer(expression).tokenize(tokens);
+            sink += new Evaluator().evaluate(new Parser(tokens).parse(), bound);
+            whole = Math.min(whole, System.nanoTime() - start);
+            start = System.nanoTime();
+            sink += new StreamingEvaluator().evaluate(new StringReader(expression), new SlotTable(), bound);
+            streamed = Math.min(streamed, System.nanoTime() - start);
+        }
+        System.out.printf("  %-40s %8.1f ms%n", "Lexer, Parser, Evaluator:", whole / 1e6);
+        System.out.printf("  %-40s %8.1f ms%n", "StreamingEvaluator:", streamed / 1e6);
+
+        System.out.println();
+        System.out.println("Self-specializing nodes against the tree walk (ns per evaluation, lower is better)");
+        System.out.printf("  %-70s %12s %12s%n", "expression", "tree walk", "nodes");
+
+        // One slot table for all, so that the round robin can share one set of bindings
+        SlotTable names = new SlotTable();
+        Expr[] exprs = new Expr[all.size()];
+        NodeTree[] nodeTrees = new NodeTree[all.size()];
+        for (int e = 0; e < exprs.length; e++) {
+            exprs[e] = new Parser(new Lexer(all.get(e)).tokenize(), names).parse();
+            nodeTrees[e] = new NodeTree(exprs[e]);
+        }
+        int[] shared = new int[names.size()];
+        Evaluator walker = new Evaluator();
+        for (int e = 0; e < exprs.length; e++) {
+            Expr expr = exprs[e];
+            NodeTree nodeTree = nodeTrees[e];
+            double walk = measure(i -> walker.evaluate(expr, bind(shared, i)));
+            double specialized = measure(i -> nodeTree.evaluate(bind(shared, i)));
+            System.out.printf("  %-70s %12.2f %12.2f%n", all.get(e), walk, specialized);
+        }
+        double walk = measure(i -> walker.evaluate(exprs[i % exprs.length], bind(shared, i)));
+        double specialized = measure(i -> nodeTrees[i % nodeTrees.length].evaluate(bind(shared, i)));
+        System.out.printf("  %-70s %12.2f %12.2f%n", "all of the above, round robin", walk, specialized);
+
+        System.out.println();
+        System.out.println("Printing a balanced tree of 1,048,575 nodes to a PrintStream (ms, lower is better)");
+        Expr big = balanced(19, new Random(23));
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        for (AstPrinter.Format format : AstPrinter.Format.values()) {
+            AstPrinter printer = new AstPrinter(discard, format);
+            long elapsed = best(() -> {
+                printer.print(big);
+                return 0;
+            });
+            System.out.printf("  %-40s %8.1f ms%n", format + ":", elapsed / 1e6);
+        }
+
+        System.out.println();
+        System.out.println("Batch of 1,000 formulas sharing two large subexpressions (ns per formula, lower is better)");
+        SlotTable batchNames = new SlotTable();
+        List<Expr> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String formula = "(" + FORMULAS[1] + ") * " + (i % 17 + 1) + " - (" + FORMULAS[2] + ") / " + (i % 5 + 1) + " + x" + (i % 50);
+            batch.add(new Parser(new Lexer(formula).tokenize(), batchNames).parse());
+        }
+        ExpressionDag dag = new ExpressionDag(batch, batchNames);
+        int[] batchSlots = new int[batchNames.size()];
+        int[] results = new int[dag.size()];
+        long each = warmBest(() -> {
+            int acc = 0;
+            for (int round = 0; round < 200; round++) {
+                bind(batchSlots, round);
+                for (Expr formula : batch) acc += walker.evaluate(formula, batchSlots);
+            }
+            return acc;
+        });
+        long merged = warmBest(() -> {
+            int acc = 0;
+            for (int round = 0; round < 200; round++) {
+                dag.evaluate(bind(batchSlots, round), results);
+                acc += results[round];
+            }
+            return acc;
+        });
+        System.out.printf("  %-40s %8.1f ns (%,d nodes)%n", "Evaluator on each formula:", each / 200e3, dag.treeNodes());
+        System.out.printf("  %-40s %8.1f ns (%,d nodes, %,d saved)%n", "ExpressionDag:", merged / 200e3, dag.nodes(), dag.savedEvaluations());
+
+        System.out.println();
+        SlotTable sheetNames = new SlotTable();
+        List<Expr> sheetFormulas = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            String formula = "(x" + i + " * 2 + y" + (i % 100) + ") * (100 + tax) / 100 - x" + ((i + 1) % 10_000);
+            sheetFormulas.add(new Parser(new Lexer(formula).tokenize(), sheetNames).parse());
+        }
+        int[] sheetSlots = bind(new int[sheetNames.size()], 0);
+        System.out.printf("A sheet of 10,000 formulas, 3 of %,d inputs changed per tick (µs per tick, lower is better)%n", sheetSlots.length);
+        IncrementalEvaluator sheet = new IncrementalEvaluator(sheetFormulas, sheetNames, sheetSlots);
+        Random ticks = new Random(25);
+        long recompute = warmBest(() -> {
+            int acc = 0;
+            for (int tick = 0; tick < 100; tick++) {
+                for (int k = 0; k < 3; k++) sheetSlots[ticks.nextInt(sheetSlots.length)] = tick;
+                for (Expr formula : sheetFormulas) acc += walker.evaluate(formula, sheetSlots);
+            }
+            return acc;
+        });
+        long[] touched = new long[1];
+        long incremental = warmBest(() -> {
+            int acc = 0;
+            for (int tick = 0; tick < 100; tick++) {
+                for (int k = 0; k < 3; k++) sheet.set(ticks.nextInt(sheetSlots.length), tick);
+                touched[0] = sheet.update();
+                acc += sheet.value(tick);
+            }
+            return acc;
+        });
+        System.out.printf("  %-40s %8.1f µs (%,d nodes)%n", "Evaluator on every formula:", recompute / 100e3, sheet.nodes());
+        System.out.printf("  %-40s %8.1f µs (%,d nodes in the last tick)%n", "IncrementalEvaluator:", incremental / 100e3, touched[0]);
+
+        if (sink == 42) System.out.println();
+    }
+
+    // A complete binary tree of additions and multiplications over small literals
+    private static Expr balanced(int depth, Random random) {
+        if (depth == 0) return new NumberExpr(random.nextInt(10));
+        Token op = random.nextBoolean() ? new Token(TokenType.PLUS, "+", null, 0) : new Token(TokenType.STAR, "*", null, 0);
+        return new BinaryExpr(balanced(depth - 1, random), op, balanced(depth - 1, random));
+    }
+
+    // Best of ten runs of a long-running task, in nanoseconds
+    private static long best(IntSupplier task) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            sink += task.getAsInt();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // Best of ten runs after ten more that let the JIT compile the task
+    private static long warmBest(IntSupplier task) {
+        best(task);
+        return best(task);
+    }
+
+    // Copies one row of the columns into the bindings
+    private static int[] row(int[][] columns, int r, int[] slots) {
+        for (int s = 0; s < slots.length; s++) slots[s] = columns[s][r];
+        return slots;
+    }
+
+    // Fills the bindings with values derived from the iteration number
+    private static int[] bind(int[] slots, int i) {
+        for (int s = 0; s < slots.length; s++) slots[s] = i + s * 7 + 1;
+        return slots;
+    }
+
+    // Heap in use after collecting garbage
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    interface IntTask {
+        int run(int iteration);
+    }
+
+    interface ParseTask {
+        Expr run() throws ParseException;
+    }
+
+    // Average bytes allocated by the current thread for one run of the task
+    static long allocatedPerOp(ParseTask task) throws ParseException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        int runs = 200_000;
+        for (int i = 0; i < runs; i++) sink += task.run().hashCode();
+
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < runs; i++) sink += task.run().hashCode();
+        long after = threads.getThreadAllocatedBytes(id);
+        return (after - before) / runs;
+    }
+
+    static double measure(IntTask task) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) run(task);
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) best = Math.min(best, run(task));
+        return best;
+    }
+
+    private static double run(IntTask task) {
+        int acc = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) acc += task.run(i);
+        long elapsed = System.nanoTime() - start;
+        sink += acc;
+        return (double) elapsed / ITERATIONS;
+    }
+}
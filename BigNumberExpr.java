@@ -0,0 +1,15 @@
+import java.math.BigInteger;
+
+/** BigNumberExpr
+ *
+ * A numeric literal too large for an int, such as 99999999999.
+ *
+ * Only produced when the Lexer is asked for big literals; the int engines
+ * do not accept it, and only the ExactEvaluator evaluates it.
+ *
+ * This is a leaf node
+ */
+public class BigNumberExpr extends Expr {
+    public final BigInteger value;
+    public BigNumberExpr(BigInteger value) { this.value = value; }
+}
@@ -12,9 +12,15 @@ public class BinaryExpr extends Expr {
     public final Expr left;
     public final Token operator;
     public final Expr right;
+    private final int size;
     public BinaryExpr(Expr left, Token operator, Expr right) {
         this.left = left;
         this.operator = operator;
         this.right = right;
+        // Saturates, since a shared subtree can be counted more than once
+        this.size = (int) Math.min(1L + left.size() + right.size(), Integer.MAX_VALUE);
     }
+
+    @Override
+    public int size() { return size; }
 }
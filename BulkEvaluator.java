@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/** BulkEvaluator
+ *
+ * Evaluates a file with one expression per line and writes the results as
+ * binary columns.
+ *
+ * The input file is memory-mapped one window at a time, and each line is
+ * lexed straight from the mapped ASCII bytes through an AsciiSequence, so no
+ * line is ever decoded into a String. Because only a window is mapped at a
+ * time, files larger than RAM (or larger than 2 GB) are handled.
+ *
+ * Two output files are written, also through memory-mapped windows:
+ *
+ *   <output>        one little-endian int per input line: the result,
+ *                   or 0 when the line failed
+ *   <output>.err    a bitmap with one bit per line (bit i of byte i / 8),
+ *                   set when line i failed to lex, parse or evaluate
+ *
+ * Lines are trimmed like interactive input; an empty line is an error.
+ * Both "\n" and "\r\n" line endings are accepted.
+ */
+public class BulkEvaluator {
+
+    private static final long DEFAULT_WINDOW = 1L << 30;
+
+    private final long window;
+
+    public BulkEvaluator() { this(DEFAULT_WINDOW); }
+
+    // The window size is configurable so tests can force lines across windows
+    BulkEvaluator(long window) { this.window = window; }
+
+    /**
+     * Summary of a bulk run.
+     */
+    public static final class Summary {
+        public final long lines;
+        public final long errors;
+        public final long elapsedNanos;
+
+        Summary(long lines, long errors, long elapsedNanos) {
+            this.lines = lines;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double expressionsPerSecond() {
+            return elapsedNanos == 0 ? 0 : lines * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d expressions (%d errors) in %.3f s, %.0f expressions/second",
+                lines, errors, elapsedNanos / 1e9, expressionsPerSecond());
+        }
+    }
+
+    public static Path errorPath(Path output) {
+        return output.resolveSibling(output.getFileName() + ".err");
+    }
+
+    public Summary run(Path input, Path output) throws IOException {
+        long started = System.nanoTime();
+        long lines = 0;
+        long errors = 0;
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             MappedColumn results = new MappedColumn(output, 1 << 22);
+             MappedColumn errorBits = new MappedColumn(errorPath(output), 1 << 20)) {
+
+            long size = in.size();
+            long offset = 0;
+            long errorWord = 0;
+            TokenBuffer tokens = new TokenBuffer();
+            AsciiSequence text = new AsciiSequence();
+            Evaluator evaluator = new Evaluator();
+
+            long mapSize = window;
+            while (offset < size) {
+                long length = Math.min(mapSize, size - offset);
+                MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                boolean lastWindow = offset + length == size;
+                int limit = (int) length;
+                int lineStart = 0;
+
+                while (lineStart < limit) {
+                    int lineEnd = indexOf(map, '\n', lineStart, limit);
+                    if (lineEnd < 0) {
+                        if (!lastWindow) break;          // line continues past this window
+                        lineEnd = limit;
+                    }
+
+                    boolean ok = true;
+                    int value = 0;
+                    try {
+                        value = evaluate(map, lineStart, lineEnd, text, tokens, evaluator);
+                    } catch (ParseException | RuntimeException e) {
+                        ok = false;
+                    }
+
+                    results.putInt(ok ? value : 0);
+                    if (!ok) {
+                        errors++;
+                        errorWord |= 1L << (lines & 63);
+                    }
+                    lines++;
+                    if ((lines & 63) == 0) {
+                        errorBits.putLong(errorWord);
+                        errorWord = 0;
+                    }
+                    lineStart = lineEnd + 1;
+                }
+
+                if (lineStart == 0 && !lastWindow) {
+                    // A single line is longer than the window: retry with a larger one
+                    if (length >= Integer.MAX_VALUE) throw new IOException("Line at offset " + offset + " is longer than 2 GB");
+                    mapSize = Math.min(mapSize * 2, Integer.MAX_VALUE);
+                    continue;
+                }
+                offset += lineStart;
+                mapSize = window;
+            }
+
+            // Flush the partial last bitmap word, keeping only the bytes in use
+            int tailBits = (int) (lines & 63);
+            for (int b = 0; b < (tailBits + 7) / 8; b++) errorBits.putByte((byte) (errorWord >>> (8 * b)));
+        }
+
+        return new Summary(lines, errors, System.nanoTime() - started);
+    }
+
+    private static int evaluate(ByteBuffer map, int start, int end, AsciiSequence text,
+                                TokenBuffer tokens, Evaluator evaluator) throws ParseException {
+        // Trim surrounding whitespace (including the '\r' of "\r\n")
+        while (start < end && map.get(start) <= ' ') start++;
+        while (end > start && map.get(end - 1) <= ' ') end--;
+        if (start == end) throw new RuntimeException("Empty input provided");
+
+        new Lexer(text.wrap(map, start, end)).tokenize(tokens);
+        return evaluator.evaluate(new Parser(tokens).parse());
+    }
+
+    private static int indexOf(ByteBuffer map, char c, int from, int limit) {
+        for (int i = from; i < limit; i++) if (map.get(i) == c) return i;
+        return -1;
+    }
+
+    /**
+     * An append-only output file written through memory-mapped windows.
+     * The file is truncated to the bytes actually written when closed.
+     */
+    static final class MappedColumn implements Closeable {
+        private final FileChannel channel;
+        private final int windowSize;
+        private MappedByteBuffer window;
+        private long written;
+
+        MappedColumn(Path path, int windowSize) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.windowSize = windowSize;
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4).putInt(v);
+            written += 4;
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8).putLong(v);
+            written += 8;
+        }
+
+        void putByte(byte v) throws IOException {
+            ensure(1).put(v);
+            written += 1;
+        }
+
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (window == null || window.remaining() < bytes) {
+                window = channel.map(FileChannel.MapMode.READ_WRITE, written, windowSize);
+                window.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return window;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.truncate(written);
+            channel.close();
+        }
+    }
+}
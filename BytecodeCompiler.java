@@ -0,0 +1,301 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+/** BytecodeCompiler
+ *
+ * Compiles an AST into a JVM class instead of walking the tree on every call.
+ *
+ * The tree is translated in post-order into stack instructions, which maps
+ * directly onto the JVM operand stack:
+ *
+ *   (3 + 2) * 5   →   iconst_3
+ *                     iconst_2
+ *                     iadd
+ *                     iconst_5
+ *                     imul
+ *                     ireturn
+ *
+ * Variables load their value from the int[] argument: aload_1, slot, iaload.
+ * The compiler records the highest slot the code loads; bindings shorter than
+ * that are handed to the Evaluator instead, which reports the unbound
+ * variable (or any error that comes before it) exactly as it always does.
+ *
+ * The class file is assembled by hand and defined as a hidden class, so it is
+ * unloaded as soon as the CompiledExpression is no longer referenced.
+ *
+ * The JVM int instructions give the same semantics as the Evaluator:
+ * overflow wraps around. Division calls Evaluator.divide, so division by zero
+ * throws the same ArithmeticException("/ by zero"); the JIT inlines the call.
+ *
+ * A method body is limited to 64 KB of code, so expressions too large for a
+ * single method fall back to evaluating the tree with the Evaluator.
+ */
+public class BytecodeCompiler {
+
+    private static final String CLASS_NAME = "GeneratedExpression";
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_POOL_SIZE = 65535;
+
+    // JVM opcodes used by the generated code
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int IALOAD = 0x2e;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int INEG = 0x74;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    // One more than the highest slot read by the code generate() produced last
+    private int slotsUsed;
+
+    /**
+     * Compiles the expression into a freshly defined hidden class.
+     */
+    public CompiledExpression compile(Expr e) {
+        byte[] classFile = generate(e);
+        if (classFile == null) return interpreted(e);
+
+        try {
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(classFile, true);
+            MethodHandle ctor = hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class));
+            CompiledExpression compiled = (CompiledExpression) ctor.invoke();
+            if (slotsUsed == 0) return compiled;
+            int used = slotsUsed;
+            return slots -> slots.length >= used ? compiled.evaluate(slots) : new Evaluator().evaluate(e, slots);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to define compiled expression", t);
+        }
+    }
+
+    /**
+     * Produces the class file bytes, or null when the expression does not fit
+     * into a single method.
+     */
+    byte[] generate(Expr e) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef("CompiledExpression");
+        int objectInit = pool.methodRef(superClass, "<init>", "()V");
+        int divide = pool.methodRef(pool.classRef("Evaluator"), "divide", "(II)I");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("()V");
+        int evalName = pool.utf8("evaluate");
+        int evalDesc = pool.utf8("([I)I");
+        int codeAttr = pool.utf8("Code");
+
+        CodeBuffer code = new CodeBuffer(pool, divide);
+        code.emit(e);
+        code.op(IRETURN, -1);
+        slotsUsed = code.slotsUsed;
+        if (code.length() > MAX_CODE_LENGTH || code.maxStack > 0xFFFF || pool.size() > MAX_POOL_SIZE) return null;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + code.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);                   // minor version
+            out.writeShort(52);                  // major version (Java 8, no stack maps needed)
+            pool.writeTo(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020);   // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0);                   // fields
+            out.writeShort(2);                   // methods
+
+            // public <init>() { super(); }
+            byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN };
+            writeMethod(out, initName, initDesc, codeAttr, 1, 1, init);
+
+            // public int evaluate(int[] slots) { return <expression>; }
+            writeMethod(out, evalName, evalDesc, codeAttr, code.maxStack, 2, code.toByteArray());
+
+            out.writeShort(0);                   // class attributes
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttr,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001);                  // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);                       // exception table
+        out.writeShort(0);                       // code attributes
+    }
+
+    // Fallback for expressions that exceed the JVM method size limits
+    private static CompiledExpression interpreted(Expr e) {
+        // Evaluators are not thread-safe, so each call gets its own
+        return slots -> new Evaluator().evaluate(e, slots);
+    }
+
+    /**
+     * Accumulates the instructions of the evaluate() method and tracks the
+     * operand stack depth they require.
+     */
+    private static final class CodeBuffer {
+        private final ConstantPool pool;
+        private final int divide;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int depth = 0;
+        int maxStack = 0;
+        int slotsUsed = 0;
+
+        CodeBuffer(ConstantPool pool, int divide) {
+            this.pool = pool;
+            this.divide = divide;
+        }
+
+        void emit(Expr e) {
+            if (e instanceof NumberExpr) {
+                pushConstant(((NumberExpr) e).value);
+                return;
+            }
+
+            if (e instanceof VariableExpr) {
+                int slot = ((VariableExpr) e).slot;
+                slotsUsed = Math.max(slotsUsed, slot + 1);
+                op(ALOAD_1, 1);
+                pushConstant(slot);
+                op(IALOAD, -1);
+                return;
+            }
+
+            if (e instanceof UnaryExpr) {
+                UnaryExpr u = (UnaryExpr) e;
+                emit(u.right);
+                if (u.operator.type == TokenType.MINUS) op(INEG, 0);
+                return;
+            }
+
+            if (e instanceof BinaryExpr) {
+                BinaryExpr b = (BinaryExpr) e;
+                emit(b.left);
+                emit(b.right);
+                switch (b.operator.type) {
+                    case PLUS: op(IADD, -1); return;
+                    case MINUS: op(ISUB, -1); return;
+                    case STAR: op(IMUL, -1); return;
+                    case SLASH:
+                        op(INVOKESTATIC, -1);
+                        code.write(divide >> 8);
+                        code.write(divide);
+                        return;
+                    default: break;
+                }
+            }
+            throw new RuntimeException("Bad expression");
+        }
+
+        void pushConstant(int v) {
+            if (v >= -1 && v <= 5) {
+                op(ICONST_0 + v, 1);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                code.write(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                code.write(v >> 8);
+                code.write(v);
+            } else {
+                int index = pool.integer(v);
+                if (index < 256) {
+                    op(LDC, 1);
+                    code.write(index);
+                } else {
+                    op(LDC_W, 1);
+                    code.write(index >> 8);
+                    code.write(index);
+                }
+            }
+        }
+
+        void op(int opcode, int stackDelta) {
+            code.write(opcode);
+            depth += stackDelta;
+            if (depth > maxStack) maxStack = depth;
+        }
+
+        int length() { return code.size(); }
+
+        byte[] toByteArray() { return code.toByteArray(); }
+    }
+
+    /**
+     * Constant pool of the generated class, with deduplicated entries.
+     */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String s) {
+            return entry("U" + s, () -> { out.writeByte(1); out.writeUTF(s); });
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, () -> { out.writeByte(7); out.writeShort(name); });
+        }
+
+        int methodRef(int owner, String name, String desc) {
+            int n = utf8(name);
+            int d = utf8(desc);
+            int nameAndType = entry("N" + name + desc, () -> { out.writeByte(12); out.writeShort(n); out.writeShort(d); });
+            return entry("M" + owner + "." + name + desc, () -> { out.writeByte(10); out.writeShort(owner); out.writeShort(nameAndType); });
+        }
+
+        int integer(int v) {
+            return entry("I" + v, () -> { out.writeByte(3); out.writeInt(v); });
+        }
+
+        int size() { return next; }
+
+        void writeTo(DataOutputStream dest) throws IOException {
+            dest.writeShort(next);
+            bytes.writeTo(dest);
+        }
+
+        private int entry(String key, PoolWriter writer) {
+            Integer existing = entries.get(key);
+            if (existing != null) return existing;
+            try {
+                writer.write();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            entries.put(key, next);
+            return next++;
+        }
+
+        private interface PoolWriter {
+            void write() throws IOException;
+        }
+    }
+}
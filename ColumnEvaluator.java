@@ -0,0 +1,235 @@
+import java.util.*;
+
+/** ColumnEvaluator
+ *
+ * Evaluates one expression over many rows of variable bindings at once.
+ *
+ *   ColumnEvaluator columns = new ColumnEvaluator(parser.parse());
+ *   int[][] inputs = { prices, quantities, discounts };    // one column per slot
+ *   int[] totals = new int[prices.length];
+ *   columns.evaluate(inputs, totals);
+ *
+ * Instead of walking the tree once per row, every instruction of the
+ * expression's StackProgram is applied to a block of 1024 rows before moving
+ * on to the next one. The inner loops are plain array loops with no calls or
+ * branches, of the shape the JIT compiles to SIMD instructions, so additions,
+ * subtractions, multiplications and negations handle several rows per
+ * instruction. Variables are read straight from their columns and constants
+ * are never expanded into arrays.
+ *
+ * Results are those of the Evaluator applied row by row. If a division by
+ * zero occurs, a DivisionByZero naming the first row it occurs in is thrown,
+ * and out already holds the results of every row before it.
+ *
+ * A ColumnEvaluator holds mutable state and must not be shared between threads.
+ */
+public class ColumnEvaluator {
+    public static final int BLOCK = 1024;
+
+    // What an operand stack entry holds
+    private static final int CONSTANT = 0;
+    private static final int COLUMN = 1;
+    private static final int REGISTER = 2;
+
+    private final StackProgram program;
+    private final int slots;
+    // Stack entry p is a constant, a column starting at offset[p], or registers[p]
+    private final int[] kind;
+    private final int[] constant;
+    private final int[][] array;
+    private final int[] offset;
+    private final int[][] registers;
+
+    /**
+     * Thrown when a division by zero occurs in some row.
+     */
+    public static final class DivisionByZero extends ArithmeticException {
+        private static final long serialVersionUID = 1L;
+
+        public final int row;
+
+        DivisionByZero(int row) {
+            super("/ by zero at row " + row);
+            this.row = row;
+        }
+    }
+
+    public ColumnEvaluator(Expr e) {
+        this(new StackCompiler().compile(e));
+    }
+
+    public ColumnEvaluator(StackProgram program) {
+        this.program = program;
+        int highest = -1;
+        for (int pc = 0; pc < program.code.length; pc++) {
+            int op = program.code[pc];
+            if (op == StackProgram.LOAD) highest = Math.max(highest, program.code[pc + 1]);
+            if (op == StackProgram.LOAD || op == StackProgram.PUSH_CONST) pc++;
+        }
+        this.slots = highest + 1;
+        this.kind = new int[program.maxStack];
+        this.constant = new int[program.maxStack];
+        this.array = new int[program.maxStack][];
+        this.offset = new int[program.maxStack];
+        this.registers = new int[program.maxStack][BLOCK];
+    }
+
+    /**
+     * Evaluates every row: out[row] is the value of the expression with each
+     * variable bound to columns[slot][row]. There must be a column for every
+     * slot the expression uses, at least as long as out.
+     */
+    public void evaluate(int[][] columns, int[] out) {
+        if (columns.length < slots) throw new IllegalArgumentException("Expected " + slots + " columns but got " + columns.length);
+        for (int s = 0; s < slots; s++) {
+            if (columns[s] == null || columns[s].length < out.length)
+                throw new IllegalArgumentException("Column " + s + " has fewer than " + out.length + " rows");
+        }
+        for (int start = 0; start < out.length; start += BLOCK) {
+            block(columns, out, start, Math.min(BLOCK, out.length - start));
+        }
+    }
+
+    // Evaluates rows [start, start + n)
+    private void block(int[][] columns, int[] out, int start, int n) {
+        final int[] code = program.code;
+        int sp = -1;
+        int pc = 0;
+        int failedAt = n;
+
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case StackProgram.PUSH_CONST:
+                    sp++;
+                    kind[sp] = CONSTANT;
+                    constant[sp] = code[pc++];
+                    break;
+                case StackProgram.LOAD:
+                    sp++;
+                    kind[sp] = COLUMN;
+                    array[sp] = columns[code[pc++]];
+                    offset[sp] = start;
+                    break;
+                case StackProgram.NEG:
+                    if (kind[sp] == CONSTANT) {
+                        constant[sp] = -constant[sp];
+                    } else {
+                        negate(registers[sp], array[sp], offset[sp], n);
+                        toRegister(sp);
+                    }
+                    break;
+                case StackProgram.ADD:
+                case StackProgram.SUB:
+                case StackProgram.MUL:
+                case StackProgram.DIV:
+                    sp--;
+                    failedAt = Math.min(failedAt, binary(op, sp, n));
+                    break;
+                default:
+                    throw new RuntimeException("Bad instruction at " + (pc - 1));
+            }
+        }
+
+        int rows = Math.min(failedAt, n);
+        if (kind[sp] == CONSTANT) {
+            Arrays.fill(out, start, start + rows, constant[sp]);
+        } else {
+            System.arraycopy(array[sp], offset[sp], out, start, rows);
+        }
+        if (failedAt < n) throw new DivisionByZero(start + failedAt);
+    }
+
+    /**
+     * Combines stack entries p and p + 1 into p. Returns the first row of
+     * the block with a zero divisor, or n if there is none.
+     */
+    private int binary(int op, int p, int n) {
+        int q = p + 1;
+        int[] r = registers[p];
+        if (kind[p] == CONSTANT && kind[q] == CONSTANT) {
+            int l = constant[p];
+            int c = constant[q];
+            if (op == StackProgram.DIV && c == 0) return 0;
+            constant[p] = apply(op, l, c);
+            return n;
+        }
+        if (kind[q] == CONSTANT) {
+            int c = constant[q];
+            int[] a = array[p];
+            int ao = offset[p];
+            switch (op) {
+                case StackProgram.ADD: for (int i = 0; i < n; i++) r[i] = a[ao + i] + c; break;
+                case StackProgram.SUB: for (int i = 0; i < n; i++) r[i] = a[ao + i] - c; break;
+                case StackProgram.MUL: for (int i = 0; i < n; i++) r[i] = a[ao + i] * c; break;
+                default:
+                    if (c == 0) return 0;
+                    for (int i = 0; i < n; i++) r[i] = a[ao + i] / c;
+                    break;
+            }
+        } else if (kind[p] == CONSTANT) {
+            int c = constant[p];
+            int[] b = array[q];
+            int bo = offset[q];
+            switch (op) {
+                case StackProgram.ADD: for (int i = 0; i < n; i++) r[i] = c + b[bo + i]; break;
+                case StackProgram.SUB: for (int i = 0; i < n; i++) r[i] = c - b[bo + i]; break;
+                case StackProgram.MUL: for (int i = 0; i < n; i++) r[i] = c * b[bo + i]; break;
+                default: {
+                    int failed = firstZero(b, bo, n);
+                    for (int i = 0; i < n; i++) {
+                        int d = b[bo + i];
+                        r[i] = c / (d == 0 ? 1 : d);
+                    }
+                    toRegister(p);
+                    return failed;
+                }
+            }
+        } else {
+            int[] a = array[p];
+            int ao = offset[p];
+            int[] b = array[q];
+            int bo = offset[q];
+            switch (op) {
+                case StackProgram.ADD: for (int i = 0; i < n; i++) r[i] = a[ao + i] + b[bo + i]; break;
+                case StackProgram.SUB: for (int i = 0; i < n; i++) r[i] = a[ao + i] - b[bo + i]; break;
+                case StackProgram.MUL: for (int i = 0; i < n; i++) r[i] = a[ao + i] * b[bo + i]; break;
+                default: {
+                    int failed = firstZero(b, bo, n);
+                    for (int i = 0; i < n; i++) {
+                        int d = b[bo + i];
+                        r[i] = a[ao + i] / (d == 0 ? 1 : d);
+                    }
+                    toRegister(p);
+                    return failed;
+                }
+            }
+        }
+        toRegister(p);
+        return n;
+    }
+
+    private void toRegister(int p) {
+        kind[p] = REGISTER;
+        array[p] = registers[p];
+        offset[p] = 0;
+    }
+
+    private static void negate(int[] r, int[] a, int ao, int n) {
+        for (int i = 0; i < n; i++) r[i] = -a[ao + i];
+    }
+
+    private static int firstZero(int[] b, int bo, int n) {
+        for (int i = 0; i < n; i++) if (b[bo + i] == 0) return i;
+        return n;
+    }
+
+    private static int apply(int op, int l, int r) {
+        switch (op) {
+            case StackProgram.ADD: return l + r;
+            case StackProgram.SUB: return l - r;
+            case StackProgram.MUL: return l * r;
+            default: return Evaluator.divide(l, r);
+        }
+    }
+}
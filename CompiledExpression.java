@@ -0,0 +1,23 @@
+/** CompiledExpression
+ *
+ * An expression that has been translated ahead of time into executable form.
+ *
+ * Instances are produced by the BytecodeCompiler, which turns the AST into a
+ * generated JVM class. Evaluating a compiled expression gives exactly the same
+ * result as running the Evaluator over the original tree:
+ *     - integer overflow wraps around
+ *     - division by zero throws ArithmeticException
+ *
+ * Variables are read from the slots array, indexed by the slot the parser
+ * assigned to each name. The array must hold a value for every slot.
+ */
+public interface CompiledExpression {
+    int[] NO_SLOTS = new int[0];
+
+    int evaluate(int[] slots);
+
+    // Evaluates an expression that contains no variables
+    default int evaluate() {
+        return evaluate(NO_SLOTS);
+    }
+}
@@ -0,0 +1,60 @@
+/** Diagnostic
+ *
+ * One error found while lexing or parsing in diagnostics mode.
+ *
+ *   "3 + * 4"   →   UNEXPECTED_TOKEN at 4: Unexpected token '*' at position 4
+ *
+ * A diagnostic records what went wrong (code), where (the character offset
+ * in the source) and the text involved (detail). The message is only put
+ * together when asked for, and it is word for word the message of the
+ * exception the throwing lexer or parser would have raised.
+ */
+public final class Diagnostic {
+
+    public enum Code {
+        UNEXPECTED_CHARACTER,     // detail: the character
+        NUMBER_OUT_OF_RANGE,      // detail: the digits
+        UNEXPECTED_TOKEN,         // detail: the token's text ('' at the end)
+        MISSING_PAREN,            // detail: empty
+        AMBIGUOUS_OPERATORS,      // detail: the operand and operators, as in '3*-'
+        UNARY_SEQUENCE            // detail: the two unary operators
+    }
+
+    public final Code code;
+    public final int position;
+    public final String detail;
+
+    public Diagnostic(Code code, int position, String detail) {
+        this.code = code;
+        this.position = position;
+        this.detail = detail;
+    }
+
+    // True for errors found by the Lexer, which throws them as RuntimeExceptions
+    public boolean isLexical() {
+        return code == Code.UNEXPECTED_CHARACTER || code == Code.NUMBER_OUT_OF_RANGE;
+    }
+
+    public String message() {
+        return message(code, position, detail);
+    }
+
+    // The message for an error at any offset, including those past 2 GB in a stream
+    static String message(Code code, long position, String detail) {
+        switch (code) {
+            case UNEXPECTED_CHARACTER: return "Unexpected character '" + detail + "' at position " + position;
+            case NUMBER_OUT_OF_RANGE: return "For input string: \"" + detail + "\"";
+            case UNEXPECTED_TOKEN: return "Unexpected token '" + detail + "' at position " + position;
+            case MISSING_PAREN: return "Missing ')' at position " + position;
+            case AMBIGUOUS_OPERATORS:
+                return "Ambiguous operator sequence '" + detail + "' at position " + position
+                    + ". Use parentheses or spaces for clarity.";
+            default: return "Unexpected unary operator sequence '" + detail + "' at position " + position + ".";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return code + " at " + position + ": " + message();
+    }
+}
@@ -0,0 +1,30 @@
+import jdk.jfr.*;
+
+/** EvalEvent
+ *
+ * A JDK Flight Recorder event for one call to Evaluator.evaluate.
+ *
+ * The node count and depth are measured after evaluation, and only when the
+ * event is about to be committed.
+ */
+@Name("miniexpr.Eval")
+@Label("Eval")
+@Category("Mini Expression Compiler")
+@Description("Evaluating one AST")
+@StackTrace(false)
+public class EvalEvent extends Event {
+    @Label("Node Count")
+    @Description("Nodes in the evaluated tree")
+    int nodeCount;
+
+    @Label("Depth")
+    @Description("Depth of the evaluated tree, a single leaf being 1")
+    int depth;
+
+    @Label("Result")
+    int result;
+
+    @Label("Outcome")
+    @Description("\"ok\", or the simple name of the exception thrown")
+    String outcome;
+}
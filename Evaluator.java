@@ -1,6 +1,8 @@
+import java.util.*;
+
 /** Evaluator
  * 
- * The evaluator walks the tree using recursion:
+ * The evaluator walks the tree in post-order:
  *   - evaluate(left subtree)
  *   - evaluate(right subtree)
  *   - apply the operator
@@ -9,33 +11,234 @@
  *      - evaluate(3 + 2) → 5
  *      - evaluate(5) → 5
  *      - multiply results → 25
+ *
+ * The walk does not recurse. Pending operators are kept on an explicit stack
+ * and operand values on a second one, both reused between calls, so trees
+ * nested millions of levels deep are evaluated without a StackOverflowError.
+ * Operands are still evaluated left to right, so the first error in the tree
+ * is the one reported.
+ *
+ * Variables read their value from an int[] of bindings indexed by the slot
+ * the parser assigned to them. Evaluating without bindings only works for
+ * expressions made of literals.
+ *
+ * Expressions stored in an AstArena are evaluated the same way, walking node
+ * ids instead of objects.
+ *
+ * An Evaluator holds mutable state and must not be shared between threads.
  */
 public class Evaluator {
+    private static final int[] NO_SLOTS = new int[0];
+
+    // Operators whose operands are being evaluated, and whether their right operand has started
+    private Expr[] nodes = new Expr[16];
+    private int[] ids = new int[16];
+    private boolean[] onRight = new boolean[16];
+    // Values of the operands evaluated so far
+    private int[] values = new int[17];
+
     public int evaluate(Expr e) {
+        return evaluate(e, NO_SLOTS);
+    }
+
+    /**
+     * Evaluates the tree with the given variable bindings.
+     *
+     * Each call is reported as an EvalEvent and to the active PhaseRecorder.
+     */
+    public int evaluate(Expr e, int[] slots) {
+        EvalEvent event = PhaseRecorder.flightRecorderInitialized() ? new EvalEvent() : null;
+        if (event != null) event.begin();
+        long began = PhaseRecorder.begin();
+        Throwable failure = null;
+        int result = 0;
+        try {
+            return result = walk(e, slots);
+        } catch (Throwable x) {
+            failure = x;
+            throw x;
+        } finally {
+            PhaseRecorder.end(PhaseRecorder.Phase.EVAL, began, failure == null);
+            if (event != null && event.shouldCommit()) commit(event, AstShape.of(e), result, failure);
+        }
+    }
+
+    // The evaluation itself, without reporting it
+    int walk(Expr e, int[] slots) {
+        int sp = 0;
+        int vp = 0;
+        Expr current = e;
+
+        while (true) {
+            // Descend along left operands until a value is produced
+            while (true) {
+                if (current instanceof BinaryExpr) {
+                    BinaryExpr b = (BinaryExpr)current;
+                    if (isLeaf(b.left)) {
+                        // Leaf operands are read in place instead of going through the stacks
+                        int l = leaf(b.left, slots);
+                        if (isLeaf(b.right)) {
+                            values[vp++] = apply(b.operator.type, l, leaf(b.right, slots));
+                            break;
+                        }
+                        values[vp++] = l;
+                        if (sp == nodes.length) grow();
+                        nodes[sp] = b;
+                        onRight[sp++] = true;
+                        current = b.right;
+                    } else {
+                        if (sp == nodes.length) grow();
+                        nodes[sp] = b;
+                        onRight[sp++] = false;
+                        current = b.left;
+                    }
+                } else if (current instanceof UnaryExpr) {
+                    if (sp == nodes.length) grow();
+                    nodes[sp] = current;
+                    onRight[sp++] = false;
+                    current = ((UnaryExpr)current).right;
+                } else {
+                    values[vp++] = leaf(current, slots);
+                    break;
+                }
+            }
 
+            // Apply every operator whose operands are now complete
+            while (true) {
+                if (sp == 0) return values[0];
+                Expr top = nodes[sp - 1];
+                if (top instanceof BinaryExpr) {
+                    BinaryExpr b = (BinaryExpr)top;
+                    if (!onRight[sp - 1]) {
+                        if (!isLeaf(b.right)) {
+                            onRight[sp - 1] = true;
+                            current = b.right;
+                            break;
+                        }
+                        values[vp - 1] = apply(b.operator.type, values[vp - 1], leaf(b.right, slots));
+                    } else {
+                        int r = values[--vp];
+                        values[vp - 1] = apply(b.operator.type, values[vp - 1], r);
+                    }
+                } else if (((UnaryExpr)top).operator.type == TokenType.MINUS) {
+                    values[vp - 1] = -values[vp - 1];
+                }
+                sp--;
+            }
+        }
+    }
+
+    static boolean isLeaf(Expr e) {
+        return e instanceof NumberExpr || e instanceof VariableExpr;
+    }
+
+    static int leaf(Expr e, int[] slots) {
         // Case 1: base case
         if (e instanceof NumberExpr) return ((NumberExpr)e).value;
 
-        // Case 2: Unary expression
-        if (e instanceof UnaryExpr) {
-            UnaryExpr u = (UnaryExpr)e;
-            int r = evaluate(u.right);
-            return u.operator.type == TokenType.MINUS ? -r : r;
+        // Variables read their bound value
+        if (e instanceof VariableExpr) {
+            VariableExpr v = (VariableExpr)e;
+            if (v.slot >= slots.length) throw new RuntimeException("Unbound variable '" + v.name + "'");
+            return slots[v.slot];
         }
-        // Case 3: Binary expression
-        if (e instanceof BinaryExpr) {
-            BinaryExpr b = (BinaryExpr)e;
-
-            // Recursively evaluate both sides of the binary operation
-            int l = evaluate(b.left);
-            int r = evaluate(b.right);
-            switch (b.operator.type) {
-                case PLUS: return l+r;
-                case MINUS: return l-r;
-                case STAR: return l*r;
-                case SLASH: return l/r;
+        throw new RuntimeException("Bad expression");
+    }
+
+    public int evaluate(AstArena arena, int node) {
+        return evaluate(arena, node, NO_SLOTS);
+    }
+
+    public int evaluate(AstArena arena, int node, int[] slots) {
+        EvalEvent event = PhaseRecorder.flightRecorderInitialized() ? new EvalEvent() : null;
+        if (event != null) event.begin();
+        long began = PhaseRecorder.begin();
+        Throwable failure = null;
+        int result = 0;
+        try {
+            return result = walk(arena, node, slots);
+        } catch (Throwable x) {
+            failure = x;
+            throw x;
+        } finally {
+            PhaseRecorder.end(PhaseRecorder.Phase.EVAL, began, failure == null);
+            if (event != null && event.shouldCommit()) commit(event, AstShape.of(arena, node), result, failure);
+        }
+    }
+
+    static void commit(EvalEvent event, AstShape shape, int result, Throwable failure) {
+        event.nodeCount = shape.nodes();
+        event.depth = shape.depth();
+        event.result = result;
+        event.outcome = PhaseRecorder.outcome(failure);
+        event.commit();
+    }
+
+    private int walk(AstArena arena, int node, int[] slots) {
+        int sp = 0;
+        int vp = 0;
+        int current = node;
+
+        while (true) {
+            while (arena.kind(current) == AstArena.UNARY || arena.kind(current) == AstArena.BINARY) {
+                if (sp == ids.length) grow();
+                ids[sp] = current;
+                onRight[sp] = false;
+                sp++;
+                current = arena.kind(current) == AstArena.UNARY ? arena.right(current) : arena.left(current);
+            }
+            if (arena.kind(current) == AstArena.NUMBER) {
+                values[vp++] = arena.value(current);
+            } else {
+                int slot = arena.value(current);
+                if (slot >= slots.length) throw new RuntimeException("Unbound variable '" + arena.slots().name(slot) + "'");
+                values[vp++] = slots[slot];
             }
+
+            while (true) {
+                if (sp == 0) return values[0];
+                int top = ids[sp - 1];
+                if (arena.kind(top) == AstArena.BINARY && !onRight[sp - 1]) {
+                    onRight[sp - 1] = true;
+                    current = arena.right(top);
+                    break;
+                }
+                sp--;
+                if (arena.kind(top) == AstArena.UNARY) {
+                    if (arena.op(top) == TokenType.MINUS) values[vp - 1] = -values[vp - 1];
+                } else {
+                    int r = values[--vp];
+                    values[vp - 1] = apply(arena.op(top), values[vp - 1], r);
+                }
+            }
+        }
+    }
+
+    static int apply(TokenType op, int l, int r) {
+        switch (op) {
+            case PLUS: return l+r;
+            case MINUS: return l-r;
+            case STAR: return l*r;
+            case SLASH: return divide(l, r);
         }
         throw new RuntimeException("Bad expression");
     }
+
+    private void grow() {
+        int capacity = nodes.length * 2;
+        nodes = Arrays.copyOf(nodes, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        onRight = Arrays.copyOf(onRight, capacity);
+        values = Arrays.copyOf(values, capacity + 1);
+    }
+
+    /**
+     * Integer division with an explicit zero check. Relying on the implicit
+     * exception from '/' is not enough: once the JIT sees it thrown often, it
+     * may replace it with a preallocated exception that has no message.
+     */
+    public static int divide(int l, int r) {
+        if (r == 0) throw new ArithmeticException("/ by zero");
+        return l / r;
+    }
 }       
@@ -0,0 +1,193 @@
+import java.math.BigInteger;
+import java.util.*;
+
+/** ExactEvaluator
+ *
+ * Evaluates an AST with exact integer arithmetic: results never wrap around.
+ *
+ *   Evaluator        2147483647 + 1       →  -2147483648
+ *   ExactEvaluator   2147483647 + 1       →  2147483648
+ *                    99999999999 * 99999999999  →  9999999999800000000001
+ *
+ * Values are kept as primitive longs. Every operation checks for overflow
+ * the way Math.addExact and friends do, but with a plain comparison instead
+ * of an exception, and only the value that overflowed is promoted to a
+ * BigInteger. A BigInteger result that fits in a long again is demoted, so
+ * the rest of the tree goes back to the long path. Expressions that never
+ * leave the long range, which is nearly all of them, never touch BigInteger.
+ *
+ * Literals larger than an int need a Lexer created with bigLiterals set; the
+ * parser then produces BigNumberExpr leaves. Division truncates toward zero
+ * as in int mode, and dividing by zero throws "/ by zero".
+ *
+ * The tree is walked without recursion, like the Evaluator. The result is a
+ * Long when it fits in a long, and a BigInteger otherwise.
+ *
+ * An ExactEvaluator holds mutable state and must not be shared between threads.
+ */
+public class ExactEvaluator {
+    private static final int[] NO_SLOTS = new int[0];
+
+    private Expr[] nodes = new Expr[16];
+    private boolean[] onRight = new boolean[16];
+    // Operand values; big[i] is set instead when value i outgrew a long
+    private long[] values = new long[18];
+    private BigInteger[] big = new BigInteger[18];
+    // Set once a BigInteger was stored; until then big[] need not be looked at
+    private boolean promoted;
+
+    public Number evaluate(Expr e) {
+        return evaluate(e, NO_SLOTS);
+    }
+
+    public Number evaluate(Expr e, int[] slots) {
+        if (promoted) {
+            Arrays.fill(big, null);
+            promoted = false;
+        }
+        int sp = 0;
+        int vp = 0;
+        Expr current = e;
+
+        while (true) {
+            // Descend along left operands until a value is produced
+            while (true) {
+                if (current instanceof BinaryExpr) {
+                    BinaryExpr b = (BinaryExpr)current;
+                    if (Evaluator.isLeaf(b.left)) {
+                        // Leaf operands are read in place instead of going through the stacks
+                        values[vp] = Evaluator.leaf(b.left, slots);
+                        if (Evaluator.isLeaf(b.right)) {
+                            values[vp + 1] = Evaluator.leaf(b.right, slots);
+                            apply(b.operator.type, vp++);
+                            break;
+                        }
+                        vp++;
+                        if (sp == nodes.length) grow();
+                        nodes[sp] = b;
+                        onRight[sp++] = true;
+                        current = b.right;
+                    } else {
+                        if (sp == nodes.length) grow();
+                        nodes[sp] = b;
+                        onRight[sp++] = false;
+                        current = b.left;
+                    }
+                } else if (current instanceof UnaryExpr) {
+                    if (sp == nodes.length) grow();
+                    nodes[sp] = current;
+                    onRight[sp++] = false;
+                    current = ((UnaryExpr)current).right;
+                } else if (current instanceof BigNumberExpr) {
+                    store(vp++, ((BigNumberExpr)current).value);
+                    break;
+                } else {
+                    values[vp++] = Evaluator.leaf(current, slots);
+                    break;
+                }
+            }
+
+            // Apply every operator whose operands are now complete
+            while (true) {
+                if (sp == 0) return promoted && big[0] != null ? big[0] : (Number) values[0];
+                Expr top = nodes[sp - 1];
+                if (top instanceof BinaryExpr) {
+                    BinaryExpr b = (BinaryExpr)top;
+                    if (!onRight[sp - 1]) {
+                        if (!Evaluator.isLeaf(b.right)) {
+                            onRight[sp - 1] = true;
+                            current = b.right;
+                            break;
+                        }
+                        values[vp] = Evaluator.leaf(b.right, slots);
+                        apply(b.operator.type, vp - 1);
+                    } else {
+                        apply(b.operator.type, --vp - 1);
+                    }
+                } else if (((UnaryExpr)top).operator.type == TokenType.MINUS) {
+                    negate(vp - 1);
+                }
+                sp--;
+            }
+        }
+    }
+
+    // Combines the values at i and i + 1 into i
+    private void apply(TokenType op, int i) {
+        if (!promoted || (big[i] == null && big[i + 1] == null)) {
+            long l = values[i];
+            long r = values[i + 1];
+            switch (op) {
+                case PLUS: {
+                    long sum = l + r;
+                    // Overflow iff both operands have the sign the result lacks
+                    if (((l ^ sum) & (r ^ sum)) >= 0) { values[i] = sum; return; }
+                    break;
+                }
+                case MINUS: {
+                    long difference = l - r;
+                    if (((l ^ r) & (l ^ difference)) >= 0) { values[i] = difference; return; }
+                    break;
+                }
+                case STAR: {
+                    long high = Math.multiplyHigh(l, r);
+                    long product = l * r;
+                    if (high == (product >> 63)) { values[i] = product; return; }
+                    break;
+                }
+                case SLASH: {
+                    if (r == 0) throw new ArithmeticException("/ by zero");
+                    if (l != Long.MIN_VALUE || r != -1) { values[i] = l / r; return; }
+                    break;
+                }
+                default: throw new RuntimeException("Bad expression");
+            }
+        }
+
+        // Overflowed, or an operand is already big
+        BigInteger l = bigValue(i);
+        BigInteger r = bigValue(i + 1);
+        big[i + 1] = null;
+        switch (op) {
+            case PLUS: store(i, l.add(r)); return;
+            case MINUS: store(i, l.subtract(r)); return;
+            case STAR: store(i, l.multiply(r)); return;
+            case SLASH:
+                if (r.signum() == 0) throw new ArithmeticException("/ by zero");
+                store(i, l.divide(r));
+                return;
+            default: throw new RuntimeException("Bad expression");
+        }
+    }
+
+    private void negate(int i) {
+        if ((!promoted || big[i] == null) && values[i] != Long.MIN_VALUE) {
+            values[i] = -values[i];
+        } else {
+            store(i, bigValue(i).negate());
+        }
+    }
+
+    private BigInteger bigValue(int i) {
+        return big[i] != null ? big[i] : BigInteger.valueOf(values[i]);
+    }
+
+    // Stores a BigInteger result, demoting it to a long when it fits
+    private void store(int i, BigInteger value) {
+        if (value.bitLength() < 64) {
+            values[i] = value.longValue();
+            big[i] = null;
+        } else {
+            big[i] = value;
+            promoted = true;
+        }
+    }
+
+    private void grow() {
+        int capacity = nodes.length * 2;
+        nodes = Arrays.copyOf(nodes, capacity);
+        onRight = Arrays.copyOf(onRight, capacity);
+        values = Arrays.copyOf(values, capacity + 2);
+        big = Arrays.copyOf(big, capacity + 2);
+    }
+}
@@ -0,0 +1,442 @@
+/** ExecNode
+ *
+ * A node of an executable tree (see NodeTree): it evaluates itself.
+ *
+ *   (a + 2) * -3   →   UninitializedNode STAR   after the first execution:   MulConstNode -3
+ *                        UninitializedNode PLUS                                SlotAddConstNode a 2
+ *                          SlotNode a
+ *                          ConstNode 2
+ *                        UninitializedNode MINUS
+ *                          ConstNode 3
+ *
+ * Each operator has its own node class whose execute() does exactly one
+ * thing, so evaluating never looks at an operator type or tests what kind of
+ * node a child is; the JVM's virtual call picks the code for each node.
+ *
+ * Operators start out as UninitializedNodes. The first time one runs to
+ * completion it looks at what its operands have become and replaces itself
+ * with the most specific node for them: a constant if all operands are
+ * constants, a node with the constant or the variable's slot built in if one
+ * operand is a constant or a variable (AddConstNode, SlotMulConstNode,
+ * SubSlotNode, DivConstNode for a non-zero divisor, ...), and the general
+ * node otherwise. Children rewrite themselves before their parent does, so
+ * constant subtrees collapse from the bottom up.
+ *
+ * Results and errors are the Evaluator's: int arithmetic wraps around,
+ * operands are evaluated left to right and division by zero throws
+ * ArithmeticException("/ by zero"). A node that throws is not rewritten.
+ * Slots are read without checks; NodeTree only executes nodes with a
+ * binding for every variable.
+ */
+abstract class ExecNode {
+    ExecNode parent;
+
+    abstract int execute(int[] slots);
+
+    // Replaces the child old with replacement; nodes with children override this
+    void adopt(ExecNode old, ExecNode replacement) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no children");
+    }
+
+    private static final ExecNode[] NONE = {};
+
+    // The operands, left to right
+    ExecNode[] children() { return NONE; }
+
+    // Takes this node's place in its parent
+    final ExecNode replace(ExecNode replacement) {
+        replacement.parent = parent;
+        parent.adopt(this, replacement);
+        return replacement;
+    }
+
+    final ExecNode child(ExecNode node) {
+        node.parent = this;
+        return node;
+    }
+
+    // ----- Leaves -----
+
+    static final class ConstNode extends ExecNode {
+        final int value;
+
+        ConstNode(int value) { this.value = value; }
+
+        @Override
+        int execute(int[] slots) { return value; }
+
+        @Override
+        public String toString() { return "ConstNode " + value; }
+    }
+
+    static final class SlotNode extends ExecNode {
+        final int slot;
+        final String name;
+
+        SlotNode(int slot, String name) {
+            this.slot = slot;
+            this.name = name;
+        }
+
+        // NodeTree only executes with a binding for every slot
+        @Override
+        int execute(int[] slots) { return slots[slot]; }
+
+        @Override
+        public String toString() { return "SlotNode " + name; }
+    }
+
+    // ----- Operators before their first execution -----
+
+    static final class UninitializedNode extends ExecNode {
+        final TokenType op;
+        ExecNode left;   // null for a unary operator
+        ExecNode right;
+
+        UninitializedNode(TokenType op, ExecNode left, ExecNode right) {
+            this.op = op;
+            this.left = left == null ? null : child(left);
+            this.right = child(right);
+        }
+
+        @Override
+        int execute(int[] slots) {
+            if (left == null) {
+                int v = right.execute(slots);
+                int result = op == TokenType.MINUS ? -v : v;
+                replace(unary());
+                return result;
+            }
+            int l = left.execute(slots);
+            int r = right.execute(slots);
+            int result = Evaluator.apply(op, l, r);
+            replace(binary());
+            return result;
+        }
+
+        // Operands have executed, so they are in their final form
+        private ExecNode unary() {
+            if (right instanceof ConstNode) {
+                int v = ((ConstNode) right).value;
+                return new ConstNode(op == TokenType.MINUS ? -v : v);
+            }
+            if (op != TokenType.MINUS) return right;
+            if (right instanceof SlotNode) return new ConstSubSlotNode(0, (SlotNode) right);
+            return new NegNode(right);
+        }
+
+        /**
+         * Picks the node for the operator with the operands it now has. A
+         * constant operand is kept in a field, and so is the slot of a
+         * variable operand, so neither costs a call. Slot reads cannot
+         * fail, which lets a variable change sides in + and *.
+         */
+        private ExecNode binary() {
+            ExecNode l = left;
+            ExecNode r = right;
+            if (l instanceof ConstNode && r instanceof ConstNode) {
+                return new ConstNode(Evaluator.apply(op, ((ConstNode) l).value, ((ConstNode) r).value));
+            }
+            boolean commutes = op == TokenType.PLUS || op == TokenType.STAR;
+            if (commutes && (l instanceof ConstNode || (l instanceof SlotNode && !(r instanceof ConstNode)))) {
+                ExecNode swap = l;
+                l = r;
+                r = swap;
+            }
+            if (r instanceof ConstNode) {
+                int c = ((ConstNode) r).value;
+                // The divisor executed without throwing, so it is not zero
+                if (l instanceof SlotNode) {
+                    SlotNode v = (SlotNode) l;
+                    switch (op) {
+                        case PLUS: return new SlotAddConstNode(v, c);
+                        case MINUS: return new SlotAddConstNode(v, -c);   // x - c wraps around exactly like x + (-c)
+                        case STAR: return new SlotMulConstNode(v, c);
+                        default: return new SlotDivConstNode(v, c);
+                    }
+                }
+                switch (op) {
+                    case PLUS: return new AddConstNode(l, c);
+                    case MINUS: return new AddConstNode(l, -c);
+                    case STAR: return new MulConstNode(l, c);
+                    default: return new DivConstNode(l, c);
+                }
+            }
+            if (l instanceof ConstNode) {
+                int c = ((ConstNode) l).value;
+                if (op == TokenType.MINUS) return r instanceof SlotNode ? new ConstSubSlotNode(c, (SlotNode) r) : new ConstSubNode(c, r);
+                if (r instanceof SlotNode) return new DivSlotNode(l, (SlotNode) r);
+                return new DivNode(l, r);
+            }
+            if (r instanceof SlotNode) {
+                SlotNode v = (SlotNode) r;
+                switch (op) {
+                    case PLUS: return new AddSlotNode(l, v);
+                    case MINUS: return new SubSlotNode(l, v);
+                    case STAR: return new MulSlotNode(l, v);
+                    default: return new DivSlotNode(l, v);
+                }
+            }
+            if (l instanceof SlotNode) {
+                SlotNode v = (SlotNode) l;
+                return op == TokenType.MINUS ? new SlotSubNode(v, r) : new SlotDivNode(v, r);
+            }
+            switch (op) {
+                case PLUS: return new AddNode(l, r);
+                case MINUS: return new SubNode(l, r);
+                case STAR: return new MulNode(l, r);
+                default: return new DivNode(l, r);
+            }
+        }
+
+        @Override
+        void adopt(ExecNode old, ExecNode replacement) {
+            if (left == old) left = replacement;
+            else right = replacement;
+        }
+
+        @Override
+        ExecNode[] children() { return left == null ? new ExecNode[] { right } : new ExecNode[] { left, right }; }
+
+        @Override
+        public String toString() { return "UninitializedNode " + op; }
+    }
+
+    // ----- Specialized operators -----
+
+    static final class NegNode extends ExecNode {
+        ExecNode operand;
+
+        NegNode(ExecNode operand) { this.operand = child(operand); }
+
+        @Override
+        int execute(int[] slots) { return -operand.execute(slots); }
+
+        @Override
+        void adopt(ExecNode old, ExecNode replacement) { operand = replacement; }
+
+        @Override
+        ExecNode[] children() { return new ExecNode[] { operand }; }
+
+        @Override
+        public String toString() { return "NegNode"; }
+    }
+
+    abstract static class BinaryNode extends ExecNode {
+        ExecNode left;
+        ExecNode right;
+
+        BinaryNode(ExecNode left, ExecNode right) {
+            this.left = child(left);
+            this.right = child(right);
+        }
+
+        @Override
+        final void adopt(ExecNode old, ExecNode replacement) {
+            if (left == old) left = replacement;
+            else right = replacement;
+        }
+
+        @Override
+        final ExecNode[] children() { return new ExecNode[] { left, right }; }
+
+        @Override
+        public String toString() { return getClass().getSimpleName(); }
+    }
+
+    static final class AddNode extends BinaryNode {
+        AddNode(ExecNode left, ExecNode right) { super(left, right); }
+
+        @Override
+        int execute(int[] slots) { return left.execute(slots) + right.execute(slots); }
+    }
+
+    static final class SubNode extends BinaryNode {
+        SubNode(ExecNode left, ExecNode right) { super(left, right); }
+
+        @Override
+        int execute(int[] slots) { return left.execute(slots) - right.execute(slots); }
+    }
+
+    static final class MulNode extends BinaryNode {
+        MulNode(ExecNode left, ExecNode right) { super(left, right); }
+
+        @Override
+        int execute(int[] slots) { return left.execute(slots) * right.execute(slots); }
+    }
+
+    static final class DivNode extends BinaryNode {
+        DivNode(ExecNode left, ExecNode right) { super(left, right); }
+
+        @Override
+        int execute(int[] slots) {
+            int l = left.execute(slots);
+            return Evaluator.divide(l, right.execute(slots));
+        }
+    }
+
+    // An operator with one constant operand, which is kept in a field
+    abstract static class ConstOperandNode extends ExecNode {
+        ExecNode operand;
+        final int constant;
+
+        ConstOperandNode(ExecNode operand, int constant) {
+            this.operand = child(operand);
+            this.constant = constant;
+        }
+
+        @Override
+        final void adopt(ExecNode old, ExecNode replacement) { operand = replacement; }
+
+        @Override
+        final ExecNode[] children() { return new ExecNode[] { operand }; }
+
+        @Override
+        public String toString() { return getClass().getSimpleName() + " " + constant; }
+    }
+
+    static final class AddConstNode extends ConstOperandNode {
+        AddConstNode(ExecNode operand, int constant) { super(operand, constant); }
+
+        @Override
+        int execute(int[] slots) { return operand.execute(slots) + constant; }
+    }
+
+    // constant - operand
+    static final class ConstSubNode extends ConstOperandNode {
+        ConstSubNode(int constant, ExecNode operand) { super(operand, constant); }
+
+        @Override
+        int execute(int[] slots) { return constant - operand.execute(slots); }
+    }
+
+    static final class MulConstNode extends ConstOperandNode {
+        MulConstNode(ExecNode operand, int constant) { super(operand, constant); }
+
+        @Override
+        int execute(int[] slots) { return operand.execute(slots) * constant; }
+    }
+
+    // operand / constant, where the constant is not zero
+    static final class DivConstNode extends ConstOperandNode {
+        DivConstNode(ExecNode operand, int constant) { super(operand, constant); }
+
+        @Override
+        int execute(int[] slots) { return operand.execute(slots) / constant; }
+    }
+
+    // An operator with a variable operand, whose slot is kept in a field
+    abstract static class SlotOperandNode extends ExecNode {
+        ExecNode operand;
+        final int slot;
+        final String name;
+
+        SlotOperandNode(ExecNode operand, SlotNode variable) {
+            this.operand = child(operand);
+            this.slot = variable.slot;
+            this.name = variable.name;
+        }
+
+        @Override
+        final void adopt(ExecNode old, ExecNode replacement) { operand = replacement; }
+
+        @Override
+        final ExecNode[] children() { return new ExecNode[] { operand }; }
+
+        @Override
+        public String toString() { return getClass().getSimpleName() + " " + name; }
+    }
+
+    static final class AddSlotNode extends SlotOperandNode {
+        AddSlotNode(ExecNode operand, SlotNode variable) { super(operand, variable); }
+
+        @Override
+        int execute(int[] slots) { return operand.execute(slots) + slots[slot]; }
+    }
+
+    static final class SubSlotNode extends SlotOperandNode {
+        SubSlotNode(ExecNode operand, SlotNode variable) { super(operand, variable); }
+
+        @Override
+        int execute(int[] slots) { return operand.execute(slots) - slots[slot]; }
+    }
+
+    // variable - operand
+    static final class SlotSubNode extends SlotOperandNode {
+        SlotSubNode(SlotNode variable, ExecNode operand) { super(operand, variable); }
+
+        @Override
+        int execute(int[] slots) { return slots[slot] - operand.execute(slots); }
+    }
+
+    static final class MulSlotNode extends SlotOperandNode {
+        MulSlotNode(ExecNode operand, SlotNode variable) { super(operand, variable); }
+
+        @Override
+        int execute(int[] slots) { return operand.execute(slots) * slots[slot]; }
+    }
+
+    static final class DivSlotNode extends SlotOperandNode {
+        DivSlotNode(ExecNode operand, SlotNode variable) { super(operand, variable); }
+
+        @Override
+        int execute(int[] slots) { return Evaluator.divide(operand.execute(slots), slots[slot]); }
+    }
+
+    // variable / operand
+    static final class SlotDivNode extends SlotOperandNode {
+        SlotDivNode(SlotNode variable, ExecNode operand) { super(operand, variable); }
+
+        @Override
+        int execute(int[] slots) {
+            int r = operand.execute(slots);
+            return Evaluator.divide(slots[slot], r);
+        }
+    }
+
+    // An operator on a variable and a constant: no calls at all
+    abstract static class SlotConstNode extends ExecNode {
+        final int slot;
+        final String name;
+        final int constant;
+
+        SlotConstNode(SlotNode variable, int constant) {
+            this.slot = variable.slot;
+            this.name = variable.name;
+            this.constant = constant;
+        }
+
+        @Override
+        public String toString() { return getClass().getSimpleName() + " " + name + " " + constant; }
+    }
+
+    static final class SlotAddConstNode extends SlotConstNode {
+        SlotAddConstNode(SlotNode variable, int constant) { super(variable, constant); }
+
+        @Override
+        int execute(int[] slots) { return slots[slot] + constant; }
+    }
+
+    // constant - variable
+    static final class ConstSubSlotNode extends SlotConstNode {
+        ConstSubSlotNode(int constant, SlotNode variable) { super(variable, constant); }
+
+        @Override
+        int execute(int[] slots) { return constant - slots[slot]; }
+    }
+
+    static final class SlotMulConstNode extends SlotConstNode {
+        SlotMulConstNode(SlotNode variable, int constant) { super(variable, constant); }
+
+        @Override
+        int execute(int[] slots) { return slots[slot] * constant; }
+    }
+
+    // variable / constant, where the constant is not zero
+    static final class SlotDivConstNode extends SlotConstNode {
+        SlotDivConstNode(SlotNode variable, int constant) { super(variable, constant); }
+
+        @Override
+        int execute(int[] slots) { return slots[slot] / constant; }
+    }
+}
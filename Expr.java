@@ -5,4 +5,8 @@
  * All expression in the language (numbers, unary/ binary operations) extends this class.
  */
 
-public abstract class Expr {}
+public abstract class Expr {
+
+    // Number of nodes in this subtree, known as soon as the node is built
+    public int size() { return 1; }
+}
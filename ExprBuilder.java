@@ -0,0 +1,56 @@
+import java.math.BigInteger;
+import java.util.*;
+
+/** ExprBuilder
+ *
+ * The AstSink that builds the usual tree of Expr objects. Operands are kept
+ * on a stack until the operator that consumes them arrives.
+ */
+public class ExprBuilder implements AstSink {
+    private Expr[] stack = new Expr[16];
+    private int size;
+
+    @Override
+    public void number(int value) { push(new NumberExpr(value)); }
+
+    @Override
+    public void bigNumber(BigInteger value) { push(new BigNumberExpr(value)); }
+
+    @Override
+    public void variable(String name, int slot) { push(new VariableExpr(name, slot)); }
+
+    @Override
+    public void unary(TokenBuffer tokens, int operator) {
+        Expr right = stack[--size];
+        push(new UnaryExpr(tokens.token(operator), right));
+    }
+
+    @Override
+    public void binary(TokenBuffer tokens, int operator) {
+        Expr right = stack[--size];
+        Expr left = stack[--size];
+        push(new BinaryExpr(left, tokens.token(operator), right));
+    }
+
+    // The finished tree
+    public Expr result() {
+        if (size != 1) throw new IllegalStateException("Incomplete expression: " + size + " operands left");
+        return stack[0];
+    }
+
+    // A copy of the operands waiting for their operator, bottom first
+    Expr[] operands() { return Arrays.copyOf(stack, size); }
+
+    int size() { return size; }
+
+    // Replaces the waiting operands, to continue building from a saved state
+    void restore(Expr[] operands) {
+        stack = Arrays.copyOf(operands, Math.max(operands.length * 2, 16));
+        size = operands.length;
+    }
+
+    private void push(Expr e) {
+        if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+        stack[size++] = e;
+    }
+}
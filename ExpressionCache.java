@@ -0,0 +1,203 @@
+import java.util.*;
+
+/** ExpressionCache
+ *
+ * A bounded, thread-safe cache of parsed expressions, placed in front of the
+ * Lexer → Parser pipeline.
+ *
+ * Sources are keyed by their whitespace-normalized text: leading and trailing
+ * whitespace is removed and every run of whitespace inside is collapsed to a
+ * single space. So "3 + 4", " 3 +  4" and "3\t+ 4 " share an entry, while
+ * "3 4" and "34" stay distinct. The normalized text is only the key: on a
+ * miss the caller's own source is parsed, so a cached lookup gives exactly
+ * the result, or the error, that parsing the source directly would.
+ *
+ * Failures are cached too (negative caching): a source that fails to lex or
+ * parse rethrows the same exception on every later lookup of that exact
+ * source without being parsed again. The message of a failure gives
+ * positions in the text that failed, so a differently spaced variant of it
+ * counts as a miss and is parsed itself, its failure taking the entry's place.
+ *
+ * Entries are evicted in least-recently-used order once either limit is
+ * exceeded:
+ *   - maxEntries   the number of cached sources
+ *   - maxWeight    the approximate memory held, in bytes
+ *
+ * Variables in a cached expression are numbered in order of first appearance,
+ * as with a fresh SlotTable.
+ */
+public class ExpressionCache {
+
+    // Rough per-object sizes used for the weight estimate
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int NODE_WEIGHT = 48;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ExpressionCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        if (maxWeight < 1) throw new IllegalArgumentException("maxWeight must be at least 1");
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the parsed expression for the source, parsing it on a miss.
+     * A cached failure is rethrown as-is.
+     */
+    public Expr get(String source) throws ParseException {
+        String key = normalize(source);
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && !entry.answers(source)) entry = null;
+            if (entry != null) hits++;
+            else misses++;
+        }
+
+        if (entry == null) {
+            // Parse outside the lock so a slow parse does not block other lookups
+            entry = parse(key, source);
+            synchronized (this) {
+                Entry raced = entries.get(key);
+                if (raced != null && raced.answers(source)) {
+                    entry = raced;
+                } else if (entry.weight <= maxWeight) {
+                    Entry replaced = entries.put(key, entry);
+                    if (replaced != null) weight -= replaced.weight;
+                    weight += entry.weight;
+                    evict();
+                }
+            }
+        }
+
+        if (entry.parseFailure != null) throw entry.parseFailure;
+        if (entry.lexFailure != null) throw entry.lexFailure;
+        return entry.expr;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(entries.size(), weight, hits, misses, evictions);
+    }
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    public static final class Stats {
+        public final int size;
+        public final long weight;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        Stats(int size, long weight, long hits, long misses, long evictions) {
+            this.size = size;
+            this.weight = weight;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entries=%d weight=%d hits=%d misses=%d evictions=%d hitRate=%.1f%%",
+                size, weight, hits, misses, evictions, hitRate() * 100);
+        }
+    }
+
+    private static final class Entry {
+        final Expr expr;
+        final ParseException parseFailure;
+        final RuntimeException lexFailure;
+        // The exact text that failed; null for an expression
+        final String source;
+        final long weight;
+
+        Entry(Expr expr, ParseException parseFailure, RuntimeException lexFailure, String source, long weight) {
+            this.expr = expr;
+            this.parseFailure = parseFailure;
+            this.lexFailure = lexFailure;
+            this.source = source;
+            this.weight = weight;
+        }
+
+        // An expression serves every spelling of its key, a failure only the text it came from
+        boolean answers(String text) {
+            return source == null || source.equals(text);
+        }
+    }
+
+    private static Entry parse(String key, String source) {
+        long keyWeight = ENTRY_OVERHEAD + 2L * key.length();
+        try {
+            Expr expr = new Parser(new Lexer(source).tokenize()).parse();
+            return new Entry(expr, null, null, null, keyWeight + NODE_WEIGHT * Optimizer.countNodes(expr));
+        } catch (ParseException e) {
+            return new Entry(null, e, null, source, keyWeight + failureWeight(key, source, e));
+        } catch (RuntimeException e) {
+            return new Entry(null, null, e, source, keyWeight + failureWeight(key, source, e));
+        }
+    }
+
+    private static long failureWeight(String key, String source, Exception e) {
+        String message = e.getMessage();
+        // The source is the key itself when it was already normalized
+        return (source == key ? 0 : 2L * source.length()) + (message == null ? 0 : 2L * message.length());
+    }
+
+    // Called with the lock held
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Trims the source and collapses inner whitespace runs to one space.
+     * Returns the source itself when it is already normalized.
+     */
+    static String normalize(String source) {
+        int length = source.length();
+        boolean clean = length == 0
+            || (!Character.isWhitespace(source.charAt(0)) && !Character.isWhitespace(source.charAt(length - 1)));
+        for (int i = 1; clean && i < length; i++) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c) && (c != ' ' || Character.isWhitespace(source.charAt(i - 1)))) clean = false;
+        }
+        if (clean) return source;
+
+        StringBuilder sb = new StringBuilder(length);
+        boolean pendingSpace = false;
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+            } else {
+                if (pendingSpace) sb.append(' ');
+                pendingSpace = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
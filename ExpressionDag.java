@@ -0,0 +1,155 @@
+import java.util.*;
+
+/** ExpressionDag
+ *
+ * Evaluates a batch of related expressions together, computing every
+ * subexpression they share only once.
+ *
+ *   SlotTable names = new SlotTable();
+ *   List<Expr> formulas = ...;                  // each parsed with new Parser(tokens, names)
+ *   ExpressionDag dag = new ExpressionDag(formulas, names);
+ *   int[] results = new int[dag.size()];
+ *   int failures = dag.evaluate(bindings, results);
+ *
+ * The expressions are merged into one hash-consed AstArena, so structurally
+ * identical subtrees, within one expression or across several, become a
+ * single node. The arena creates children before their parents, so its ids
+ * are already a topological order: evaluation is one loop over the nodes
+ * from the first id to the last, with no stack and no recursion, and each
+ * node's value is computed exactly once per call. savedEvaluations() tells
+ * how many node evaluations that saves compared with evaluating every
+ * expression's tree on its own.
+ *
+ * Results and errors are exactly those of the Evaluator run on each
+ * expression. A node that fails (a division by zero or an unbound variable)
+ * passes its error on to the nodes above it, a binary node taking its left
+ * operand's error before its right one's, so each expression reports the
+ * same first error the Evaluator's left-to-right walk would, and expressions
+ * that do not use the failing node are unaffected.
+ *
+ * The expressions must have been parsed against the SlotTable given here,
+ * so that they agree on the slot of each variable; one array of bindings
+ * serves the whole batch.
+ *
+ * An ExpressionDag holds mutable state and must not be shared between threads.
+ */
+public final class ExpressionDag {
+    private final SlotTable slots;
+    // The operation of each node (see AstArena.flatten), in topological order
+    private final byte[] code;
+    private final int[] left;
+    // The operand of unary nodes, the right operand of binary ones
+    private final int[] right;
+    // The literal of a NUMBER, the slot of a VARIABLE
+    private final int[] value;
+    // The node of each expression
+    private final int[] roots;
+    private final long treeNodes;
+
+    private final int[] values;
+    // Only written once something fails; cleared again by the next call
+    private final RuntimeException[] errors;
+    private boolean failed;
+
+    public ExpressionDag(List<Expr> exprs, SlotTable slots) {
+        this.slots = slots;
+        AstArena arena = new AstArena(64, slots);
+        roots = new int[exprs.size()];
+        long total = 0;
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = arena.add(exprs.get(i));
+            total += AstShape.of(exprs.get(i)).nodes();
+        }
+        treeNodes = total;
+
+        int n = arena.size();
+        code = new byte[n];
+        left = new int[n];
+        right = new int[n];
+        value = new int[n];
+        arena.flatten(code, left, right, value);
+        values = new int[n];
+        errors = new RuntimeException[n];
+    }
+
+    // The number of expressions in the batch
+    public int size() { return roots.length; }
+
+    // Distinct nodes after merging: the node evaluations per call of evaluate
+    public int nodes() { return code.length; }
+
+    // Nodes of all the expressions' trees counted separately
+    public long treeNodes() { return treeNodes; }
+
+    // Node evaluations saved per call compared with evaluating each tree on its own
+    public long savedEvaluations() { return treeNodes - code.length; }
+
+    public SlotTable slots() { return slots; }
+
+    /**
+     * Evaluates every expression with the given bindings: out[i] is the value
+     * of expression i, or 0 if it failed, in which case error(i) holds the
+     * exception the Evaluator would have thrown. Returns how many failed.
+     */
+    public int evaluate(int[] bindings, int[] out) {
+        if (out.length < roots.length) throw new IllegalArgumentException("Need room for " + roots.length + " results");
+        int[] v = values;
+        RuntimeException[] e = errors;
+        if (failed) Arrays.fill(e, null);
+        boolean failures = false;
+        for (int id = 0; id < code.length; id++) {
+            int c = code[id];
+            if (c == AstArena.NUMBER) {
+                v[id] = value[id];
+                continue;
+            }
+            if (c == AstArena.VARIABLE) {
+                int slot = value[id];
+                if (slot < bindings.length) {
+                    v[id] = bindings[slot];
+                } else {
+                    e[id] = new RuntimeException("Unbound variable '" + slots.name(slot) + "'");
+                    failures = true;
+                }
+                continue;
+            }
+            int r = right[id];
+            if (failures) {
+                // An operand's error takes the place of this node's value
+                RuntimeException error = c >= AstArena.ADD && e[left[id]] != null ? e[left[id]] : e[r];
+                e[id] = error;
+                if (error != null) continue;
+            }
+            switch (c) {
+                case AstArena.NEGATE: v[id] = -v[r]; break;
+                case AstArena.IDENTITY: v[id] = v[r]; break;
+                case AstArena.ADD: v[id] = v[left[id]] + v[r]; break;
+                case AstArena.SUBTRACT: v[id] = v[left[id]] - v[r]; break;
+                case AstArena.MULTIPLY: v[id] = v[left[id]] * v[r]; break;
+                default:
+                    if (v[r] == 0) {
+                        e[id] = new ArithmeticException("/ by zero");
+                        failures = true;
+                    } else {
+                        v[id] = v[left[id]] / v[r];
+                    }
+            }
+        }
+
+        failed = failures;
+        int count = 0;
+        for (int i = 0; i < roots.length; i++) {
+            int root = roots[i];
+            if (failures && e[root] != null) {
+                out[i] = 0;
+                count++;
+            } else {
+                out[i] = v[root];
+            }
+        }
+        return count;
+    }
+
+    // The error of expression i in the last evaluation, or null if it succeeded
+    public RuntimeException error(int i) { return errors[roots[i]]; }
+}
@@ -0,0 +1,296 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** ExpressionServer
+ *
+ * Evaluates expressions sent over TCP, so that many requests can share one
+ * warmed-up JVM instead of paying startup for each.
+ *
+ * The protocol is one line per request and one line per response, in the
+ * same order. A response is the result, or the error in the same words as
+ * batch mode:
+ *
+ *   Request:           Response:
+ *     (3 + 2) * 5        25
+ *     3 +                Parse Error: Unexpected token '' at position 3
+ *     10 / 0             Arithmetic Error: / by zero
+ *
+ * Clients may pipeline: any number of requests can be written before the
+ * responses are read. Responses are buffered and flushed once every request
+ * received so far has been answered, so a pipelined burst costs one write.
+ *
+ * Every connection is served by its own thread: a virtual thread on JVMs
+ * that have them (21+), otherwise a thread from a cached pool. Lines are
+ * read as ASCII bytes straight from the socket; expressions never contain
+ * anything else.
+ *
+ * The server listens on the loopback interface unless given another
+ * address. A request line longer than 1 MB closes its connection.
+ *
+ * close() shuts down gracefully: no new connections are accepted, every
+ * request already received is still answered, and then the connections are
+ * closed. Connections that are still busy when the grace period ends are
+ * closed forcibly.
+ */
+public class ExpressionServer implements Closeable {
+    private static final int MAX_LINE = 1 << 20;
+    private static final int POLL_MILLIS = 50;
+    private static final long GRACE_MILLIS = 5000;
+
+    private final ServerSocket server;
+    private final ExpressionCache cache;
+    private final ExecutorService connections;
+    private final boolean virtualThreads;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile boolean closing;
+
+    public ExpressionServer(int port) throws IOException { this(port, null); }
+
+    public ExpressionServer(int port, ExpressionCache cache) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), cache);
+    }
+
+    /**
+     * Binds to the address and starts accepting connections. An optional
+     * ExpressionCache is shared by all connections.
+     */
+    public ExpressionServer(InetSocketAddress address, ExpressionCache cache) throws IOException {
+        this.cache = cache;
+        this.server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address, 1024);
+
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.connections = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "expression-connection");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.acceptor = new Thread(this::accept, "expression-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // The port actually bound, useful when the server was started on port 0
+    public int port() { return server.getLocalPort(); }
+
+    public boolean usesVirtualThreads() { return virtualThreads; }
+
+    private void accept() {
+        while (!closing) {
+            Socket socket;
+            try {
+                socket = server.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (closing) break;
+                // A failed accept only affects that one client
+                continue;
+            }
+            open.add(socket);
+            try {
+                connections.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // Accepted just as the server closed
+                open.remove(socket);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                break;
+            }
+        }
+    }
+
+    // Answers requests on one connection until the client or the server closes it
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(POLL_MILLIS);
+            LineReader in = new LineReader(s.getInputStream());
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 1 << 14);
+            Connection connection = new Connection(cache);
+
+            while (true) {
+                String line;
+                try {
+                    // Once closing, only the requests already received are answered
+                    if (closing && !in.hasLine()) break;
+                    line = in.readLine();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (line == null) break;
+
+                out.write(connection.respond(line));
+                out.write('\n');
+                if (!in.hasLine()) out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away; nothing is left to answer
+        } finally {
+            open.remove(socket);
+        }
+    }
+
+    /**
+     * Stops accepting connections, answers the requests already received,
+     * and closes every connection, waiting at most five seconds.
+     */
+    @Override
+    public void close() throws IOException { close(GRACE_MILLIS); }
+
+    public void close(long graceMillis) throws IOException {
+        closing = true;
+        server.close();
+        connections.shutdown();
+        try {
+            acceptor.join(graceMillis);
+            if (!connections.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) {
+                closeAll();
+                connections.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeAll();
+            connections.shutdownNow();
+        }
+    }
+
+    private void closeAll() {
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
+    }
+
+    /**
+     * The per-connection pipeline. Token buffer and evaluator are reused
+     * for every request on the connection.
+     */
+    static final class Connection {
+        private final ExpressionCache cache;
+        private final TokenBuffer tokens = new TokenBuffer();
+        private final Evaluator evaluator = new Evaluator();
+
+        Connection(ExpressionCache cache) { this.cache = cache; }
+
+        String respond(String line) {
+            String input = line.trim();
+            if (input.isEmpty()) return "Error: Empty input provided";
+            try {
+                Expr expr;
+                if (cache != null) {
+                    expr = cache.get(input);
+                } else {
+                    new Lexer(input).tokenize(tokens);
+                    expr = new Parser(tokens).parse();
+                }
+                return Integer.toString(evaluator.evaluate(expr));
+            } catch (ParseException e) {
+                return "Parse Error: " + e.getMessage();
+            } catch (ArithmeticException e) {
+                return "Arithmetic Error: " + e.getMessage();
+            } catch (RuntimeException e) {
+                return "Error: " + e.getMessage();
+            } catch (StackOverflowError e) {
+                return "Error: Expression is nested too deeply";
+            }
+        }
+    }
+
+    /**
+     * Reads '\n'-terminated ASCII lines. Unlike BufferedReader, a read that
+     * times out loses nothing: a partial line stays buffered until the rest
+     * arrives. A trailing '\r' is dropped.
+     */
+    static final class LineReader {
+        private final InputStream in;
+        private byte[] buffer = new byte[8192];
+        private int start;
+        private int end;
+        // No newline lies between start and scanned, so a search resumes there
+        private int scanned;
+        private boolean eof;
+
+        LineReader(InputStream in) { this.in = in; }
+
+        // True if a complete line can be returned without blocking
+        boolean hasLine() throws IOException {
+            if (indexOfNewline() >= 0) return true;
+            if (eof) return start < end;
+            if (in.available() > 0) {
+                fill();
+                return indexOfNewline() >= 0 || (eof && start < end);
+            }
+            return false;
+        }
+
+        // The next line, or null at the end of the stream
+        String readLine() throws IOException {
+            while (true) {
+                int newline = indexOfNewline();
+                if (newline >= 0) {
+                    int stop = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+                    String line = new String(buffer, start, stop - start, StandardCharsets.ISO_8859_1);
+                    start = newline + 1;
+                    return line;
+                }
+                if (eof) {
+                    if (start == end) return null;
+                    String line = new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+                    start = end;
+                    return line;
+                }
+                fill();
+            }
+        }
+
+        private int indexOfNewline() {
+            for (int i = Math.max(scanned, start); i < end; i++) {
+                if (buffer[i] == '\n') {
+                    scanned = i;
+                    return i;
+                }
+            }
+            scanned = end;
+            return -1;
+        }
+
+        private void fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scanned = Math.max(scanned - start, 0);
+                start = 0;
+            }
+            if (end == buffer.length) {
+                if (buffer.length >= MAX_LINE) throw new IOException("Request line longer than " + MAX_LINE + " bytes");
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) eof = true;
+            else end += n;
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), looked up so the code still runs on Java 17
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.*;
+
+/** IncrementalEvaluator
+ *
+ * Keeps the values of many formulas over named inputs up to date as the
+ * inputs change, recomputing only what depends on the inputs that changed.
+ *
+ *   SlotTable names = new SlotTable();
+ *   List<Expr> formulas = ...;                  // each parsed with new Parser(tokens, names)
+ *   IncrementalEvaluator sheet = new IncrementalEvaluator(formulas, names, initial);
+ *   sheet.set("price", 120);
+ *   sheet.set("qty", 3);
+ *   int total = sheet.value(7);                 // recomputes what price and qty feed, once
+ *
+ * The formulas are merged into one hash-consed AstArena, as in ExpressionDag,
+ * so a subexpression shared by several formulas is a single node. Every node
+ * caches its last value (or error) and knows the nodes that use it. set()
+ * marks the input's node dirty; the next value() or update() recomputes the
+ * dirty nodes in id order, which the arena makes a topological order, and
+ * marks a node's users dirty only if its value actually changed. An update
+ * therefore costs time proportional to the part of the graph above the
+ * changed inputs (times the log of its width, for the queue), not to the
+ * size of the sheet; recomputed() tells how many nodes the last update
+ * touched.
+ *
+ * Values and errors are exactly those the Evaluator gives each formula with
+ * the current bindings: an input that was never given a value is unbound,
+ * and a formula that fails reports the same first error (a binary node takes
+ * its left operand's error before its right one's).
+ *
+ * An IncrementalEvaluator holds mutable state and must not be shared between threads.
+ */
+public final class IncrementalEvaluator {
+    private final SlotTable slots;
+    // The operation of each node (see AstArena.flatten)
+    private final byte[] code;
+    private final int[] left;
+    private final int[] right;
+    private final int[] value;
+    private final int[] roots;
+
+    // The nodes that use node i are users[userStart[i]] .. users[userStart[i + 1] - 1]
+    private final int[] userStart;
+    private final int[] users;
+    // The VARIABLE node of each slot, or -1 if no formula reads it
+    private final int[] variableNode;
+
+    private final int[] inputs;
+    private final boolean[] bound;
+
+    private final int[] values;
+    private final RuntimeException[] errors;
+
+    // Dirty nodes, a min-heap on id so they are recomputed in topological order
+    private final int[] heap;
+    private int dirty;
+    private final boolean[] queued;
+    private long recomputed;
+
+    public IncrementalEvaluator(List<Expr> formulas, SlotTable slots) {
+        this(formulas, slots, new int[0]);
+    }
+
+    /**
+     * Binds slot i to bindings[i]; slots beyond the end of bindings start
+     * out unbound. Every formula is computed once here.
+     */
+    public IncrementalEvaluator(List<Expr> formulas, SlotTable slots, int[] bindings) {
+        this.slots = slots;
+        AstArena arena = new AstArena(64, slots);
+        roots = new int[formulas.size()];
+        for (int i = 0; i < roots.length; i++) roots[i] = arena.add(formulas.get(i));
+
+        int n = arena.size();
+        code = new byte[n];
+        left = new int[n];
+        right = new int[n];
+        value = new int[n];
+        variableNode = new int[slots.size()];
+        Arrays.fill(variableNode, -1);
+        arena.flatten(code, left, right, value);
+        int[] counts = new int[n + 1];
+        for (int id = 0; id < n; id++) {
+            if (code[id] == AstArena.VARIABLE) variableNode[value[id]] = id;
+            if (code[id] >= AstArena.NEGATE) counts[right[id]]++;
+            // In a + a both operands are one node, which has this user once
+            if (code[id] >= AstArena.ADD && left[id] != right[id]) counts[left[id]]++;
+        }
+
+        userStart = new int[n + 1];
+        for (int id = 0; id < n; id++) userStart[id + 1] = userStart[id] + counts[id];
+        users = new int[userStart[n]];
+        int[] fill = Arrays.copyOf(userStart, n);
+        for (int id = 0; id < n; id++) {
+            if (code[id] >= AstArena.NEGATE) users[fill[right[id]]++] = id;
+            if (code[id] >= AstArena.ADD && left[id] != right[id]) users[fill[left[id]]++] = id;
+        }
+
+        inputs = new int[slots.size()];
+        bound = new boolean[slots.size()];
+        for (int slot = 0; slot < Math.min(bindings.length, inputs.length); slot++) {
+            inputs[slot] = bindings[slot];
+            bound[slot] = true;
+        }
+
+        values = new int[n];
+        errors = new RuntimeException[n];
+        heap = new int[n];
+        queued = new boolean[n];
+        for (int id = 0; id < n; id++) compute(id);
+        recomputed = n;
+    }
+
+    // The number of formulas
+    public int size() { return roots.length; }
+
+    // Distinct nodes after merging the formulas
+    public int nodes() { return code.length; }
+
+    public SlotTable slots() { return slots; }
+
+    public void set(String name, int v) {
+        int slot = slots.lookup(name);
+        if (slot < 0) throw new IllegalArgumentException("Unknown input '" + name + "'");
+        set(slot, v);
+    }
+
+    // Binds the slot to v; the formulas that read it are brought up to date lazily
+    public void set(int slot, int v) {
+        // A slot added to the table after construction is read by none of the formulas
+        if (slot >= inputs.length || (bound[slot] && inputs[slot] == v)) return;
+        inputs[slot] = v;
+        bound[slot] = true;
+        int node = variableNode[slot];
+        if (node >= 0) enqueue(node);
+    }
+
+    // The current value of formula i; throws the error the Evaluator would
+    public int value(int i) {
+        update();
+        RuntimeException error = errors[roots[i]];
+        if (error != null) throw error;
+        return values[roots[i]];
+    }
+
+    // The error of formula i with the current bindings, or null if it has a value
+    public RuntimeException error(int i) {
+        update();
+        return errors[roots[i]];
+    }
+
+    /**
+     * Recomputes every node that depends on an input set since the last
+     * update, returning how many nodes that was.
+     */
+    public long update() {
+        if (dirty == 0) return 0;
+        long count = 0;
+        while (dirty > 0) {
+            int id = poll();
+            count++;
+            if (compute(id)) {
+                for (int u = userStart[id]; u < userStart[id + 1]; u++) enqueue(users[u]);
+            }
+        }
+        recomputed = count;
+        return count;
+    }
+
+    // Nodes recomputed by the last update (all of them after construction)
+    public long recomputed() { return recomputed; }
+
+    // Recomputes one node from its operands, returning whether its value or error changed
+    private boolean compute(int id) {
+        int c = code[id];
+        int r = right[id];
+        int v = 0;
+        RuntimeException error = null;
+        if (c == AstArena.NUMBER) {
+            v = value[id];
+        } else if (c == AstArena.VARIABLE) {
+            int slot = value[id];
+            if (bound[slot]) v = inputs[slot];
+            else error = new RuntimeException("Unbound variable '" + slots.name(slot) + "'");
+        } else if (c >= AstArena.ADD && errors[left[id]] != null) {
+            error = errors[left[id]];
+        } else if (errors[r] != null) {
+            error = errors[r];
+        } else {
+            switch (c) {
+                case AstArena.NEGATE: v = -values[r]; break;
+                case AstArena.IDENTITY: v = values[r]; break;
+                case AstArena.ADD: v = values[left[id]] + values[r]; break;
+                case AstArena.SUBTRACT: v = values[left[id]] - values[r]; break;
+                case AstArena.MULTIPLY: v = values[left[id]] * values[r]; break;
+                default:
+                    if (values[r] == 0) {
+                        // Still dividing by zero keeps the old error, so the users are not marked dirty again
+                        error = errors[id] instanceof ArithmeticException ? errors[id] : new ArithmeticException("/ by zero");
+                    } else {
+                        v = values[left[id]] / values[r];
+                    }
+            }
+        }
+        boolean changed = v != values[id] || error != errors[id];
+        values[id] = v;
+        errors[id] = error;
+        return changed;
+    }
+
+    private void enqueue(int id) {
+        if (queued[id]) return;
+        queued[id] = true;
+        int i = dirty++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= id) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = id;
+    }
+
+    private int poll() {
+        int top = heap[0];
+        queued[top] = false;
+        int last = heap[--dirty];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= dirty) break;
+            if (child + 1 < dirty && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= last) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+}
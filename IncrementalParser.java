@@ -0,0 +1,834 @@
+import java.util.*;
+
+/** IncrementalParser
+ *
+ * Keeps the tokens and AST of a text that is being edited, and updates them
+ * after each edit without lexing and parsing everything again.
+ *
+ *   IncrementalParser parser = new IncrementalParser();
+ *   parser.parse("(3 + 2) * 5");
+ *   parser.edit(1, 1, "13");        // "(13 + 2) * 5"
+ *
+ * An edit replaces deleted characters at offset with the inserted text. The
+ * result of every call is exactly what a full parse of the new text gives:
+ * the same tokens at the same positions, the same tree, the same slots and
+ * the same ParseException (or lexer error) message. The one difference is
+ * that an operator Token in the tree keeps the position it was parsed at,
+ * which an edit before it makes out of date; position(Token) tells where it
+ * is now.
+ *
+ * Segments. While parsing, the parser's state is saved after a binary
+ * operator every 32 tokens or so, when its stacks are small (at nesting
+ * depths up to 64). The tokens from one saved state to the next form a
+ * segment, which keeps their positions relative to its first token, and the
+ * parser notes the segment and offset of each operator Token in the AST. The
+ * segments sit in a gap buffer where the last edit was: those after it count
+ * their first position back from the end of the text, so an edit moves every
+ * later token without touching it. Editing somewhere else first moves the
+ * gap, which costs the segments in between.
+ *
+ * Lexing. Only the damaged region is lexed again, starting at the last token
+ * that begins before the edit. Lexing stops as soon as a token starts, past
+ * the inserted text, where an old token started (shifted by the edit): the
+ * lexer has no state between tokens, so every later token is unchanged.
+ *
+ * Parsing. An edit resumes parsing at the start of the segment holding the
+ * first damaged token. The state saved there is read back from the current
+ * tree: walking down from the root, the operators before that point are the
+ * pending ones, and their left operands are the operands on the stack.
+ * Parsing stops at the first old segment past the damage where the parser is
+ * in the state the old parse saved there (the same pending operators, and
+ * the same slots given to the same names), since from there on it would build
+ * the old tree again. The old tree is reused except for the nodes on the
+ * path from its root to that point, which are rebuilt around the new operands.
+ * When the state never matches again, as after an edit that opens a
+ * parenthesis or one that changes the order in which variable names first
+ * appear (which renumbers their slots), parsing goes on to the end.
+ *
+ * An edit therefore costs time proportional to the tokens lexed and parsed
+ * around it plus the depth of the tree there, not to the length of the text.
+ * The depth remains because Expr nodes cannot be changed: every ancestor of a
+ * new node is new as well. In one long chain such as 1 + 1 + ... + 1 that is
+ * every operator after the edit, although only those objects are rebuilt and
+ * nothing after the edit is lexed or parsed again.
+ *
+ * Texts are parsed in diagnostics mode, so a text with errors still has a
+ * tree to resume from. The errors are kept with their segments, and the
+ * first one is thrown as a full parse would throw it.
+ *
+ * Trees returned by earlier calls share nodes and Tokens with later ones. The
+ * SlotTable returned by slots() is updated in place by later edits.
+ */
+public final class IncrementalParser {
+    private static final int CHECKPOINT_INTERVAL = 32;
+    private static final int MAX_CHECKPOINT_DEPTH = 64;
+    // Old segments past the damage read at first, doubled each time parsing runs out of them
+    private static final int LOOKAHEAD = 2;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // What a node on the path to a saved state stands for (see walk)
+    private static final byte PENDING_BINARY = 0;
+    private static final byte PENDING_UNARY = 1;
+    private static final byte LATER = 2;
+
+    private String text = "";
+    private Expr root;
+    private SlotTable slots = new SlotTable();
+
+    // The segments in text order, around a gap at segments[gapStart .. gapEnd - 1]
+    private Segment[] segments = new Segment[16];
+    private int gapStart;
+    private int gapEnd = segments.length;
+
+    // The places of the operator Tokens in the tree (Token keeps identity equality), weak so trees can be dropped
+    private final Map<Token, Place> places = new WeakHashMap<>();
+
+    // Parse errors in text order, placed by their segments
+    private final List<Problem> errors = new ArrayList<>();
+    // Lexical errors in text order; there are seldom more than a few, so they are moved one by one
+    private final List<Diagnostic> lexErrors = new ArrayList<>();
+
+    private final TokenBuffer relexed = new TokenBuffer();
+    private final TokenBuffer window = new TokenBuffer();
+    private int relexedTokens;
+    private int reparsedTokens;
+
+    // The old token the relexed ones line up with, or -1
+    private int resyncSegment;
+    private int resyncToken;
+    // Whether the window runs to the end of the text, and the old segments in it that parsing may stop at
+    private boolean complete;
+    private int[] candidateAt = new int[8];
+    private int[] candidateSegment = new int[8];
+    private int candidates;
+    private int nextCandidate;
+    private int stoppedAt;
+
+    /**
+     * The tokens from one saved parser state up to the next. Their starts are
+     * kept relative to the first one, whose position is counted back from the
+     * end of the text while the segment lies after the gap.
+     */
+    private final class Segment {
+        private int base;
+        private boolean tail;
+        // The pending operators when the first token is read, as type << 2 | kind, and the slots given out by then
+        final int[] stack;
+        final int slots;
+        int size;
+        int[] types;
+        int[] starts;
+        int[] lengths;
+        int[] values;
+
+        Segment(int base, int[] stack, int slots) {
+            this.base = base;
+            this.stack = stack;
+            this.slots = slots;
+        }
+
+        int base() { return tail ? text.length() + base : base; }
+
+        int start(int i) { return base() + starts[i]; }
+
+        TokenType type(int i) { return TYPES[types[i]]; }
+
+        // Takes the window's tokens from index from up to (not including) to
+        void fill(TokenBuffer tokens, int from, int to) {
+            size = to - from;
+            types = new int[size];
+            starts = new int[size];
+            lengths = new int[size];
+            values = new int[size];
+            for (int i = 0; i < size; i++) {
+                types[i] = tokens.type(from + i).ordinal();
+                starts[i] = tokens.start(from + i) - base;
+                lengths[i] = tokens.length(from + i);
+                values[i] = tokens.intValue(from + i);
+            }
+        }
+
+        // Switches between counting from the start and from the end of the current text
+        void toTail() {
+            base -= text.length();
+            tail = true;
+        }
+
+        void toHead() {
+            base += text.length();
+            tail = false;
+        }
+
+        // Keeps the current positions once the segment has left the text
+        void detach() {
+            base = base();
+            tail = false;
+        }
+    }
+
+    // Where an operator Token of the tree lies: relative to the segment holding it
+    private static final class Place {
+        final Segment segment;
+        final int offset;
+
+        Place(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        int position() { return segment.base() + offset; }
+    }
+
+    // A parse error, placed relative to the segment holding its token
+    private static final class Problem {
+        final Segment segment;
+        final int offset;
+        final Diagnostic.Code code;
+        final String detail;
+
+        Problem(Segment segment, Diagnostic found) {
+            this.segment = segment;
+            this.offset = found.position - segment.base();
+            this.code = found.code;
+            this.detail = found.detail;
+        }
+
+        int position() { return segment.base() + offset; }
+
+        Diagnostic diagnostic() { return new Diagnostic(code, position(), detail); }
+    }
+
+    // The nodes from the root down to a saved state, and the state they hold (see walk)
+    private static final class Path {
+        Expr[] nodes = new Expr[16];
+        byte[] roles = new byte[16];
+        int size;
+        // The operands waiting on the stack and the Tokens of the pending operators, outermost first
+        final Expr[] operands;
+        final Token[] operators;
+
+        Path(int operands, int operators) {
+            this.operands = new Expr[operands];
+            this.operators = new Token[operators];
+        }
+
+        void add(Expr node, byte role) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                roles = Arrays.copyOf(roles, size * 2);
+            }
+            nodes[size] = node;
+            roles[size++] = role;
+        }
+    }
+
+    /**
+     * Lexes and parses the whole text, replacing any previous one.
+     */
+    public Expr parse(String text) throws ParseException {
+        // Trees returned before keep the positions they have now
+        for (int i = 0; i < segmentCount(); i++) segment(i).detach();
+        Arrays.fill(segments, null);
+        gapStart = 0;
+        gapEnd = segments.length;
+        errors.clear();
+        lexErrors.clear();
+        slots = new SlotTable();
+        root = null;
+
+        List<Diagnostic> found = new ArrayList<>();
+        relexed.reset(text);
+        Lexer lexer = new Lexer(text);
+        lexer.report(found);
+        while (lexer.next(relexed)) { }
+        relexedTokens = relexed.size() + 1;
+        resyncSegment = -1;
+        return reparse(text, 0, 0, -1, found);
+    }
+
+    /**
+     * Replaces the deleted characters at offset with the inserted text and
+     * returns the AST of the new text, or throws the error a full parse of
+     * it would throw. The text is updated either way.
+     */
+    public Expr edit(int offset, int deleted, String inserted) throws ParseException {
+        if (offset < 0 || deleted < 0 || offset + deleted > text.length()) {
+            throw new IndexOutOfBoundsException("Edit of " + deleted + " at " + offset + " outside text of length " + text.length());
+        }
+        String updated = text.substring(0, offset) + inserted + text.substring(offset + deleted);
+        if (segmentCount() == 0) return parse(updated);
+
+        int shift = inserted.length() - deleted;
+        // Lexing starts at the last token that begins before the edit, parsing at the start of its segment
+        int from = segmentBefore(offset);
+        int first = from < 0 ? -1 : lastTokenBefore(segment(from), offset);
+        from = Math.max(from, 0);
+        List<Diagnostic> found = new ArrayList<>();
+        relex(updated, from, first, offset + inserted.length(), shift, found);
+        return reparse(updated, shift, from, first, found);
+    }
+
+    public String text() { return text; }
+
+    /**
+     * The current position of an operator Token in a tree this parser
+     * returned. A Token whose part of the text has since been parsed again
+     * keeps the last position it had; any other Token has its own.
+     */
+    public int position(Token operator) {
+        Place place = places.get(operator);
+        return place == null ? operator.position : place.position();
+    }
+
+    // The tokens of the current text, or an empty list if it failed to lex
+    public List<Token> tokens() {
+        if (!lexErrors.isEmpty()) return Collections.emptyList();
+        List<Token> list = new ArrayList<>();
+        for (int i = 0; i < segmentCount(); i++) {
+            Segment s = segment(i);
+            for (int j = 0; j < s.size; j++) {
+                TokenType type = s.type(j);
+                int start = s.start(j);
+                Integer value = type == TokenType.NUMBER ? s.values[j] : null;
+                list.add(new Token(type, text.substring(start, start + s.lengths[j]), value, start));
+            }
+        }
+        return list;
+    }
+
+    public SlotTable slots() { return slots; }
+
+    // Tokens lexed by the last parse or edit
+    public int relexedTokens() { return relexedTokens; }
+
+    // Tokens parsed by the last parse or edit, counting the end marker
+    public int reparsedTokens() { return reparsedTokens; }
+
+    /**
+     * Lexes the updated text from the start of token first of segment from
+     * (or from the start of the text when first is -1) into relexed, until a
+     * token lines up with an old one again. That old token is noted in
+     * resyncSegment and resyncToken; the relexed copy of it is the last one.
+     */
+    private void relex(String updated, int from, int first, int editEnd, int shift, List<Diagnostic> found) {
+        relexed.reset(updated);
+        Lexer lexer = new Lexer(updated);
+        lexer.report(found);
+        lexer.seek(first < 0 ? 0 : segment(from).start(first));
+        resyncSegment = -1;
+
+        int last = segmentCount() - 1;
+        int seg = from;
+        int tok = Math.max(first, 0);
+        Segment s = segment(seg);
+        while (lexer.next(relexed)) {
+            int start = relexed.start(relexed.size() - 1);
+            if (start < editEnd) continue;
+            // Past the edit: an old token starting here means the rest is unchanged
+            int target = start - shift;
+            while (!(seg == last && tok == s.size - 1) && s.start(tok) < target) {
+                if (++tok == s.size) {
+                    s = segment(++seg);
+                    tok = 0;
+                }
+            }
+            // The end marker never lines up, since the text before it may have changed
+            if (!(seg == last && tok == s.size - 1) && s.start(tok) == target) {
+                resyncSegment = seg;
+                resyncToken = tok;
+                break;
+            }
+        }
+        relexedTokens = relexed.size();
+    }
+
+    /**
+     * Parses the updated text from the start of segment from, whose tokens
+     * before first are unchanged, and puts the result in place: the new
+     * segments, tree, slots and errors. Returns the tree or throws the first
+     * error.
+     */
+    private Expr reparse(String updated, int shift, int from, int first, List<Diagnostic> lexFound) throws ParseException {
+        boolean reuse = segmentCount() > 0;
+        Segment start = reuse ? segment(from) : null;
+        int[] stack = reuse ? start.stack : new int[0];
+        int slotBase = reuse ? start.slots : 0;
+        Path saved = stack.length > 0 ? walk(start.start(0), stack) : null;
+
+        int lookahead = LOOKAHEAD;
+        reparsedTokens = 0;
+        Builder builder;
+        Parser parser;
+        SlotOverlay overlay;
+        while (true) {
+            int regionStart = fillWindow(updated, shift, from, first, saved, stack, lookahead);
+            Builder b = new Builder();
+            if (saved != null) b.restore(saved.operands);
+            b.open(regionStart, stack, slotBase);
+            SlotOverlay o = new SlotOverlay(slots, slotBase);
+            Parser p = new Parser(window, o);
+            nextCandidate = 0;
+            stoppedAt = -1;
+            p.checkpoints = q -> {
+                int at = q.position();
+                while (nextCandidate < candidates && candidateAt[nextCandidate] < at) nextCandidate++;
+                if (nextCandidate < candidates && candidateAt[nextCandidate] == at && matches(q, segment(candidateSegment[nextCandidate]), o)) {
+                    stoppedAt = candidateSegment[nextCandidate];
+                    return true;
+                }
+                if (at - b.lastOpened() >= CHECKPOINT_INTERVAL
+                        && q.pendingOperators() + b.size() <= MAX_CHECKPOINT_DEPTH) {
+                    b.open(at, stackOf(q), o.size());
+                }
+                return false;
+            };
+
+            int[] operators = new int[stack.length];
+            for (int i = 0; i < stack.length; i++) operators[i] = i << 2 | Parser.kind(stack[i]);
+            List<Diagnostic> found = new ArrayList<>();
+            p.resume(b, found, regionStart, operators);
+            int end = stoppedAt >= 0 ? p.position() : window.size();
+            reparsedTokens += end - regionStart;
+            if (stoppedAt >= 0 || complete) {
+                b.close(end, found);
+                builder = b;
+                parser = p;
+                overlay = o;
+                break;
+            }
+            lookahead *= 2;
+        }
+
+        // Everything below is in the old text's positions until the text is replaced
+        Expr tree;
+        Expr[] operands = null;
+        Token[] operators = null;
+        if (stoppedAt >= 0) {
+            Segment resumed = segment(stoppedAt);
+            Path path = walk(resumed.start(0), resumed.stack);
+            operands = builder.operands();
+            operators = new Token[path.operators.length];
+            int k = 0;
+            for (int entry : parser.operators()) {
+                if (Parser.kind(entry) != Parser.GROUP) operators[k++] = window.token(Parser.index(entry));
+            }
+            tree = rebuild(path, operands, operators);
+        } else {
+            tree = builder.result();
+            slots.truncate(slotBase);
+            for (String name : overlay.names) slots.slotOf(name);
+        }
+
+        int lo = errorsBefore(reuse ? start.start(0) : 0);
+        int hi = stoppedAt >= 0 ? errorsBefore(segment(stoppedAt).start(0)) : errors.size();
+        errors.subList(lo, hi).clear();
+        errors.addAll(lo, builder.problems);
+
+        int lexFrom = first < 0 ? 0 : start.start(first);
+        int lexTo = resyncSegment >= 0 ? segment(resyncSegment).start(resyncToken) : Integer.MAX_VALUE;
+        lo = lexErrorsBefore(lexFrom);
+        hi = lexErrorsBefore(lexTo);
+        for (int i = hi; i < lexErrors.size(); i++) {
+            Diagnostic d = lexErrors.get(i);
+            lexErrors.set(i, new Diagnostic(d.code, d.position + shift, d.detail));
+        }
+        lexErrors.subList(lo, hi).clear();
+        lexErrors.addAll(lo, lexFound);
+
+        int removed = (stoppedAt >= 0 ? stoppedAt : segmentCount()) - from;
+        moveGap(from);
+        for (int i = 0; i < removed; i++) {
+            segments[gapEnd].detach();
+            segments[gapEnd++] = null;
+        }
+        text = updated;
+        for (Segment s : builder.fresh) insert(s);
+        root = tree;
+        if (stoppedAt >= 0) {
+            for (Expr operand : operands) place(operand);
+            for (Token operator : operators) place(operator);
+        } else {
+            place(tree);
+        }
+        return outcome();
+    }
+
+    /**
+     * Fills the window with what the parser reads from the restart point:
+     * the pending operators saved there (a '(' for each group), the two
+     * tokens before it for the checks on unary operators, and then the new
+     * tokens up to lookahead old segments past the damage, followed by an end
+     * marker. The old segments that start in it are noted as candidates to
+     * stop at. Returns the index of the first token to parse.
+     */
+    private int fillWindow(String updated, int shift, int from, int first, Path saved, int[] stack, int lookahead) {
+        window.reset(updated);
+        int taken = 0;
+        for (int entry : stack) {
+            if (Parser.kind(entry) == Parser.GROUP) {
+                window.add(TokenType.LPAREN, 0, 1, 0);
+            } else {
+                Token t = saved.operators[taken++];
+                window.add(t.type, position(t), 1, 0);
+            }
+        }
+        if (stack.length > 0) {
+            int seg = from;
+            int tok = 0;
+            int[] before = new int[4];
+            int back = 0;
+            while (back < 2 && (seg > 0 || tok > 0)) {
+                if (tok == 0) tok = segment(--seg).size;
+                before[2 * back] = seg;
+                before[2 * back + 1] = --tok;
+                back++;
+            }
+            while (back > 0) {
+                back--;
+                addOld(segment(before[2 * back]), before[2 * back + 1], 0);
+            }
+        }
+
+        int regionStart = window.size();
+        for (int i = 0; i < first; i++) addOld(segment(from), i, 0);
+        int fresh = resyncSegment >= 0 ? relexed.size() - 1 : relexed.size();
+        for (int i = 0; i < fresh; i++) window.add(relexed.type(i), relexed.start(i), relexed.length(i), relexed.intValue(i));
+
+        candidates = 0;
+        complete = resyncSegment < 0;
+        if (complete) {
+            window.add(TokenType.EOF, updated.length(), 0, 0);
+            return regionStart;
+        }
+        int kept = window.size();
+        int seg = resyncSegment;
+        int tok = resyncToken;
+        int passed = 0;
+        while (true) {
+            Segment s = segment(seg);
+            if (tok == 0) {
+                if (passed++ == lookahead) {
+                    window.add(TokenType.EOF, s.start(0) + shift, 0, 0);
+                    return regionStart;
+                }
+                // Only a state whose unary checks look back at old tokens can match
+                if (window.size() - 2 >= kept) addCandidate(window.size(), seg);
+            }
+            addOld(s, tok, shift);
+            if (++tok == s.size) {
+                if (seg == segmentCount() - 1) {
+                    complete = true;
+                    return regionStart;
+                }
+                seg++;
+                tok = 0;
+            }
+        }
+    }
+
+    private void addOld(Segment s, int i, int shift) {
+        window.add(s.type(i), s.start(i) + shift, s.lengths[i], s.values[i]);
+    }
+
+    private void addCandidate(int at, int seg) {
+        if (candidates == candidateAt.length) {
+            candidateAt = Arrays.copyOf(candidateAt, candidates * 2);
+            candidateSegment = Arrays.copyOf(candidateSegment, candidates * 2);
+        }
+        candidateAt[candidates] = at;
+        candidateSegment[candidates++] = seg;
+    }
+
+    // Whether the parser is in the state the old parse saved at the start of the segment
+    private boolean matches(Parser parser, Segment old, SlotOverlay overlay) {
+        if (parser.pendingOperators() != old.stack.length || overlay.size() != old.slots) return false;
+        int[] operators = parser.operators();
+        for (int i = 0; i < operators.length; i++) {
+            if (stackEntry(operators[i]) != old.stack[i]) return false;
+        }
+        return overlay.agrees();
+    }
+
+    private int[] stackOf(Parser parser) {
+        int[] stack = parser.operators();
+        for (int i = 0; i < stack.length; i++) stack[i] = stackEntry(stack[i]);
+        return stack;
+    }
+
+    // A pending operator as a segment keeps it: the token type and the kind, or only the kind for a group
+    private int stackEntry(int entry) {
+        int kind = Parser.kind(entry);
+        return kind == Parser.GROUP ? kind : window.type(Parser.index(entry)).ordinal() << 2 | kind;
+    }
+
+    /**
+     * Reads the parser state saved with the given stack at the token that
+     * starts at x back from the tree. The walk goes down from the root
+     * through the nodes that span x: an operator before x was pending there,
+     * with its left operand (for a binary one) waiting on the stack, and the
+     * state lies to its right; an operator after x came later, and the state
+     * lies in its left operand. Costs the depth of the tree at x.
+     */
+    private Path walk(int x, int[] stack) {
+        int binaries = 0;
+        int operators = 0;
+        for (int entry : stack) {
+            if (Parser.kind(entry) == Parser.BINARY) binaries++;
+            if (Parser.kind(entry) != Parser.GROUP) operators++;
+        }
+        Path path = new Path(binaries, operators);
+        Expr node = root;
+        int found = 0;
+        int taken = 0;
+        while (found < binaries) {
+            if (node instanceof UnaryExpr) {
+                UnaryExpr u = (UnaryExpr) node;
+                path.add(u, PENDING_UNARY);
+                path.operators[taken++] = u.operator;
+                node = u.right;
+            } else {
+                BinaryExpr b = (BinaryExpr) node;
+                if (position(b.operator) < x) {
+                    path.add(b, PENDING_BINARY);
+                    path.operands[found++] = b.left;
+                    path.operators[taken++] = b.operator;
+                    node = b.right;
+                } else {
+                    path.add(b, LATER);
+                    node = b.left;
+                }
+            }
+        }
+        return path;
+    }
+
+    // Notes the places of the new operator Tokens in e; the subtrees it kept from the old tree are noted already
+    private void place(Expr e) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(e);
+        while (!pending.isEmpty()) {
+            Expr node = pending.pop();
+            if (node instanceof UnaryExpr) {
+                UnaryExpr u = (UnaryExpr) node;
+                if (place(u.operator)) pending.push(u.right);
+            } else if (node instanceof BinaryExpr) {
+                BinaryExpr b = (BinaryExpr) node;
+                if (place(b.operator)) {
+                    pending.push(b.right);
+                    pending.push(b.left);
+                }
+            }
+        }
+    }
+
+    // Notes the place of a Token parsed from the current text, returning false if it had one already
+    private boolean place(Token operator) {
+        if (places.containsKey(operator)) return false;
+        Segment s = segment(segmentBefore(operator.position + 1));
+        places.put(operator, new Place(s, operator.position - s.base()));
+        return true;
+    }
+
+    // Rebuilds the path bottom up with new operands and pending operators in place of the old ones
+    private static Expr rebuild(Path path, Expr[] operands, Token[] operators) {
+        Expr node = null;
+        int operand = operands.length;
+        int operator = operators.length;
+        for (int i = path.size - 1; i >= 0; i--) {
+            switch (path.roles[i]) {
+                case PENDING_BINARY: {
+                    BinaryExpr b = (BinaryExpr) path.nodes[i];
+                    // Below the deepest one lies only what came after the state, which is unchanged
+                    node = new BinaryExpr(operands[--operand], operators[--operator], node == null ? b.right : node);
+                    break;
+                }
+                case PENDING_UNARY:
+                    node = new UnaryExpr(operators[--operator], node);
+                    break;
+                default: {
+                    BinaryExpr b = (BinaryExpr) path.nodes[i];
+                    node = new BinaryExpr(node, b.operator, b.right);
+                }
+            }
+        }
+        return node;
+    }
+
+    // The tree of the current text, or the error a full parse of it throws
+    private Expr outcome() throws ParseException {
+        if (!lexErrors.isEmpty()) {
+            Diagnostic error = lexErrors.get(0);
+            // The throwing lexer lets Integer.parseInt report an out of range literal
+            if (error.code == Diagnostic.Code.NUMBER_OUT_OF_RANGE) throw new NumberFormatException(error.message());
+            throw new RuntimeException(error.message());
+        }
+        if (!errors.isEmpty()) throw new ParseException(errors.get(0).diagnostic().message());
+        return root;
+    }
+
+    private int segmentCount() { return segments.length - (gapEnd - gapStart); }
+
+    private Segment segment(int i) { return segments[i < gapStart ? i : i + gapEnd - gapStart]; }
+
+    // Moves the gap in front of segment i, switching the segments it passes between counting from the start and the end
+    private void moveGap(int i) {
+        while (gapStart > i) {
+            Segment s = segments[--gapStart];
+            segments[gapStart] = null;
+            s.toTail();
+            segments[--gapEnd] = s;
+        }
+        while (gapStart < i) {
+            Segment s = segments[gapEnd];
+            segments[gapEnd++] = null;
+            s.toHead();
+            segments[gapStart++] = s;
+        }
+    }
+
+    // Adds a segment at the gap
+    private void insert(Segment s) {
+        if (gapStart == gapEnd) {
+            Segment[] grown = new Segment[segments.length * 2];
+            int after = segments.length - gapEnd;
+            System.arraycopy(segments, 0, grown, 0, gapStart);
+            System.arraycopy(segments, gapEnd, grown, grown.length - after, after);
+            gapEnd = grown.length - after;
+            segments = grown;
+        }
+        segments[gapStart++] = s;
+    }
+
+    // The last segment that starts before offset, or -1
+    private int segmentBefore(int offset) {
+        int lo = 0;
+        int hi = segmentCount() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segment(mid).base() < offset) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // The last token of the segment that starts before offset (the segment's first one does)
+    private static int lastTokenBefore(Segment s, int offset) {
+        int lo = 1;
+        int hi = s.size - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.start(mid) < offset) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // The number of parse errors before the position
+    private int errorsBefore(int position) {
+        int lo = 0;
+        int hi = errors.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (errors.get(mid).position() < position) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int lexErrorsBefore(int position) {
+        int lo = 0;
+        int hi = lexErrors.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lexErrors.get(mid).position < position) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Builds the tree of a reparse and its segments
+    private final class Builder extends ExprBuilder {
+        final List<Segment> fresh = new ArrayList<>();
+        final List<Problem> problems = new ArrayList<>();
+        // The window index of each new segment's first token
+        private int[] firsts = new int[8];
+
+        void open(int first, int[] stack, int slots) {
+            if (fresh.size() == firsts.length) firsts = Arrays.copyOf(firsts, firsts.length * 2);
+            firsts[fresh.size()] = first;
+            fresh.add(new Segment(window.start(first), stack, slots));
+        }
+
+        int lastOpened() { return firsts[fresh.size() - 1]; }
+
+        // Gives the new segments their tokens, up to the window index end, and places the errors found
+        void close(int end, List<Diagnostic> found) {
+            for (int i = 0; i < fresh.size(); i++) {
+                fresh.get(i).fill(window, firsts[i], i + 1 < fresh.size() ? firsts[i + 1] : end);
+            }
+            int i = 0;
+            for (Diagnostic d : found) {
+                while (i + 1 < fresh.size() && fresh.get(i + 1).base() <= d.position) i++;
+                problems.add(new Problem(fresh.get(i), d));
+            }
+        }
+    }
+
+    /**
+     * The slots seen while reparsing: a name below from keeps its slot, and
+     * names first met since then get the next slots from from on, in a table
+     * of their own until the result is known.
+     */
+    private static final class SlotOverlay extends SlotTable {
+        private final SlotTable table;
+        private final int from;
+        private final Map<String, Integer> added = new HashMap<>();
+        final List<String> names = new ArrayList<>();
+
+        SlotOverlay(SlotTable table, int from) {
+            this.table = table;
+            this.from = from;
+        }
+
+        @Override
+        public int slotOf(String name) {
+            int slot = lookup(name);
+            if (slot >= 0) return slot;
+            added.put(name, from + names.size());
+            names.add(name);
+            return from + names.size() - 1;
+        }
+
+        @Override
+        public int lookup(String name) {
+            int slot = table.lookup(name);
+            if (slot >= 0 && slot < from) return slot;
+            Integer seen = added.get(name);
+            return seen == null ? -1 : seen;
+        }
+
+        @Override
+        public String name(int slot) { return slot < from ? table.name(slot) : names.get(slot - from); }
+
+        @Override
+        public int size() { return from + names.size(); }
+
+        // Whether the names met since from have the slots the table gives them
+        boolean agrees() {
+            for (int i = 0; i < names.size(); i++) {
+                if (!names.get(i).equals(table.name(from + i))) return false;
+            }
+            return true;
+        }
+    }
+}
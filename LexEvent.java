@@ -0,0 +1,29 @@
+import jdk.jfr.*;
+
+/** LexEvent
+ *
+ * A JDK Flight Recorder event for one call to Lexer.tokenize.
+ *
+ * Recorded only while a recording has the event enabled, for example:
+ *
+ *   java -XX:StartFlightRecording=filename=run.jfr MiniExpressionCompiler
+ *   jfr print --events miniexpr.Lex run.jfr
+ */
+@Name("miniexpr.Lex")
+@Label("Lex")
+@Category("Mini Expression Compiler")
+@Description("Converting one input into tokens")
+@StackTrace(false)
+public class LexEvent extends Event {
+    @Label("Input Length")
+    @Description("Characters in the input")
+    int inputLength;
+
+    @Label("Token Count")
+    @Description("Tokens produced, including the end marker")
+    int tokenCount;
+
+    @Label("Outcome")
+    @Description("\"ok\", or the simple name of the exception thrown")
+    String outcome;
+}
@@ -7,31 +7,118 @@ import java.util.*;
  *
  * It recognizes:
  *   - Integer numbers
+ *   - Identifiers: a letter or '_' followed by letters, digits or '_'
  *   - Operators: +, -, *, /
  *   - Parentheses: (, )
  *   - Whitespace )
  *
- * If an invalid character appears, the lexer throws a RuntimeException
+ * Tokens can either be returned as a List<Token>, or written into a reusable
+ * TokenBuffer, which avoids allocating an object per token.
+ *
+ * Literals larger than an int are rejected with a NumberFormatException,
+ * unless the lexer is created with bigLiterals set: they are then NUMBER
+ * tokens whose value is TokenBuffer.BIG, which the parser turns into a
+ * BigNumberExpr for the ExactEvaluator.
+ *
+ * If an invalid character appears, the lexer throws a RuntimeException.
+ * In diagnostics mode (tokenize with a list of Diagnostics) nothing is
+ * thrown: errors are added to the list, an invalid character is skipped and
+ * an out of range literal becomes a NUMBER token with value 0.
  */
 
 
 
 public class Lexer {
-    private final String input;
+    private final CharSequence input;
     private final int length;
+    private final boolean bigLiterals;
     private int pos = 0;
+    // Where errors go in diagnostics mode, or null to throw them
+    private List<Diagnostic> diagnostics;
 
     public Lexer(String input) {
+        this((CharSequence) input);
+    }
+
+    public Lexer(CharSequence input) { this(input, false); }
+
+    public Lexer(CharSequence input, boolean bigLiterals) {
         this.input = input;
         this.length = input.length();
+        this.bigLiterals = bigLiterals;
     }
 
      /**
      * Converts the input string into a list of tokens.
      */
     public List<Token> tokenize() {
-        List<Token> tokens = new ArrayList<>();
+        TokenBuffer tokens = new TokenBuffer(Math.min(length + 1, 64));
+        tokenize(tokens);
+        return tokens.toList();
+    }
+
+    /**
+     * Converts the input into tokens stored in the given buffer, replacing
+     * whatever it held before. No per-token objects are allocated.
+     *
+     * Each call is reported as a LexEvent and to the active PhaseRecorder.
+     */
+    public void tokenize(TokenBuffer tokens) {
+        LexEvent event = PhaseRecorder.flightRecorderInitialized() ? new LexEvent() : null;
+        if (event != null) event.begin();
+        long began = PhaseRecorder.begin();
+        int reported = diagnostics == null ? 0 : diagnostics.size();
+        Throwable failure = null;
+        try {
+            scan(tokens);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            boolean clean = diagnostics == null || diagnostics.size() == reported;
+            PhaseRecorder.end(PhaseRecorder.Phase.LEX, began, failure == null && clean);
+            if (event != null && event.shouldCommit()) {
+                event.inputLength = length;
+                event.tokenCount = tokens.size();
+                event.outcome = clean ? PhaseRecorder.outcome(failure) : diagnostics.get(reported).code.name();
+                event.commit();
+            }
+        }
+    }
 
+    /**
+     * Tokenizes in diagnostics mode: instead of throwing, every error is
+     * added to the list and lexing carries on, so the buffer always ends up
+     * holding a complete token stream.
+     */
+    public void tokenize(TokenBuffer tokens, List<Diagnostic> diagnostics) {
+        this.diagnostics = diagnostics;
+        try {
+            tokenize(tokens);
+        } finally {
+            this.diagnostics = null;
+        }
+    }
+
+    private void scan(TokenBuffer tokens) {
+        tokens.reset(input);
+        while (next(tokens)) { }
+
+        // Add end-of-file marker token
+        tokens.add(TokenType.EOF, pos, 0, 0);
+    }
+
+    // Moves the lexer to a position where a token (or whitespace) starts
+    void seek(int position) { pos = position; }
+
+    // Adds errors met by next() to the list instead of throwing them
+    void report(List<Diagnostic> diagnostics) { this.diagnostics = diagnostics; }
+
+    /**
+     * Adds the next token to the buffer, skipping whitespace before it.
+     * Returns false, adding nothing, when only whitespace was left.
+     */
+    boolean next(TokenBuffer tokens) {
         while (!isAtEnd()) {
             char c = peek();
 
@@ -44,43 +131,69 @@ public class Lexer {
 
             // Numbers: one or more digits
             if (Character.isDigit(c)) {
-                tokens.add(numberToken());
+                numberToken(tokens);
+
+            // Identifiers: variable names
+            } else if (isIdentifierStart(c)) {
+                while (!isAtEnd() && isIdentifierPart(peek())) advance();
+                tokens.add(TokenType.IDENTIFIER, startPos, pos - startPos, 0);
             
              // Operators and parentheses
             } else {
                 switch (c) {
-                    case '+': tokens.add(simpleToken(TokenType.PLUS, "+", startPos)); advance(); break;
-                    case '-': tokens.add(simpleToken(TokenType.MINUS, "-", startPos)); advance(); break;
-                    case '*': tokens.add(simpleToken(TokenType.STAR, "*", startPos)); advance(); break;
-                    case '/': tokens.add(simpleToken(TokenType.SLASH, "/", startPos)); advance(); break;
-                    case '(': tokens.add(simpleToken(TokenType.LPAREN, "(", startPos)); advance(); break;
-                    case ')': tokens.add(simpleToken(TokenType.RPAREN, ")", startPos)); advance(); break;
+                    case '+': tokens.add(TokenType.PLUS, startPos, 1, 0); advance(); break;
+                    case '-': tokens.add(TokenType.MINUS, startPos, 1, 0); advance(); break;
+                    case '*': tokens.add(TokenType.STAR, startPos, 1, 0); advance(); break;
+                    case '/': tokens.add(TokenType.SLASH, startPos, 1, 0); advance(); break;
+                    case '(': tokens.add(TokenType.LPAREN, startPos, 1, 0); advance(); break;
+                    case ')': tokens.add(TokenType.RPAREN, startPos, 1, 0); advance(); break;
                     default:
-                        throw new RuntimeException("Unexpected character '" + c + "' at position " + pos);
+                        Diagnostic error = new Diagnostic(Diagnostic.Code.UNEXPECTED_CHARACTER, pos, String.valueOf(c));
+                        if (diagnostics == null) throw new RuntimeException(error.message());
+                        diagnostics.add(error);
+                        advance();
+                        continue;
                 }
             }
+            return true;
         }
-
-        // Add end-of-file marker token
-        tokens.add(new Token(TokenType.EOF, "", null, pos));
-        return tokens;
+        return false;
     }
 
     private boolean isAtEnd() { return pos >= length; }
     private char peek() { return input.charAt(pos); }
     private char advance() { return input.charAt(pos++); }
 
-    // Creates a simple single-character token (operators, parentheses)
-    private Token simpleToken(TokenType type, String lexeme, int pos) {
-        return new Token(type, lexeme, null, pos);
-    }
-
-    // Reads an integer literal 
-    private Token numberToken() {
+    // Reads an integer literal, accumulating its value without a substring
+    private void numberToken(TokenBuffer tokens) {
         int start = pos;
+        long value = 0;
         // Walk digits
-        while (!isAtEnd() && Character.isDigit(peek())) advance();
-        String lex = input.substring(start, pos);
-        return new Token(TokenType.NUMBER, lex, Integer.parseInt(lex), start);
+        while (!isAtEnd() && Character.isDigit(peek())) {
+            value = value * 10 + Character.digit(advance(), 10);
+            if (value > Integer.MAX_VALUE) {
+                while (!isAtEnd() && Character.isDigit(peek())) advance();
+                if (bigLiterals) {
+                    tokens.add(TokenType.NUMBER, start, pos - start, TokenBuffer.BIG);
+                    return;
+                }
+                if (diagnostics != null) {
+                    diagnostics.add(new Diagnostic(Diagnostic.Code.NUMBER_OUT_OF_RANGE, start, input.subSequence(start, pos).toString()));
+                    tokens.add(TokenType.NUMBER, start, pos - start, 0);
+                    return;
+                }
+                // Let parseInt report the out of range literal exactly as before
+                Integer.parseInt(input.subSequence(start, pos).toString());
+            }
+        }
+        tokens.add(TokenType.NUMBER, start, pos - start, (int) value);
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || (c >= '0' && c <= '9');
     }
 }
@@ -0,0 +1,153 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** LoadTestClient
+ *
+ * Measures an ExpressionServer over loopback: requests per second and
+ * latency percentiles.
+ *
+ *   java LoadTestClient <port> [connections] [requests per connection] [pipeline depth]
+ *
+ * Each connection sends its requests in bursts of the pipeline depth: it
+ * writes a burst, then reads the burst's responses. A request's latency runs
+ * from the flush of its burst to the arrival of its response. Every response
+ * is checked against the expected result, so a server that answers fast but
+ * wrong does not look good.
+ *
+ *   8 connections × 100000 requests, depth 32:
+ *   800000 requests (0 wrong) in 3.75 s
+ *   213571 requests/second, latency p50 137.9 µs, p90 4480.7 µs, p99 9125.7 µs, max 44632.6 µs
+ */
+public class LoadTestClient {
+
+    // Requests and their expected responses, cycled through by every connection
+    private static final String[][] REQUESTS = {
+        { "(3 + 2) * 5", "25" },
+        { "1 + 2 * 3 - 4 / 2 + (7 - 1) * 2", "17" },
+        { "-(12 * (4 + 9) / 3) + 88 * (2 - 7)", "-492" },
+        { "((((1 + 2) * 3) - 4) / 5)", "1" },
+        { "3 +", "Parse Error: Unexpected token '' at position 3" },
+        { "10 / (5 - 5)", "Arithmetic Error: / by zero" },
+    };
+
+    /**
+     * The outcome of a load test.
+     */
+    public static final class Result {
+        public final long requests;
+        public final long wrong;
+        public final long elapsedNanos;
+        private final long[] latencies;
+
+        Result(long requests, long wrong, long elapsedNanos, long[] latencies) {
+            this.requests = requests;
+            this.wrong = wrong;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            Arrays.sort(latencies);
+        }
+
+        public double requestsPerSecond() {
+            return elapsedNanos == 0 ? 0 : requests * 1e9 / elapsedNanos;
+        }
+
+        // The latency at the given percentile (0 to 100), in nanoseconds
+        public long percentileNanos(double percentile) {
+            if (latencies.length == 0) return 0;
+            int rank = (int) Math.ceil(latencies.length * percentile / 100);
+            return latencies[Math.min(Math.max(rank - 1, 0), latencies.length - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d wrong) in %.2f s%n"
+                    + "%.0f requests/second, latency p50 %.1f µs, p90 %.1f µs, p99 %.1f µs, max %.1f µs",
+                requests, wrong, elapsedNanos / 1e9, requestsPerSecond(),
+                percentileNanos(50) / 1e3, percentileNanos(90) / 1e3, percentileNanos(99) / 1e3, percentileNanos(100) / 1e3);
+        }
+    }
+
+    public static Result run(InetSocketAddress server, int connections, int requests, int depth)
+            throws IOException, InterruptedException {
+        if (connections < 1 || requests < 1 || depth < 1) {
+            throw new IllegalArgumentException("connections, requests and depth must be at least 1");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        try {
+            List<Future<long[]>> clients = new ArrayList<>();
+            long[] wrong = new long[connections];
+            long started = System.nanoTime();
+            for (int c = 0; c < connections; c++) {
+                int client = c;
+                clients.add(pool.submit(() -> connection(server, requests, depth, wrong, client)));
+            }
+
+            long[] latencies = new long[connections * requests];
+            for (int c = 0; c < connections; c++) {
+                try {
+                    System.arraycopy(clients.get(c).get(), 0, latencies, c * requests, requests);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    throw new IllegalStateException("Load test client failed", cause);
+                }
+            }
+            long elapsed = System.nanoTime() - started;
+            return new Result((long) connections * requests, Arrays.stream(wrong).sum(), elapsed, latencies);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Runs one connection, returning the latency of each request
+    private static long[] connection(InetSocketAddress server, int requests, int depth, long[] wrong, int client)
+            throws IOException {
+        long[] latencies = new long[requests];
+        try (Socket socket = new Socket(server.getAddress(), server.getPort())) {
+            socket.setTcpNoDelay(true);
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 14);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 14);
+
+            int next = client;
+            for (int sent = 0; sent < requests; sent += depth) {
+                int burst = Math.min(depth, requests - sent);
+                for (int i = 0; i < burst; i++) {
+                    out.write(REQUESTS[(next + i) % REQUESTS.length][0]);
+                    out.write('\n');
+                }
+                out.flush();
+                long flushed = System.nanoTime();
+
+                for (int i = 0; i < burst; i++) {
+                    String response = in.readLine();
+                    latencies[sent + i] = System.nanoTime() - flushed;
+                    if (response == null) throw new EOFException("Server closed the connection");
+                    if (!response.equals(REQUESTS[(next + i) % REQUESTS.length][1])) wrong[client]++;
+                }
+                next += burst;
+            }
+        }
+        return latencies;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoadTestClient <port> [connections] [requests per connection] [pipeline depth]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        // A short warm-up so the server's JIT has compiled the pipeline
+        run(server, connections, Math.min(requests, 10_000), depth);
+
+        System.out.println(connections + " connections × " + requests + " requests, depth " + depth + ":");
+        System.out.println(run(server, connections, requests, depth));
+    }
+}
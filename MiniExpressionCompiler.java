@@ -1,4 +1,9 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 /** MiniExpressionCompiler
  * 
  * Purpose is to serve as the main entry point for the mini expression compiler.
@@ -7,20 +12,203 @@ import java.util.*;
  *   2. Tokenize the input using the Lexer
  *   3. Parse the tokens into an Abstract Syntax Tree (AST)
  *   4. Print the AST in a readable tree format
- *   5. Evaluate the AST to produce a final numeric result
+ *   5. Optionally simplify the AST with the Optimizer
+ *   6. Evaluate the AST to produce a final numeric result
  *
  * Any errors that occur during this process (lexical, parsing, runtime)
  * are caught and displayed with readable messages.
+ *
+ * Options:
+ *   --engine=tree       evaluate by walking the AST (default)
+ *   --engine=stack      lower to a StackProgram and run it on the StackMachine
+ *   --engine=bytecode   compile to JVM bytecode with the BytecodeCompiler
+ *   --engine=nodes      run a tree of self-specializing ExecNodes (NodeTree)
+ *                       (--batch and --serve always use the tree engine)
+ *   --optimize          fold constants and simplify the AST before
+ *                       evaluating it, reporting the node counts
+ *   --exact             evaluate with the ExactEvaluator: results never wrap
+ *                       around and literals may be any size (tree engine only)
+ *
+ *   --bulk <input> <output>
+ *                       evaluate a file of expressions, one per line, into
+ *                       binary result columns (see BulkEvaluator); takes no
+ *                       other options
+ *
+ *   --batch [file]      evaluate every line of the file (or stdin) on all
+ *                       cores, printing results in input order
+ *   --threads=N         number of batch worker threads (default: all cores)
+ *   --tokens            also print the tokens of each batch line
+ *   --ast               also print the AST of each batch line
+ *   --cache=N           cache up to N parsed batch lines (and a matching
+ *                       memory budget), printing cache statistics at the end
+ *
+ *   --stream [file]     evaluate the whole file (or stdin) as one expression
+ *                       while reading it, without building tokens or an AST
+ *                       (see StreamingEvaluator); prints the result, or only
+ *                       the number with --quiet
+ *
+ *   --serve=PORT        answer expressions over TCP on the loopback port, one
+ *                       line per request (see ExpressionServer), until the
+ *                       process is interrupted; --cache=N applies here too
+ *
+ *   --phases            record the latency and allocation of each lex, parse
+ *                       and (tree engine) eval call, printing the histogram
+ *                       summary of the PhaseRecorder to stderr at the end
+ *
+ *   --quiet             print only the result (or the error), skipping the
+ *                       prompt, the tokens and the AST; for scripts that
+ *                       start one process per expression
+ *   --train             run a fixed set of expressions through every engine
+ *                       and option, printing nothing: the training run that
+ *                       records which classes go into the AppCDS archive
+ *                       (see StartupReport)
  */
 
 public class MiniExpressionCompiler {
     public static void main(String[] args) {
 
-        Scanner sc = new Scanner(System.in);
-        System.out.print("Enter expression: ");
+        String engine = "tree";
+        boolean batch = false;
+        String batchFile = null;
+        boolean printTokens = false;
+        boolean printAst = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int cacheSize = 0;
+        boolean optimize = false;
+        boolean exact = false;
+        boolean phases = false;
+        boolean quiet = false;
+        boolean stream = false;
+        String streamFile = null;
+        int servePort = -1;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--bulk")) {
+                // The BulkEvaluator takes no other option, so none may be given
+                if (i != 0 || args.length != 3) {
+                    System.out.println("Error: Usage: --bulk <input> <output> (with no other options)");
+                    return;
+                }
+                bulk(args[1], args[2]);
+                return;
+            } else if (arg.equals("--batch")) {
+                batch = true;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) batchFile = args[++i];
+            } else if (arg.equals("--stream")) {
+                stream = true;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) streamFile = args[++i];
+            } else if (arg.startsWith("--threads=")) {
+                try {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.out.println("Error: Invalid thread count in '" + arg + "'");
+                    return;
+                }
+            } else if (arg.startsWith("--cache=")) {
+                try {
+                    cacheSize = Integer.parseInt(arg.substring("--cache=".length()));
+                } catch (NumberFormatException e) {
+                    cacheSize = 0;
+                }
+                if (cacheSize < 1) {
+                    System.out.println("Error: Invalid cache size in '" + arg + "'");
+                    return;
+                }
+            } else if (arg.equals("--optimize")) {
+                optimize = true;
+            } else if (arg.equals("--exact")) {
+                exact = true;
+            } else if (arg.startsWith("--serve=")) {
+                try {
+                    servePort = Integer.parseInt(arg.substring("--serve=".length()));
+                } catch (NumberFormatException e) {
+                    servePort = -1;
+                }
+                if (servePort < 0 || servePort > 65535) {
+                    System.out.println("Error: Invalid port in '" + arg + "'");
+                    return;
+                }
+            } else if (arg.equals("--phases")) {
+                phases = true;
+            } else if (arg.equals("--quiet")) {
+                quiet = true;
+            } else if (arg.equals("--train")) {
+                train();
+                return;
+            } else if (arg.equals("--tokens")) {
+                printTokens = true;
+            } else if (arg.equals("--ast")) {
+                printAst = true;
+            } else if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else {
+                System.out.println("Error: Unknown option '" + arg + "'");
+                return;
+            }
+        }
+        if (!engine.equals("tree") && !engine.equals("stack") && !engine.equals("bytecode") && !engine.equals("nodes")) {
+            System.out.println("Error: Unknown engine '" + engine + "' (expected tree, stack, bytecode or nodes)");
+            return;
+        }
+
+        if (exact && (optimize || !engine.equals("tree") || batch || servePort >= 0)) {
+            // The optimizer and the other engines compute in int
+            System.out.println("Error: --exact only works with the tree engine, without --optimize, --batch or --serve");
+            return;
+        }
+
+        if (!engine.equals("tree") && (batch || servePort >= 0)) {
+            // Batch lines and server requests are always evaluated by walking the tree
+            System.out.println("Error: --engine cannot be combined with --batch or --serve");
+            return;
+        }
+
+        if (stream && (optimize || exact || !engine.equals("tree") || batch || servePort >= 0
+                || phases || printTokens || printAst || cacheSize > 0)) {
+            // The StreamingEvaluator builds no tokens or AST and runs none of the recorded phases
+            System.out.println("Error: --stream cannot be combined with --engine, --optimize, --exact, --batch, --serve, "
+                + "--phases, --tokens, --ast or --cache");
+            return;
+        }
+
+        if (stream) {
+            stream(streamFile, quiet);
+            return;
+        }
+
+        PhaseRecorder recorder = phases ? PhaseRecorder.enable() : null;
+
+        // Budget roughly 1 KB per cached expression
+        ExpressionCache cache = cacheSize > 0 ? new ExpressionCache(cacheSize, cacheSize * 1024L) : null;
+
+        if (servePort >= 0) {
+            serve(servePort, cache, recorder);
+            return;
+        }
+
+        if (batch) {
+            batch(batchFile, new BatchEvaluator(threads, 1024, printTokens, printAst, cache, optimize));
+            if (cache != null) System.err.println("Cache: " + cache.stats());
+            if (recorder != null) System.err.print(recorder);
+            return;
+        }
+
+        if (!quiet) System.out.print("Enter expression: ");
+        System.out.flush();
 
         // Trim leading/trailing whitespace from user input
-        String input = sc.nextLine().trim();
+        String input;
+        try {
+            String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+            input = line == null ? "" : line.trim();
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
+            return;
+        }
 
         // Handle empty input
         if (input.isEmpty()) {
@@ -28,33 +216,173 @@ public class MiniExpressionCompiler {
             return;
         }
 
+        run(input, engine, optimize, exact, quiet, System.out);
+
+        if (recorder != null) System.err.print(recorder);
+    }
+
+    /**
+     * Runs one expression through the pipeline, printing each step to out.
+     * In quiet mode only the result is printed, and the tokens are lexed
+     * into a TokenBuffer without creating a Token object for each.
+     */
+    private static void run(String input, String engine, boolean optimize, boolean exact, boolean quiet, PrintStream out) {
         try {
-            // 1. Tokenization
-            Lexer lx = new Lexer(input);
-            List<Token> tokens = lx.tokenize();
-            System.out.println("Tokens: " + tokens);
+            // 1. Tokenization, 2. Build AST
+            Expr expr;
+            if (quiet) {
+                TokenBuffer tokens = new TokenBuffer();
+                new Lexer(input, exact).tokenize(tokens);
+                expr = new Parser(tokens).parse();
+            } else {
+                List<Token> tokens = new Lexer(input, exact).tokenize();
+                out.println("Tokens: " + tokens);
+                expr = new Parser(tokens).parse();
+                out.println("AST:");
+                new AstPrinter(out).print(expr);
+            }
 
-            // 2. Build AST
-            Parser p = new Parser(tokens);
-            Expr expr = p.parse();
-            System.out.println("AST:"); 
-            new AstPrinter().print(expr);
+            // 3. Optimization
+            if (optimize) {
+                int before = Optimizer.countNodes(expr);
+                expr = new Optimizer().optimize(expr);
+                if (!quiet) {
+                    out.println("Optimized AST (" + before + " → " + Optimizer.countNodes(expr) + " nodes):");
+                    new AstPrinter(out).print(expr);
+                }
+            }
 
-            // 3. Evaluation
-            int result = new Evaluator().evaluate(expr);
+            // 4. Evaluation
+            Number result = exact ? new ExactEvaluator().evaluate(expr) : (Number) evaluate(expr, engine);
 
-            // 4. Output the final
-            System.out.println("Result: " + result);
+            // 5. Output the final
+            out.println(quiet ? String.valueOf(result) : "Result: " + result);
 
         // Catching all predictable error types   
+        } catch (ParseException e) {
+            out.println("Parse Error: " + e.getMessage());
+        } catch (ArithmeticException e) {
+            out.println("Arithmetic Error: " + e.getMessage());
+        } catch (RuntimeException e) {
+            out.println("Error: " + e.getMessage());
+        } catch (StackOverflowError e) {
+            // Parsing and tree walking are iterative, but compiling and optimizing still recurse
+            out.println("Error: Expression is nested too deeply");
+        } catch (Exception e) {
+            out.println("Unexpected Error: " + e.getMessage());
+        }
+    }
+
+    // Valid and invalid expressions that between them reach every class a single expression can load
+    private static final String[] TRAINING = {
+        "1 + 2",
+        "(3 + 4) * 5 - 6 / 2",
+        "-(8 - 3) * (2 + 0 * 7)",
+        "2147483647 + 1",
+        "99999999999 * 99999999999",
+        "1 / 0",
+        "3 + * 4",
+        "(1 + 2",
+        "7 $ 3",
+        "--4",
+        "3--2",
+    };
+
+    // The training run for the AppCDS archive
+    private static void train() {
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+        for (String input : TRAINING) {
+            for (String engine : new String[] { "tree", "stack", "bytecode", "nodes" }) {
+                for (boolean quiet : new boolean[] { false, true }) {
+                    run(input, engine, false, false, quiet, out);
+                    run(input, engine, true, false, quiet, out);
+                }
+            }
+            run(input, "tree", false, true, false, out);
+            run(input, "tree", false, true, true, out);
+        }
+    }
+
+    // Evaluates the file or stdin as one expression, read through a fixed-size buffer
+    private static void stream(String file, boolean quiet) {
+        try {
+            int result;
+            if (file == null) {
+                result = new StreamingEvaluator().evaluate(new InputStreamReader(System.in));
+            } else {
+                try (FileChannel in = FileChannel.open(Paths.get(file))) {
+                    result = new StreamingEvaluator().evaluate(in);
+                }
+            }
+            System.out.println(quiet ? String.valueOf(result) : "Result: " + result);
         } catch (ParseException e) {
             System.out.println("Parse Error: " + e.getMessage());
         } catch (ArithmeticException e) {
             System.out.println("Arithmetic Error: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
         } catch (RuntimeException e) {
             System.out.println("Error: " + e.getMessage());
-        } catch (Exception e) {
-            System.out.println("Unexpected Error: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private static void bulk(String input, String output) {
+        try {
+            BulkEvaluator.Summary summary = new BulkEvaluator().run(Paths.get(input), Paths.get(output));
+            System.out.println(summary);
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
+        }
+    }
+
+    private static void batch(String file, BatchEvaluator evaluator) {
+        try (BufferedReader in = file == null
+                 ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                 : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            evaluator.run(in, out);
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
+        }
+    }
+
+    // Serves until the JVM is asked to exit, then shuts the server down gracefully
+    private static void serve(int port, ExpressionCache cache, PhaseRecorder recorder) {
+        ExpressionServer server;
+        try {
+            server = new ExpressionServer(port, cache);
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
+            return;
+        }
+        System.out.println("Listening on port " + server.port() + " ("
+            + (server.usesVirtualThreads() ? "virtual" : "platform") + " threads)");
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+            if (cache != null) System.err.println("Cache: " + cache.stats());
+            if (recorder != null) System.err.print(recorder);
+            stopped.countDown();
+        }));
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Evaluates the AST with the selected engine
+    private static int evaluate(Expr expr, String engine) {
+        switch (engine) {
+            case "stack": return new StackMachine().run(new StackCompiler().compile(expr));
+            case "bytecode": return new BytecodeCompiler().compile(expr).evaluate();
+            case "nodes": return new NodeTree(expr).evaluate(new int[0]);
+            default: return new Evaluator().evaluate(expr);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/** NodeTree
+ *
+ * Evaluates an expression with a tree of self-specializing ExecNodes instead
+ * of walking the AST.
+ *
+ *   NodeTree tree = new NodeTree(parser.parse());
+ *   int total = tree.evaluate(slots);      // first call: nodes specialize themselves
+ *   int again = tree.evaluate(other);      // later calls run the specialized tree
+ *
+ * The Evaluator looks at every node with instanceof tests and a switch on the
+ * operator type, the same dispatch on every call and for every node. Here each
+ * node is an object of a class for exactly its operation, found once when the
+ * tree is built, and operators rewrite themselves on their first execution
+ * (see ExecNode): constant subtrees become one ConstNode and an operator with
+ * a constant or variable operand becomes a node with the constant or the
+ * slot in a field.
+ *
+ * A variable is a slot read with no bounds check: evaluate checks once that
+ * every slot the expression uses has a binding, and otherwise leaves the
+ * call to the Evaluator, which reports the unbound variable it reaches first.
+ * Execution recurses, one Java call per node, so trees deeper than MAX_DEPTH
+ * are evaluated by the Evaluator's iterative walk instead.
+ *
+ * Results and errors are exactly the Evaluator's. Nodes rewrite themselves
+ * while they run, so a NodeTree must not be shared between threads.
+ */
+public final class NodeTree implements CompiledExpression {
+    public static final int MAX_DEPTH = 2_000;
+
+    // Null for trees too deep to execute recursively
+    private final Root root;
+    private final Expr expr;
+    private final Evaluator evaluator = new Evaluator();
+    // One more than the highest slot the expression reads
+    private int slotsUsed;
+
+    public NodeTree(Expr e) {
+        ExecNode body = build(e, 1);
+        this.root = body == null ? null : new Root(body);
+        this.expr = e;
+    }
+
+    @Override
+    public int evaluate(int[] slots) {
+        return root != null && slots.length >= slotsUsed ? root.execute(slots) : evaluator.walk(expr, slots);
+    }
+
+    // False when the tree was too deep and is walked by the Evaluator
+    public boolean usesNodes() { return root != null; }
+
+    // Builds the nodes for e at the given depth, or returns null if the tree is deeper than MAX_DEPTH
+    private ExecNode build(Expr e, int depth) {
+        if (depth > MAX_DEPTH) return null;
+        if (e instanceof NumberExpr) return new ExecNode.ConstNode(((NumberExpr) e).value);
+        if (e instanceof VariableExpr) {
+            VariableExpr v = (VariableExpr) e;
+            slotsUsed = Math.max(slotsUsed, v.slot + 1);
+            return new ExecNode.SlotNode(v.slot, v.name);
+        }
+        if (e instanceof UnaryExpr) {
+            UnaryExpr u = (UnaryExpr) e;
+            ExecNode operand = build(u.right, depth + 1);
+            return operand == null ? null : new ExecNode.UninitializedNode(u.operator.type, null, operand);
+        }
+        if (e instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) e;
+            ExecNode left = build(b.left, depth + 1);
+            ExecNode right = left == null ? null : build(b.right, depth + 1);
+            return right == null ? null : new ExecNode.UninitializedNode(b.operator.type, left, right);
+        }
+        throw new RuntimeException("Bad expression");
+    }
+
+    /**
+     * The nodes as they are now, one per line and indented by depth:
+     *
+     *   MulConstNode -3
+     *     SlotAddConstNode a 2
+     */
+    @Override
+    public String toString() {
+        if (root == null) return "Evaluator walk of a tree deeper than " + MAX_DEPTH;
+        StringBuilder out = new StringBuilder();
+        describe(root.body, 0, out);
+        return out.toString();
+    }
+
+    private static void describe(ExecNode node, int depth, StringBuilder out) {
+        for (int i = 0; i < depth; i++) out.append("  ");
+        out.append(node).append('\n');
+        for (ExecNode child : node.children()) describe(child, depth + 1, out);
+    }
+
+    // Holds the top node, so that it can replace itself like any other
+    private static final class Root extends ExecNode {
+        ExecNode body;
+
+        Root(ExecNode body) { this.body = child(body); }
+
+        @Override
+        int execute(int[] slots) { return body.execute(slots); }
+
+        @Override
+        void adopt(ExecNode old, ExecNode replacement) { body = replacement; }
+    }
+}
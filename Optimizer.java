@@ -0,0 +1,172 @@
+
+/** Optimizer
+ *
+ * Rewrites a parsed AST into a smaller one that evaluates to the same value.
+ * Runs between the Parser and any of the evaluation engines.
+ *
+ * The rewrites, applied bottom-up:
+ *
+ *   constant folding       (3 + 2) * 5          →  25
+ *   identities             x + 0, x * 1, x / 1  →  x
+ *                          0 - x, x * -1        →  -x
+ *                          --x, +x              →  x
+ *                          x - -y               →  x + y
+ *   constant gathering     (x + 3) - 5          →  x - 2
+ *                          (x * 4) * 25         →  x * 100
+ *   annihilation           e * 0                →  0   (only when e cannot throw)
+ *
+ * All of them hold under Java's 32-bit wraparound arithmetic: addition and
+ * multiplication form a ring modulo 2^32, so constants may be regrouped and
+ * x - c may be rewritten as x + (-c) even when the values overflow.
+ *
+ * Errors are preserved. A division by a constant zero is never folded, and
+ * x * 0 is only reduced to 0 when x reads no variable (which may be unbound)
+ * and contains no division whose divisor might be zero, so "10 / 0",
+ * "(x / y) * 0" and "x * 0" still throw when evaluated. Division itself is not
+ * regrouped, since integer division truncates.
+ */
+public class Optimizer {
+
+    public Expr optimize(Expr e) {
+        if (e instanceof UnaryExpr) {
+            UnaryExpr u = (UnaryExpr) e;
+            Expr right = optimize(u.right);
+            return u.operator.type == TokenType.MINUS ? negate(right, u.operator) : right;
+        }
+
+        if (e instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) e;
+            Expr left = optimize(b.left);
+            Expr right = optimize(b.right);
+            switch (b.operator.type) {
+                case PLUS: return add(left, b.operator, right, false);
+                case MINUS: return add(left, b.operator, right, true);
+                case STAR: return multiply(left, b.operator, right);
+                case SLASH: return divide(left, b.operator, right);
+            }
+        }
+
+        // Numbers and variables are already as small as they get
+        return e;
+    }
+
+    // left + right, or left - right when subtract is set
+    private Expr add(Expr left, Token op, Expr right, boolean subtract) {
+        if (left instanceof NumberExpr && right instanceof NumberExpr) {
+            int l = ((NumberExpr) left).value;
+            int r = ((NumberExpr) right).value;
+            return new NumberExpr(subtract ? l - r : l + r);
+        }
+
+        if (right instanceof NumberExpr) {
+            int r = ((NumberExpr) right).value;
+            return offset(left, subtract ? -r : r, op);
+        }
+
+        if (left instanceof NumberExpr) {
+            int l = ((NumberExpr) left).value;
+            // c - x has no shorter form unless c is 0
+            if (subtract) return l == 0 ? negate(right, op) : new BinaryExpr(left, op, right);
+            return offset(right, l, op);
+        }
+
+        // x + -y → x - y and x - -y → x + y
+        if (isNegation(right)) {
+            Token flipped = operator(subtract ? TokenType.PLUS : TokenType.MINUS, op.position);
+            return new BinaryExpr(left, flipped, ((UnaryExpr) right).right);
+        }
+
+        return new BinaryExpr(left, op, right);
+    }
+
+    // base + k, merging k into a constant already added to base
+    private Expr offset(Expr base, int k, Token op) {
+        if (base instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) base;
+            TokenType t = b.operator.type;
+            if ((t == TokenType.PLUS || t == TokenType.MINUS) && b.right instanceof NumberExpr) {
+                int c = ((NumberExpr) b.right).value;
+                k += t == TokenType.PLUS ? c : -c;
+                base = b.left;
+            }
+        }
+
+        if (k == 0) return base;
+        // Keep small negative offsets readable as a subtraction
+        if (k < 0 && k != Integer.MIN_VALUE) return new BinaryExpr(base, operator(TokenType.MINUS, op.position), new NumberExpr(-k));
+        return new BinaryExpr(base, operator(TokenType.PLUS, op.position), new NumberExpr(k));
+    }
+
+    private Expr multiply(Expr left, Token op, Expr right) {
+        if (left instanceof NumberExpr && right instanceof NumberExpr) {
+            return new NumberExpr(((NumberExpr) left).value * ((NumberExpr) right).value);
+        }
+        if (right instanceof NumberExpr) return scale(left, ((NumberExpr) right).value, op);
+        if (left instanceof NumberExpr) return scale(right, ((NumberExpr) left).value, op);
+        return new BinaryExpr(left, op, right);
+    }
+
+    // base * k, merging k into a constant factor already applied to base
+    private Expr scale(Expr base, int k, Token op) {
+        if (base instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) base;
+            if (b.operator.type == TokenType.STAR && b.right instanceof NumberExpr) {
+                k *= ((NumberExpr) b.right).value;
+                base = b.left;
+            }
+        }
+
+        if (k == 1) return base;
+        if (k == -1) return negate(base, op);
+        if (k == 0 && !canThrow(base)) return new NumberExpr(0);
+        return new BinaryExpr(base, operator(TokenType.STAR, op.position), new NumberExpr(k));
+    }
+
+    private Expr divide(Expr left, Token op, Expr right) {
+        if (right instanceof NumberExpr) {
+            int r = ((NumberExpr) right).value;
+            // A zero divisor is left in place so evaluation still throws
+            if (r != 0 && left instanceof NumberExpr) return new NumberExpr(((NumberExpr) left).value / r);
+            if (r == 1) return left;
+            if (r == -1) return negate(left, op);
+        }
+        return new BinaryExpr(left, op, right);
+    }
+
+    private Expr negate(Expr e, Token op) {
+        if (e instanceof NumberExpr) return new NumberExpr(-((NumberExpr) e).value);
+        if (isNegation(e)) return ((UnaryExpr) e).right;
+        return new UnaryExpr(operator(TokenType.MINUS, op.position), e);
+    }
+
+    private static boolean isNegation(Expr e) {
+        return e instanceof UnaryExpr && ((UnaryExpr) e).operator.type == TokenType.MINUS;
+    }
+
+    // True if evaluating e might divide by zero or read an unbound variable
+    private static boolean canThrow(Expr e) {
+        if (e instanceof VariableExpr) return true;
+        if (e instanceof UnaryExpr) return canThrow(((UnaryExpr) e).right);
+        if (e instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) e;
+            if (b.operator.type == TokenType.SLASH
+                    && !(b.right instanceof NumberExpr && ((NumberExpr) b.right).value != 0)) return true;
+            return canThrow(b.left) || canThrow(b.right);
+        }
+        return false;
+    }
+
+    // An operator token for a node the optimizer creates, placed where the original operator was
+    private static Token operator(TokenType type, int position) {
+        switch (type) {
+            case PLUS: return new Token(type, "+", null, position);
+            case MINUS: return new Token(type, "-", null, position);
+            default: return new Token(type, "*", null, position);
+        }
+    }
+
+    // Counts the nodes of a tree; every node records the size of its subtree
+    public static int countNodes(Expr root) {
+        return root.size();
+    }
+}
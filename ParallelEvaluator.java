@@ -0,0 +1,233 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** ParallelEvaluator
+ *
+ * Evaluates very large ASTs on a ForkJoinPool.
+ *
+ *   ParallelEvaluator parallel = new ParallelEvaluator();
+ *   int result = parallel.evaluate(expr, slots);
+ *
+ * Every Expr knows the size of its subtree from the moment it was built, so
+ * deciding where to split is a field read. A tree smaller than the threshold
+ * is evaluated by the plain Evaluator. Above it, a node whose two operands are
+ * both at least the threshold evaluates them as separate tasks. A run of nodes
+ * with only one large operand (a "spine", as in a long chain of additions) is
+ * followed down without recursion; the small operands hanging off it are
+ * evaluated in tasks of about the threshold's size each, and then combined
+ * along the spine in order.
+ *
+ * Results are bit-identical to the Evaluator: every subtree is evaluated with
+ * the same int arithmetic, and operators are applied to the same operands.
+ * Errors are too. Tasks never let an exception escape (ForkJoinPool would
+ * rethrow a copy without its message); instead each one keeps its own, and
+ * the error reported is the one the sequential walk would have met first.
+ *
+ * Balanced trees split into independent halves and scale with the number of
+ * cores. A chain like 1 + 2 + ... + n has little parallelism: its operands
+ * are evaluated in parallel, but the chain itself is combined on one thread.
+ *
+ * A ParallelEvaluator is thread-safe.
+ */
+public class ParallelEvaluator {
+    public static final int DEFAULT_THRESHOLD = 1 << 14;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    // Sequential walks reuse one Evaluator per worker thread
+    private final ThreadLocal<Evaluator> evaluators = ThreadLocal.withInitial(Evaluator::new);
+
+    public ParallelEvaluator() { this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD); }
+
+    /**
+     * Evaluates on the given pool, splitting subtrees of at least threshold
+     * nodes into separate tasks.
+     */
+    public ParallelEvaluator(ForkJoinPool pool, int threshold) {
+        if (threshold < 2) throw new IllegalArgumentException("Threshold must be at least 2: " + threshold);
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    public int evaluate(Expr e) {
+        return evaluate(e, new int[0]);
+    }
+
+    /**
+     * Evaluates the tree with the given variable bindings, reported as one
+     * EvalEvent and one call to the active PhaseRecorder.
+     */
+    public int evaluate(Expr e, int[] slots) {
+        EvalEvent event = PhaseRecorder.flightRecorderInitialized() ? new EvalEvent() : null;
+        if (event != null) event.begin();
+        long began = PhaseRecorder.begin();
+        Throwable failure = null;
+        int result = 0;
+        try {
+            if (e.size() < threshold) return result = evaluators.get().walk(e, slots);
+            Task task = new Task(e, slots);
+            pool.invoke(task);
+            if (task.failure != null) throw task.failure;
+            return result = task.value;
+        } catch (Throwable x) {
+            failure = x;
+            throw x;
+        } finally {
+            PhaseRecorder.end(PhaseRecorder.Phase.EVAL, began, failure == null);
+            if (event != null && event.shouldCommit()) Evaluator.commit(event, AstShape.of(e), result, failure);
+        }
+    }
+
+    public int threshold() { return threshold; }
+
+    // Evaluates one subtree, keeping its value or the error it threw
+    private final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Expr node;
+        private final int[] slots;
+        int value;
+        RuntimeException failure;
+
+        Task(Expr node, int[] slots) {
+            this.node = node;
+            this.slots = slots;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                value = node.size() < threshold ? evaluators.get().walk(node, slots) : large(node, slots);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
+
+    // Evaluates the small operands of spine[from, to) in order, keeping each value or error
+    private final class Operands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Expr[] spine;
+        private final boolean[] onLeft;
+        private final int from;
+        private final int to;
+        private final int[] slots;
+        final int[] values;
+        final RuntimeException[] failures;
+
+        Operands(Expr[] spine, boolean[] onLeft, int from, int to, int[] slots, int[] values, RuntimeException[] failures) {
+            this.spine = spine;
+            this.onLeft = onLeft;
+            this.from = from;
+            this.to = to;
+            this.slots = slots;
+            this.values = values;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            Evaluator evaluator = evaluators.get();
+            for (int i = from; i < to; i++) {
+                if (!(spine[i] instanceof BinaryExpr)) continue;
+                BinaryExpr b = (BinaryExpr) spine[i];
+                try {
+                    values[i] = evaluator.walk(onLeft[i] ? b.left : b.right, slots);
+                } catch (RuntimeException e) {
+                    failures[i] = e;
+                }
+            }
+        }
+    }
+
+    // Evaluates a subtree of at least threshold nodes, throwing its first error
+    private int large(Expr root, int[] slots) {
+        // Follow the spine down to a node that splits in two, or is small enough
+        List<Expr> path = new ArrayList<>();
+        Expr bottom = root;
+        while (bottom.size() >= threshold) {
+            if (bottom instanceof UnaryExpr) {
+                path.add(bottom);
+                bottom = ((UnaryExpr) bottom).right;
+            } else if (bottom instanceof BinaryExpr) {
+                BinaryExpr b = (BinaryExpr) bottom;
+                boolean leftLarge = b.left.size() >= threshold;
+                boolean rightLarge = b.right.size() >= threshold;
+                if (leftLarge == rightLarge) break;
+                path.add(b);
+                bottom = leftLarge ? b.left : b.right;
+            } else {
+                break;
+            }
+        }
+
+        // The small operand of each spine node: on the left, or on the right
+        Expr[] spine = path.toArray(new Expr[0]);
+        boolean[] onLeft = new boolean[spine.length];
+        int[] values = new int[spine.length];
+        RuntimeException[] failures = new RuntimeException[spine.length];
+        List<Operands> tasks = new ArrayList<>();
+        long batch = 0;
+        int from = 0;
+        for (int i = 0; i < spine.length; i++) {
+            if (spine[i] instanceof BinaryExpr) {
+                BinaryExpr b = (BinaryExpr) spine[i];
+                onLeft[i] = b.left.size() < threshold;
+                batch += (onLeft[i] ? b.left : b.right).size();
+            }
+            if (batch >= threshold || i == spine.length - 1) {
+                Operands task = new Operands(spine, onLeft, from, i + 1, slots, values, failures);
+                task.fork();
+                tasks.add(task);
+                batch = 0;
+                from = i + 1;
+            }
+        }
+
+        int value = 0;
+        RuntimeException failure = null;
+        try {
+            value = bottom.size() < threshold ? evaluators.get().walk(bottom, slots) : split((BinaryExpr) bottom, slots);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (int i = tasks.size() - 1; i >= 0; i--) tasks.get(i).join();
+
+        // The sequential walk meets the left operands top-down, then the bottom,
+        // then the right operands and the operators bottom-up
+        for (int i = 0; i < spine.length; i++) {
+            if (onLeft[i] && failures[i] != null) throw failures[i];
+        }
+        if (failure != null) throw failure;
+        for (int i = spine.length - 1; i >= 0; i--) {
+            if (spine[i] instanceof UnaryExpr) {
+                if (((UnaryExpr) spine[i]).operator.type == TokenType.MINUS) value = -value;
+                continue;
+            }
+            TokenType op = ((BinaryExpr) spine[i]).operator.type;
+            if (onLeft[i]) {
+                value = Evaluator.apply(op, values[i], value);
+            } else {
+                if (failures[i] != null) throw failures[i];
+                value = Evaluator.apply(op, value, values[i]);
+            }
+        }
+        return value;
+    }
+
+    // Evaluates both large operands of a node side by side
+    private int split(BinaryExpr b, int[] slots) {
+        Task right = new Task(b.right, slots);
+        right.fork();
+        Task left = new Task(b.left, slots);
+        left.compute();
+        if (left.failure != null) {
+            // The right operand's result is no longer needed
+            right.cancel(false);
+            right.quietlyJoin();
+            throw left.failure;
+        }
+        right.join();
+        if (right.failure != null) throw right.failure;
+        return Evaluator.apply(b.operator.type, left.value, right.value);
+    }
+}
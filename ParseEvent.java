@@ -0,0 +1,31 @@
+import jdk.jfr.*;
+
+/** ParseEvent
+ *
+ * A JDK Flight Recorder event for one call to Parser.parse.
+ *
+ * The node count and depth are those of the tree reported to the AstSink.
+ * They are only measured while the event is enabled.
+ */
+@Name("miniexpr.Parse")
+@Label("Parse")
+@Category("Mini Expression Compiler")
+@Description("Parsing one token sequence into an AST")
+@StackTrace(false)
+public class ParseEvent extends Event {
+    @Label("Token Count")
+    @Description("Tokens in the input, including the end marker")
+    int tokenCount;
+
+    @Label("Node Count")
+    @Description("AST nodes produced, up to the error if parsing failed")
+    int nodeCount;
+
+    @Label("Depth")
+    @Description("Depth of the AST, a single leaf being 1")
+    int depth;
+
+    @Label("Outcome")
+    @Description("\"ok\", or the simple name of the exception thrown")
+    String outcome;
+}
@@ -0,0 +1,65 @@
+import java.util.*;
+
+/** ParseResult
+ *
+ * The outcome of lexing and parsing in diagnostics mode: either the AST, or
+ * every error found in the source.
+ *
+ *   ParseResult result = ParseResult.parse("(3 + * 4");
+ *   result.ok()            →  false
+ *   result.diagnostics()   →  [UNEXPECTED_TOKEN at 5: Unexpected token '*' at position 5,
+ *                              MISSING_PAREN at 8: Missing ')' at position 8]
+ *
+ * Nothing is thrown for invalid input, so rejecting an expression costs
+ * about as much as accepting one: no exception is created and no stack trace
+ * is captured. When the lexer reports errors the tokens are not parsed, as
+ * the parser would mostly report the same problems again.
+ *
+ * The first diagnostic is always the error the throwing Lexer and Parser
+ * would have raised, with the same message.
+ */
+public final class ParseResult {
+    private final Expr expr;
+    private final SlotTable slots;
+    private final List<Diagnostic> diagnostics;
+
+    private ParseResult(Expr expr, SlotTable slots, List<Diagnostic> diagnostics) {
+        this.expr = expr;
+        this.slots = slots;
+        this.diagnostics = diagnostics;
+    }
+
+    public static ParseResult parse(CharSequence source) {
+        return parse(source, new TokenBuffer(), new SlotTable());
+    }
+
+    /**
+     * Lexes the source into the given (reusable) buffer and parses it,
+     * assigning variables slots in the given table.
+     */
+    public static ParseResult parse(CharSequence source, TokenBuffer tokens, SlotTable slots) {
+        List<Diagnostic> diagnostics = new ArrayList<>(0);
+        new Lexer(source).tokenize(tokens, diagnostics);
+        if (!diagnostics.isEmpty()) return new ParseResult(null, slots, Collections.unmodifiableList(diagnostics));
+
+        ExprBuilder builder = new ExprBuilder();
+        new Parser(tokens, slots).parse(builder, diagnostics);
+        if (!diagnostics.isEmpty()) return new ParseResult(null, slots, Collections.unmodifiableList(diagnostics));
+        return new ParseResult(builder.result(), slots, Collections.emptyList());
+    }
+
+    public boolean ok() { return expr != null; }
+
+    // The AST, or null when there were errors
+    public Expr expr() { return expr; }
+
+    public SlotTable slots() { return slots; }
+
+    // The errors in the order they were found; empty when ok()
+    public List<Diagnostic> diagnostics() { return diagnostics; }
+
+    @Override
+    public String toString() {
+        return ok() ? "ok" : diagnostics.toString();
+    }
+}
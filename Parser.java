@@ -1,123 +1,362 @@
+import java.math.BigInteger;
 import java.util.*;
 
 /** Parser
  * ------
- * A recursive parser that converts a list of tokens into an AST according to
+ * A parser that converts a list of tokens into an AST according to
  * grammar rules for  arithmetic expressions:
  * 
  *   - Standard arithmetic precedence (* and / ,  + and -)
  *   - Left to right associativity for all binary operators
  *   - Unary minus 
+ *   - Variables, resolved to slots in a SlotTable
+ *
+ * The parser reads its tokens from a TokenBuffer. A List<Token> is wrapped in
+ * one, so both token representations are parsed by the same code.
+ *
+ * The tree is not built by the parser itself: it reports every node, in
+ * postfix order, to an AstSink. parse() builds the usual Expr objects with an
+ * ExprBuilder; parse(AstArena) builds into an arena of primitive arrays.
+ *
+ * The grammar is parsed without recursion: operators and open parentheses
+ * wait on an explicit stack until their operands are complete (operator
+ * precedence parsing). Nesting depth is limited only by the heap, so
+ * machine-generated inputs with millions of nested parentheses parse in
+ * linear time without a StackOverflowError.
  *
  * If the input does not match a ParseException is thrown.
+ *
+ * In diagnostics mode (parse with a list of Diagnostics) nothing is thrown.
+ * Each error is added to the list and parsing recovers: a missing operand is
+ * replaced by 0, unexpected tokens after an operand are skipped up to the
+ * next operator or closing parenthesis, and parentheses still open at the
+ * end are closed. Every error in the input is reported in one pass, at most
+ * one per position, and the first is always the one parse() would throw.
+ * The sink still receives a complete tree, which is meaningless when errors
+ * were reported.
  */
 
 public class Parser {
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
+    private final SlotTable slots;
     private int pos = 0;
 
-    public Parser(List<Token> tokens) { this.tokens = tokens; }
+    // Operators still waiting for their operands, innermost last
+    static final int UNARY = 0;
+    static final int BINARY = 1;
+    static final int GROUP = 2;
+    private int[] operators = new int[16];
+    private int pending;
+    private int openGroups;
+
+    // Told about every point where parsing could later resume (see IncrementalParser)
+    Checkpoints checkpoints;
+    // Set while resume() continues from a checkpoint instead of token 0
+    private boolean resuming;
+    // Where errors go in diagnostics mode, or null to throw them
+    private List<Diagnostic> diagnostics;
+    private int lastError = -1;
+
+    public Parser(List<Token> tokens) { this(tokens, new SlotTable()); }
+
+    public Parser(List<Token> tokens, SlotTable slots) { this(TokenBuffer.of(tokens), slots); }
+
+    public Parser(TokenBuffer tokens) { this(tokens, new SlotTable()); }
+
+    public Parser(TokenBuffer tokens, SlotTable slots) {
+        this.tokens = tokens;
+        this.slots = slots;
+    }
+
+    // The slots assigned to the variables of the parsed expression
+    public SlotTable slots() { return slots; }
 
     public Expr parse() throws ParseException {
-        Expr expr = parseExpression();
-        if (peek().type != TokenType.EOF)
-            throw new ParseException("Unexpected token '" + peek().lexeme + "' at position " + peek().position);
-        return expr;
-    }
-
-    private Expr parseExpression() throws ParseException {
-        Expr e = parseTerm();
-        while (match(TokenType.PLUS, TokenType.MINUS))
-            e = new BinaryExpr(e, previous(), parseTerm());
-        return e;
-    }
-
-    private Expr parseTerm() throws ParseException {
-        Expr e = parseFactor();
-        while (match(TokenType.STAR, TokenType.SLASH))
-            e = new BinaryExpr(e, previous(), parseFactor());
-        return e;
-    }
-
-    // Factor — handles unary operators, numbers, parentheses
-    private Expr parseFactor() throws ParseException {
-
-        if (check(TokenType.PLUS) || check(TokenType.MINUS)) {
-            Token unary = peek();
-
-            // Detect ambiguous no-space sequences like 9--2 or 8*3--3
-            if (pos >= 2) {
-                Token before = tokens.get(pos - 1);
-                Token beforeBefore = tokens.get(pos - 2);
-                
-                // Check if pattern is: NUMBER OPERATOR UNARY (like 3--2)
-                if (beforeBefore.type == TokenType.NUMBER && 
-                    (before.type == TokenType.PLUS || before.type == TokenType.MINUS ||
-                     before.type == TokenType.STAR || before.type == TokenType.SLASH)) {
-                    throw new ParseException(
-                        "Ambiguous operator sequence '" +
-                        beforeBefore.lexeme + before.lexeme + unary.lexeme +
-                        "' at position " + unary.position + ". Use parentheses or spaces for clarity."
-                    );
+        ExprBuilder builder = new ExprBuilder();
+        parse(builder);
+        return builder.result();
+    }
+
+    /**
+     * Parses into the arena and returns the id of the root node. Variables
+     * are given the slots of the arena's own SlotTable.
+     *
+     * Nodes created before a ParseException stay in the arena unused.
+     */
+    public int parse(AstArena arena) throws ParseException {
+        AstArena.Builder builder = arena.builder();
+        parse(builder);
+        return builder.result();
+    }
+
+    /**
+     * Reports the nodes of the expression to the sink, children before parents.
+     *
+     * Each call is reported as a ParseEvent and to the active PhaseRecorder.
+     * The tree is only measured for the event while the event is enabled.
+     */
+    public void parse(AstSink sink) throws ParseException {
+        ParseEvent event = PhaseRecorder.flightRecorderInitialized() ? new ParseEvent() : null;
+        if (event != null) event.begin();
+        long began = PhaseRecorder.begin();
+        AstShape shape = event != null && event.isEnabled() ? new AstShape(sink) : null;
+        int reported = diagnostics == null ? 0 : diagnostics.size();
+        Throwable failure = null;
+        try {
+            if (!resuming) {
+                pending = 0;
+                openGroups = 0;
+            }
+            parseInto(shape == null ? sink : shape);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            boolean clean = diagnostics == null || diagnostics.size() == reported;
+            PhaseRecorder.end(PhaseRecorder.Phase.PARSE, began, failure == null && clean);
+            if (shape != null && event.shouldCommit()) {
+                event.tokenCount = tokens.size();
+                event.nodeCount = shape.nodes();
+                event.depth = shape.depth();
+                event.outcome = clean ? PhaseRecorder.outcome(failure) : diagnostics.get(reported).code.name();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Parses in diagnostics mode: every error is added to the list instead
+     * of being thrown, and parsing recovers to find the rest.
+     */
+    public void parse(AstSink sink, List<Diagnostic> diagnostics) {
+        this.diagnostics = diagnostics;
+        lastError = -1;
+        try {
+            parse(sink);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Parse error thrown in diagnostics mode", e);
+        } finally {
+            this.diagnostics = null;
+        }
+    }
+
+    /**
+     * Continues parsing in diagnostics mode at the token index pos, with the
+     * given operators (as returned by operators() at a checkpoint) still
+     * pending. The sink must hold the operands it held at that checkpoint.
+     */
+    void resume(AstSink sink, List<Diagnostic> diagnostics, int pos, int[] operators) {
+        this.pos = pos;
+        this.operators = Arrays.copyOf(operators, Math.max(operators.length * 2, 16));
+        pending = operators.length;
+        openGroups = 0;
+        for (int i = 0; i < pending; i++) if (kind(operators[i]) == GROUP) openGroups++;
+        resuming = true;
+        try {
+            parse(sink, diagnostics);
+        } finally {
+            resuming = false;
+        }
+    }
+
+    /**
+     * Receives the parser's state after every binary operator, when all the
+     * tokens before position() have been consumed and an operand comes next.
+     * Parsing resumed from that state gives the same result as long as those
+     * tokens are unchanged. Returning true stops parsing there, with the
+     * operands still in the sink.
+     */
+    interface Checkpoints {
+        boolean reached(Parser parser);
+    }
+
+    // The index of the next token to read
+    int position() { return pos; }
+
+    // A copy of the pending operators, outermost first
+    int[] operators() { return Arrays.copyOf(operators, pending); }
+
+    int pendingOperators() { return pending; }
+
+    private void parseInto(AstSink sink) throws ParseException {
+        boolean expectOperand = true;
+
+        while (true) {
+            if (expectOperand) {
+                // Factor — handles unary operators, numbers, parentheses
+                if (check(TokenType.PLUS) || check(TokenType.MINUS)) {
+                    checkUnary();
+                    push(pos, UNARY);
+                    advance();
+                } else if (match(TokenType.NUMBER)) {
+                    int value = tokens.intValue(pos - 1);
+                    if (value != TokenBuffer.BIG) sink.number(value);
+                    else sink.bigNumber(new BigInteger(tokens.lexeme(pos - 1)));
+                    expectOperand = false;
+                } else if (match(TokenType.IDENTIFIER)) {
+                    String name = tokens.lexeme(pos - 1);
+                    sink.variable(name, slots.slotOf(name));
+                    expectOperand = false;
+                } else if (match(TokenType.LPAREN)) {
+                    push(pos - 1, GROUP);
+                } else {
+                    // Unrecognized token
+                    error(Diagnostic.Code.UNEXPECTED_TOKEN, tokens.start(pos), tokens.lexeme(pos));
+                    // Recovery: stand in 0 for the missing operand, and read the token as what follows it
+                    sink.number(0);
+                    expectOperand = false;
                 }
+                continue;
             }
-            
-            // Also check immediate NUMBER before unary (like 9-2 being parsed as 9 then -2)
-            if (pos >= 1) {
-                Token before = tokens.get(pos - 1);
-                if (before.type == TokenType.NUMBER) {
-                    throw new ParseException(
-                        "Ambiguous operator sequence '" +
-                        before.lexeme + unary.lexeme +
-                        "' at position " + unary.position + ". Use parentheses or spaces for clarity."
-                    );
+
+            // A factor is complete: the unary operators in front of it apply now
+            while (pending > 0 && kind(top()) == UNARY) sink.unary(tokens, index(pop()));
+
+            TokenType t = peek();
+            int precedence = precedence(t);
+            if (precedence > 0) {
+                // Left associativity: operators of the same precedence are reduced first
+                while (pending > 0 && kind(top()) == BINARY && precedence(tokens.type(index(top()))) >= precedence) {
+                    sink.binary(tokens, index(pop()));
+                }
+                push(pos, BINARY);
+                advance();
+                expectOperand = true;
+                if (checkpoints != null && checkpoints.reached(this)) return;
+            } else if (t == TokenType.RPAREN && openGroups > 0) {
+                while (kind(top()) != GROUP) sink.binary(tokens, index(pop()));
+                pop();
+                advance();
+            } else if (openGroups > 0) {
+                error(Diagnostic.Code.MISSING_PAREN, tokens.start(pos), "");
+                // Recovery: skip what cannot follow an operand, or close the groups at the end
+                if (t != TokenType.EOF) {
+                    synchronize();
+                } else {
+                    while (pending > 0) {
+                        int entry = pop();
+                        if (kind(entry) == BINARY) sink.binary(tokens, index(entry));
+                        else if (kind(entry) == UNARY) sink.unary(tokens, index(entry));
+                    }
+                    return;
                 }
+            } else if (t != TokenType.EOF) {
+                error(Diagnostic.Code.UNEXPECTED_TOKEN, tokens.start(pos), tokens.lexeme(pos));
+                synchronize();
+            } else {
+                while (pending > 0) sink.binary(tokens, index(pop()));
+                return;
             }
+        }
+    }
 
-            advance();
+    // Rejects a unary operator that directly follows an operand or another operator
+    private void checkUnary() throws ParseException {
+        int unary = pos;
 
-            // Detect double unary (--2, +-2)
-            if (check(TokenType.PLUS) || check(TokenType.MINUS)) {
-                Token second = peek();
-                throw new ParseException(
-                    "Unexpected unary operator sequence '" +
-                    unary.lexeme + second.lexeme +
-                    "' at position " + second.position + "."
-                );
+        // Detect ambiguous no-space sequences like 9--2 or 8*3--3
+        if (pos >= 2) {
+            int before = pos - 1;
+            int beforeBefore = pos - 2;
+            
+            // Check if pattern is: NUMBER OPERATOR UNARY (like 3--2)
+            if (isOperand(beforeBefore) && isOperator(before)) {
+                error(Diagnostic.Code.AMBIGUOUS_OPERATORS, tokens.start(unary),
+                    tokens.lexeme(beforeBefore) + tokens.lexeme(before) + tokens.lexeme(unary));
+                return;
+            }
+        }
+        
+        // Also check immediate NUMBER before unary (like 9-2 being parsed as 9 then -2)
+        if (pos >= 1) {
+            int before = pos - 1;
+            if (isOperand(before)) {
+                error(Diagnostic.Code.AMBIGUOUS_OPERATORS, tokens.start(unary), tokens.lexeme(before) + tokens.lexeme(unary));
+                return;
             }
+        }
 
-            return new UnaryExpr(unary, parseFactor());
+        // Detect double unary (--2, +-2)
+        TokenType next = tokens.type(unary + 1);
+        if (next == TokenType.PLUS || next == TokenType.MINUS) {
+            error(Diagnostic.Code.UNARY_SEQUENCE, tokens.start(unary + 1), tokens.lexeme(unary) + tokens.lexeme(unary + 1));
         }
+    }
 
-        // Number literal
-        if (match(TokenType.NUMBER))
-            return new NumberExpr(previous().intValue);
+    // Throws the error, or in diagnostics mode records it unless one was already recorded there
+    private void error(Diagnostic.Code code, int position, String detail) throws ParseException {
+        if (diagnostics == null) throw new ParseException(new Diagnostic(code, position, detail).message());
+        if (position == lastError) return;
+        diagnostics.add(new Diagnostic(code, position, detail));
+        lastError = position;
+    }
 
-        // Parenthesized expression
-        if (match(TokenType.LPAREN)) {
-            Expr inner = parseExpression();
-            if (!match(TokenType.RPAREN))
-                throw new ParseException("Missing ')' at position " + peek().position);
-            return inner;
+    /**
+     * Skips the current token and every following one up to a binary
+     * operator, a closing parenthesis that ends an open group, or the end.
+     * Parenthesized groups inside the skipped tokens are skipped whole.
+     */
+    private void synchronize() {
+        int depth = 0;
+        while (true) {
+            TokenType t = peek();
+            if (t == TokenType.LPAREN) depth++;
+            else if (t == TokenType.RPAREN && depth > 0) depth--;
+            advance();
+
+            t = peek();
+            if (t == TokenType.EOF) return;
+            if (depth == 0 && (precedence(t) > 0 || (t == TokenType.RPAREN && openGroups > 0))) return;
         }
+    }
+
+    private static int precedence(TokenType t) {
+        switch (t) {
+            case PLUS: case MINUS: return 1;
+            case STAR: case SLASH: return 2;
+            default: return 0;
+        }
+    }
+
+    // Pending operators are token indices tagged with what they stand for
+    private void push(int index, int kind) {
+        if (pending == operators.length) operators = Arrays.copyOf(operators, pending * 2);
+        operators[pending++] = index << 2 | kind;
+        if (kind == GROUP) openGroups++;
+    }
 
-        // Unrecognized token
-        throw new ParseException(
-            "Unexpected token '" + peek().lexeme + "' at position " + peek().position
-        );
+    private int pop() {
+        int entry = operators[--pending];
+        if (kind(entry) == GROUP) openGroups--;
+        return entry;
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType t : types) if (check(t)) { advance(); return true; }
+    private int top() { return operators[pending - 1]; }
+
+    static int kind(int entry) { return entry & 3; }
+
+    static int index(int entry) { return entry >>> 2; }
+
+    private boolean match(TokenType t) {
+        if (check(t)) { pos++; return true; }
         return false;
     }
 
-    private boolean check(TokenType t) { return peek().type == t; }
+    // Numbers and variables are both operands for the ambiguity checks
+    private boolean isOperand(int i) {
+        TokenType t = tokens.type(i);
+        return t == TokenType.NUMBER || t == TokenType.IDENTIFIER;
+    }
+
+    private boolean isOperator(int i) {
+        TokenType t = tokens.type(i);
+        return t == TokenType.PLUS || t == TokenType.MINUS || t == TokenType.STAR || t == TokenType.SLASH;
+    }
 
-    private Token advance() { pos++; return previous(); }
+    private boolean check(TokenType t) { return peek() == t; }
 
-    private Token peek() { return tokens.get(pos); }
+    private void advance() { pos++; }
 
-    private Token previous() { return tokens.get(pos - 1); }
+    private TokenType peek() { return tokens.type(pos); }
 
 }
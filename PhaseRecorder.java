@@ -0,0 +1,195 @@
+import java.lang.management.*;
+import jdk.jfr.FlightRecorder;
+import java.util.concurrent.atomic.*;
+
+/** PhaseRecorder
+ *
+ * An opt-in, in-process recorder of how long each pipeline phase takes and
+ * how much it allocates.
+ *
+ * Lexer.tokenize, Parser.parse and Evaluator.evaluate report every call to
+ * the active recorder, if there is one. Each phase keeps a latency histogram
+ * with power-of-two buckets (bucket b counts calls that took 2^b to 2^(b+1)-1
+ * nanoseconds), so percentiles are exact to within a factor of two:
+ *
+ *   PhaseRecorder recorder = PhaseRecorder.enable();
+ *   ... run expressions ...
+ *   PhaseRecorder.disable();
+ *   System.out.println(recorder);
+ *
+ *   phase       calls  errors        mean         p50         p90         p99         max   alloc/call
+ *   lex          1000       0      0.4 µs     ≤0.5 µs     ≤1.0 µs     ≤2.0 µs     12.3 µs         96 B
+ *   ...
+ *
+ * When no recorder is active, each instrumented call costs one read of a
+ * static field. The recorder itself is thread-safe, so batch workers can
+ * report to it concurrently.
+ *
+ * Allocation is measured per thread with com.sun.management.ThreadMXBean,
+ * when the JVM supports it; otherwise the column is left empty.
+ */
+public final class PhaseRecorder {
+
+    public enum Phase { LEX, PARSE, EVAL }
+
+    private static final int BUCKETS = 64;
+    private static final Phase[] PHASES = Phase.values();
+
+    private static volatile PhaseRecorder active;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(PHASES.length * BUCKETS);
+    private final AtomicLongArray calls = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray errors = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray maxNanos = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray allocatedBytes = new AtomicLongArray(PHASES.length);
+
+    /**
+     * Starts recording into a new recorder, replacing any active one,
+     * and returns it.
+     */
+    public static PhaseRecorder enable() {
+        PhaseRecorder recorder = new PhaseRecorder();
+        active = recorder;
+        return recorder;
+    }
+
+    public static void disable() { active = null; }
+
+    // The recorder calls are reported to, or null
+    public static PhaseRecorder active() { return active; }
+
+    /**
+     * Marks the start of a phase. Returns the start time to pass to end(),
+     * or 0 when no recorder is active.
+     */
+    static long begin() {
+        if (active == null) return 0;
+        if (Allocation.THREADS != null) Allocation.STARTED.get()[0] = Allocation.THREADS.getCurrentThreadAllocatedBytes();
+        return Math.max(System.nanoTime(), 1);
+    }
+
+    // Marks the end of a phase started with begin()
+    static void end(Phase phase, long began, boolean ok) {
+        if (began == 0) return;
+        PhaseRecorder recorder = active;
+        if (recorder == null) return;
+        long nanos = Math.max(System.nanoTime() - began, 0);
+        long bytes = Allocation.THREADS == null ? 0
+            : Allocation.THREADS.getCurrentThreadAllocatedBytes() - Allocation.STARTED.get()[0];
+        recorder.record(phase, nanos, bytes, ok);
+    }
+
+    /**
+     * True once Flight Recorder has been initialized, which happens when the
+     * first recording is created. The JFR event classes are only loaded after
+     * that: loading the first one registers it with Flight Recorder, which
+     * takes a few hundred milliseconds, most of the run time of a short-lived
+     * process. Until then no event could be recorded anyway.
+     */
+    static boolean flightRecorderInitialized() { return FlightRecorder.isInitialized(); }
+
+    // The outcome recorded in the JFR events: "ok", or the simple name of the exception
+    static String outcome(Throwable failure) {
+        return failure == null ? "ok" : failure.getClass().getSimpleName();
+    }
+
+    void record(Phase phase, long nanos, long bytes, boolean ok) {
+        int p = phase.ordinal();
+        histogram.incrementAndGet(p * BUCKETS + bucket(nanos));
+        calls.incrementAndGet(p);
+        if (!ok) errors.incrementAndGet(p);
+        totalNanos.addAndGet(p, nanos);
+        maxNanos.accumulateAndGet(p, nanos, Math::max);
+        allocatedBytes.addAndGet(p, bytes);
+    }
+
+    public long calls(Phase phase) { return calls.get(phase.ordinal()); }
+
+    public long errors(Phase phase) { return errors.get(phase.ordinal()); }
+
+    public long maxNanos(Phase phase) { return maxNanos.get(phase.ordinal()); }
+
+    public double meanNanos(Phase phase) {
+        long n = calls(phase);
+        return n == 0 ? 0 : (double) totalNanos.get(phase.ordinal()) / n;
+    }
+
+    // Mean bytes allocated per call, or -1 when allocation is not measured
+    public double meanAllocatedBytes(Phase phase) {
+        long n = calls(phase);
+        if (Allocation.THREADS == null) return -1;
+        return n == 0 ? 0 : (double) allocatedBytes.get(phase.ordinal()) / n;
+    }
+
+    /**
+     * An upper bound on the given percentile (0 to 100) of the phase's
+     * latency: the exclusive top of the histogram bucket it falls in,
+     * capped at the maximum seen. Returns 0 when nothing was recorded.
+     */
+    public long percentileNanos(Phase phase, double percentile) {
+        long n = calls(phase);
+        if (n == 0) return 0;
+        long rank = Math.max((long) Math.ceil(n * percentile / 100), 1);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram.get(phase.ordinal() * BUCKETS + b);
+            if (seen >= rank) return b >= 62 ? maxNanos(phase) : Math.min(1L << (b + 1), maxNanos(phase));
+        }
+        return maxNanos(phase);
+    }
+
+    // Calls per histogram bucket: bucket b counts calls of 2^b to 2^(b+1)-1 ns (bucket 0 includes 0)
+    public long[] histogram(Phase phase) {
+        long[] counts = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) counts[b] = histogram.get(phase.ordinal() * BUCKETS + b);
+        return counts;
+    }
+
+    static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-6s %10s %7s %11s %11s %11s %11s %11s %12s%n",
+            "phase", "calls", "errors", "mean", "p50", "p90", "p99", "max", "alloc/call"));
+        for (Phase phase : PHASES) {
+            double alloc = meanAllocatedBytes(phase);
+            sb.append(String.format("%-6s %10d %7d %11s %11s %11s %11s %11s %12s%n",
+                phase.name().toLowerCase(), calls(phase), errors(phase),
+                micros(meanNanos(phase)),
+                "≤" + micros(percentileNanos(phase, 50)),
+                "≤" + micros(percentileNanos(phase, 90)),
+                "≤" + micros(percentileNanos(phase, 99)),
+                micros(maxNanos(phase)),
+                alloc < 0 ? "-" : String.format("%.0f B", alloc)));
+        }
+        return sb.toString();
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1f µs", nanos / 1000);
+    }
+
+    // Loaded on first use, so the management classes are untouched until a recorder is enabled
+    private static final class Allocation {
+        static final com.sun.management.ThreadMXBean THREADS = bean();
+        // Allocated bytes of the current thread when its current phase began
+        static final ThreadLocal<long[]> STARTED = ThreadLocal.withInitial(() -> new long[1]);
+
+        private static com.sun.management.ThreadMXBean bean() {
+            try {
+                ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                if (bean instanceof com.sun.management.ThreadMXBean) {
+                    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                    if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) return threads;
+                }
+            } catch (LinkageError | RuntimeException e) {
+                // No management support: latency is still recorded
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/** ProgramLibrary
+ *
+ * A set of compiled expressions that can be saved to a file and loaded back
+ * without lexing or parsing anything.
+ *
+ *   ProgramLibrary library = ProgramLibrary.compile(formulas, true);   // parse, optimize, lower
+ *   library.writeTo(Paths.get("formulas.mexl"));
+ *
+ *   ProgramLibrary loaded = ProgramLibrary.load(Paths.get("formulas.mexl"));
+ *   int total = new StackMachine().run(loaded.program(7), bindings);
+ *
+ * Each expression is stored in its lowered form, the StackProgram, together
+ * with the names of its variables in slot order. The file layout is:
+ *
+ *   header   int magic "MEXL", short version, short flags (1 = optimized),
+ *            int expression count, int payload length, int CRC32C of payload
+ *   payload  the variable names used anywhere: count, then length and ASCII
+ *            bytes of each; then per expression: maxStack, code length in
+ *            words, the instructions (a byte opcode, followed for LOAD by
+ *            the slot and for PUSH_CONST by the zigzag-encoded constant),
+ *            and the variable count followed by an index into the names
+ *
+ * Header fields are big-endian ints and shorts; every payload number is an
+ * unsigned LEB128 varint, so small constants and slots take one byte and a
+ * typical expression a few dozen. Loading maps the file into memory, checks
+ * the magic, version and checksum, and verifies every program the way
+ * StackProgram.readFrom does, so a damaged or truncated file is rejected
+ * with an IOException instead of producing wrong results.
+ */
+public final class ProgramLibrary {
+    private static final int MAGIC = 0x4D45584C;   // "MEXL"
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 + 2 + 2 + 4 + 4 + 4;
+    private static final int OPTIMIZED = 1;
+
+    private final StackProgram[] programs;
+    private final String[][] variables;
+    private final boolean optimized;
+
+    private ProgramLibrary(StackProgram[] programs, String[][] variables, boolean optimized) {
+        this.programs = programs;
+        this.variables = variables;
+        this.optimized = optimized;
+    }
+
+    /**
+     * Parses every source, optionally runs it through the Optimizer, and
+     * lowers it to a StackProgram. Each expression gets its own slots.
+     */
+    public static ProgramLibrary compile(List<String> sources, boolean optimize) throws ParseException {
+        StackProgram[] programs = new StackProgram[sources.size()];
+        String[][] variables = new String[sources.size()][];
+        TokenBuffer tokens = new TokenBuffer();
+        Optimizer optimizer = new Optimizer();
+        StackCompiler compiler = new StackCompiler();
+        for (int i = 0; i < programs.length; i++) {
+            new Lexer(sources.get(i)).tokenize(tokens);
+            Parser parser = new Parser(tokens);
+            Expr expr = parser.parse();
+            if (optimize) expr = optimizer.optimize(expr);
+            programs[i] = compiler.compile(expr);
+            variables[i] = new String[parser.slots().size()];
+            for (int s = 0; s < variables[i].length; s++) variables[i][s] = parser.slots().name(s);
+        }
+        return new ProgramLibrary(programs, variables, optimize);
+    }
+
+    public int size() { return programs.length; }
+
+    public boolean optimized() { return optimized; }
+
+    public StackProgram program(int i) { return programs[i]; }
+
+    // The variable names of expression i, in slot order
+    public List<String> variables(int i) { return Collections.unmodifiableList(Arrays.asList(variables[i])); }
+
+    public void writeTo(Path file) throws IOException {
+        Map<String, Integer> names = new LinkedHashMap<>();
+        for (String[] vars : variables) for (String name : vars) names.putIfAbsent(name, names.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        writeVarint(payload, names.size());
+        for (String name : names.keySet()) {
+            byte[] ascii = name.getBytes(StandardCharsets.US_ASCII);
+            writeVarint(payload, ascii.length);
+            payload.write(ascii);
+        }
+        for (int i = 0; i < programs.length; i++) {
+            int[] code = programs[i].code;
+            writeVarint(payload, programs[i].maxStack);
+            writeVarint(payload, code.length);
+            for (int pc = 0; pc < code.length; pc++) {
+                int op = code[pc];
+                payload.writeByte(op);
+                if (op == StackProgram.LOAD) writeVarint(payload, code[++pc]);
+                else if (op == StackProgram.PUSH_CONST) writeVarint(payload, code[++pc] << 1 ^ code[pc] >> 31);
+            }
+            writeVarint(payload, variables[i].length);
+            for (String name : variables[i]) writeVarint(payload, names.get(name));
+        }
+        payload.flush();
+        if (bytes.size() > Integer.MAX_VALUE - HEADER) throw new IOException("Library larger than 2 GB");
+
+        CRC32C crc = new CRC32C();
+        byte[] body = bytes.toByteArray();
+        crc.update(body);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(optimized ? OPTIMIZED : 0);
+            out.writeInt(programs.length);
+            out.writeInt(body.length);
+            out.writeInt((int) crc.getValue());
+            out.write(body);
+        }
+    }
+
+    public static ProgramLibrary load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER) throw new IOException("Not a program library: " + file);
+            if (size > Integer.MAX_VALUE) throw new IOException("Library larger than 2 GB: " + file);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return read(map);
+        }
+    }
+
+    private static ProgramLibrary read(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC) throw new IOException("Not a program library");
+        int version = in.getShort() & 0xFFFF;
+        if (version != VERSION) throw new IOException("Unsupported program library version " + version);
+        int flags = in.getShort() & 0xFFFF;
+        int count = in.getInt();
+        int length = in.getInt();
+        int checksum = in.getInt();
+        if (count < 0 || length < 0 || length != in.remaining()) throw new IOException("Corrupt program library: bad length");
+
+        CRC32C crc = new CRC32C();
+        crc.update(in.duplicate());
+        if ((int) crc.getValue() != checksum) throw new IOException("Corrupt program library: checksum mismatch");
+
+        StackProgram[] programs = new StackProgram[count];
+        String[][] variables = new String[count][];
+        try {
+            String[] names = new String[checkedCount(in, in.remaining())];
+            for (int n = 0; n < names.length; n++) {
+                byte[] ascii = new byte[checkedCount(in, in.remaining())];
+                in.get(ascii);
+                names[n] = new String(ascii, StandardCharsets.US_ASCII);
+            }
+
+            for (int i = 0; i < count; i++) {
+                int maxStack = readVarint(in);
+                // Every instruction takes at least one byte
+                int[] code = new int[checkedCount(in, 2 * in.remaining())];
+                for (int pc = 0; pc < code.length; pc++) {
+                    int op = in.get();
+                    code[pc] = op;
+                    if (op == StackProgram.LOAD) {
+                        if (++pc < code.length) code[pc] = readVarint(in);
+                    } else if (op == StackProgram.PUSH_CONST) {
+                        if (++pc < code.length) {
+                            int zigzag = readVarint(in);
+                            code[pc] = zigzag >>> 1 ^ -(zigzag & 1);
+                        }
+                    }
+                }
+                if (StackProgram.computeMaxStack(code) != maxStack)
+                    throw new IOException("Corrupt program library: bad program in expression " + i);
+
+                String[] vars = new String[checkedCount(in, in.remaining())];
+                for (int s = 0; s < vars.length; s++) {
+                    int name = readVarint(in);
+                    if (name < 0 || name >= names.length) throw new IOException("Corrupt program library: unknown name in expression " + i);
+                    vars[s] = names[name];
+                }
+                for (int pc = 0; pc < code.length; pc++) {
+                    int op = code[pc];
+                    if (op != StackProgram.LOAD && op != StackProgram.PUSH_CONST) continue;
+                    if (op == StackProgram.LOAD && code[pc + 1] >= vars.length)
+                        throw new IOException("Corrupt program library: unknown slot in expression " + i);
+                    pc++;
+                }
+                programs[i] = new StackProgram(code, maxStack, vars);
+                variables[i] = vars;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt program library: truncated");
+        }
+        if (in.hasRemaining()) throw new IOException("Corrupt program library: trailing bytes");
+        return new ProgramLibrary(programs, variables, (flags & OPTIMIZED) != 0);
+    }
+
+    private static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Corrupt program library: bad number");
+    }
+
+    // A count read from the file, which can be no larger than the data that is left allows
+    private static int checkedCount(ByteBuffer in, int limit) throws IOException {
+        int count = readVarint(in);
+        if (count < 0 || count > limit) throw new IOException("Corrupt program library: bad count");
+        return count;
+    }
+}
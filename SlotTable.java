@@ -0,0 +1,53 @@
+import java.util.*;
+
+/** SlotTable
+ *
+ * Assigns every variable name a fixed integer slot.
+ *
+ * Names are resolved once, while parsing, so evaluation only needs a plain
+ * int[] of values indexed by slot (no map lookups, no boxing).
+ *
+ * Example:
+ *   Input: "x * (y + x)"
+ *
+ *   Slots:
+ *     x → 0
+ *     y → 1
+ *
+ *   Evaluating with bindings {3, 4} computes 3 * (4 + 3) = 21.
+ *
+ * The same table can be shared by several parsers so that a group of
+ * expressions agrees on the slot of each name.
+ */
+public class SlotTable {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // Returns the slot for the name, assigning the next free slot if it is new
+    public int slotOf(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        int next = names.size();
+        slots.put(name, next);
+        names.add(name);
+        return next;
+    }
+
+    // Returns the slot for the name, or -1 if it has not been seen
+    public int lookup(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public String name(int slot) { return names.get(slot); }
+
+    // Forgets every name whose slot is size or more
+    void truncate(int size) {
+        while (names.size() > size) slots.remove(names.remove(names.size() - 1));
+    }
+
+    public int size() { return names.size(); }
+
+    @Override
+    public String toString() { return names.toString(); }
+}
@@ -0,0 +1,88 @@
+import java.util.*;
+
+/** StackCompiler
+ *
+ * Lowers an AST into a StackProgram.
+ *
+ * The tree is visited in post-order (left, right, operator), which is exactly
+ * the order a stack machine needs:
+ *   - a number pushes its value
+ *   - a variable loads the value bound to its slot
+ *   - an operator pops its operands and pushes the result
+ *
+ * Unary plus does not change the value, so it produces no instruction.
+ */
+public class StackCompiler {
+    private int[] code = new int[16];
+    private int length;
+    private int depth;
+    private int maxStack;
+    private String[] names;
+
+    public StackProgram compile(Expr e) {
+        code = new int[16];
+        length = 0;
+        depth = 0;
+        maxStack = 0;
+        names = new String[0];
+
+        emit(e);
+
+        int[] trimmed = new int[length];
+        System.arraycopy(code, 0, trimmed, 0, length);
+        return new StackProgram(trimmed, maxStack, names);
+    }
+
+    private void emit(Expr e) {
+        if (e instanceof NumberExpr) {
+            op(StackProgram.PUSH_CONST, 1);
+            word(((NumberExpr) e).value);
+            return;
+        }
+
+        if (e instanceof VariableExpr) {
+            VariableExpr v = (VariableExpr) e;
+            op(StackProgram.LOAD, 1);
+            word(v.slot);
+            if (v.slot >= names.length) names = Arrays.copyOf(names, v.slot + 1);
+            names[v.slot] = v.name;
+            return;
+        }
+
+        if (e instanceof UnaryExpr) {
+            UnaryExpr u = (UnaryExpr) e;
+            emit(u.right);
+            if (u.operator.type == TokenType.MINUS) op(StackProgram.NEG, 0);
+            return;
+        }
+
+        if (e instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) e;
+            emit(b.left);
+            emit(b.right);
+            switch (b.operator.type) {
+                case PLUS: op(StackProgram.ADD, -1); return;
+                case MINUS: op(StackProgram.SUB, -1); return;
+                case STAR: op(StackProgram.MUL, -1); return;
+                case SLASH: op(StackProgram.DIV, -1); return;
+                default: break;
+            }
+        }
+        throw new RuntimeException("Bad expression");
+    }
+
+    private void op(int opcode, int stackDelta) {
+        word(opcode);
+        depth += stackDelta;
+        if (depth > maxStack) maxStack = depth;
+    }
+
+    private void word(int w) {
+        if (length == code.length) {
+            int[] grown = new int[length * 2];
+            System.arraycopy(code, 0, grown, 0, length);
+            code = grown;
+        }
+        code[length++] = w;
+    }
+}
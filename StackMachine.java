@@ -0,0 +1,54 @@
+/** StackMachine
+ *
+ * Runs a StackProgram in a single loop, without recursion.
+ *
+ * The operand stack is a plain int[] that is only reallocated when a program
+ * needs a deeper stack than any program run before it, so evaluating the same
+ * program repeatedly allocates nothing.
+ *
+ * Arithmetic follows the Evaluator exactly: overflow wraps around and
+ * division by zero throws ArithmeticException.
+ *
+ * Variables are read from the bindings array. A LOAD of a slot beyond its end
+ * throws the Evaluator's "Unbound variable" error, so an error earlier in the
+ * program still wins as it does in the Evaluator's walk.
+ *
+ * A StackMachine holds mutable state and must not be shared between threads.
+ */
+public class StackMachine {
+    private static final int[] NO_SLOTS = new int[0];
+
+    private int[] stack = new int[16];
+
+    public int run(StackProgram program) {
+        return run(program, NO_SLOTS);
+    }
+
+    public int run(StackProgram program, int[] slots) {
+        if (stack.length < program.maxStack) stack = new int[program.maxStack];
+
+        final int[] code = program.code;
+        final int[] s = stack;
+        int sp = -1;
+        int pc = 0;
+
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case StackProgram.PUSH_CONST: s[++sp] = code[pc++]; break;
+                case StackProgram.LOAD: {
+                    int slot = code[pc++];
+                    if (slot >= slots.length) throw new RuntimeException("Unbound variable '" + program.name(slot) + "'");
+                    s[++sp] = slots[slot];
+                    break;
+                }
+                case StackProgram.NEG: s[sp] = -s[sp]; break;
+                case StackProgram.ADD: s[sp - 1] = s[sp - 1] + s[sp]; sp--; break;
+                case StackProgram.SUB: s[sp - 1] = s[sp - 1] - s[sp]; sp--; break;
+                case StackProgram.MUL: s[sp - 1] = s[sp - 1] * s[sp]; sp--; break;
+                case StackProgram.DIV: s[sp - 1] = Evaluator.divide(s[sp - 1], s[sp]); sp--; break;
+                default: throw new RuntimeException("Bad instruction at " + (pc - 1));
+            }
+        }
+        return s[sp];
+    }
+}
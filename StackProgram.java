@@ -0,0 +1,160 @@
+import java.io.*;
+
+/** StackProgram
+ *
+ * A flat instruction stream for a stack machine, produced by the StackCompiler.
+ *
+ * Instructions are stored in a single int[]: each opcode is followed by its
+ * operand when it has one.
+ *
+ * Example:
+ *   (3 + 2) * 5   →   PUSH_CONST 3
+ *                     PUSH_CONST 2
+ *                     ADD
+ *                     PUSH_CONST 5
+ *                     MUL
+ *
+ * Variables are loaded from the bindings array with LOAD <slot>. The program
+ * keeps the name of each slot it loads, so a missing binding is reported as
+ * the Evaluator reports it, and slotsUsed, one more than the highest slot
+ * loaded, which is how long the bindings array must be.
+ *
+ * maxStack is the deepest the operand stack gets while running the program,
+ * so the StackMachine can allocate its stack once up front.
+ *
+ * Programs can be written to and read back from a DataOutput / DataInput.
+ * Reading verifies the instruction stream so a corrupt program can never
+ * under- or overflow the operand stack. Version 2 added LOAD and the slot
+ * names; version 1 programs are rejected.
+ */
+public final class StackProgram {
+
+    // Opcodes
+    public static final int PUSH_CONST = 0;
+    public static final int NEG = 1;
+    public static final int ADD = 2;
+    public static final int SUB = 3;
+    public static final int MUL = 4;
+    public static final int DIV = 5;
+    public static final int LOAD = 6;
+
+    private static final int MAGIC = 0x4D455850;   // "MEXP"
+    private static final int VERSION = 2;
+    private static final String[] NO_NAMES = new String[0];
+
+    public final int[] code;
+    public final int maxStack;
+    // One more than the highest slot the program loads
+    public final int slotsUsed;
+    // The variable name of each slot, null for a slot the program does not load
+    private final String[] names;
+
+    public StackProgram(int[] code, int maxStack) {
+        this(code, maxStack, NO_NAMES);
+    }
+
+    public StackProgram(int[] code, int maxStack, String[] names) {
+        this.code = code;
+        this.maxStack = maxStack;
+        this.names = names;
+        int used = 0;
+        for (int pc = 0; pc < code.length - 1; pc++) {
+            if (code[pc] == LOAD) used = Math.max(used, code[pc + 1] + 1);
+            if (code[pc] == LOAD || code[pc] == PUSH_CONST) pc++;
+        }
+        this.slotsUsed = used;
+    }
+
+    // The name of the variable in the slot, or "$<slot>" if the program was built without names
+    public String name(int slot) {
+        return slot < names.length && names[slot] != null ? names[slot] : "$" + slot;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(maxStack);
+        out.writeInt(code.length);
+        for (int word : code) out.writeInt(word);
+        out.writeInt(slotsUsed);
+        for (int slot = 0; slot < slotsUsed; slot++) out.writeUTF(slot < names.length && names[slot] != null ? names[slot] : "");
+    }
+
+    public static StackProgram readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a stack program");
+        int version = in.readUnsignedShort();
+        if (version != VERSION) throw new IOException("Unsupported stack program version " + version);
+
+        int maxStack = in.readInt();
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Corrupt stack program: negative length");
+        int[] code = new int[length];
+        for (int i = 0; i < length; i++) code[i] = in.readInt();
+
+        if (computeMaxStack(code) != maxStack)
+            throw new IOException("Corrupt stack program: stack depth mismatch");
+        StackProgram program = new StackProgram(code, maxStack);
+        if (in.readInt() != program.slotsUsed) throw new IOException("Corrupt stack program: slot count mismatch");
+        String[] names = new String[program.slotsUsed];
+        for (int slot = 0; slot < names.length; slot++) {
+            String name = in.readUTF();
+            names[slot] = name.isEmpty() ? null : name;
+        }
+        return new StackProgram(code, maxStack, names);
+    }
+
+    /**
+     * Walks the instructions checking that every one is valid, and returns the
+     * maximum stack depth. The program must leave exactly one value behind.
+     */
+    static int computeMaxStack(int[] code) throws IOException {
+        int depth = 0;
+        int max = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case PUSH_CONST:
+                case LOAD:
+                    if (pc >= code.length) throw new IOException("Corrupt stack program: missing operand at " + (pc - 1));
+                    if (op == LOAD && code[pc] < 0) throw new IOException("Corrupt stack program: negative slot at " + (pc - 1));
+                    pc++;
+                    depth++;
+                    break;
+                case NEG:
+                    if (depth < 1) throw new IOException("Corrupt stack program: stack underflow at " + (pc - 1));
+                    break;
+                case ADD: case SUB: case MUL: case DIV:
+                    if (depth < 2) throw new IOException("Corrupt stack program: stack underflow at " + (pc - 1));
+                    depth--;
+                    break;
+                default:
+                    throw new IOException("Corrupt stack program: bad opcode " + op + " at " + (pc - 1));
+            }
+            if (depth > max) max = depth;
+        }
+        if (depth != 1) throw new IOException("Corrupt stack program: leaves " + depth + " values on the stack");
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case PUSH_CONST: sb.append("PUSH_CONST ").append(code[pc++]); break;
+                case LOAD: sb.append("LOAD ").append(code[pc++]); break;
+                case NEG: sb.append("NEG"); break;
+                case ADD: sb.append("ADD"); break;
+                case SUB: sb.append("SUB"); break;
+                case MUL: sb.append("MUL"); break;
+                case DIV: sb.append("DIV"); break;
+                default: sb.append("?").append(op); break;
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
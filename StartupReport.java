@@ -0,0 +1,95 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/** StartupReport
+ *
+ * Measures how long a short-lived MiniExpressionCompiler process takes, from
+ * launching the JVM to its exit, with and without an AppCDS archive.
+ *
+ *   java -cp mini-expression-compiler.jar StartupReport mini-expression-compiler.jar mini-expression-compiler.jsa
+ *
+ *   2 + 3 * 4 with --quiet, 20 launches each     median        min   classes (from CDS)
+ *   cold (-Xshare:off)                         156.5 ms   138.5 ms       579 (0)
+ *   JDK archive (default)                      115.3 ms    96.5 ms       579 (545)
+ *   AppCDS archive                             101.6 ms    82.0 ms       511 (507)
+ *   AppCDS archive, C1 only                     83.1 ms    71.3 ms       511 (507)
+ *
+ * The archive is the one "mvn -Pstartup package" dumps at the end of a
+ * training run (MiniExpressionCompiler --train) with
+ * -XX:ArchiveClassesAtExit. It holds the application classes and the JDK
+ * classes they use, already parsed and verified, so a launch maps them
+ * instead of loading them. The JVM must be started with the same class path
+ * the archive was dumped with, here the jar alone.
+ *
+ * Each configuration is launched a few times first to warm the file cache,
+ * then timed. Every launch must print the expected result; the classes
+ * column comes from one extra launch with -Xlog:class+load.
+ */
+public class StartupReport {
+    private static final String INPUT = "2 + 3 * 4";
+    private static final String EXPECTED = "14";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: StartupReport <jar> <archive> [launches]");
+            return;
+        }
+        String jar = args[0];
+        String archive = args[1];
+        int launches = args.length == 3 ? Integer.parseInt(args[2]) : 20;
+        if (!Files.isRegularFile(Paths.get(archive))) {
+            System.out.println("Error: No archive at " + archive + " (build it with mvn -Pstartup package)");
+            return;
+        }
+
+        String[][] configurations = {
+            { "cold (-Xshare:off)", "-Xshare:off" },
+            { "JDK archive (default)" },
+            { "AppCDS archive", "-XX:SharedArchiveFile=" + archive },
+            { "AppCDS archive, C1 only", "-XX:SharedArchiveFile=" + archive, "-XX:TieredStopAtLevel=1" },
+        };
+        System.out.printf("%-40s %10s %10s   %s%n", INPUT + " with --quiet, " + launches + " launches each",
+            "median", "min", "classes (from CDS)");
+        for (String[] configuration : configurations) {
+            List<String> options = Arrays.asList(configuration).subList(1, configuration.length);
+            for (int i = 0; i < 3; i++) launch(jar, options);
+            long[] times = new long[launches];
+            for (int i = 0; i < launches; i++) times[i] = launch(jar, options);
+            Arrays.sort(times);
+
+            Path log = Files.createTempFile("classes", ".log");
+            List<String> logged = new ArrayList<>(options);
+            logged.add("-Xlog:class+load:file=" + log);
+            launch(jar, logged);
+            List<String> lines = Files.readAllLines(log);
+            Files.delete(log);
+            long shared = lines.stream().filter(line -> line.contains("shared objects file")).count();
+
+            System.out.printf("%-40s %7.1f ms %7.1f ms   %7d (%d)%n", configuration[0],
+                times[launches / 2] / 1e6, times[0] / 1e6, lines.size(), shared);
+        }
+    }
+
+    // Runs the compiler on INPUT once, returning the wall time in nanoseconds
+    private static long launch(String jar, List<String> options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.addAll(Arrays.asList("-cp", jar, "MiniExpressionCompiler", "--quiet"));
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write((INPUT + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        int status = process.waitFor();
+        long elapsed = System.nanoTime() - start;
+        if (status != 0 || !output.equals(EXPECTED)) {
+            throw new IllegalStateException("Launch with " + options + " printed \"" + output + "\" (exit status " + status + ")");
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** StreamingEvaluator
+ *
+ * Evaluates one expression as it is read, without building tokens or an AST.
+ *
+ *   try (FileChannel in = FileChannel.open(Paths.get("generated.txt"))) {
+ *       int result = new StreamingEvaluator().evaluate(in);
+ *   }
+ *
+ * Characters are read through a fixed-size buffer and lexed one token at a
+ * time into a window of four: the two before the current token, the current
+ * one and the next. Tokens go straight into an operator precedence evaluator
+ * with two int stacks, one of operand values and one of pending operators and
+ * open parentheses, so memory grows with the nesting depth of the expression
+ * (and the length of its longest token), never with its length.
+ *
+ * The result and every error are exactly those of Lexer, Parser and Evaluator
+ * run one after the other on the whole input, including which error wins
+ * when there are several: a lexical error anywhere comes first, then the
+ * first parse error, then the first evaluation error. After a parse error
+ * the rest of the input is only lexed; after an evaluation error it is
+ * still parsed, but no longer evaluated. Error positions are character
+ * offsets, counted in a long so inputs beyond 2 GB report them correctly.
+ *
+ * A StreamingEvaluator holds mutable state and must not be shared between threads.
+ */
+public class StreamingEvaluator {
+    public static final int BUFFER = 1 << 16;
+
+    private static final int EOF = -1;
+
+    // Kinds of pending operator entries, as in the Parser
+    private static final int UNARY = 0;
+    private static final int BINARY = 1;
+    private static final int GROUP = 2;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final char[] buffer = new char[BUFFER];
+    private Reader reader;
+    private int next;
+    private int limit;
+    // Offset in the input of buffer[0]
+    private long offset;
+
+    // Token i of the input is held in slot i & 3 while it is in the window
+    private final TokenType[] type = new TokenType[4];
+    private final long[] start = new long[4];
+    private final int[] value = new int[4];
+    private final StringBuilder[] text = { new StringBuilder(), new StringBuilder(), new StringBuilder(), new StringBuilder() };
+    private long pos;
+
+    private int[] operands = new int[16];
+    private int depth;
+    // Pending operators as (operator type ordinal << 2 | kind), innermost last
+    private int[] operators = new int[16];
+    private int pending;
+    private int openGroups;
+
+    private SlotTable slots;
+    private int[] bindings;
+    private RuntimeException evalFailure;
+
+    public int evaluate(Reader in) throws ParseException, IOException {
+        return evaluate(in, new SlotTable(), new int[0]);
+    }
+
+    public int evaluate(ReadableByteChannel in) throws ParseException, IOException {
+        return evaluate(in, new SlotTable(), new int[0]);
+    }
+
+    // Reads the channel as UTF-8
+    public int evaluate(ReadableByteChannel in, SlotTable slots, int[] bindings) throws ParseException, IOException {
+        return evaluate(Channels.newReader(in, StandardCharsets.UTF_8.newDecoder(), BUFFER), slots, bindings);
+    }
+
+    /**
+     * Evaluates the whole input as one expression. Variables are given slots
+     * in the table, as the Parser would, and take their values from bindings.
+     * The reader is read to its end but not closed.
+     */
+    public int evaluate(Reader in, SlotTable slots, int[] bindings) throws ParseException, IOException {
+        this.reader = in;
+        this.slots = slots;
+        this.bindings = bindings;
+        next = 0;
+        limit = 0;
+        offset = 0;
+        pos = 0;
+        depth = 0;
+        pending = 0;
+        openGroups = 0;
+        evalFailure = null;
+        try {
+            lex(0);
+            lex(1);
+            try {
+                parse();
+            } catch (ParseException e) {
+                // The Lexer would have reported a later invalid character before the parser started
+                while (type(pos + 1) != TokenType.EOF) {
+                    pos++;
+                    lex(pos + 1);
+                }
+                throw e;
+            }
+            if (evalFailure != null) throw evalFailure;
+            return operands[0];
+        } finally {
+            reader = null;
+            this.slots = null;
+            this.bindings = null;
+        }
+    }
+
+    private void parse() throws ParseException, IOException {
+        boolean expectOperand = true;
+
+        while (true) {
+            TokenType t = type(pos);
+            if (expectOperand) {
+                if (t == TokenType.PLUS || t == TokenType.MINUS) {
+                    checkUnary();
+                    push(t, UNARY);
+                } else if (t == TokenType.NUMBER) {
+                    operand(value[(int) pos & 3]);
+                    expectOperand = false;
+                } else if (t == TokenType.IDENTIFIER) {
+                    variable(text[(int) pos & 3].toString());
+                    expectOperand = false;
+                } else if (t == TokenType.LPAREN) {
+                    push(t, GROUP);
+                } else {
+                    throw error(Diagnostic.Code.UNEXPECTED_TOKEN, start(pos), lexeme(pos));
+                }
+                advance();
+                continue;
+            }
+
+            // A factor is complete: the unary operators in front of it apply now
+            while (pending > 0 && kind(top()) == UNARY) unary(op(pop()));
+
+            int precedence = precedence(t);
+            if (precedence > 0) {
+                // Left associativity: operators of the same precedence are reduced first
+                while (pending > 0 && kind(top()) == BINARY && precedence(op(top())) >= precedence) binary(op(pop()));
+                push(t, BINARY);
+                advance();
+                expectOperand = true;
+            } else if (t == TokenType.RPAREN && openGroups > 0) {
+                while (kind(top()) != GROUP) binary(op(pop()));
+                pop();
+                advance();
+            } else if (openGroups > 0) {
+                throw error(Diagnostic.Code.MISSING_PAREN, start(pos), "");
+            } else if (t != TokenType.EOF) {
+                throw error(Diagnostic.Code.UNEXPECTED_TOKEN, start(pos), lexeme(pos));
+            } else {
+                while (pending > 0) binary(op(pop()));
+                return;
+            }
+        }
+    }
+
+    // The Parser's checks for a unary operator, on the tokens around it
+    private void checkUnary() throws ParseException {
+        if (pos >= 2 && isOperand(pos - 2) && isOperator(pos - 1)) {
+            throw error(Diagnostic.Code.AMBIGUOUS_OPERATORS, start(pos), lexeme(pos - 2) + lexeme(pos - 1) + lexeme(pos));
+        }
+        if (pos >= 1 && isOperand(pos - 1)) {
+            throw error(Diagnostic.Code.AMBIGUOUS_OPERATORS, start(pos), lexeme(pos - 1) + lexeme(pos));
+        }
+        TokenType next = type(pos + 1);
+        if (next == TokenType.PLUS || next == TokenType.MINUS) {
+            throw error(Diagnostic.Code.UNARY_SEQUENCE, start(pos + 1), lexeme(pos) + lexeme(pos + 1));
+        }
+    }
+
+    private static ParseException error(Diagnostic.Code code, long position, String detail) {
+        return new ParseException(Diagnostic.message(code, position, detail));
+    }
+
+    // ----- Evaluation -----
+
+    private void operand(int v) {
+        if (depth == operands.length) operands = Arrays.copyOf(operands, depth * 2);
+        operands[depth++] = v;
+    }
+
+    private void variable(String name) {
+        int slot = slots.slotOf(name);
+        if (slot < bindings.length) {
+            operand(bindings[slot]);
+        } else {
+            if (evalFailure == null) evalFailure = new RuntimeException("Unbound variable '" + name + "'");
+            operand(0);
+        }
+    }
+
+    private void unary(TokenType op) {
+        if (op == TokenType.MINUS) operands[depth - 1] = -operands[depth - 1];
+    }
+
+    private void binary(TokenType op) {
+        int r = operands[--depth];
+        int l = operands[depth - 1];
+        if (op == TokenType.SLASH && r == 0) {
+            // The Evaluator stops here; parsing carries on in case a parse error comes later
+            if (evalFailure == null) evalFailure = new ArithmeticException("/ by zero");
+            operands[depth - 1] = 0;
+        } else {
+            operands[depth - 1] = Evaluator.apply(op, l, r);
+        }
+    }
+
+    private void push(TokenType op, int kind) {
+        if (pending == operators.length) operators = Arrays.copyOf(operators, pending * 2);
+        operators[pending++] = op.ordinal() << 2 | kind;
+        if (kind == GROUP) openGroups++;
+    }
+
+    private int pop() {
+        int entry = operators[--pending];
+        if (kind(entry) == GROUP) openGroups--;
+        return entry;
+    }
+
+    private int top() { return operators[pending - 1]; }
+
+    private static int kind(int entry) { return entry & 3; }
+
+    private static TokenType op(int entry) { return TYPES[entry >>> 2]; }
+
+    private static int precedence(TokenType t) {
+        switch (t) {
+            case PLUS: case MINUS: return 1;
+            case STAR: case SLASH: return 2;
+            default: return 0;
+        }
+    }
+
+    // ----- The token window -----
+
+    // Moves to the next token, lexing the one after it
+    private void advance() throws IOException {
+        pos++;
+        lex(pos + 1);
+    }
+
+    private TokenType type(long i) { return type[(int) i & 3]; }
+
+    private long start(long i) { return start[(int) i & 3]; }
+
+    private String lexeme(long i) {
+        switch (type(i)) {
+            case NUMBER: case IDENTIFIER: return text[(int) i & 3].toString();
+            case PLUS: return "+";
+            case MINUS: return "-";
+            case STAR: return "*";
+            case SLASH: return "/";
+            case LPAREN: return "(";
+            case RPAREN: return ")";
+            default: return "";
+        }
+    }
+
+    private boolean isOperand(long i) {
+        TokenType t = type(i);
+        return t == TokenType.NUMBER || t == TokenType.IDENTIFIER;
+    }
+
+    private boolean isOperator(long i) {
+        TokenType t = type(i);
+        return t == TokenType.PLUS || t == TokenType.MINUS || t == TokenType.STAR || t == TokenType.SLASH;
+    }
+
+    /**
+     * Lexes token i into its slot, with the same rules and errors as the
+     * Lexer. Once the end is reached every further token is EOF.
+     */
+    private void lex(long i) throws IOException {
+        int slot = (int) i & 3;
+        if (i > 0 && type[(int) (i - 1) & 3] == TokenType.EOF) {
+            type[slot] = TokenType.EOF;
+            start[slot] = start[(int) (i - 1) & 3];
+            return;
+        }
+        int c;
+        while ((c = peek()) != EOF && Character.isWhitespace((char) c)) next++;
+
+        start[slot] = offset + next;
+        if (c == EOF) {
+            type[slot] = TokenType.EOF;
+        } else if (Character.isDigit((char) c)) {
+            number(slot);
+        } else if (isIdentifierStart((char) c)) {
+            StringBuilder name = text[slot];
+            name.setLength(0);
+            while ((c = peek()) != EOF && isIdentifierPart((char) c)) {
+                name.append((char) c);
+                next++;
+            }
+            type[slot] = TokenType.IDENTIFIER;
+        } else {
+            switch (c) {
+                case '+': type[slot] = TokenType.PLUS; break;
+                case '-': type[slot] = TokenType.MINUS; break;
+                case '*': type[slot] = TokenType.STAR; break;
+                case '/': type[slot] = TokenType.SLASH; break;
+                case '(': type[slot] = TokenType.LPAREN; break;
+                case ')': type[slot] = TokenType.RPAREN; break;
+                default:
+                    throw new RuntimeException(Diagnostic.message(Diagnostic.Code.UNEXPECTED_CHARACTER,
+                        start[slot], String.valueOf((char) c)));
+            }
+            next++;
+        }
+    }
+
+    // Reads an integer literal, keeping its digits for error messages
+    private void number(int slot) throws IOException {
+        StringBuilder digits = text[slot];
+        digits.setLength(0);
+        long v = 0;
+        int c;
+        while ((c = peek()) != EOF && Character.isDigit((char) c)) {
+            digits.append((char) c);
+            next++;
+            if (v <= Integer.MAX_VALUE) v = v * 10 + Character.digit((char) c, 10);
+        }
+        // Reported with parseInt's exception and message, as the Lexer does
+        if (v > Integer.MAX_VALUE) Integer.parseInt(digits.toString());
+        type[slot] = TokenType.NUMBER;
+        value[slot] = (int) v;
+    }
+
+    // The next character without consuming it, or EOF
+    private int peek() throws IOException {
+        if (next == limit) {
+            offset += limit;
+            next = 0;
+            limit = 0;
+            int n;
+            while ((n = reader.read(buffer, 0, buffer.length)) == 0) { }
+            if (n < 0) return EOF;
+            limit = n;
+        }
+        return buffer[next];
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+}
@@ -1,5 +1,15 @@
 
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.*;
 
 public class TestRunner {
     private static int passed = 0;
@@ -29,6 +39,75 @@ public class TestRunner {
         // Edge Cases
         testEdgeCases();
         
+        // Bytecode Compiler
+        testBytecodeCompiler();
+        
+        // Stack Machine
+        testStackMachine();
+        
+        // Variables
+        testVariables();
+        
+        // Token Buffer
+        testTokenBuffer();
+        
+        // Bulk Evaluation
+        testBulkEvaluator();
+        
+        // Batch Evaluation
+        testBatchEvaluator();
+        
+        // Expression Cache
+        testExpressionCache();
+        
+        // Optimizer
+        testOptimizer();
+        
+        // AST Arena
+        testAstArena();
+        
+        // Deep Nesting
+        testDeepNesting();
+        
+        // Instrumentation
+        testInstrumentation();
+        
+        // Expression Server
+        testExpressionServer();
+        
+        // Incremental Parsing
+        testIncrementalParser();
+        
+        // Exact Arithmetic
+        testExactArithmetic();
+        
+        // Parallel Evaluation
+        testParallelEvaluator();
+        
+        // Column Evaluation
+        testColumnEvaluator();
+        
+        // Diagnostics
+        testDiagnostics();
+        
+        // Program Library
+        testProgramLibrary();
+        
+        // Streaming Evaluation
+        testStreamingEvaluator();
+        
+        // Self-Specializing Nodes
+        testNodeTree();
+        
+        // AST Printing
+        testAstPrinter();
+        
+        // Shared Subexpressions
+        testExpressionDag();
+        
+        // Incremental Evaluation
+        testIncrementalEvaluator();
+        
         // Print Summary
         System.out.println("╔════════════════════════════════════════════════════════════╗");
         System.out.println("║                    TEST SUMMARY                            ║");
@@ -387,6 +466,3024 @@ public class TestRunner {
         }
     }
     
+    // ===== BYTECODE COMPILER TESTS =====
+    static void testBytecodeCompiler() {
+        printHeader("BYTECODE COMPILER TESTS");
+        
+        testCompiled("3 + 4 * 2");
+        testCompiled("(3 + 2) * 5 - 1");
+        testCompiled("-(3 + 2)");
+        testCompiled("100 / 10 / 2");
+        testCompiled("-7 / 2");
+        testCompiled("1000 * 1000 - 70000");
+        testCompiled("123456789 * 3");
+        
+        // Overflow must wrap exactly like the tree walker
+        testCompiled("2147483647 + 1");
+        testCompiled("2147483647 * 2147483647");
+        
+        // Division by zero
+        testCompiledDivisionByZero("10 / 0");
+        testCompiledDivisionByZero("5 / (3 - 3)");
+        
+        // Too large for one method: falls back to the tree walker
+        testCompiled(balancedSum(0, 20000), "20000-term sum (fallback)");
+        
+        System.out.println();
+    }
+    
+    static void testCompiled(String input) {
+        testCompiled(input, "\"" + input + "\"");
+    }
+    
+    static void testCompiled(String input, String label) {
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize()).parse();
+            int expected = new Evaluator().evaluate(expr);
+            int result = new BytecodeCompiler().compile(expr).evaluate();
+            
+            if (result == expected) {
+                System.out.println("  ✓ Compiled " + label + " = " + result);
+                passed++;
+            } else {
+                System.out.println("  ✗ Compiled " + label + " expected " + expected + " but got " + result);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Compiled " + label + " failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    // Builds "(a + b) + (c + d)"-style sums so the tree stays shallow
+    static String balancedSum(int from, int to) {
+        if (to - from == 1) return String.valueOf(100000 + from);
+        int mid = (from + to) / 2;
+        return "(" + balancedSum(from, mid) + " + " + balancedSum(mid, to) + ")";
+    }
+    
+    static void testCompiledDivisionByZero(String input) {
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize()).parse();
+            CompiledExpression compiled = new BytecodeCompiler().compile(expr);
+            int result = compiled.evaluate();
+            System.out.println("  ✗ Compiled division by zero not caught: \"" + input + "\" returned " + result);
+            failed++;
+        } catch (ArithmeticException e) {
+            System.out.println("  ✓ Compiled division by zero caught: \"" + input + "\"");
+            System.out.println("      → " + e.getMessage());
+            passed++;
+        } catch (Exception e) {
+            System.out.println("  ✗ Compiled division by zero: \"" + input + "\" threw " + e);
+            failed++;
+        }
+    }
+    
+    // ===== STACK MACHINE TESTS =====
+    static void testStackMachine() {
+        printHeader("STACK MACHINE TESTS");
+        
+        testStackEval("3 + 4 * 2");
+        testStackEval("(3 + 2) * 5 - 1");
+        testStackEval("-(3 + 2)");
+        testStackEval("100 / 10 / 2");
+        testStackEval("10 - 5 - 2");
+        testStackEval("2147483647 + 1");
+        testStackEval("((((1 + 2) * 3 - 4) * 5 + 6) * 7 - 8) / 9");
+        testStackEval(balancedSum(0, 5000));
+        
+        // Division by zero
+        try {
+            Expr expr = new Parser(new Lexer("5 / (3 - 3)").tokenize()).parse();
+            int result = new StackMachine().run(new StackCompiler().compile(expr));
+            System.out.println("  ✗ Stack division by zero not caught, returned " + result);
+            failed++;
+        } catch (ArithmeticException e) {
+            System.out.println("  ✓ Stack division by zero caught → " + e.getMessage());
+            passed++;
+        } catch (Exception e) {
+            System.out.println("  ✗ Stack division by zero threw " + e);
+            failed++;
+        }
+        
+        // Max stack depth is computed from the program
+        try {
+            Expr expr = new Parser(new Lexer("1 + (2 + (3 + 4))").tokenize()).parse();
+            StackProgram program = new StackCompiler().compile(expr);
+            if (program.maxStack == 4) {
+                System.out.println("  ✓ Max stack depth of \"1 + (2 + (3 + 4))\" = 4");
+                passed++;
+            } else {
+                System.out.println("  ✗ Max stack depth expected 4 but got " + program.maxStack);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Max stack depth test failed: " + e.getMessage());
+            failed++;
+        }
+        
+        // Serialization round trip
+        try {
+            Expr expr = new Parser(new Lexer("-(12 * (4 + 9) / 3) + 88").tokenize()).parse();
+            StackProgram program = new StackCompiler().compile(expr);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            program.writeTo(new DataOutputStream(bytes));
+            StackProgram loaded = StackProgram.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            int result = new StackMachine().run(loaded);
+            int expected = new Evaluator().evaluate(expr);
+            if (result == expected && Arrays.equals(program.code, loaded.code)) {
+                System.out.println("  ✓ Serialized program round trip = " + result);
+                passed++;
+            } else {
+                System.out.println("  ✗ Serialized program round trip expected " + expected + " but got " + result);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Serialization round trip failed: " + e.getMessage());
+            failed++;
+        }
+        
+        // Corrupt programs are rejected on load
+        try {
+            StackProgram bad = new StackProgram(new int[] { StackProgram.PUSH_CONST, 1, StackProgram.ADD }, 1);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bad.writeTo(new DataOutputStream(bytes));
+            StackProgram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            System.out.println("  ✗ Corrupt program was accepted");
+            failed++;
+        } catch (IOException e) {
+            System.out.println("  ✓ Corrupt program rejected → " + e.getMessage());
+            passed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testStackEval(String input) {
+        String label = input.length() > 40 ? input.substring(0, 37) + "..." : input;
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize()).parse();
+            int expected = new Evaluator().evaluate(expr);
+            int result = new StackMachine().run(new StackCompiler().compile(expr));
+            
+            if (result == expected) {
+                System.out.println("  ✓ Stack eval \"" + label + "\" = " + result);
+                passed++;
+            } else {
+                System.out.println("  ✗ Stack eval \"" + label + "\" expected " + expected + " but got " + result);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Stack eval \"" + label + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    // ===== VARIABLE TESTS =====
+    static void testVariables() {
+        printHeader("VARIABLE TESTS");
+        
+        testTokens("x + y1 * _z", Arrays.asList("x", "+", "y1", "*", "_z"));
+        testTokens("rate*(2+total_2)", Arrays.asList("rate", "*", "(", "2", "+", "total_2", ")"));
+        
+        testBoundEval("x * (y + x)", new int[] { 3, 4 }, 21);
+        testBoundEval("-x + 10 / y", new int[] { 5, 2 }, 0);
+        testBoundEval("price * qty - discount", new int[] { 250, 4, 99 }, 901);
+        testBoundEval("a * a * a", new int[] { 2147483647 }, 2147483647);
+        testBoundEval("(a + 1) * (a - 1)", new int[] { 46341 }, -2147479016);
+        
+        // Slots are resolved once: one parse, many evaluations
+        try {
+            Parser p = new Parser(new Lexer("x * x + y").tokenize());
+            Expr expr = p.parse();
+            SlotTable slots = p.slots();
+            Evaluator evaluator = new Evaluator();
+            CompiledExpression compiled = new BytecodeCompiler().compile(expr);
+            StackProgram program = new StackCompiler().compile(expr);
+            StackMachine machine = new StackMachine();
+            int[] row = new int[slots.size()];
+            boolean ok = slots.size() == 2 && slots.lookup("x") == 0 && slots.lookup("y") == 1;
+            for (int i = -50; i <= 50 && ok; i++) {
+                row[0] = i;
+                row[1] = 7 * i;
+                int expected = i * i + 7 * i;
+                ok = evaluator.evaluate(expr, row) == expected
+                    && compiled.evaluate(row) == expected
+                    && machine.run(program, row) == expected;
+            }
+            if (ok) {
+                System.out.println("  ✓ One parse, 101 bindings of \"x * x + y\" agree across engines");
+                passed++;
+            } else {
+                System.out.println("  ✗ Rebinding \"x * x + y\" gave wrong results");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Rebinding test failed: " + e.getMessage());
+            failed++;
+        }
+        
+        // A shared table gives every expression the same slot for a name
+        try {
+            SlotTable shared = new SlotTable();
+            new Parser(new Lexer("a + b").tokenize(), shared).parse();
+            Expr second = new Parser(new Lexer("b * c").tokenize(), shared).parse();
+            int result = new Evaluator().evaluate(second, new int[] { 0, 6, 7 });
+            if (shared.size() == 3 && shared.lookup("c") == 2 && result == 42) {
+                System.out.println("  ✓ Shared slot table " + shared + " → b * c = 42");
+                passed++;
+            } else {
+                System.out.println("  ✗ Shared slot table " + shared + " gave " + result);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Shared slot table test failed: " + e.getMessage());
+            failed++;
+        }
+        
+        // Unbound variables and ambiguous sequences are still errors
+        testErrorMessage("x + 1", "unbound variable");
+        testUnboundAcrossEngines("x + 1", new int[0], "Unbound variable 'x'");
+        testUnboundAcrossEngines("a * b - c", new int[] { 2, 3 }, "Unbound variable 'c'");
+        testUnboundAcrossEngines("1 / (a - a) + b", new int[] { 5 }, "/ by zero");
+        
+        // Slot names survive serialization, so a loaded program reports them too
+        try {
+            Expr expr = new Parser(new Lexer("price * qty").tokenize()).parse();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new StackCompiler().compile(expr).writeTo(new DataOutputStream(bytes));
+            StackProgram loaded = StackProgram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            String message = null;
+            try {
+                new StackMachine().run(loaded, new int[] { 3 });
+            } catch (RuntimeException e) {
+                message = e.getMessage();
+            }
+            if (loaded.slotsUsed == 2 && "qty".equals(loaded.name(1)) && "Unbound variable 'qty'".equals(message)) {
+                System.out.println("  ✓ Loaded program reports → " + message);
+                passed++;
+            } else {
+                System.out.println("  ✗ Loaded program used " + loaded.slotsUsed + " slots and reported " + message);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Slot name round trip failed: " + e);
+            failed++;
+        }
+        testParseInvalid("x--2");
+        testParseInvalid("x y");
+        
+        System.out.println();
+    }
+    
+    // Bindings too short for the expression fail with the Evaluator's first error on every engine
+    static void testUnboundAcrossEngines(String input, int[] slots, String expected) {
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize()).parse();
+            List<String> messages = new ArrayList<>();
+            List<Supplier<Integer>> engines = Arrays.asList(
+                () -> new Evaluator().evaluate(expr, slots),
+                () -> new StackMachine().run(new StackCompiler().compile(expr), slots),
+                () -> new BytecodeCompiler().compile(expr).evaluate(slots),
+                () -> new NodeTree(expr).evaluate(slots));
+            for (Supplier<Integer> engine : engines) {
+                try {
+                    messages.add("= " + engine.get());
+                } catch (RuntimeException e) {
+                    messages.add(e.getMessage());
+                }
+            }
+            if (messages.stream().allMatch(expected::equals)) {
+                System.out.println("  ✓ \"" + input + "\" with " + Arrays.toString(slots) + " → " + expected + " on every engine");
+                passed++;
+            } else {
+                System.out.println("  ✗ \"" + input + "\" with " + Arrays.toString(slots) + " gave tree, stack, bytecode, nodes = " + messages);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Unbound test \"" + input + "\" failed: " + e);
+            failed++;
+        }
+    }
+    
+    static void testBoundEval(String input, int[] slots, int expected) {
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize()).parse();
+            int tree = new Evaluator().evaluate(expr, slots);
+            int stack = new StackMachine().run(new StackCompiler().compile(expr), slots);
+            int compiled = new BytecodeCompiler().compile(expr).evaluate(slots);
+            
+            if (tree == expected && stack == expected && compiled == expected) {
+                System.out.println("  ✓ Eval \"" + input + "\" with " + Arrays.toString(slots) + " = " + tree);
+                passed++;
+            } else {
+                System.out.println("  ✗ Eval \"" + input + "\" with " + Arrays.toString(slots) + " expected " + expected
+                    + " but got tree=" + tree + " stack=" + stack + " bytecode=" + compiled);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Eval \"" + input + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    // ===== TOKEN BUFFER TESTS =====
+    static void testTokenBuffer() {
+        printHeader("TOKEN BUFFER TESTS");
+        
+        // One buffer reused for every expression
+        TokenBuffer buffer = new TokenBuffer(2);
+        String[] inputs = {
+            "(3 + 2) * 5 - 1", "  10  *  20  ", "-(x + 42) / rate", "((((7))))",
+            "3 + (4 - )", "2147483647 + 1", "9--2", "3 4", "a * b * c * d * e * f * g * h",
+        };
+        for (String input : inputs) testBufferedParse(input, buffer);
+        
+        // Lexer errors are unchanged
+        testBufferedLexError("@#$", buffer);
+        testBufferedLexError("3.5", buffer);
+        testBufferedLexError("99999999999", buffer);
+        
+        System.out.println();
+    }
+    
+    // The buffer path must produce the same tokens, AST and errors as the list path
+    static void testBufferedParse(String input, TokenBuffer buffer) {
+        try {
+            List<Token> list = new Lexer(input).tokenize();
+            new Lexer(input).tokenize(buffer);
+            
+            boolean sameTokens = list.size() == buffer.size();
+            for (int i = 0; sameTokens && i < list.size(); i++) {
+                Token t = list.get(i);
+                sameTokens = t.type == buffer.type(i) && t.position == buffer.start(i)
+                    && t.lexeme.equals(buffer.lexeme(i))
+                    && (t.type != TokenType.NUMBER || t.intValue == buffer.intValue(i));
+            }
+            
+            String expected = parseOutcome(new Parser(list));
+            String actual = parseOutcome(new Parser(buffer));
+            
+            if (sameTokens && expected.equals(actual)) {
+                System.out.println("  ✓ Buffered parse \"" + input + "\" → " + actual);
+                passed++;
+            } else {
+                System.out.println("  ✗ Buffered parse \"" + input + "\" (tokens match: " + sameTokens + ")");
+                System.out.println("      Expected: " + expected);
+                System.out.println("      Got:      " + actual);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Buffered parse \"" + input + "\" failed: " + e);
+            failed++;
+        }
+    }
+    
+    static void testBufferedLexError(String input, TokenBuffer buffer) {
+        String expected;
+        try {
+            new Lexer(input).tokenize();
+            expected = "accepted";
+        } catch (RuntimeException e) {
+            expected = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        String actual;
+        try {
+            new Lexer(input).tokenize(buffer);
+            actual = "accepted";
+        } catch (RuntimeException e) {
+            actual = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        if (expected.equals(actual) && !actual.equals("accepted")) {
+            System.out.println("  ✓ Buffered lex error \"" + input + "\" → " + actual);
+            passed++;
+        } else {
+            System.out.println("  ✗ Buffered lex error \"" + input + "\" expected " + expected + " but got " + actual);
+            failed++;
+        }
+    }
+    
+    // Describes a parse as its printed AST, or its error message
+    static String parseOutcome(Parser parser) {
+        try {
+            return render(parser.parse());
+        } catch (ParseException e) {
+            return "ParseException: " + e.getMessage();
+        }
+    }
+    
+    // Fully parenthesized form of an AST, for structural comparisons
+    static String render(Expr e) {
+        if (e instanceof NumberExpr) return String.valueOf(((NumberExpr) e).value);
+        if (e instanceof VariableExpr) return ((VariableExpr) e).name + "#" + ((VariableExpr) e).slot;
+        if (e instanceof UnaryExpr) {
+            UnaryExpr u = (UnaryExpr) e;
+            return "(" + u.operator.lexeme + render(u.right) + ")";
+        }
+        BinaryExpr b = (BinaryExpr) e;
+        return "(" + render(b.left) + " " + b.operator.lexeme + " " + render(b.right) + ")";
+    }
+    
+    // ===== BULK EVALUATOR TESTS =====
+    static void testBulkEvaluator() {
+        printHeader("BULK EVALUATOR TESTS");
+        
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(5);
+        for (int i = 0; i < 500; i++) {
+            switch (i % 7) {
+                case 0: lines.add((i * 31) + " + " + (i * 7) + " * (" + i + " - 3)"); break;
+                case 1: lines.add("  -(" + i + " * " + (i + 1) + ") / " + (i % 5) + "  "); break;   // some divide by zero
+                case 2: lines.add(i + " +"); break;                                              // parse error
+                case 3: lines.add(""); break;                                                    // empty line
+                case 4: lines.add("(" + random.nextInt(1000) + " - " + random.nextInt(1000) + ") * 2147483\r"); break;
+                case 5: lines.add("1" + " + 1".repeat(40)); break;                               // longer than the window
+                default: lines.add(i + " @ 2"); break;                                           // lexer error
+            }
+        }
+        
+        try {
+            Path input = Files.createTempFile("bulk", ".txt");
+            Path output = Files.createTempFile("bulk", ".bin");
+            Files.write(input, String.join("\n", lines).getBytes(StandardCharsets.US_ASCII));
+            
+            // A tiny window forces lines to straddle (and outgrow) mapping windows
+            BulkEvaluator.Summary summary = new BulkEvaluator(64).run(input, output);
+            
+            ByteBuffer results = ByteBuffer.wrap(Files.readAllBytes(output))
+                .order(ByteOrder.LITTLE_ENDIAN);
+            byte[] errorBits = Files.readAllBytes(BulkEvaluator.errorPath(output));
+            
+            int mismatches = 0;
+            int errors = 0;
+            for (int i = 0; i < lines.size(); i++) {
+                Integer expected = null;
+                try {
+                    String text = lines.get(i).trim();
+                    if (!text.isEmpty()) expected = new Evaluator().evaluate(new Parser(new Lexer(text).tokenize()).parse());
+                } catch (Exception e) {
+                    expected = null;
+                }
+                boolean failedLine = (errorBits[i / 8] & (1 << (i % 8))) != 0;
+                int value = results.getInt(i * 4);
+                if (expected == null) errors++;
+                if (expected == null ? !failedLine || value != 0 : failedLine || value != expected) mismatches++;
+            }
+            
+            Files.delete(input);
+            Files.delete(output);
+            Files.delete(BulkEvaluator.errorPath(output));
+            
+            if (mismatches == 0 && summary.lines == lines.size() && summary.errors == errors
+                    && results.capacity() == lines.size() * 4 && errorBits.length == (lines.size() + 7) / 8) {
+                System.out.println("  ✓ Bulk evaluated " + summary.lines + " lines (" + summary.errors + " errors) across 64-byte windows");
+                passed++;
+            } else {
+                System.out.println("  ✗ Bulk evaluation: " + mismatches + " mismatched lines, summary " + summary);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Bulk evaluation failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    // ===== BATCH EVALUATOR TESTS =====
+    static void testBatchEvaluator() {
+        printHeader("BATCH EVALUATOR TESTS");
+        
+        // Expected output, computed one line at a time
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        String nl = System.lineSeparator();
+        for (int i = 1; i <= 1000; i++) {
+            String line;
+            switch (i % 5) {
+                case 0: line = i + " / (" + (i % 3) + ")"; break;
+                case 1: line = "(" + i + " +"; break;
+                case 2: line = "   "; break;
+                default: line = "-(" + i + " * 3) + " + (i % 11); break;
+            }
+            input.append(line).append('\n');
+            try {
+                String text = line.trim();
+                if (text.isEmpty()) {
+                    expected.append("Line ").append(i).append(": Error: Empty input provided").append(nl);
+                } else {
+                    Expr expr = new Parser(new Lexer(text).tokenize()).parse();
+                    expected.append(new Evaluator().evaluate(expr)).append(nl);
+                }
+            } catch (ParseException e) {
+                expected.append("Line ").append(i).append(": Parse Error: ").append(e.getMessage()).append(nl);
+            } catch (ArithmeticException e) {
+                expected.append("Line ").append(i).append(": Arithmetic Error: ").append(e.getMessage()).append(nl);
+            }
+        }
+        
+        for (int threads : new int[] { 1, 4 }) {
+            try {
+                StringWriter out = new StringWriter();
+                long lines = new BatchEvaluator(threads, 7, false, false)
+                    .run(new BufferedReader(new StringReader(input.toString())), out);
+                if (lines == 1000 && out.toString().equals(expected.toString())) {
+                    System.out.println("  ✓ Batch of 1000 lines on " + threads + " thread(s) matches sequential output, in order");
+                    passed++;
+                } else {
+                    System.out.println("  ✗ Batch of 1000 lines on " + threads + " thread(s) differs from sequential output");
+                    failed++;
+                }
+            } catch (Exception e) {
+                System.out.println("  ✗ Batch evaluation failed: " + e);
+                failed++;
+            }
+        }
+        
+        // Tokens and AST are only printed when requested
+        try {
+            StringWriter out = new StringWriter();
+            new BatchEvaluator(2, 1, true, true).run(new BufferedReader(new StringReader("1 + 2\n")), out);
+            String text = out.toString();
+            if (text.startsWith("Tokens: [1, +, 2, ]") && text.contains("AST:") && text.endsWith("3" + nl)) {
+                System.out.println("  ✓ Batch prints tokens and AST on request");
+                passed++;
+            } else {
+                System.out.println("  ✗ Batch tokens/AST output was: " + text);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Batch tokens/AST test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    // The value of the source, or its error message, parsed through the cache or directly
+    static String parseOutcome(ExpressionCache cache, String source) {
+        try {
+            Expr expr = cache != null ? cache.get(source) : new Parser(new Lexer(source).tokenize()).parse();
+            return Integer.toString(new Evaluator().evaluate(expr));
+        } catch (ParseException e) {
+            return "Parse Error: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+    
+    // ===== EXPRESSION CACHE TESTS =====
+    static void testExpressionCache() {
+        printHeader("EXPRESSION CACHE TESTS");
+        
+        // Whitespace variants share one entry
+        try {
+            ExpressionCache cache = new ExpressionCache(100, 1 << 20);
+            Expr first = cache.get("(3 + 2) * 5");
+            Expr second = cache.get("  (3 +  2)\t*   5 ");
+            Expr distinct = cache.get("(3+2)*5");
+            ExpressionCache.Stats stats = cache.stats();
+            if (first == second && first != distinct && stats.hits == 1 && stats.misses == 2 && stats.size == 2
+                    && new Evaluator().evaluate(second) == 25) {
+                System.out.println("  ✓ Normalized sources share an entry: " + stats);
+                passed++;
+            } else {
+                System.out.println("  ✗ Normalized lookup gave " + stats);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Normalized lookup failed: " + e);
+            failed++;
+        }
+        
+        // Failures are cached and rethrown without parsing again
+        try {
+            ExpressionCache cache = new ExpressionCache(100, 1 << 20);
+            ParseException first = null;
+            ParseException second = null;
+            try { cache.get("3 +  (4 - )"); } catch (ParseException e) { first = e; }
+            try { cache.get("3 +  (4 - )"); } catch (ParseException e) { second = e; }
+            RuntimeException lexFirst = null;
+            RuntimeException lexSecond = null;
+            try { cache.get("3 @ 4"); } catch (RuntimeException e) { lexFirst = e; }
+            try { cache.get("3 @ 4"); } catch (RuntimeException e) { lexSecond = e; }
+            ExpressionCache.Stats stats = cache.stats();
+            if (first != null && first == second && lexFirst != null && lexFirst == lexSecond && stats.hits == 2
+                    && first.getMessage().equals("Unexpected token ')' at position 10")) {
+                System.out.println("  ✓ Negative caching → " + first.getMessage());
+                passed++;
+            } else {
+                System.out.println("  ✗ Negative caching gave " + stats + " / " + (first == null ? null : first.getMessage()));
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Negative caching failed: " + e);
+            failed++;
+        }
+        
+        // Errors are reported at positions in the caller's own text, whichever spelling was cached first
+        try {
+            String[] sources = { "3    +", "3 +", " 3\t+", "1   2", "1 2", "(1 +   2", "( 1 + 2", "7 *  (2 @ 1)", "7 * (2 @ 1)",
+                "1 + 2", "  1   +\t2  " };
+            ExpressionCache cache = new ExpressionCache(100, 1 << 20);
+            List<String> mismatches = new ArrayList<>();
+            for (int round = 0; round < 2; round++) {
+                for (String source : sources) {
+                    String direct = parseOutcome(null, source);
+                    String cached = parseOutcome(cache, source);
+                    if (!direct.equals(cached)) mismatches.add("\"" + source + "\": " + direct + " / " + cached);
+                }
+            }
+            if (mismatches.isEmpty()) {
+                System.out.println("  ✓ " + sources.length + " spacings × 2 rounds give the same errors with and without the cache: "
+                    + cache.stats());
+                passed++;
+            } else {
+                System.out.println("  ✗ Cached errors differ: " + mismatches);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Cached error positions failed: " + e);
+            failed++;
+        }
+        
+        // LRU eviction by entry count
+        try {
+            ExpressionCache cache = new ExpressionCache(3, 1 << 20);
+            cache.get("1 + 1");
+            cache.get("2 + 2");
+            cache.get("3 + 3");
+            cache.get("1 + 1");          // refresh: "2 + 2" is now least recently used
+            cache.get("4 + 4");          // evicts "2 + 2"
+            cache.get("1 + 1");          // still cached
+            cache.get("2 + 2");          // miss
+            ExpressionCache.Stats stats = cache.stats();
+            if (stats.size == 3 && stats.hits == 2 && stats.misses == 5 && stats.evictions == 2) {
+                System.out.println("  ✓ LRU eviction by count: " + stats);
+                passed++;
+            } else {
+                System.out.println("  ✗ LRU eviction by count gave " + stats);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ LRU eviction test failed: " + e);
+            failed++;
+        }
+        
+        // Eviction by weight: large expressions push out older ones
+        try {
+            ExpressionCache cache = new ExpressionCache(1000, 20_000);
+            for (int i = 0; i < 50; i++) cache.get(balancedSum(i, i + 32));
+            ExpressionCache.Stats stats = cache.stats();
+            if (stats.weight <= 20_000 && stats.evictions > 0 && stats.size + stats.evictions == 50) {
+                System.out.println("  ✓ Eviction by weight keeps " + stats.size + " entries in " + stats.weight + " bytes");
+                passed++;
+            } else {
+                System.out.println("  ✗ Eviction by weight gave " + stats);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Eviction by weight failed: " + e);
+            failed++;
+        }
+        
+        // Concurrent lookups from several threads
+        try {
+            ExpressionCache cache = new ExpressionCache(64, 1 << 20);
+            Thread[] workers = new Thread[4];
+            final boolean[] ok = { true };
+            for (int t = 0; t < workers.length; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        int n = i % 100;
+                        try {
+                            if (new Evaluator().evaluate(cache.get(n + " * 2 + 1")) != n * 2 + 1) ok[0] = false;
+                        } catch (Exception e) {
+                            ok[0] = false;
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) w.join();
+            ExpressionCache.Stats stats = cache.stats();
+            if (ok[0] && stats.hits + stats.misses == 80_000 && stats.size <= 64) {
+                System.out.println("  ✓ 4 threads × 20000 lookups: " + stats);
+                passed++;
+            } else {
+                System.out.println("  ✗ Concurrent lookups gave " + stats);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Concurrent lookups failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    // ===== OPTIMIZER TESTS =====
+    static void testOptimizer() {
+        printHeader("OPTIMIZER TESTS");
+        
+        // Constant folding
+        testOptimized("(3 + 2) * 5", "25");
+        testOptimized("-(12 * (4 + 9) / 3) + 88 * (2 - 7) - (((5)))", "-497");
+        testOptimized("2147483647 + 1", "-2147483648");
+        testOptimized("-2147483647 - 1 - 1", "2147483647");
+        
+        // Identities
+        testOptimized("x + 0", "x#0");
+        testOptimized("0 + x * 1", "x#0");
+        testOptimized("(x - 0) / 1", "x#0");
+        testOptimized("0 - x", "(-x#0)");
+        testOptimized("-(-x)", "x#0");
+        testOptimized("+x * (-1)", "(-x#0)");
+        testOptimized("x - (-y)", "(x#0 + y#1)");
+        
+        // Constants gathered across additions and multiplications
+        testOptimized("(x + 3) - 5", "(x#0 - 2)");
+        testOptimized("2 * (x * 3) * (10 - 5)", "(x#0 * 30)");
+        testOptimized("1 + (x + 2147483647)", "(x#0 + -2147483648)");
+        testOptimized("(x / 2) * 2", "((x#0 / 2) * 2)");
+        
+        // x * 0 only disappears when x cannot throw, and a variable may be unbound
+        testOptimized("(x + y) * 0", "((x#0 + y#1) * 0)");
+        testOptimized("(x / 4) * (1 - 1)", "((x#0 / 4) * 0)");
+        testOptimized("(x / y) * 0", "((x#0 / y#1) * 0)");
+        testOptimized("10 / (5 - 5)", "(10 / 0)");
+        
+        testOptimizedDivisionByZero("(1 / 0) * 0");
+        testOptimizedDivisionByZero("10 / (5 - 5)");
+        testOptimizedUnbound("x * 0");
+        testOptimizedUnbound("0 * (x + 1)");
+        
+        // Random expressions: the optimized tree agrees with the original on every binding
+        try {
+            Random random = new Random(8);
+            int[][] rows = {
+                { 0, 0, 0 }, { 1, -1, 2 }, { 2147483647, -2147483648, 3 }, { -7, 13, 0 }, { 46341, 65536, -1 },
+                // b and c unbound
+                { 5 },
+            };
+            int checked = 0;
+            int before = 0;
+            int after = 0;
+            boolean ok = true;
+            Optimizer optimizer = new Optimizer();
+            Evaluator evaluator = new Evaluator();
+            for (int n = 0; n < 2000 && ok; n++) {
+                String source = randomExpression(random, 5);
+                Parser parser = new Parser(new Lexer(source).tokenize(), slotsFor("a", "b", "c"));
+                Expr expr = parser.parse();
+                Expr optimized = optimizer.optimize(expr);
+                before += Optimizer.countNodes(expr);
+                after += Optimizer.countNodes(optimized);
+                for (int[] row : rows) {
+                    String expected = outcome(evaluator, expr, row);
+                    String actual = outcome(evaluator, optimized, row);
+                    if (!expected.equals(actual)) {
+                        System.out.println("  ✗ \"" + source + "\" with " + Arrays.toString(row) + ": " + expected + " but optimized gave " + actual);
+                        ok = false;
+                    }
+                    checked++;
+                }
+            }
+            if (ok && after < before) {
+                System.out.println("  ✓ 2000 random expressions agree on " + checked + " evaluations (" + before + " → " + after + " nodes)");
+                passed++;
+            } else {
+                if (ok) System.out.println("  ✗ Random expressions were not reduced: " + before + " → " + after + " nodes");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Random optimizer test failed: " + e);
+            failed++;
+        }
+        
+        // Batch output is unchanged by optimizing
+        try {
+            String input = "(3 + 2) * 5\n7 / (2 - 2)\n(1 / 0) * 0\n-(-(4 * 1)) + 0\n(1 +\n";
+            StringWriter plain = new StringWriter();
+            StringWriter optimized = new StringWriter();
+            new BatchEvaluator(2, 2, false, false).run(new BufferedReader(new StringReader(input)), plain);
+            new BatchEvaluator(2, 2, false, false, null, true).run(new BufferedReader(new StringReader(input)), optimized);
+            if (plain.toString().equals(optimized.toString())) {
+                System.out.println("  ✓ Batch output is the same with and without --optimize");
+                passed++;
+            } else {
+                System.out.println("  ✗ Batch output changed with --optimize: " + optimized);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Optimized batch test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testOptimized(String input, String expected) {
+        try {
+            Parser parser = new Parser(new Lexer(input).tokenize(), slotsFor("x", "y"));
+            Expr expr = parser.parse();
+            Expr optimized = new Optimizer().optimize(expr);
+            String actual = render(optimized);
+            if (actual.equals(expected)) {
+                System.out.println("  ✓ Optimize \"" + input + "\" → " + actual + " (" + Optimizer.countNodes(expr)
+                    + " → " + Optimizer.countNodes(optimized) + " nodes)");
+                passed++;
+            } else {
+                System.out.println("  ✗ Optimize \"" + input + "\" expected " + expected + " but got " + actual);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Optimize \"" + input + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    static void testOptimizedDivisionByZero(String input) {
+        try {
+            Expr expr = new Optimizer().optimize(new Parser(new Lexer(input).tokenize()).parse());
+            int result = new Evaluator().evaluate(expr);
+            System.out.println("  ✗ Optimized \"" + input + "\" should throw / by zero but gave " + result);
+            failed++;
+        } catch (ArithmeticException e) {
+            System.out.println("  ✓ Optimized \"" + input + "\" still throws: " + e.getMessage());
+            passed++;
+        } catch (Exception e) {
+            System.out.println("  ✗ Optimized \"" + input + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    static void testOptimizedUnbound(String input) {
+        try {
+            Expr expr = new Optimizer().optimize(new Parser(new Lexer(input).tokenize()).parse());
+            int result = new Evaluator().evaluate(expr);
+            System.out.println("  ✗ Optimized \"" + input + "\" should report the unbound variable but gave " + result);
+            failed++;
+        } catch (RuntimeException e) {
+            if (e.getMessage().startsWith("Unbound variable")) {
+                System.out.println("  ✓ Optimized \"" + input + "\" still throws: " + e.getMessage());
+                passed++;
+            } else {
+                System.out.println("  ✗ Optimized \"" + input + "\" failed: " + e.getMessage());
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Optimized \"" + input + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    // A slot table with the given names already assigned, in order
+    static SlotTable slotsFor(String... names) {
+        SlotTable slots = new SlotTable();
+        for (String name : names) slots.slotOf(name);
+        return slots;
+    }
+    
+    // The value of an expression, or the message of the error it throws
+    static String outcome(Evaluator evaluator, Expr expr, int[] slots) {
+        try {
+            return String.valueOf(evaluator.evaluate(expr, slots));
+        } catch (ArithmeticException e) {
+            return "ArithmeticException: " + e.getMessage();
+        } catch (RuntimeException e) {
+            // An unbound variable
+            return "RuntimeException: " + e.getMessage();
+        }
+    }
+    
+    // Fully parenthesized random expression over a, b and c
+    static String randomExpression(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            switch (random.nextInt(6)) {
+                case 0: return "a";
+                case 1: return "b";
+                case 2: return "c";
+                case 3: return String.valueOf(random.nextInt(3));
+                case 4: return "2147483647";
+                default: return String.valueOf(random.nextInt(100));
+            }
+        }
+        if (random.nextInt(6) == 0) return "(-" + randomExpression(random, depth - 1) + ")";
+        String op = new String[] { " + ", " - ", " * ", " / " }[random.nextInt(4)];
+        return "(" + randomExpression(random, depth - 1) + op + randomExpression(random, depth - 1) + ")";
+    }
+    
+    // ===== AST ARENA TESTS =====
+    static void testAstArena() {
+        printHeader("AST ARENA TESTS");
+        
+        testArenaMatches("(3 + 2) * 5");
+        testArenaMatches("-(12 * (4 + 9) / 3) + 88 * (2 - 7) - (((5)))");
+        testArenaMatches("+7 * (-x + 10 / y)", new int[] { 5, 2 });
+        testArenaMatches("(price * qty - discount) * (100 + tax) / 100", new int[] { 250, 4, 99, 20 });
+        
+        // Identical subtrees share one node
+        try {
+            AstArena arena = new AstArena();
+            int root = new Parser(new Lexer("(a + b) * (a + b)").tokenize()).parse(arena);
+            int firstSize = arena.size();
+            int again = new Parser(new Lexer("(a + b) * (a + b)").tokenize()).parse(arena);
+            int other = new Parser(new Lexer("(a + b) * (a + b) - 1").tokenize()).parse(arena);
+            if (firstSize == 4 && arena.left(root) == arena.right(root) && again == root
+                    && arena.left(other) == root && arena.size() == 6) {
+                System.out.println("  ✓ \"(a + b) * (a + b)\" is 4 nodes; repeats and supersets reuse them (" + arena.size() + " total)");
+                passed++;
+            } else {
+                System.out.println("  ✗ Hash-consing gave " + firstSize + " nodes, " + arena.size() + " in total");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Hash-consing test failed: " + e);
+            failed++;
+        }
+        
+        // Random expressions in one shared arena agree with the object AST
+        try {
+            Random random = new Random(9);
+            AstArena arena = new AstArena(16, slotsFor("a", "b", "c"));
+            Evaluator evaluator = new Evaluator();
+            int[][] rows = { { 0, 0, 0 }, { 1, -1, 2 }, { 2147483647, -2147483648, 3 }, { -7, 13, 0 } };
+            int logical = 0;
+            boolean ok = true;
+            for (int n = 0; n < 2000 && ok; n++) {
+                String source = randomExpression(random, 5);
+                Expr expr = new Parser(new Lexer(source).tokenize(), slotsFor("a", "b", "c")).parse();
+                int root = new Parser(new Lexer(source).tokenize()).parse(arena);
+                logical += Optimizer.countNodes(expr);
+                
+                StringBuilder expected = new StringBuilder();
+                StringBuilder actual = new StringBuilder();
+                new AstPrinter(expected).print(expr);
+                new AstPrinter(actual).print(arena, root);
+                ok = expected.toString().equals(actual.toString());
+                for (int[] row : rows) {
+                    if (!ok) break;
+                    ok = outcome(evaluator, expr, row).equals(arenaOutcome(evaluator, arena, root, row));
+                }
+                if (!ok) System.out.println("  ✗ Arena differs from object AST for \"" + source + "\"");
+            }
+            for (int id = 0; id < arena.size() && ok; id++) {
+                if (arena.kind(id) == AstArena.BINARY) ok = arena.left(id) < id && arena.right(id) < id;
+                if (arena.kind(id) == AstArena.UNARY) ok = arena.right(id) < id;
+                if (!ok) System.out.println("  ✗ Node " + id + " has a child created after it");
+            }
+            if (ok) {
+                System.out.println("  ✓ 2000 random expressions match the object AST (" + logical + " nodes stored as " + arena.size() + ")");
+                passed++;
+            } else {
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Random arena test failed: " + e);
+            failed++;
+        }
+        
+        // Errors are reported exactly as with the object AST
+        try {
+            AstArena arena = new AstArena();
+            String parseError = null;
+            try {
+                new Parser(new Lexer("(1 + 2").tokenize()).parse(arena);
+            } catch (ParseException e) {
+                parseError = e.getMessage();
+            }
+            int root = new Parser(new Lexer("y / (x - x)").tokenize()).parse(arena);
+            String unbound = arenaOutcome(new Evaluator(), arena, root, new int[0]);
+            String divide = arenaOutcome(new Evaluator(), arena, root, new int[] { 4, 9 });
+            if ("Missing ')' at position 6".equals(parseError) && unbound.equals("Error: Unbound variable 'y'")
+                    && divide.equals("ArithmeticException: / by zero")) {
+                System.out.println("  ✓ Arena errors: " + parseError + " / " + unbound + " / " + divide);
+                passed++;
+            } else {
+                System.out.println("  ✗ Arena errors were " + parseError + " / " + unbound + " / " + divide);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Arena error test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testArenaMatches(String input) {
+        testArenaMatches(input, new int[0]);
+    }
+    
+    static void testArenaMatches(String input, int[] slots) {
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize()).parse();
+            AstArena arena = new AstArena();
+            int root = new Parser(new Lexer(input).tokenize()).parse(arena);
+            
+            StringBuilder expected = new StringBuilder();
+            StringBuilder actual = new StringBuilder();
+            new AstPrinter(expected).print(expr);
+            new AstPrinter(actual).print(arena, root);
+            int value = new Evaluator().evaluate(arena, root, slots);
+            
+            if (expected.toString().equals(actual.toString()) && value == new Evaluator().evaluate(expr, slots)) {
+                System.out.println("  ✓ Arena \"" + input + "\" prints and evaluates like the object AST: " + value);
+                passed++;
+            } else {
+                System.out.println("  ✗ Arena \"" + input + "\" differs:\n" + actual);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Arena \"" + input + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    // The value of an arena expression, or the message of the error it throws
+    static String arenaOutcome(Evaluator evaluator, AstArena arena, int root, int[] slots) {
+        try {
+            return String.valueOf(evaluator.evaluate(arena, root, slots));
+        } catch (ArithmeticException e) {
+            return "ArithmeticException: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+    
+    // ===== DEEP NESTING TESTS =====
+    static void testDeepNesting() {
+        printHeader("DEEP NESTING TESTS");
+        
+        int depth = 1_000_000;
+        testDeep("1,000,000 nested parentheses", repeat("(", depth) + "7" + repeat(")", depth), 7);
+        testDeep("1,000,000 terms, left-deep", "1" + repeat(" + 1", depth - 1), depth);
+        testDeep("500,000 right-nested subtractions", repeat("1 - (", 500_000) + "0" + repeat(")", 500_000), 0);
+        testDeep("300,001 nested negations", repeat("-(", 300_001) + "5" + repeat(")", 300_001), -5);
+        testDeep("200,000 mixed levels", repeat("(2 * (x + ", 100_000) + "x" + repeat(") - 1)", 100_000), -1);
+        
+        // Errors deep inside are still found, with the same messages
+        testDeepError(repeat("(", depth) + "1 + 2" + repeat(")", depth - 1), "Missing ')' at position " + (2 * depth + 4));
+        testDeepError(repeat("(", depth) + "1 +" + repeat(")", depth), "Unexpected token ')' at position " + (depth + 3));
+        testDeepError(repeat("(", depth) + "--2" + repeat(")", depth), "Unexpected unary operator sequence '--' at position " + (depth + 1) + ".");
+        testDeepError("1" + repeat(" * 1", 100_000) + " 2", "Unexpected token '2' at position " + (1 + 4 * 100_000 + 1));
+        
+        // Deep trees print one line per node
+        try {
+            Expr expr = new Parser(new Lexer("1" + repeat(" + 1", 99_999)).tokenize()).parse();
+            long[] lines = new long[1];
+            Appendable counter = new Appendable() {
+                public Appendable append(CharSequence csq) {
+                    for (int i = 0; i < csq.length(); i++) if (csq.charAt(i) == '\n') lines[0]++;
+                    return this;
+                }
+                public Appendable append(CharSequence csq, int start, int end) { return append(csq.subSequence(start, end)); }
+                public Appendable append(char c) {
+                    if (c == '\n') lines[0]++;
+                    return this;
+                }
+            };
+            new AstPrinter(counter).print(expr);
+            if (lines[0] == 199_999) {
+                System.out.println("  ✓ Printed a tree 100,000 levels deep (" + lines[0] + " lines)");
+                passed++;
+            } else {
+                System.out.println("  ✗ Printing a deep tree gave " + lines[0] + " lines");
+                failed++;
+            }
+        } catch (Throwable e) {
+            System.out.println("  ✗ Printing a deep tree failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testDeep(String label, String input, int expected) {
+        try {
+            long start = System.nanoTime();
+            TokenBuffer tokens = new TokenBuffer();
+            new Lexer(input).tokenize(tokens);
+            Parser parser = new Parser(tokens);
+            Expr expr = parser.parse();
+            int[] slots = new int[parser.slots().size()];
+            Arrays.fill(slots, 1);
+            int tree = new Evaluator().evaluate(expr, slots);
+            
+            AstArena arena = new AstArena(16, parser.slots());
+            int root = new Parser(tokens).parse(arena);
+            int packed = new Evaluator().evaluate(arena, root, slots);
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            
+            if (tree == expected && packed == expected) {
+                System.out.println("  ✓ " + label + " = " + tree + " (" + ms + " ms)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + label + " expected " + expected + " but got " + tree + " / " + packed);
+                failed++;
+            }
+        } catch (Throwable e) {
+            System.out.println("  ✗ " + label + " failed: " + e);
+            failed++;
+        }
+    }
+    
+    static void testDeepError(String input, String expected) {
+        try {
+            new Parser(new Lexer(input).tokenize()).parse();
+            System.out.println("  ✗ Deep input of " + input.length() + " characters should be rejected");
+            failed++;
+        } catch (ParseException e) {
+            if (e.getMessage().equals(expected)) {
+                System.out.println("  ✓ Deep input of " + input.length() + " characters → " + e.getMessage());
+                passed++;
+            } else {
+                System.out.println("  ✗ Deep input expected \"" + expected + "\" but got \"" + e.getMessage() + "\"");
+                failed++;
+            }
+        } catch (Throwable e) {
+            System.out.println("  ✗ Deep input failed: " + e);
+            failed++;
+        }
+    }
+    
+    static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) sb.append(s);
+        return sb.toString();
+    }
+    
+    static void testInstrumentation() {
+        printHeader("INSTRUMENTATION TESTS");
+        
+        // Shape of a tree, measured while parsing and afterwards
+        testShape("7", 1, 1);
+        testShape("(a + b) * -c", 6, 3);
+        testShape("1 + 2 + 3 + 4", 7, 4);
+        testShape("-(-(-(x)))", 4, 4);
+        
+        // Nothing is recorded without an active recorder
+        try {
+            PhaseRecorder recorder = PhaseRecorder.enable();
+            PhaseRecorder.disable();
+            new Evaluator().evaluate(new Parser(new Lexer("1 + 2").tokenize()).parse());
+            if (PhaseRecorder.active() == null && recorder.calls(PhaseRecorder.Phase.LEX) == 0
+                    && recorder.calls(PhaseRecorder.Phase.EVAL) == 0) {
+                System.out.println("  ✓ Disabled recorder records nothing");
+                passed++;
+            } else {
+                System.out.println("  ✗ Disabled recorder still recorded calls");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Disabled recorder test failed: " + e);
+            failed++;
+        }
+        
+        // Every phase of a batch is counted, failures included
+        try {
+            PhaseRecorder recorder = PhaseRecorder.enable();
+            String input = "1 + 2\n3 * (4 - 1)\n10 / 0\n3 +\n1 $ 2\n\n";
+            StringWriter out = new StringWriter();
+            new BatchEvaluator(2, 2, false, false).run(new BufferedReader(new StringReader(input)), out);
+            PhaseRecorder.disable();
+            
+            PhaseRecorder.Phase lex = PhaseRecorder.Phase.LEX;
+            PhaseRecorder.Phase parse = PhaseRecorder.Phase.PARSE;
+            PhaseRecorder.Phase eval = PhaseRecorder.Phase.EVAL;
+            boolean counts = recorder.calls(lex) == 5 && recorder.errors(lex) == 1
+                && recorder.calls(parse) == 4 && recorder.errors(parse) == 1
+                && recorder.calls(eval) == 3 && recorder.errors(eval) == 1;
+            boolean ordered = true;
+            for (PhaseRecorder.Phase phase : PhaseRecorder.Phase.values()) {
+                long p50 = recorder.percentileNanos(phase, 50);
+                long p99 = recorder.percentileNanos(phase, 99);
+                long total = 0;
+                for (long n : recorder.histogram(phase)) total += n;
+                ordered &= p50 <= p99 && p99 <= recorder.maxNanos(phase) && total == recorder.calls(phase);
+            }
+            if (counts && ordered && recorder.toString().startsWith("phase")) {
+                System.out.println("  ✓ Batch recorded lex 5 (1 error), parse 4 (1 error), eval 3 (1 error)");
+                passed++;
+            } else {
+                System.out.println("  ✗ Batch recorded:\n" + recorder);
+                failed++;
+            }
+        } catch (Exception e) {
+            PhaseRecorder.disable();
+            System.out.println("  ✗ Recorder test failed: " + e);
+            failed++;
+        }
+        
+        // Histogram buckets are powers of two
+        if (PhaseRecorder.bucket(0) == 0 && PhaseRecorder.bucket(1) == 0 && PhaseRecorder.bucket(2) == 1
+                && PhaseRecorder.bucket(1023) == 9 && PhaseRecorder.bucket(1024) == 10 && PhaseRecorder.bucket(Long.MAX_VALUE) == 62) {
+            System.out.println("  ✓ Latencies are bucketed by power of two");
+            passed++;
+        } else {
+            System.out.println("  ✗ Latency buckets are wrong");
+            failed++;
+        }
+        
+        // Instrumented calls leave Flight Recorder alone until a recording exists
+        try {
+            if (PhaseRecorder.flightRecorderInitialized()) {
+                System.out.println("  ✓ Flight Recorder was started with the JVM, events are created from the first call");
+                passed++;
+            } else {
+                new Evaluator().evaluate(new Parser(new Lexer("(1 + 2) * 3").tokenize()).parse());
+                if (!PhaseRecorder.flightRecorderInitialized()) {
+                    System.out.println("  ✓ Lexing, parsing and evaluating do not initialize Flight Recorder");
+                    passed++;
+                } else {
+                    System.out.println("  ✗ An instrumented call initialized Flight Recorder");
+                    failed++;
+                }
+            }
+        } catch (ParseException e) {
+            System.out.println("  ✗ Flight Recorder initialization test failed: " + e.getMessage());
+            failed++;
+        }
+        
+        // Flight Recorder events carry the shape and outcome of each call
+        Path file = null;
+        try (Recording recording = new Recording()) {
+            recording.enable("miniexpr.Lex").withThreshold(java.time.Duration.ZERO);
+            recording.enable("miniexpr.Parse").withThreshold(java.time.Duration.ZERO);
+            recording.enable("miniexpr.Eval").withThreshold(java.time.Duration.ZERO);
+            recording.start();
+            Parser parser = new Parser(new Lexer("(a + b) * -c").tokenize());
+            new Evaluator().evaluate(parser.parse(), new int[] { 2, 3, 4 });
+            try {
+                new Evaluator().evaluate(new Parser(new Lexer("1 / 0").tokenize()).parse());
+            } catch (ArithmeticException expected) {
+                // recorded with its outcome
+            }
+            recording.stop();
+            file = Files.createTempFile("phases", ".jfr");
+            recording.dump(file);
+            
+            List<String> events = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                switch (event.getEventType().getName()) {
+                    case "miniexpr.Lex":
+                        events.add("lex " + event.getInt("inputLength") + " " + event.getInt("tokenCount") + " " + event.getString("outcome"));
+                        break;
+                    case "miniexpr.Parse":
+                        events.add("parse " + event.getInt("tokenCount") + " " + event.getInt("nodeCount") + " "
+                            + event.getInt("depth") + " " + event.getString("outcome"));
+                        break;
+                    case "miniexpr.Eval":
+                        events.add("eval " + event.getInt("nodeCount") + " " + event.getInt("depth") + " "
+                            + event.getInt("result") + " " + event.getString("outcome"));
+                        break;
+                }
+            }
+            List<String> expected = Arrays.asList(
+                "lex 12 9 ok", "parse 9 6 3 ok", "eval 6 3 -20 ok",
+                "lex 5 4 ok", "parse 4 3 2 ok", "eval 3 2 0 ArithmeticException");
+            Collections.sort(events);
+            List<String> sorted = new ArrayList<>(expected);
+            Collections.sort(sorted);
+            if (events.equals(sorted)) {
+                System.out.println("  ✓ Flight Recorder captured " + events.size() + " events with their fields");
+                passed++;
+            } else {
+                System.out.println("  ✗ Flight Recorder events were " + events);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Flight Recorder test failed: " + e);
+            failed++;
+        } finally {
+            try {
+                if (file != null) Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+        
+        System.out.println();
+    }
+    
+    static void testShape(String input, int nodes, int depth) {
+        try {
+            AstArena arena = new AstArena();
+            AstShape parsed = new AstShape(arena.builder());
+            new Parser(new Lexer(input).tokenize()).parse(parsed);
+            AstShape tree = AstShape.of(new Parser(new Lexer(input).tokenize()).parse());
+            AstShape packed = AstShape.of(arena, new Parser(new Lexer(input).tokenize()).parse(arena));
+            if (parsed.nodes() == nodes && parsed.depth() == depth && tree.nodes() == nodes && tree.depth() == depth
+                    && packed.nodes() == nodes && packed.depth() == depth) {
+                System.out.println("  ✓ " + input + " has " + nodes + " nodes, depth " + depth);
+                passed++;
+            } else {
+                System.out.println("  ✗ " + input + " expected " + nodes + "/" + depth + " but got " + parsed.nodes() + "/"
+                    + parsed.depth() + ", " + tree.nodes() + "/" + tree.depth() + ", " + packed.nodes() + "/" + packed.depth());
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Shape of " + input + " failed: " + e);
+            failed++;
+        }
+    }
+    
+    static void testExpressionServer() {
+        printHeader("EXPRESSION SERVER TESTS");
+        
+        // Pipelined requests on one connection are answered in order
+        try (ExpressionServer server = new ExpressionServer(0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+            String requests = "(3 + 2) * 5\n3 +\n10 / 0\n   \n7 * x\n-(2 - 9)\r\n";
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            List<String> responses = new ArrayList<>();
+            for (int i = 0; i < 6; i++) responses.add(in.readLine());
+            List<String> expected = Arrays.asList("25", "Parse Error: Unexpected token '' at position 3",
+                "Arithmetic Error: / by zero", "Error: Empty input provided", "Error: Unbound variable 'x'", "7");
+            if (responses.equals(expected)) {
+                System.out.println("  ✓ 6 pipelined requests answered in order");
+                passed++;
+            } else {
+                System.out.println("  ✗ Pipelined requests were answered with " + responses);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Pipelining test failed: " + e);
+            failed++;
+        }
+        
+        // Many concurrent, pipelining connections all get the right answers
+        try (ExpressionServer server = new ExpressionServer(0, new ExpressionCache(16, 1 << 16))) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+            LoadTestClient.Result result = LoadTestClient.run(address, 8, 2000, 16);
+            if (result.requests == 16_000 && result.wrong == 0 && result.percentileNanos(99) <= result.percentileNanos(100)) {
+                System.out.println("  ✓ 8 connections × 2000 requests, all correct ("
+                    + (server.usesVirtualThreads() ? "virtual" : "platform") + " threads)");
+                passed++;
+            } else {
+                System.out.println("  ✗ Load test gave " + result);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Load test failed: " + e);
+            failed++;
+        }
+        
+        // Closing answers the requests already received, then refuses new connections
+        try {
+            ExpressionServer server = new ExpressionServer(0);
+            int port = server.port();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.getOutputStream().write("1 + 1\n2 * 3\n".getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String first = in.readLine();
+                socket.getOutputStream().write("10 - 4\n".getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+                Thread.sleep(20);
+                server.close();
+                String second = in.readLine();
+                String third = in.readLine();
+                String end = in.readLine();
+                
+                boolean refused;
+                try (Socket late = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    refused = !late.isConnected();
+                } catch (ConnectException e) {
+                    refused = true;
+                }
+                if ("2".equals(first) && "6".equals(second) && "6".equals(third) && end == null && refused) {
+                    System.out.println("  ✓ Graceful shutdown answered every received request, then closed");
+                    passed++;
+                } else {
+                    System.out.println("  ✗ Shutdown gave " + first + ", " + second + ", " + third + ", " + end + ", refused=" + refused);
+                    failed++;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Shutdown test failed: " + e);
+            failed++;
+        }
+        
+        // A line interrupted by a read timeout is completed by the next read
+        try {
+            Deque<Object> chunks = new ArrayDeque<>(Arrays.asList("1 + ", new SocketTimeoutException(), "2\r\n3", new SocketTimeoutException(), " * 4"));
+            InputStream stream = new InputStream() {
+                public int read() { throw new UnsupportedOperationException(); }
+                public int read(byte[] b, int off, int len) throws IOException {
+                    Object next = chunks.poll();
+                    if (next == null) return -1;
+                    if (next instanceof IOException) throw (IOException) next;
+                    byte[] bytes = ((String) next).getBytes(StandardCharsets.US_ASCII);
+                    System.arraycopy(bytes, 0, b, off, bytes.length);
+                    return bytes.length;
+                }
+            };
+            ExpressionServer.LineReader reader = new ExpressionServer.LineReader(stream);
+            List<String> lines = new ArrayList<>();
+            int timeouts = 0;
+            while (true) {
+                try {
+                    String line = reader.readLine();
+                    if (line == null) break;
+                    lines.add(line);
+                } catch (SocketTimeoutException e) {
+                    timeouts++;
+                }
+            }
+            if (lines.equals(Arrays.asList("1 + 2", "3 * 4")) && timeouts == 2) {
+                System.out.println("  ✓ Lines split by read timeouts are reassembled");
+                passed++;
+            } else {
+                System.out.println("  ✗ Reader returned " + lines + " after " + timeouts + " timeouts");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Line reader test failed: " + e);
+            failed++;
+        }
+        
+        // A long line arriving in small pieces is scanned for its newline once, not once per piece
+        try {
+            String longLine = "1" + repeat(" + 1", 100_000);
+            Deque<String> chunks = new ArrayDeque<>();
+            for (int i = 0; i < longLine.length(); i += 64) chunks.add(longLine.substring(i, Math.min(i + 64, longLine.length())));
+            chunks.add("\r");
+            chunks.add("\n2 * 3\n");
+            InputStream stream = new InputStream() {
+                public int read() { throw new UnsupportedOperationException(); }
+                public int read(byte[] b, int off, int len) {
+                    String next = chunks.poll();
+                    if (next == null) return -1;
+                    byte[] bytes = next.getBytes(StandardCharsets.US_ASCII);
+                    System.arraycopy(bytes, 0, b, off, bytes.length);
+                    return bytes.length;
+                }
+            };
+            ExpressionServer.LineReader reader = new ExpressionServer.LineReader(stream);
+            long t0 = System.nanoTime();
+            String first = reader.readLine();
+            String second = reader.readLine();
+            String third = reader.readLine();
+            long ms = (System.nanoTime() - t0) / 1_000_000;
+            if (longLine.equals(first) && "2 * 3".equals(second) && third == null) {
+                System.out.println("  ✓ A " + longLine.length() + "-byte line in 64-byte pieces read in " + ms + " ms");
+                passed++;
+            } else {
+                System.out.println("  ✗ Reader returned lines of " + (first == null ? -1 : first.length()) + " bytes, " + second + ", " + third);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Long line reader test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testIncrementalParser() {
+        printHeader("INCREMENTAL PARSER TESTS");
+        
+        testIncremental("(3 + 2) * 5", 1, 1, "13", "(13 + 2) * 5");
+        testIncremental("12 + 4", 2, 0, "3", "123 + 4");
+        testIncremental("a b", 1, 1, "", "ab");
+        testIncremental("x + y", 0, 0, "  z * ", "  z * x + y");
+        testIncremental("1 + 2", 5, 0, " * 3", "1 + 2 * 3");
+        testIncremental("1 + 2 * 3", 2, 1, "-", "1 - 2 * 3");
+        testIncremental("(1 + 2", 6, 0, ")", "(1 + 2)");
+        testIncremental("1 + 2", 2, 1, "$", "1 $ 2");
+        
+        // Randomized edits always agree with a full parse
+        try {
+            Random random = new Random(14);
+            String[] snippets = { "1", "23", "x", "yz", " ", "+", "-", "*", "/", "(", ")", " + 7", "(a * ", ") - 2", "$", "" };
+            int edits = 0;
+            int mismatches = 0;
+            String firstMismatch = null;
+            for (int round = 0; round < 60 && mismatches == 0; round++) {
+                StringBuilder base = new StringBuilder(randomExpression(random, 3));
+                int terms = 1 + random.nextInt(60);
+                for (int t = 0; t < terms; t++) {
+                    base.append(new String[] { " + ", " - ", " * ", " / " }[random.nextInt(4)]).append(randomExpression(random, 3));
+                }
+                String text = base.toString();
+                IncrementalParser parser = new IncrementalParser();
+                String actual = incrementalOutcome(parser, () -> parser.parse(text));
+                if (!actual.equals(parseOutcome(text))) mismatches++;
+                
+                for (int e = 0; e < 300 && mismatches == 0; e++) {
+                    String current = parser.text();
+                    int offset = random.nextInt(current.length() + 1);
+                    int deleted = random.nextInt(Math.min(4, current.length() - offset) + 1);
+                    String inserted = random.nextInt(3) == 0 ? "" : snippets[random.nextInt(snippets.length)];
+                    actual = incrementalOutcome(parser, () -> parser.edit(offset, deleted, inserted));
+                    String expected = parseOutcome(parser.text());
+                    edits++;
+                    if (!actual.equals(expected)) {
+                        mismatches++;
+                        firstMismatch = "\"" + current + "\" edit(" + offset + ", " + deleted + ", \"" + inserted + "\")";
+                    }
+                    // Keep the text from running away in length
+                    if (parser.text().length() > 4 * text.length() + 40) break;
+                }
+            }
+            if (mismatches == 0) {
+                System.out.println("  ✓ " + edits + " random edits match a full parse (tokens, AST, slots, errors)");
+                passed++;
+            } else {
+                System.out.println("  ✗ Incremental result differs after " + firstMismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized incremental test failed: " + e);
+            failed++;
+        }
+        
+        // Tokens stay as parsed: a tree kept from before an edit does not change, and the parser knows where they are now
+        try {
+            IncrementalParser parser = new IncrementalParser();
+            String text = repeat("1 + ", 200) + "2";
+            BinaryExpr before = (BinaryExpr) parser.parse(text);
+            int parsedAt = before.operator.position;
+            BinaryExpr after = (BinaryExpr) parser.edit(0, 0, "100000 * ");
+            BinaryExpr full = (BinaryExpr) new Parser(new Lexer(parser.text()).tokenize()).parse();
+            if (before.operator.position == parsedAt && parsedAt == text.length() - 3
+                    && parser.position(after.operator) == full.operator.position && full.operator.position == parsedAt + 9) {
+                System.out.println("  ✓ Kept tree unchanged by an edit; parser places its operator at " + parser.position(after.operator));
+                passed++;
+            } else {
+                System.out.println("  ✗ Operator moved from " + parsedAt + " to " + before.operator.position
+                    + ", parser places it at " + parser.position(after.operator) + " instead of " + full.operator.position);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Kept tree test failed: " + e);
+            failed++;
+        }
+        
+        // An edit anywhere in a long expression lexes and parses only the tokens around it
+        try {
+            IncrementalParser parser = new IncrementalParser();
+            String text = "1" + repeat(" + 1", 99_999);
+            parser.parse(text);
+            Expr expr = parser.edit(text.length(), 0, " * 2");
+            int lexedAtEnd = parser.relexedTokens();
+            int parsedAtEnd = parser.reparsedTokens();
+            expr = parser.edit(text.length() + 4, 0, "0");
+            lexedAtEnd = Math.max(lexedAtEnd, parser.relexedTokens());
+            parsedAtEnd = Math.max(parsedAtEnd, parser.reparsedTokens());
+            int value = new Evaluator().evaluate(expr);
+            
+            expr = parser.edit(0, 1, "5");
+            int parsedAtStart = parser.reparsedTokens();
+            int lexedAtStart = parser.relexedTokens();
+            // "1 + 1" in the middle becomes "1 + 1 - 1"
+            expr = parser.edit(4 * 50_000 + 1, 0, " - 1");
+            int parsedInMiddle = parser.reparsedTokens();
+            int edited = new Evaluator().evaluate(expr);
+            StringBuilder incremental = new StringBuilder();
+            StringBuilder full = new StringBuilder();
+            new AstPrinter(incremental, AstPrinter.Format.JSON).print(expr);
+            new AstPrinter(full, AstPrinter.Format.JSON).print(new Parser(new Lexer(parser.text()).tokenize()).parse());
+            boolean same = incremental.toString().equals(full.toString());
+            if (value == 99_999 + 20 && lexedAtEnd <= 3 && parsedAtEnd < 100 && lexedAtStart <= 2 && parsedAtStart < 100
+                    && parsedInMiddle < 100 && edited == value + 4 - 1 && same) {
+                System.out.println("  ✓ Edits to a 200,000-token expression: end lexes " + lexedAtEnd + " and parses "
+                    + parsedAtEnd + " tokens, start parses " + parsedAtStart + ", middle " + parsedInMiddle);
+                passed++;
+            } else {
+                System.out.println("  ✗ Edit costs were lexed " + lexedAtEnd + "/" + lexedAtStart + ", parsed "
+                    + parsedAtEnd + "/" + parsedAtStart + "/" + parsedInMiddle + ", value " + value + "/" + edited + ", same tree " + same);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Long expression test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    interface ParseStep {
+        Expr run() throws ParseException;
+    }
+    
+    static void testIncremental(String before, int offset, int deleted, String inserted, String after) {
+        try {
+            IncrementalParser parser = new IncrementalParser();
+            try {
+                parser.parse(before);
+            } catch (ParseException | RuntimeException e) {
+                // Editing starts from the invalid text
+            }
+            String actual = incrementalOutcome(parser, () -> parser.edit(offset, deleted, inserted));
+            String expected = parseOutcome(after);
+            if (parser.text().equals(after) && actual.equals(expected)) {
+                System.out.println("  ✓ \"" + before + "\" → \"" + after + "\" matches a full parse");
+                passed++;
+            } else {
+                System.out.println("  ✗ \"" + before + "\" → \"" + parser.text() + "\" gave " + actual + " instead of " + expected);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Incremental edit of \"" + before + "\" failed: " + e);
+            failed++;
+        }
+    }
+    
+    // Everything a parse produces, or its error, as one comparable string
+    static String incrementalOutcome(IncrementalParser parser, ParseStep step) {
+        try {
+            Expr expr = step.run();
+            return describe(parser.tokens(), expr, parser.slots(), parser::position);
+        } catch (ParseException e) {
+            return "ParseException: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+    
+    static String parseOutcome(String text) {
+        try {
+            List<Token> tokens = new Lexer(text).tokenize();
+            Parser parser = new Parser(tokens);
+            Expr expr = parser.parse();
+            return describe(tokens, expr, parser.slots(), t -> t.position);
+        } catch (ParseException e) {
+            return "ParseException: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+    
+    // Operator positions come from position, since an incremental tree keeps the ones they were parsed at
+    static String describe(List<Token> tokens, Expr expr, SlotTable slots, ToIntFunction<Token> position) {
+        StringBuilder sb = new StringBuilder();
+        for (Token t : tokens) sb.append(t.type).append(' ').append(t.lexeme).append(' ').append(t.intValue).append('@').append(t.position).append(' ');
+        sb.append('\n').append(slots).append('\n');
+        describe(expr, sb, position);
+        return sb.toString();
+    }
+    
+    static void describe(Expr e, StringBuilder sb, ToIntFunction<Token> position) {
+        if (e instanceof NumberExpr) {
+            sb.append(((NumberExpr) e).value);
+        } else if (e instanceof VariableExpr) {
+            sb.append(((VariableExpr) e).name).append('#').append(((VariableExpr) e).slot);
+        } else if (e instanceof UnaryExpr) {
+            UnaryExpr u = (UnaryExpr) e;
+            sb.append('(').append(u.operator.lexeme).append('@').append(position.applyAsInt(u.operator)).append(' ');
+            describe(u.right, sb, position);
+            sb.append(')');
+        } else {
+            BinaryExpr b = (BinaryExpr) e;
+            sb.append('(');
+            describe(b.left, sb, position);
+            sb.append(' ').append(b.operator.lexeme).append('@').append(position.applyAsInt(b.operator)).append(' ');
+            describe(b.right, sb, position);
+            sb.append(')');
+        }
+    }
+    
+    // ===== EXACT ARITHMETIC TESTS =====
+    static void testExactArithmetic() {
+        printHeader("EXACT ARITHMETIC TESTS");
+        
+        testExact("(3 + 2) * 5", "25");
+        testExact("2147483647 + 1", "2147483648");
+        testExact("-2147483647 - 1 - 1", "-2147483649");
+        testExact("65536 * 65536", "4294967296");
+        testExact("99999999999 * 99999999999", "9999999999800000000001");
+        testExact("9223372036854775807 + 1", "9223372036854775808");
+        testExact("-(9223372036854775807) - 1 - 1", "-9223372036854775809");
+        testExact("(9223372036854775807 + 1) - 1", "9223372036854775807");
+        testExact("(-(9223372036854775807) - 1) / (-1)", "9223372036854775808");
+        testExact("-(-(9223372036854775807) - 1)", "9223372036854775808");
+        testExact("123456789012345678901234567890 / 1000000000000000000000", "123456789");
+        testExact("-7 / 2", "-3");
+        testExact("10 / 0", "ArithmeticException: / by zero");
+        testExact("99999999999999999999 / (5 - 5)", "ArithmeticException: / by zero");
+        testExact("(99999999999999999999 - 99999999999999999999) * 5", "0");
+        
+        // The result type follows the value: Long when it fits, BigInteger when not
+        try {
+            ExactEvaluator exact = new ExactEvaluator();
+            Number small = exact.evaluate(new Parser(new Lexer("2147483647 * 2", true).tokenize()).parse());
+            Number large = exact.evaluate(new Parser(new Lexer("9223372036854775807 * 2", true).tokenize()).parse());
+            Number back = exact.evaluate(new Parser(new Lexer("9223372036854775807 * 2 / 4", true).tokenize()).parse());
+            if (small instanceof Long && large instanceof java.math.BigInteger && back instanceof Long) {
+                System.out.println("  ✓ Results are Long unless they need a BigInteger, and demote again");
+                passed++;
+            } else {
+                System.out.println("  ✗ Result types were " + small.getClass().getSimpleName() + ", "
+                    + large.getClass().getSimpleName() + ", " + back.getClass().getSimpleName());
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Result type test failed: " + e);
+            failed++;
+        }
+        
+        // Big literals are opt-in: the default lexer still rejects them
+        try {
+            new Lexer("99999999999").tokenize();
+            System.out.println("  ✗ Default lexer accepted 99999999999");
+            failed++;
+        } catch (RuntimeException e) {
+            System.out.println("  ✓ Default lexer still rejects 99999999999: " + e.getMessage());
+            passed++;
+        }
+        try {
+            new Evaluator().evaluate(new Parser(new Lexer("99999999999 + 1", true).tokenize()).parse());
+            System.out.println("  ✗ Int evaluator accepted a big literal");
+            failed++;
+        } catch (RuntimeException e) {
+            System.out.println("  ✓ Int evaluator rejects a big literal: " + e.getMessage());
+            passed++;
+        } catch (ParseException e) {
+            System.out.println("  ✗ Big literal failed to parse: " + e.getMessage());
+            failed++;
+        }
+        
+        // Variables hold ints, but their combinations may not
+        try {
+            Parser parser = new Parser(new Lexer("x * y * z", true).tokenize(), slotsFor("x", "y", "z"));
+            Expr expr = parser.parse();
+            int[] slots = { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+            String actual = exactOutcome(new ExactEvaluator(), expr, slots);
+            String expected = java.math.BigInteger.valueOf(Integer.MIN_VALUE).pow(3).toString();
+            if (actual.equals(expected)) {
+                System.out.println("  ✓ \"x * y * z\" with x = y = z = -2147483648 → " + actual);
+                passed++;
+            } else {
+                System.out.println("  ✗ \"x * y * z\" expected " + expected + " but got " + actual);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Exact variable test failed: " + e);
+            failed++;
+        }
+        
+        // Randomized: agrees with BigInteger arithmetic, and with the int evaluator when nothing overflows
+        try {
+            Random random = new Random(15);
+            int[][] rows = {
+                { 0, 0, 0 }, { 1, -1, 2 }, { 2147483647, -2147483648, 3 }, { -2147483648, -1, 2147483647 },
+            };
+            ExactEvaluator exact = new ExactEvaluator();
+            Evaluator evaluator = new Evaluator();
+            int checked = 0;
+            int promoted = 0;
+            boolean ok = true;
+            for (int n = 0; n < 3000 && ok; n++) {
+                String source = randomExpression(random, 6);
+                if (random.nextInt(4) == 0) source = source.replace("2147483647", "98765432109876543210");
+                Parser parser = new Parser(new Lexer(source, true).tokenize(), slotsFor("a", "b", "c"));
+                Expr expr = parser.parse();
+                for (int[] row : rows) {
+                    String expected = bigOutcome(expr, row);
+                    String actual = exactOutcome(exact, expr, row);
+                    if (!expected.equals(actual)) {
+                        System.out.println("  ✗ \"" + source + "\" with " + Arrays.toString(row) + ": " + expected + " but exact gave " + actual);
+                        ok = false;
+                        break;
+                    }
+                    if (!fitsInIntThroughout(expr, row)) {
+                        promoted++;
+                    } else if (!actual.equals(outcome(evaluator, expr, row))) {
+                        System.out.println("  ✗ \"" + source + "\" with " + Arrays.toString(row) + ": exact " + actual
+                            + " but int gave " + outcome(evaluator, expr, row));
+                        ok = false;
+                        break;
+                    }
+                    checked++;
+                }
+            }
+            if (ok) {
+                System.out.println("  ✓ 3000 random expressions agree on " + checked + " evaluations (" + promoted + " left the int range)");
+                passed++;
+            } else {
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized exact test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testExact(String input, String expected) {
+        try {
+            Expr expr = new Parser(new Lexer(input, true).tokenize()).parse();
+            String actual = exactOutcome(new ExactEvaluator(), expr, new int[0]);
+            if (actual.equals(expected)) {
+                System.out.println("  ✓ Exact \"" + input + "\" → " + actual);
+                passed++;
+            } else {
+                System.out.println("  ✗ Exact \"" + input + "\" expected " + expected + " but got " + actual);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Exact \"" + input + "\" failed: " + e.getMessage());
+            failed++;
+        }
+    }
+    
+    static String exactOutcome(ExactEvaluator exact, Expr expr, int[] slots) {
+        try {
+            return exact.evaluate(expr, slots).toString();
+        } catch (ArithmeticException e) {
+            return "ArithmeticException: " + e.getMessage();
+        }
+    }
+    
+    // The value of an expression in BigInteger arithmetic, or its division by zero
+    static String bigOutcome(Expr expr, int[] slots) {
+        try {
+            return bigValue(expr, slots).toString();
+        } catch (ArithmeticException e) {
+            return "ArithmeticException: / by zero";
+        }
+    }
+    
+    static java.math.BigInteger bigValue(Expr e, int[] slots) {
+        if (e instanceof NumberExpr) return java.math.BigInteger.valueOf(((NumberExpr) e).value);
+        if (e instanceof BigNumberExpr) return ((BigNumberExpr) e).value;
+        if (e instanceof VariableExpr) return java.math.BigInteger.valueOf(slots[((VariableExpr) e).slot]);
+        if (e instanceof UnaryExpr) return bigValue(((UnaryExpr) e).right, slots).negate();
+        BinaryExpr b = (BinaryExpr) e;
+        java.math.BigInteger l = bigValue(b.left, slots);
+        java.math.BigInteger r = bigValue(b.right, slots);
+        switch (b.operator.type) {
+            case PLUS: return l.add(r);
+            case MINUS: return l.subtract(r);
+            case STAR: return l.multiply(r);
+            default: return l.divide(r);
+        }
+    }
+    
+    // True if every intermediate value is an int, so the int evaluator cannot have wrapped
+    static boolean fitsInIntThroughout(Expr e, int[] slots) {
+        if (e instanceof BigNumberExpr) return false;
+        if (e instanceof UnaryExpr && !fitsInIntThroughout(((UnaryExpr) e).right, slots)) return false;
+        if (e instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr) e;
+            if (!fitsInIntThroughout(b.left, slots) || !fitsInIntThroughout(b.right, slots)) return false;
+        }
+        try {
+            return bigValue(e, slots).bitLength() < 32;
+        } catch (ArithmeticException ex) {
+            return true;
+        }
+    }
+    
+    // ===== PARALLEL EVALUATION TESTS =====
+    static void testParallelEvaluator() {
+        printHeader("PARALLEL EVALUATION TESTS");
+        
+        // Subtree sizes are recorded as the tree is built
+        try {
+            Expr expr = new Parser(new Lexer("(3 + 2) * -x").tokenize()).parse();
+            BinaryExpr b = (BinaryExpr) expr;
+            if (expr.size() == 6 && b.left.size() == 3 && b.right.size() == 2) {
+                System.out.println("  ✓ \"(3 + 2) * -x\" has size 6, operands 3 and 2");
+                passed++;
+            } else {
+                System.out.println("  ✗ Sizes were " + expr.size() + ", " + b.left.size() + ", " + b.right.size());
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Size test failed: " + e);
+            failed++;
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Random random = new Random(16);
+            testParallel("Balanced tree of 262,144 leaves", balancedExpression(random, 18), pool);
+            testParallel("Chain of 200,000 additions", "x" + repeat(" + 7 * x - 3", 100_000), pool);
+            testParallel("200,000 nested right operands", repeat("(x - ", 200_000) + "1" + repeat(")", 200_000), pool);
+            testParallel("100,000 nested negations", repeat("-(", 100_000) + "x + 1" + repeat(")", 100_000), pool);
+            testParallel("Chain of balanced subtrees", balancedExpression(random, 10) + repeat(" * " + balancedExpression(random, 10), 200), pool);
+            testParallel("Division by zero at the far right", balancedExpression(random, 16) + " + 1 / (x - x)", pool);
+            
+            // Randomized: same values and the same first error, with a threshold small enough to split everything
+            ParallelEvaluator parallel = new ParallelEvaluator(pool, 2);
+            Evaluator evaluator = new Evaluator();
+            int[][] rows = { { 0, 0, 0 }, { 1, -1, 2 }, { 2147483647, -2147483648, 3 }, { 5 }, {} };
+            int checked = 0;
+            String mismatch = null;
+            for (int n = 0; n < 3000 && mismatch == null; n++) {
+                String source = randomExpression(random, 7);
+                Expr expr = new Parser(new Lexer(source).tokenize(), slotsFor("a", "b", "c")).parse();
+                for (int[] row : rows) {
+                    String expected = evalOutcome(() -> evaluator.evaluate(expr, row));
+                    String actual = evalOutcome(() -> parallel.evaluate(expr, row));
+                    if (!expected.equals(actual)) {
+                        mismatch = "\"" + source + "\" with " + Arrays.toString(row) + ": " + expected + " but parallel gave " + actual;
+                        break;
+                    }
+                    checked++;
+                }
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 3000 random expressions agree on " + checked + " evaluations, errors included");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Parallel evaluation test failed: " + e);
+            failed++;
+        } finally {
+            pool.shutdown();
+        }
+        
+        System.out.println();
+    }
+    
+    interface IntStep {
+        int run();
+    }
+    
+    // The value, or the type and message of the error thrown
+    static String evalOutcome(IntStep step) {
+        try {
+            return String.valueOf(step.run());
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+    
+    static void testParallel(String label, String source, ForkJoinPool pool) {
+        try {
+            Parser parser = new Parser(new Lexer(source).tokenize(), slotsFor("x"));
+            Expr expr = parser.parse();
+            int[] slots = { 3 };
+            String expected = evalOutcome(() -> new Evaluator().evaluate(expr, slots));
+            String small = evalOutcome(() -> new ParallelEvaluator(pool, 64).evaluate(expr, slots));
+            String standard = evalOutcome(() -> new ParallelEvaluator(pool, ParallelEvaluator.DEFAULT_THRESHOLD).evaluate(expr, slots));
+            if (expected.equals(small) && expected.equals(standard)) {
+                System.out.println("  ✓ " + label + " (" + expr.size() + " nodes) → " + expected);
+                passed++;
+            } else {
+                System.out.println("  ✗ " + label + " expected " + expected + " but got " + small + " / " + standard);
+                failed++;
+            }
+        } catch (Throwable e) {
+            System.out.println("  ✗ " + label + " failed: " + e);
+            failed++;
+        }
+    }
+    
+    // A complete binary tree of the given depth over x and small literals, without division
+    static String balancedExpression(Random random, int depth) {
+        StringBuilder sb = new StringBuilder();
+        balancedExpression(random, depth, sb);
+        return sb.toString();
+    }
+    
+    private static void balancedExpression(Random random, int depth, StringBuilder sb) {
+        if (depth == 0) {
+            if (random.nextBoolean()) sb.append('x');
+            else sb.append(random.nextInt(10));
+            return;
+        }
+        sb.append('(');
+        balancedExpression(random, depth - 1, sb);
+        sb.append(new String[] { " + ", " - ", " * " }[random.nextInt(3)]);
+        balancedExpression(random, depth - 1, sb);
+        sb.append(')');
+    }
+    
+    // ===== COLUMN EVALUATION TESTS =====
+    static void testColumnEvaluator() {
+        printHeader("COLUMN EVALUATION TESTS");
+        
+        Random random = new Random(17);
+        int rows = 3 * ColumnEvaluator.BLOCK + 17;
+        int[][] columns = new int[3][rows];
+        for (int[] column : columns) {
+            for (int i = 0; i < rows; i++) column[i] = random.nextInt(5) == 0 ? random.nextInt() : random.nextInt(200) - 100;
+        }
+        int[][] nonZero = new int[3][];
+        for (int c = 0; c < 3; c++) {
+            nonZero[c] = columns[c].clone();
+            for (int i = 0; i < rows; i++) if (nonZero[c][i] == 0) nonZero[c][i] = 1;
+        }
+        
+        testColumns("a * (b + 3) - c / 2", nonZero);
+        testColumns("-(a - b) * -c", columns);
+        testColumns("a", columns);
+        testColumns("(3 + 2) * 5", columns);
+        testColumns("100 / a + 1000 / (b * b + 1)", nonZero);
+        testColumns("(a * a * a - 2147483647) * b", columns);
+        
+        // The first row with a zero divisor is reported, and the rows before it are filled
+        try {
+            int[][] inputs = { nonZero[0].clone(), nonZero[1].clone() };
+            inputs[1][2500] = 0;
+            inputs[0][2600] = 0;
+            Expr expr = new Parser(new Lexer("a / (b * 2) + b / a").tokenize(), slotsFor("a", "b")).parse();
+            int[] out = new int[rows];
+            try {
+                new ColumnEvaluator(expr).evaluate(inputs, out);
+                System.out.println("  ✗ Division by zero in row 2500 was not reported");
+                failed++;
+            } catch (ColumnEvaluator.DivisionByZero e) {
+                boolean filled = true;
+                for (int i = 0; i < e.row; i++) {
+                    if (out[i] != new Evaluator().evaluate(expr, new int[] { inputs[0][i], inputs[1][i] })) filled = false;
+                }
+                if (e.row == 2500 && filled && e.getMessage().equals("/ by zero at row 2500")) {
+                    System.out.println("  ✓ " + e.getMessage() + ", earlier rows evaluated");
+                    passed++;
+                } else {
+                    System.out.println("  ✗ Reported " + e.getMessage() + (filled ? "" : ", earlier rows wrong"));
+                    failed++;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Column division test failed: " + e);
+            failed++;
+        }
+        
+        // Too few columns, or columns that are too short, are rejected up front
+        try {
+            Expr expr = new Parser(new Lexer("a + b").tokenize()).parse();
+            new ColumnEvaluator(expr).evaluate(new int[][] { new int[10], new int[5] }, new int[10]);
+            System.out.println("  ✗ A short column was accepted");
+            failed++;
+        } catch (IllegalArgumentException e) {
+            System.out.println("  ✓ Short column rejected: " + e.getMessage());
+            passed++;
+        } catch (Exception e) {
+            System.out.println("  ✗ Short column test failed: " + e);
+            failed++;
+        }
+        
+        // Randomized: every row agrees with the Evaluator, including the first division by zero
+        try {
+            int[][] small = new int[3][300];
+            for (int[] column : small) for (int i = 0; i < 300; i++) column[i] = random.nextInt(7) - 3;
+            small[0][7] = 2147483647;
+            small[1][8] = -2147483648;
+            Evaluator evaluator = new Evaluator();
+            String mismatch = null;
+            int errors = 0;
+            for (int n = 0; n < 2000 && mismatch == null; n++) {
+                String source = randomExpression(random, 5);
+                Expr expr = new Parser(new Lexer(source).tokenize(), slotsFor("a", "b", "c")).parse();
+                int[] out = new int[300];
+                int failedRow = -1;
+                try {
+                    new ColumnEvaluator(expr).evaluate(small, out);
+                } catch (ColumnEvaluator.DivisionByZero e) {
+                    failedRow = e.row;
+                    errors++;
+                }
+                for (int i = 0; i < 300; i++) {
+                    String expected = outcome(evaluator, expr, new int[] { small[0][i], small[1][i], small[2][i] });
+                    String actual = i == failedRow ? "ArithmeticException: / by zero" : String.valueOf(out[i]);
+                    if (!expected.equals(actual)) {
+                        mismatch = "\"" + source + "\" row " + i + ": " + expected + " but columns gave " + actual;
+                        break;
+                    }
+                    if (i == failedRow) break;
+                }
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 2000 random expressions agree over 300 rows (" + errors + " stopped at a division by zero)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized column test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testColumns(String input, int[][] columns) {
+        try {
+            Expr expr = new Parser(new Lexer(input).tokenize(), slotsFor("a", "b", "c")).parse();
+            int rows = columns[0].length;
+            int[] out = new int[rows];
+            new ColumnEvaluator(expr).evaluate(columns, out);
+            Evaluator evaluator = new Evaluator();
+            int wrong = 0;
+            for (int i = 0; i < rows; i++) {
+                if (out[i] != evaluator.evaluate(expr, new int[] { columns[0][i], columns[1][i], columns[2][i] })) wrong++;
+            }
+            if (wrong == 0) {
+                System.out.println("  ✓ \"" + input + "\" over " + rows + " rows matches the Evaluator");
+                passed++;
+            } else {
+                System.out.println("  ✗ \"" + input + "\" differs from the Evaluator in " + wrong + " rows");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ \"" + input + "\" over columns failed: " + e);
+            failed++;
+        }
+    }
+    
+    // ===== DIAGNOSTICS TESTS =====
+    static void testDiagnostics() {
+        printHeader("DIAGNOSTICS TESTS");
+        
+        testDiagnosed("(3 + 2) * 5");
+        testDiagnosed("3 + * 4", "UNEXPECTED_TOKEN@4");
+        testDiagnosed("(3 + * 4", "UNEXPECTED_TOKEN@5", "MISSING_PAREN@8");
+        testDiagnosed("3 4 5 + * 6", "UNEXPECTED_TOKEN@2", "UNEXPECTED_TOKEN@8");
+        testDiagnosed("3 (4 + 5) * 2 )", "UNEXPECTED_TOKEN@2", "UNEXPECTED_TOKEN@14");
+        testDiagnosed("((1 + 2) * (3 4) + (5", "MISSING_PAREN@14", "MISSING_PAREN@21");
+        testDiagnosed("--4 + 3--2", "UNARY_SEQUENCE@1", "AMBIGUOUS_OPERATORS@8");
+        testDiagnosed("7 $ 3 # 1", "UNEXPECTED_CHARACTER@2", "UNEXPECTED_CHARACTER@6");
+        testDiagnosed("99999999999 + 1", "NUMBER_OUT_OF_RANGE@0");
+        testDiagnosed(")", "UNEXPECTED_TOKEN@0");
+        testDiagnosed("(", "UNEXPECTED_TOKEN@1");
+        
+        // Randomized: the first diagnostic is what the throwing pipeline reports, and valid input parses the same
+        try {
+            Random random = new Random(18);
+            String[] pieces = { "1", "23", "x", "y", " ", " ", "+", "-", "*", "/", "(", ")", "$", "99999999999" };
+            int invalid = 0;
+            int reported = 0;
+            String mismatch = null;
+            for (int n = 0; n < 20000 && mismatch == null; n++) {
+                StringBuilder sb = new StringBuilder();
+                int length = random.nextInt(12);
+                for (int i = 0; i < length; i++) sb.append(pieces[random.nextInt(pieces.length)]);
+                String source = sb.toString();
+                
+                String expected;
+                try {
+                    List<Token> tokens = new Lexer(source).tokenize();
+                    SlotTable slots = new SlotTable();
+                    Expr expr = new Parser(tokens, slots).parse();
+                    expected = describe(tokens, expr, slots, t -> t.position);
+                } catch (ParseException e) {
+                    expected = "Parse Error: " + e.getMessage();
+                } catch (RuntimeException e) {
+                    expected = "Error: " + e.getMessage();
+                }
+                ParseResult result = ParseResult.parse(source);
+                String actual;
+                if (result.ok()) {
+                    actual = describe(new Lexer(source).tokenize(), result.expr(), result.slots(), t -> t.position);
+                } else {
+                    Diagnostic first = result.diagnostics().get(0);
+                    actual = (first.isLexical() ? "Error: " : "Parse Error: ") + first.message();
+                    invalid++;
+                    reported += result.diagnostics().size();
+                }
+                if (!expected.equals(actual)) mismatch = "\"" + source + "\": " + expected + " but diagnostics gave " + actual;
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 20000 random inputs match the throwing parser (" + invalid + " invalid, "
+                    + reported + " diagnostics)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized diagnostics test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    // Parses in diagnostics mode, expecting the given CODE@position diagnostics (none: a valid parse)
+    static void testDiagnosed(String input, String... expected) {
+        try {
+            ParseResult result = ParseResult.parse(input);
+            List<String> actual = new ArrayList<>();
+            for (Diagnostic d : result.diagnostics()) actual.add(d.code + "@" + d.position);
+            if (actual.equals(Arrays.asList(expected)) && result.ok() == (expected.length == 0)) {
+                System.out.println("  ✓ \"" + input + "\" → " + (result.ok() ? "ok" : String.join(", ", actual)));
+                passed++;
+            } else {
+                System.out.println("  ✗ \"" + input + "\" expected " + Arrays.asList(expected) + " but got " + result);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ \"" + input + "\" threw in diagnostics mode: " + e);
+            failed++;
+        }
+    }
+    
+    // ===== PROGRAM LIBRARY TESTS =====
+    static void testProgramLibrary() {
+        printHeader("PROGRAM LIBRARY TESTS");
+        
+        // Random expressions survive a save and load, plain and optimized, with the Evaluator's results
+        Random random = new Random(19);
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) sources.add(randomExpression(random, 1 + random.nextInt(6)));
+        Map<String, Integer> bindings = new HashMap<>();
+        bindings.put("a", 7);
+        bindings.put("b", -3);
+        bindings.put("c", 0);
+        for (boolean optimize : new boolean[] { false, true }) {
+            Path file = null;
+            try {
+                file = Files.createTempFile("library", ".mexl");
+                ProgramLibrary.compile(sources, optimize).writeTo(file);
+                ProgramLibrary loaded = ProgramLibrary.load(file);
+                String mismatch = loaded.size() == sources.size() && loaded.optimized() == optimize ? null : "wrong size or flags";
+                for (int i = 0; i < sources.size() && mismatch == null; i++) {
+                    SlotTable table = new SlotTable();
+                    Expr expr = new Parser(new Lexer(sources.get(i)).tokenize(), table).parse();
+                    int[] slots = new int[table.size()];
+                    for (int s = 0; s < slots.length; s++) slots[s] = bindings.get(table.name(s));
+                    List<String> names = loaded.variables(i);
+                    int[] loadedSlots = new int[names.size()];
+                    for (int s = 0; s < loadedSlots.length; s++) loadedSlots[s] = bindings.get(names.get(s));
+                    
+                    String expected = outcome(new Evaluator(), expr, slots);
+                    StackProgram program = loaded.program(i);
+                    String actual = evalOutcome(() -> new StackMachine().run(program, loadedSlots));
+                    if (!expected.equals(actual)) mismatch = "\"" + sources.get(i) + "\" expected " + expected + " but got " + actual;
+                }
+                if (mismatch == null) {
+                    System.out.println("  ✓ " + sources.size() + (optimize ? " optimized" : "") + " programs round trip through "
+                        + Files.size(file) + " bytes");
+                    passed++;
+                } else {
+                    System.out.println("  ✗ Library round trip: " + mismatch);
+                    failed++;
+                }
+            } catch (Exception e) {
+                System.out.println("  ✗ Library round trip failed: " + e);
+                failed++;
+            } finally {
+                try {
+                    if (file != null) Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        
+        // Damaged files are rejected rather than loaded
+        try {
+            Path file = Files.createTempFile("library", ".mexl");
+            try {
+                ProgramLibrary.compile(Arrays.asList("(x + 2) * y", "-(12 * 4) / z", "7"), false).writeTo(file);
+                byte[] good = Files.readAllBytes(file);
+                
+                byte[] flipped = good.clone();
+                flipped[flipped.length - 5] ^= 0x10;
+                testLibraryRejected("Flipped bit", file, flipped, "checksum mismatch");
+                testLibraryRejected("Truncated file", file, Arrays.copyOf(good, good.length - 3), "bad length");
+                testLibraryRejected("Header only", file, Arrays.copyOf(good, 10), "Not a program library");
+                
+                byte[] magic = good.clone();
+                magic[0] = 'X';
+                testLibraryRejected("Wrong magic", file, magic, "Not a program library");
+                
+                byte[] version = good.clone();
+                version[5] = 9;
+                testLibraryRejected("Newer version", file, version, "version 9");
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException | ParseException e) {
+            System.out.println("  ✗ Damaged library test failed: " + e);
+            failed++;
+        }
+        
+        // Invalid source is reported when the library is compiled
+        try {
+            ProgramLibrary.compile(Arrays.asList("1 + 2", "3 + * 4"), false);
+            System.out.println("  ✗ Invalid source was compiled");
+            failed++;
+        } catch (ParseException e) {
+            System.out.println("  ✓ Invalid source rejected → " + e.getMessage());
+            passed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testLibraryRejected(String label, Path file, byte[] contents, String expected) throws IOException {
+        Files.write(file, contents);
+        try {
+            ProgramLibrary.load(file);
+            System.out.println("  ✗ " + label + " was loaded");
+            failed++;
+        } catch (IOException e) {
+            if (e.getMessage().contains(expected)) {
+                System.out.println("  ✓ " + label + " rejected → " + e.getMessage());
+                passed++;
+            } else {
+                System.out.println("  ✗ " + label + " expected \"" + expected + "\" but got " + e.getMessage());
+                failed++;
+            }
+        }
+    }
+    
+    // ===== STREAMING EVALUATOR TESTS =====
+    static void testStreamingEvaluator() {
+        printHeader("STREAMING EVALUATOR TESTS");
+        
+        testStreamed("(3 + 2) * 5");
+        testStreamed("10 / 3 - (-4)");
+        testStreamed("2147483647 + 1");
+        testStreamed("a * (b - c) / 2");
+        testStreamed("1 / (c * 5)");
+        testStreamed("1 / 0 + (3 4)");
+        testStreamed("1 / 0 + x");
+        testStreamed("x + 1 / 0");
+        testStreamed("(1 + 2 * 3 $");
+        testStreamed("3 + * 4");
+        testStreamed("3--2");
+        testStreamed("-(4) * --3");
+        testStreamed("(1 + 2");
+        testStreamed("99999999999 + 1");
+        testStreamed("4 / ) + 99999999999");
+        testStreamed("");
+        
+        // Randomized: valid and invalid inputs, read through a reader that returns a few characters at a time
+        try {
+            Random random = new Random(21);
+            String[] pieces = { "1", "23", "a", "b", "c", "x", " ", " ", "+", "-", "*", "/", "(", ")", "0", "$", "99999999999" };
+            String mismatch = null;
+            int errors = 0;
+            for (int n = 0; n < 20000 && mismatch == null; n++) {
+                String source;
+                if (n % 2 == 0) {
+                    source = randomExpression(random, 1 + random.nextInt(5));
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    int length = random.nextInt(12);
+                    for (int i = 0; i < length; i++) sb.append(pieces[random.nextInt(pieces.length)]);
+                    source = sb.toString();
+                }
+                String expected = pipelineOutcome(source);
+                String actual = streamedOutcome(new TrickleReader(source, 1 + random.nextInt(3)));
+                if (!expected.equals(actual)) mismatch = "\"" + source + "\" expected " + expected + " but streamed " + actual;
+                if (!expected.startsWith("=")) errors++;
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 20000 random inputs stream to the pipeline's results (" + errors + " errors)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized streaming test failed: " + e);
+            failed++;
+        }
+        
+        // A million nested parentheses, then a long chain, neither held in memory as a whole
+        int nesting = 1_000_000;
+        testStreamedLarge("1,000,000 nested parentheses", new RepeatingReader("(", nesting, "7", ")", nesting), "=7");
+        testStreamedLarge("Right-nested subtractions", new RepeatingReader("9 - (", nesting, "1", ")", nesting), "=1");
+        testStreamedLarge("20,000,000 characters of additions", new RepeatingReader("1 + ", 5_000_000, "1", "", 0), "=5000001");
+        testStreamedLarge("Error after 20,000,000 characters", new RepeatingReader("1 + ", 5_000_000, "1 +", "", 0),
+            "ParseException: Unexpected token '' at position 20000003");
+        
+        System.out.println();
+    }
+    
+    static void testStreamed(String source) {
+        String expected = pipelineOutcome(source);
+        String actual = streamedOutcome(new StringReader(source));
+        if (expected.equals(actual)) {
+            System.out.println("  ✓ Streamed \"" + source + "\" " + actual);
+            passed++;
+        } else {
+            System.out.println("  ✗ Streamed \"" + source + "\" expected " + expected + " but got " + actual);
+            failed++;
+        }
+    }
+    
+    static void testStreamedLarge(String label, Reader in, String expected) {
+        String actual = streamedOutcome(in);
+        if (expected.equals(actual)) {
+            System.out.println("  ✓ " + label + " " + actual);
+            passed++;
+        } else {
+            System.out.println("  ✗ " + label + " expected " + expected + " but got " + actual);
+            failed++;
+        }
+    }
+    
+    // Lexer, Parser and Evaluator on the whole input, with a, b and c bound
+    static String pipelineOutcome(String source) {
+        try {
+            Expr expr = new Parser(new Lexer(source).tokenize(), slotsFor("a", "b", "c")).parse();
+            return "=" + new Evaluator().evaluate(expr, new int[] { 7, -3, 0 });
+        } catch (Exception e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+    
+    static String streamedOutcome(Reader in) {
+        try {
+            return "=" + new StreamingEvaluator().evaluate(in, slotsFor("a", "b", "c"), new int[] { 7, -3, 0 });
+        } catch (Exception e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+    
+    // Returns at most a few characters per read, so tokens are split across refills
+    static class TrickleReader extends Reader {
+        private final String source;
+        private final int step;
+        private int pos;
+        
+        TrickleReader(String source, int step) {
+            this.source = source;
+            this.step = step;
+        }
+        
+        @Override
+        public int read(char[] buffer, int off, int len) {
+            if (pos == source.length()) return -1;
+            int n = Math.min(Math.min(len, step), source.length() - pos);
+            source.getChars(pos, pos + n, buffer, off);
+            pos += n;
+            return n;
+        }
+        
+        @Override
+        public void close() { }
+    }
+    
+    // Produces prefix × n, middle, suffix × m without ever holding it as a string
+    static class RepeatingReader extends Reader {
+        private final String[] parts;
+        private final long[] counts;
+        private int part;
+        private long done;
+        private int offset;
+        
+        RepeatingReader(String prefix, long n, String middle, String suffix, long m) {
+            parts = new String[] { prefix, middle, suffix };
+            counts = new long[] { n, 1, m };
+        }
+        
+        @Override
+        public int read(char[] buffer, int off, int len) {
+            int n = 0;
+            while (n < len && part < parts.length) {
+                if (done == counts[part]) {
+                    part++;
+                    done = 0;
+                    continue;
+                }
+                String s = parts[part];
+                int k = Math.min(len - n, s.length() - offset);
+                s.getChars(offset, offset + k, buffer, off + n);
+                n += k;
+                offset += k;
+                if (offset == s.length()) {
+                    offset = 0;
+                    done++;
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+        
+        @Override
+        public void close() { }
+    }
+    
+    // ===== NODE TREE TESTS =====
+    static void testNodeTree() {
+        printHeader("NODE TREE TESTS");
+        
+        testNodeShape("(a + 2) * -3", slotsFor("a"), new int[] { 5 }, "-21",
+            "MulConstNode -3\n  SlotAddConstNode a 2\n");
+        testNodeShape("(1 + 2) * (3 + 4) - 100 / (7 - 2)", new SlotTable(), new int[0], "1", "ConstNode 1\n");
+        testNodeShape("x * (y + 3) - z / 2", slotsFor("x", "y", "z"), new int[] { 2, 4, 9 }, "10",
+            "SubNode\n  MulSlotNode x\n    SlotAddConstNode y 3\n  SlotDivConstNode z 2\n");
+        testNodeShape("-a - (b - 4) * 7", slotsFor("a", "b"), new int[] { 1, 6 }, "-15",
+            "SubNode\n  ConstSubSlotNode a 0\n  MulConstNode 7\n    SlotAddConstNode b -4\n");
+        testNodeShape("a / (b + c) - b", slotsFor("a", "b", "c"), new int[] { 9, 1, 2 }, "2",
+            "SubSlotNode b\n  SlotDivNode a\n    AddSlotNode b\n      SlotNode c\n");
+        // A node that throws stays as it was, and specializes on a later run that succeeds
+        testNodeShape("1 / a", slotsFor("a"), new int[] { 0 }, "ArithmeticException: / by zero",
+            "UninitializedNode SLASH\n  ConstNode 1\n  SlotNode a\n");
+        testNodeShape("1 / a", slotsFor("a"), new int[] { 1 }, "1", "DivSlotNode a\n  ConstNode 1\n");
+        testNodeShape("a + b", slotsFor("a", "b"), new int[] { 1 }, "RuntimeException: Unbound variable 'b'",
+            "UninitializedNode PLUS\n  SlotNode a\n  SlotNode b\n");
+        
+        // Randomized: the same results and errors as the Evaluator, run after run with changing bindings
+        try {
+            Random random = new Random(22);
+            int[] values = { 0, 1, -1, 2, 7, 100, -3, Integer.MAX_VALUE, Integer.MIN_VALUE };
+            Evaluator evaluator = new Evaluator();
+            String mismatch = null;
+            int errors = 0;
+            for (int n = 0; n < 3000 && mismatch == null; n++) {
+                String source = randomExpression(random, 1 + random.nextInt(6));
+                Expr expr = new Parser(new Lexer(source).tokenize(), slotsFor("a", "b", "c")).parse();
+                NodeTree tree = new NodeTree(expr);
+                for (int run = 0; run < 6 && mismatch == null; run++) {
+                    // Now and then c is left without a binding
+                    int[] slots = new int[random.nextInt(8) == 0 ? 2 : 3];
+                    for (int i = 0; i < slots.length; i++) {
+                        slots[i] = random.nextBoolean() ? values[random.nextInt(values.length)] : random.nextInt();
+                    }
+                    String expected = evalOutcome(() -> evaluator.evaluate(expr, slots));
+                    String actual = evalOutcome(() -> tree.evaluate(slots));
+                    if (!expected.equals(actual)) {
+                        mismatch = "\"" + source + "\" with " + Arrays.toString(slots) + " expected " + expected + " but nodes gave " + actual;
+                    }
+                    if (expected.contains("Exception")) errors++;
+                }
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 3000 random expressions, 6 runs each, match the Evaluator (" + errors + " errors)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized node tree test failed: " + e);
+            failed++;
+        }
+        
+        // Too deep to execute recursively: the Evaluator walks it instead
+        try {
+            int depth = NodeTree.MAX_DEPTH + 1000;
+            String source = "(".repeat(depth) + "a" + " + 1)".repeat(depth);
+            Expr expr = new Parser(new Lexer(source).tokenize(), slotsFor("a")).parse();
+            NodeTree tree = new NodeTree(expr);
+            int result = tree.evaluate(new int[] { 4 });
+            if (!tree.usesNodes() && result == depth + 4) {
+                System.out.println("  ✓ A tree " + depth + " deep is walked by the Evaluator = " + result);
+                passed++;
+            } else {
+                System.out.println("  ✗ A tree " + depth + " deep gave " + result + " (uses nodes: " + tree.usesNodes() + ")");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Deep node tree test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    // Evaluates once, then checks the result and what the nodes have become
+    static void testNodeShape(String source, SlotTable names, int[] slots, String expected, String nodes) {
+        try {
+            NodeTree tree = new NodeTree(new Parser(new Lexer(source).tokenize(), names).parse());
+            String result = evalOutcome(() -> tree.evaluate(slots));
+            if (result.equals(expected) && tree.toString().equals(nodes)) {
+                System.out.println("  ✓ " + source + " = " + result + " → " + tree.toString().trim().replaceAll("\n *", " / "));
+                passed++;
+            } else {
+                System.out.println("  ✗ " + source + " = " + result + ", expected " + expected + "; nodes:\n" + tree);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ " + source + " threw " + e);
+            failed++;
+        }
+    }
+    
+    // ===== AST PRINTER TESTS =====
+    static void testAstPrinter() {
+        printHeader("AST PRINTER TESTS");
+        
+        String source = "-(x * 3) + y / 2";
+        testPrinted("Indented tree", source, AstPrinter.Format.TREE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            "└─ +", "   ├─ -", "   │  └─ *", "   │     ├─ x", "   │     └─ 3", "   └─ /", "      ├─ y", "      └─ 2");
+        testPrinted("Graphviz DOT", source, AstPrinter.Format.DOT, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            "digraph AST {", "  n0 [label=\"+\"];", "  n1 [label=\"-\"];", "  n0 -> n1;", "  n2 [label=\"*\"];", "  n1 -> n2;",
+            "  n3 [label=\"x\"];", "  n2 -> n3;", "  n4 [label=\"3\"];", "  n2 -> n4;", "  n5 [label=\"/\"];", "  n0 -> n5;",
+            "  n6 [label=\"y\"];", "  n5 -> n6;", "  n7 [label=\"2\"];", "  n5 -> n7;", "}");
+        testPrinted("JSON", source, AstPrinter.Format.JSON, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            "{\"type\":\"binary\",\"op\":\"+\",\"left\":{\"type\":\"unary\",\"op\":\"-\",\"operand\":"
+            + "{\"type\":\"binary\",\"op\":\"*\",\"left\":{\"type\":\"variable\",\"name\":\"x\"},\"right\":{\"type\":\"number\",\"value\":3}}},"
+            + "\"right\":{\"type\":\"binary\",\"op\":\"/\",\"left\":{\"type\":\"variable\",\"name\":\"y\"},\"right\":{\"type\":\"number\",\"value\":2}}}");
+        
+        // Cut off below depth 1, or after three nodes
+        testPrinted("Tree, maxDepth 1", source, AstPrinter.Format.TREE, 1, Integer.MAX_VALUE,
+            "└─ +", "   ├─ -", "   │  └─ …", "   └─ /", "      ├─ …", "      └─ …");
+        testPrinted("JSON, maxNodes 3", source, AstPrinter.Format.JSON, Integer.MAX_VALUE, 3,
+            "{\"type\":\"binary\",\"op\":\"+\",\"left\":{\"type\":\"unary\",\"op\":\"-\",\"operand\":"
+            + "{\"type\":\"binary\",\"op\":\"*\",\"left\":{\"type\":\"truncated\"},\"right\":{\"type\":\"truncated\"}}},"
+            + "\"right\":{\"type\":\"truncated\"}}");
+        testPrinted("DOT, maxDepth 0", source, AstPrinter.Format.DOT, 0, Integer.MAX_VALUE,
+            "digraph AST {", "  n0 [label=\"+\"];", "  n1 [label=\"…\", shape=plaintext];", "  n0 -> n1;",
+            "  n2 [label=\"…\", shape=plaintext];", "  n0 -> n2;", "}");
+        
+        // A Writer gets the same output as a StringBuilder, in chunks; an arena tree prints like its Expr tree
+        try {
+            Random random = new Random(23);
+            AstArena arena = new AstArena();
+            boolean ok = true;
+            for (int n = 0; n < 300 && ok; n++) {
+                String randomSource = randomExpression(random, 2 + random.nextInt(9));
+                Expr expr = new Parser(new Lexer(randomSource).tokenize(), slotsFor("a", "b", "c")).parse();
+                int root = new Parser(new Lexer(randomSource).tokenize()).parse(arena);
+                for (AstPrinter.Format format : AstPrinter.Format.values()) {
+                    int maxDepth = random.nextBoolean() ? Integer.MAX_VALUE : random.nextInt(6);
+                    int maxNodes = random.nextBoolean() ? Integer.MAX_VALUE : 1 + random.nextInt(50);
+                    StringBuilder expected = new StringBuilder();
+                    StringWriter written = new StringWriter();
+                    StringBuilder fromArena = new StringBuilder();
+                    new AstPrinter(expected, format, maxDepth, maxNodes).print(expr);
+                    new AstPrinter(written, format, maxDepth, maxNodes).print(expr);
+                    new AstPrinter(fromArena, format, maxDepth, maxNodes).print(arena, root);
+                    ok = expected.toString().equals(written.toString()) && expected.toString().equals(fromArena.toString());
+                    if (!ok) System.out.println("  ✗ " + format + " output differs for \"" + randomSource + "\"");
+                }
+            }
+            if (ok) {
+                System.out.println("  ✓ 300 random trees print the same to a Writer and from an arena, in every format");
+                passed++;
+            } else {
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized printer test failed: " + e);
+            failed++;
+        }
+        
+        // Output linear in node count for DOT and JSON, and bounded by maxDepth for the tree
+        try {
+            int depth = 100_000;
+            Expr expr = new Parser(new Lexer("1" + repeat(" + 1", depth)).tokenize()).parse();
+            StringWriter json = new StringWriter();
+            new AstPrinter(json, AstPrinter.Format.JSON).print(expr);
+            StringWriter dot = new StringWriter();
+            new AstPrinter(dot, AstPrinter.Format.DOT).print(expr);
+            StringWriter tree = new StringWriter();
+            new AstPrinter(tree, AstPrinter.Format.TREE, 10, Integer.MAX_VALUE).print(expr);
+            int nodes = 2 * depth + 1;
+            long lines = tree.toString().lines().count();
+            if (json.toString().length() < 60L * nodes && dot.toString().length() < 60L * nodes && lines == 23) {
+                System.out.println("  ✓ A tree 100,000 deep: " + json.toString().length() / nodes + " JSON and "
+                    + dot.toString().length() / nodes + " DOT characters per node, " + lines + " tree lines to depth 10");
+                passed++;
+            } else {
+                System.out.println("  ✗ A tree 100,000 deep printed " + json.toString().length() + " JSON and "
+                    + dot.toString().length() + " DOT characters, " + lines + " tree lines to depth 10");
+                failed++;
+            }
+        } catch (Throwable e) {
+            System.out.println("  ✗ Printing a deep tree failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testPrinted(String label, String source, AstPrinter.Format format, int maxDepth, int maxNodes, String... lines) {
+        try {
+            Expr expr = new Parser(new Lexer(source).tokenize()).parse();
+            StringBuilder out = new StringBuilder();
+            new AstPrinter(out, format, maxDepth, maxNodes).print(expr);
+            String expected = String.join(System.lineSeparator(), lines) + System.lineSeparator();
+            if (out.toString().equals(expected)) {
+                System.out.println("  ✓ " + label + " of " + source);
+                passed++;
+            } else {
+                System.out.println("  ✗ " + label + " of " + source + ":" + System.lineSeparator() + out);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ " + label + " of " + source + " threw " + e);
+            failed++;
+        }
+    }
+    
+    // ===== EXPRESSION DAG TESTS =====
+    static void testExpressionDag() {
+        printHeader("EXPRESSION DAG TESTS");
+        
+        String[] batch = { "(a + b) * (a + b)", "(a + b) * c", "-(a + b) + 5 / (c - 2)" };
+        testDag("Shared a + b, all succeed", batch, new int[] { 3, 4, 5 }, 0);
+        testDag("Division by zero in one expression", batch, new int[] { 3, 4, 2 }, 1);
+        testDag("c unbound in two expressions", batch, new int[] { 3, 4 }, 2);
+        testDag("1 / 0 before an unbound x", new String[] { "1 / 0 + x", "x + 1 / 0", "1 / 0" }, new int[0], 3);
+        
+        // Counting: 22 tree nodes, 12 distinct
+        try {
+            SlotTable names = slotsFor("a", "b", "c");
+            List<Expr> exprs = new ArrayList<>();
+            for (String source : batch) exprs.add(new Parser(new Lexer(source).tokenize(), names).parse());
+            ExpressionDag dag = new ExpressionDag(exprs, names);
+            if (dag.treeNodes() == 22 && dag.nodes() == 12 && dag.savedEvaluations() == 10) {
+                System.out.println("  ✓ 22 tree nodes merge into 12, saving 10 evaluations per batch");
+                passed++;
+            } else {
+                System.out.println("  ✗ Expected 22 tree nodes, 12 merged, 10 saved but got " + dag.treeNodes()
+                    + ", " + dag.nodes() + ", " + dag.savedEvaluations());
+                failed++;
+            }
+            
+            // An error does not stay behind once the bindings are fixed
+            int[] out = new int[3];
+            dag.evaluate(new int[] { 1, 1, 2 }, out);
+            int failures = dag.evaluate(new int[] { 1, 1, 3 }, out);
+            if (failures == 0 && dag.error(2) == null && out[2] == 3) {
+                System.out.println("  ✓ Re-evaluated after a failure: " + Arrays.toString(out));
+                passed++;
+            } else {
+                System.out.println("  ✗ Re-evaluation after a failure gave " + Arrays.toString(out) + ", " + dag.error(2));
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ DAG counting test failed: " + e);
+            failed++;
+        }
+        
+        // Randomized: batches of related expressions, against the Evaluator on each one
+        try {
+            Random random = new Random(24);
+            int[] values = { 0, 1, -1, 2, 7, Integer.MAX_VALUE, Integer.MIN_VALUE };
+            Evaluator evaluator = new Evaluator();
+            String mismatch = null;
+            long saved = 0;
+            for (int n = 0; n < 300 && mismatch == null; n++) {
+                SlotTable names = slotsFor("a", "b", "c");
+                List<Expr> exprs = new ArrayList<>();
+                int size = 1 + random.nextInt(20);
+                for (int i = 0; i < size; i++) {
+                    exprs.add(new Parser(new Lexer(randomExpression(random, 1 + random.nextInt(5))).tokenize(), names).parse());
+                }
+                ExpressionDag dag = new ExpressionDag(exprs, names);
+                saved += dag.savedEvaluations();
+                int[] out = new int[size];
+                for (int run = 0; run < 5 && mismatch == null; run++) {
+                    int[] slots = new int[random.nextInt(6) == 0 ? 2 : 3];
+                    for (int s = 0; s < slots.length; s++) slots[s] = values[random.nextInt(values.length)];
+                    int failures = dag.evaluate(slots, out);
+                    int expectedFailures = 0;
+                    for (int i = 0; i < size && mismatch == null; i++) {
+                        Expr expr = exprs.get(i);
+                        String expected = evalOutcome(() -> evaluator.evaluate(expr, slots));
+                        RuntimeException error = dag.error(i);
+                        String actual = error == null ? String.valueOf(out[i]) : error.getClass().getSimpleName() + ": " + error.getMessage();
+                        if (!expected.equals(actual)) mismatch = "expression " + i + " with " + Arrays.toString(slots) + " expected " + expected + " but got " + actual;
+                        if (error != null) expectedFailures++;
+                    }
+                    if (mismatch == null && failures != expectedFailures) mismatch = failures + " failures reported, " + expectedFailures + " found";
+                }
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 300 random batches match the Evaluator (" + saved + " node evaluations saved in all)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized DAG test failed: " + e);
+            failed++;
+        }
+        
+        // Deep trees merge without recursion: the chain's leaves are shared, and its copy costs nothing
+        try {
+            SlotTable names = new SlotTable();
+            String chain = "1" + repeat(" + x", 200_000);
+            Expr first = new Parser(new Lexer(chain).tokenize(), names).parse();
+            Expr second = new Parser(new Lexer(chain).tokenize(), names).parse();
+            ExpressionDag dag = new ExpressionDag(Arrays.asList(first, second), names);
+            int[] out = new int[2];
+            dag.evaluate(new int[] { 2 }, out);
+            if (out[0] == 400_001 && out[1] == 400_001 && dag.nodes() == 200_002 && dag.treeNodes() == 800_002) {
+                System.out.println("  ✓ Two copies of a 200,000-term chain: " + dag.nodes() + " nodes, " + dag.savedEvaluations() + " saved");
+                passed++;
+            } else {
+                System.out.println("  ✗ Two chains gave " + Arrays.toString(out) + " with " + dag.savedEvaluations() + " saved");
+                failed++;
+            }
+        } catch (Throwable e) {
+            System.out.println("  ✗ Deep DAG test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void testDag(String label, String[] sources, int[] slots, int expectedFailures) {
+        try {
+            SlotTable names = slotsFor("a", "b", "c");
+            List<Expr> exprs = new ArrayList<>();
+            for (String source : sources) exprs.add(new Parser(new Lexer(source).tokenize(), names).parse());
+            ExpressionDag dag = new ExpressionDag(exprs, names);
+            int[] out = new int[sources.length];
+            int failures = dag.evaluate(slots, out);
+            Evaluator evaluator = new Evaluator();
+            List<String> expected = new ArrayList<>();
+            List<String> actual = new ArrayList<>();
+            for (int i = 0; i < sources.length; i++) {
+                Expr expr = exprs.get(i);
+                expected.add(evalOutcome(() -> evaluator.evaluate(expr, slots)));
+                RuntimeException error = dag.error(i);
+                actual.add(error == null ? String.valueOf(out[i]) : error.getClass().getSimpleName() + ": " + error.getMessage());
+            }
+            if (expected.equals(actual) && failures == expectedFailures) {
+                System.out.println("  ✓ " + label + ": " + actual);
+                passed++;
+            } else {
+                System.out.println("  ✗ " + label + ": expected " + expected + " but got " + actual + " (" + failures + " failures)");
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ " + label + " threw " + e);
+            failed++;
+        }
+    }
+    
+    // ===== INCREMENTAL EVALUATOR TESTS =====
+    static void testIncrementalEvaluator() {
+        printHeader("INCREMENTAL EVALUATOR TESTS");
+        
+        try {
+            SlotTable names = new SlotTable();
+            List<Expr> formulas = new ArrayList<>();
+            for (String source : new String[] { "price * qty", "price * qty - discount",
+                    "(price * qty - discount) * (100 + tax) / 100", "tax * 2", "price * 0 + discount" }) {
+                formulas.add(new Parser(new Lexer(source).tokenize(), names).parse());
+            }
+            IncrementalEvaluator sheet = new IncrementalEvaluator(formulas, names, new int[] { 250, 4, 99, 20 });
+            
+            // tax feeds its variable node, 100 + tax, the product, the division and tax * 2
+            sheet.set("tax", 8);
+            long touched = sheet.update();
+            checkSheet("Setting tax recomputes 5 nodes", sheet, formulas, new int[] { 250, 4, 99, 8 }, touched, 5);
+            
+            // price * 0 stays 0, so the change stops there
+            sheet.set("price", 300);
+            sheet.set("qty", 4);
+            touched = sheet.update();
+            checkSheet("Setting price recomputes 6 nodes", sheet, formulas, new int[] { 300, 4, 99, 8 }, touched, 6);
+            
+            sheet.set("qty", 4);
+            checkSheet("Setting qty to its value recomputes nothing", sheet, formulas, new int[] { 300, 4, 99, 8 }, sheet.update(), 0);
+        } catch (Exception e) {
+            System.out.println("  ✗ Incremental sheet test failed: " + e);
+            failed++;
+        }
+        
+        // Errors come and go with the inputs
+        try {
+            SlotTable names = slotsFor("a", "b");
+            List<Expr> formulas = Arrays.asList(
+                new Parser(new Lexer("10 / (a - 1)").tokenize(), names).parse(),
+                new Parser(new Lexer("a + b").tokenize(), names).parse());
+            IncrementalEvaluator sheet = new IncrementalEvaluator(formulas, names, new int[] { 1 });
+            String before = evalOutcome(() -> sheet.value(0)) + ", " + evalOutcome(() -> sheet.value(1));
+            sheet.set("a", 3);
+            sheet.set("b", 4);
+            String after = evalOutcome(() -> sheet.value(0)) + ", " + evalOutcome(() -> sheet.value(1));
+            if (before.equals("ArithmeticException: / by zero, RuntimeException: Unbound variable 'b'") && after.equals("5, 7")) {
+                System.out.println("  ✓ " + before + " → " + after);
+                passed++;
+            } else {
+                System.out.println("  ✗ Errors gave " + before + " → " + after);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Incremental error test failed: " + e);
+            failed++;
+        }
+        
+        // A division that keeps failing keeps its error, so the nodes above it are left alone
+        try {
+            SlotTable names = new SlotTable();
+            List<Expr> formulas = Arrays.asList(
+                new Parser(new Lexer("x / 0 + 1").tokenize(), names).parse(),
+                new Parser(new Lexer("(x / 0 + 1) * 2 + z").tokenize(), names).parse());
+            IncrementalEvaluator sheet = new IncrementalEvaluator(formulas, names, new int[] { 6, 1 });
+            RuntimeException before = sheet.error(1);
+            sheet.set("x", 7);
+            long touched = sheet.update();
+            if (touched == 2 && sheet.recomputed() == 2 && sheet.error(1) == before && before instanceof ArithmeticException) {
+                System.out.println("  ✓ Changing x under a failing x / 0 recomputes " + touched + " nodes");
+                passed++;
+            } else {
+                System.out.println("  ✗ Changing x under a failing x / 0 recomputed " + touched + " nodes, error " + sheet.error(1));
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Failing division test failed: " + e);
+            failed++;
+        }
+        
+        // Randomized: sheets of related formulas, a few inputs changed per tick, against a full recompute
+        try {
+            Random random = new Random(25);
+            int[] values = { 0, 1, -1, 2, 7, Integer.MAX_VALUE, Integer.MIN_VALUE };
+            Evaluator evaluator = new Evaluator();
+            String mismatch = null;
+            long incremental = 0;
+            long full = 0;
+            for (int n = 0; n < 100 && mismatch == null; n++) {
+                SlotTable names = slotsFor("a", "b", "c");
+                List<Expr> formulas = new ArrayList<>();
+                for (int i = 0; i < 30; i++) {
+                    formulas.add(new Parser(new Lexer(randomExpression(random, 1 + random.nextInt(5))).tokenize(), names).parse());
+                }
+                int[] slots = { values[random.nextInt(values.length)], values[random.nextInt(values.length)] };
+                IncrementalEvaluator sheet = new IncrementalEvaluator(formulas, names, slots);
+                for (int tick = 0; tick < 50 && mismatch == null; tick++) {
+                    if (tick > 0) {
+                        if (slots.length < 3 && random.nextBoolean()) {
+                            // c gets its first binding
+                            slots = Arrays.copyOf(slots, 3);
+                            sheet.set(2, 0);
+                        }
+                        int changes = 1 + random.nextInt(2);
+                        for (int k = 0; k < changes; k++) {
+                            int slot = random.nextInt(slots.length);
+                            slots[slot] = random.nextBoolean() ? values[random.nextInt(values.length)] : random.nextInt();
+                            sheet.set(slot, slots[slot]);
+                        }
+                    }
+                    incremental += sheet.update();
+                    full += sheet.nodes();
+                    for (int i = 0; i < formulas.size() && mismatch == null; i++) {
+                        Expr expr = formulas.get(i);
+                        int[] bindings = slots;
+                        String expected = evalOutcome(() -> evaluator.evaluate(expr, bindings));
+                        int formula = i;
+                        String actual = evalOutcome(() -> sheet.value(formula));
+                        if (!expected.equals(actual)) mismatch = "formula " + i + " with " + Arrays.toString(slots) + " expected " + expected + " but got " + actual;
+                    }
+                }
+            }
+            if (mismatch == null) {
+                System.out.println("  ✓ 100 sheets, 50 ticks each, match a full recompute (" + incremental + " of " + full + " nodes recomputed)");
+                passed++;
+            } else {
+                System.out.println("  ✗ " + mismatch);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Randomized incremental test failed: " + e);
+            failed++;
+        }
+        
+        // Cost follows the affected subgraph, not the size of the sheet
+        try {
+            SlotTable names = new SlotTable();
+            List<Expr> formulas = new ArrayList<>();
+            for (int i = 0; i < 10_000; i++) {
+                formulas.add(new Parser(new Lexer("x" + i + " * 2 + base").tokenize(), names).parse());
+            }
+            int[] slots = new int[names.size()];
+            IncrementalEvaluator sheet = new IncrementalEvaluator(formulas, names, slots);
+            sheet.set("x5000", 21);
+            long one = sheet.update();
+            sheet.set("base", 1);
+            long all = sheet.update();
+            if (one == 3 && all == 10_001 && sheet.value(5000) == 43 && sheet.value(0) == 1) {
+                System.out.println("  ✓ Of " + sheet.nodes() + " nodes, one input recomputes " + one + ", a shared one " + all);
+                passed++;
+            } else {
+                System.out.println("  ✗ Expected 3 and 10001 nodes recomputed but got " + one + " and " + all);
+                failed++;
+            }
+        } catch (Exception e) {
+            System.out.println("  ✗ Incremental cost test failed: " + e);
+            failed++;
+        }
+        
+        System.out.println();
+    }
+    
+    static void checkSheet(String label, IncrementalEvaluator sheet, List<Expr> formulas, int[] slots, long touched, long expectedTouched) {
+        Evaluator evaluator = new Evaluator();
+        List<String> expected = new ArrayList<>();
+        List<String> actual = new ArrayList<>();
+        for (int i = 0; i < formulas.size(); i++) {
+            Expr expr = formulas.get(i);
+            int formula = i;
+            expected.add(evalOutcome(() -> evaluator.evaluate(expr, slots)));
+            actual.add(evalOutcome(() -> sheet.value(formula)));
+        }
+        if (expected.equals(actual) && touched == expectedTouched) {
+            System.out.println("  ✓ " + label + ": " + actual);
+            passed++;
+        } else {
+            System.out.println("  ✗ " + label + ": expected " + expected + " but got " + actual + " (" + touched + " nodes recomputed)");
+            failed++;
+        }
+    }
+    
     // ===== UTILITY =====
     static void printHeader(String title) {
         System.out.println("┌────────────────────────────────────────────────────────────┐");
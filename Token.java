@@ -23,7 +23,7 @@ public class Token {
     public final TokenType type;
     // Characters
     public final String lexeme;
-    // Parsed integer value
+    // Parsed integer value (null for a literal too large for an int)
     public final Integer intValue;
     // The index of the token's first character
     public final int position;
@@ -39,7 +39,7 @@ public class Token {
     // Representation of Complete token
     @Override
     public String toString() {
-        if (type == TokenType.NUMBER) return intValue.toString();
+        if (type == TokenType.NUMBER && intValue != null) return intValue.toString();
         return lexeme;
     }
 }
@@ -0,0 +1,126 @@
+import java.util.*;
+
+/** TokenBuffer
+ *
+ * A reusable, allocation-free token stream.
+ *
+ * Instead of one Token object (plus a lexeme String and a boxed Integer) per
+ * token, the buffer keeps parallel primitive arrays:
+ *
+ *   index    type     start   length   value
+ *     0      NUMBER     0       2        35
+ *     1      PLUS       3       1        -
+ *     2      NUMBER     5       1        2
+ *     3      EOF        6       0        -
+ *
+ * Lexemes are only materialized from the source text when they are asked for,
+ * which in practice means when an error message is built.
+ *
+ * The arrays grow as needed and are kept between uses, so lexing and parsing
+ * a stream of expressions through the same buffer stops allocating once the
+ * buffer has reached the size of the longest expression.
+ */
+public final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // The value of a NUMBER token too large for an int (literals are never negative)
+    public static final int BIG = -1;
+
+    private CharSequence source = "";
+    private Token[] tokens;            // set when the buffer wraps a List<Token>
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] values;
+    private int count;
+
+    public TokenBuffer() { this(64); }
+
+    public TokenBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * Wraps an existing token list so it can be read through the same API.
+     * The original Token objects are returned by token(i).
+     */
+    public static TokenBuffer of(List<Token> list) {
+        TokenBuffer buf = new TokenBuffer(list.size());
+        buf.tokens = list.toArray(new Token[0]);
+        for (Token t : buf.tokens) {
+            int value = t.intValue != null ? t.intValue : t.type == TokenType.NUMBER ? BIG : 0;
+            buf.add(t.type, t.position, t.lexeme.length(), value);
+        }
+        return buf;
+    }
+
+    // Clears the buffer so it can be filled with the tokens of a new source
+    public void reset(CharSequence source) {
+        this.source = source;
+        this.tokens = null;
+        this.count = 0;
+    }
+
+    public void add(TokenType type, int start, int length, int value) {
+        if (count == types.length) grow();
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        values[count] = value;
+        count++;
+    }
+
+    public int size() { return count; }
+
+    public TokenType type(int i) { return TYPES[types[i]]; }
+
+    public int start(int i) { return starts[i]; }
+
+    public int length(int i) { return lengths[i]; }
+
+    // The parsed value of a NUMBER token, or BIG when it does not fit in an int
+    public int intValue(int i) { return values[i]; }
+
+    public String lexeme(int i) {
+        if (tokens != null) return tokens[i].lexeme;
+        switch (type(i)) {
+            case PLUS: return "+";
+            case MINUS: return "-";
+            case STAR: return "*";
+            case SLASH: return "/";
+            case LPAREN: return "(";
+            case RPAREN: return ")";
+            case EOF: return "";
+            default: return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+        }
+    }
+
+    // Materializes the token at index i as a Token object
+    public Token token(int i) {
+        if (tokens != null) return tokens[i];
+        TokenType type = type(i);
+        Integer value = type == TokenType.NUMBER && values[i] != BIG ? values[i] : null;
+        return new Token(type, lexeme(i), value, starts[i]);
+    }
+
+    // True for a NUMBER token whose literal does not fit in an int
+    public boolean isBig(int i) { return types[i] == TokenType.NUMBER.ordinal() && values[i] == BIG; }
+
+    public List<Token> toList() {
+        List<Token> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) list.add(token(i));
+        return list;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+}
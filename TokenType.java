@@ -6,7 +6,7 @@
  */
 
 public enum TokenType {
-    NUMBER,
+    NUMBER, IDENTIFIER,
     PLUS, MINUS, STAR, SLASH,
     LPAREN, RPAREN,
     EOF
@@ -12,10 +12,15 @@
 public class UnaryExpr extends Expr {
     public final Token operator;
     public final Expr right;
+    private final int size;
 
     //Constructs the node 
     public UnaryExpr(Token operator, Expr right) {
         this.operator = operator;
         this.right = right;
+        this.size = (int) Math.min(1L + right.size(), Integer.MAX_VALUE);
     }
+
+    @Override
+    public int size() { return size; }
 }
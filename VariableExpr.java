@@ -0,0 +1,20 @@
+/** VariableExpr
+ *
+ * Represents a named input value
+ *
+ * Examples:
+ *     x
+ *     rate
+ *     total_2
+ *
+ * The name is resolved to a slot by the parser, so evaluation reads the value
+ * straight from an int[] of bindings. This is a leaf node.
+ */
+public class VariableExpr extends Expr {
+    public final String name;
+    public final int slot;
+    public VariableExpr(String name, int slot) {
+        this.name = name;
+        this.slot = slot;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.*;
+
+/** PipelineStages
+ *
+ * Implements the benchmarks' view of the pipeline (bench.Stages) on top of
+ * the compiler classes. Lives in the default package so it can see them.
+ *
+ * Holds reusable buffers, so each benchmark thread needs its own instance.
+ */
+public class PipelineStages implements bench.Stages {
+    private final TokenBuffer buffer = new TokenBuffer();
+    private final Evaluator evaluator = new Evaluator();
+    private final ExactEvaluator exact = new ExactEvaluator();
+    private final StringBuilder printed = new StringBuilder();
+    private final AstPrinter printer = new AstPrinter(printed);
+    private static final int[] NO_SLOTS = {};
+
+    @Override
+    public Object tokenize(String source) {
+        return new Lexer(source).tokenize();
+    }
+
+    @Override
+    public int tokenizeInto(String source) {
+        new Lexer(source).tokenize(buffer);
+        return buffer.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object parse(Object tokens) throws ParseException {
+        return new Parser((List<Token>) tokens).parse();
+    }
+
+    @Override
+    public int evaluate(Object expr) {
+        return evaluator.evaluate((Expr) expr);
+    }
+
+    @Override
+    public Object nodeTree(Object expr) {
+        return new NodeTree((Expr) expr);
+    }
+
+    @Override
+    public int execute(Object tree) {
+        return ((NodeTree) tree).evaluate(NO_SLOTS);
+    }
+
+    @Override
+    public Object evaluateExact(Object expr) {
+        return exact.evaluate((Expr) expr);
+    }
+
+    @Override
+    public int print(Object expr) {
+        printed.setLength(0);
+        printer.print((Expr) expr);
+        return printed.length();
+    }
+
+    @Override
+    public int run(String source) throws ParseException {
+        new Lexer(source).tokenize(buffer);
+        return evaluator.evaluate(new Parser(buffer).parse());
+    }
+}
@@ -0,0 +1,21 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** AstPrinterBenchmark
+ *
+ * AstPrinter.print() of ASTs parsed during setup, into a reused StringBuilder.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AstPrinterBenchmark {
+
+    @Benchmark
+    public int print(CorpusState state) {
+        return state.stages.print(state.asts[state.next()]);
+    }
+}
@@ -0,0 +1,25 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/** BenchmarkMain
+ *
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line options
+ * and always adds the GC profiler, so every result comes with its allocation
+ * rate (gc.alloc.rate.norm is bytes allocated per operation).
+ *
+ * Examples:
+ *     java -jar benchmarks/target/benchmarks.jar
+ *     java -jar benchmarks/target/benchmarks.jar Parser -p corpus=deeply-nested
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
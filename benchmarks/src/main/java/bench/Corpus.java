@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.*;
+
+/** Corpus
+ *
+ * Generated expression corpora, each stressing a different shape of input:
+ *
+ *   short           small everyday expressions, e.g. "(12 + 7) * 3 - 40 / 5"
+ *   long-flat       one long chain of 500 binary operators, no parentheses
+ *   deeply-nested   parentheses nested 500 levels deep
+ *   unary-heavy     terms wrapped in several unary operators, e.g. "-(+(-(7)))"
+ *
+ * Generation is seeded, so every run measures the same inputs. All
+ * expressions are valid and never divide by zero: divisors are always
+ * non-zero literals.
+ */
+public final class Corpus {
+    public static final String SHORT = "short";
+    public static final String LONG_FLAT = "long-flat";
+    public static final String DEEPLY_NESTED = "deeply-nested";
+    public static final String UNARY_HEAVY = "unary-heavy";
+
+    private static final String[] OPERATORS = { " + ", " - ", " * ", " / " };
+
+    private Corpus() {}
+
+    public static String[] generate(String kind, int count) {
+        Random random = new Random(kind.hashCode());
+        String[] corpus = new String[count];
+        for (int i = 0; i < count; i++) {
+            switch (kind) {
+                case SHORT: corpus[i] = shortExpression(random); break;
+                case LONG_FLAT: corpus[i] = flat(random, 500); break;
+                case DEEPLY_NESTED: corpus[i] = nested(random, 500); break;
+                case UNARY_HEAVY: corpus[i] = unaryHeavy(random, 40); break;
+                default: throw new IllegalArgumentException("Unknown corpus '" + kind + "'");
+            }
+        }
+        return corpus;
+    }
+
+    private static String shortExpression(Random random) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('(').append(literal(random)).append(OPERATORS[random.nextInt(2)]).append(literal(random)).append(')');
+        int terms = 1 + random.nextInt(3);
+        for (int i = 0; i < terms; i++) sb.append(OPERATORS[random.nextInt(4)]).append(literal(random));
+        return sb.toString();
+    }
+
+    private static String flat(Random random, int operators) {
+        StringBuilder sb = new StringBuilder().append(literal(random));
+        for (int i = 0; i < operators; i++) sb.append(OPERATORS[random.nextInt(4)]).append(literal(random));
+        return sb.toString();
+    }
+
+    // Alternates left and right nesting: "((1 + (2 * (...))) - 3)"
+    private static String nested(Random random, int depth) {
+        StringBuilder sb = new StringBuilder().append(literal(random));
+        for (int i = 0; i < depth; i++) {
+            // A nested group may evaluate to zero, so it is never used as a divisor
+            if (i % 2 == 0) sb.insert(0, "(" + literal(random) + OPERATORS[random.nextInt(3)]).append(')');
+            else sb.insert(0, '(').append(OPERATORS[random.nextInt(4)]).append(literal(random)).append(')');
+        }
+        return sb.toString();
+    }
+
+    private static String unaryHeavy(Random random, int terms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) sb.append(OPERATORS[random.nextInt(3)]);
+            int unaries = 1 + random.nextInt(4);
+            sb.append('(');
+            for (int u = 0; u < unaries; u++) sb.append(random.nextBoolean() ? "-(" : "+(");
+            sb.append(literal(random));
+            for (int u = 0; u < unaries; u++) sb.append(')');
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    // Never zero, so any literal can be a divisor
+    private static int literal(Random random) {
+        return 1 + random.nextInt(999);
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+/** CorpusState
+ *
+ * Per-thread benchmark state: the generated corpus, its token lists, ASTs
+ * and node trees prepared ahead of time, and the pipeline stages to run.
+ *
+ * Each benchmark invocation processes the next expression of the corpus,
+ * so results are averaged over the whole corpus rather than one input.
+ */
+@State(Scope.Thread)
+public class CorpusState {
+    private static final int SIZE = 256;
+
+    @Param({ Corpus.SHORT, Corpus.LONG_FLAT, Corpus.DEEPLY_NESTED, Corpus.UNARY_HEAVY })
+    public String corpus;
+
+    public Stages stages;
+    public String[] sources;
+    public Object[] tokens;
+    public Object[] asts;
+    public Object[] trees;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stages = Stages.load();
+        sources = Corpus.generate(corpus, SIZE);
+        tokens = new Object[SIZE];
+        asts = new Object[SIZE];
+        trees = new Object[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            tokens[i] = stages.tokenize(sources[i]);
+            asts[i] = stages.parse(tokens[i]);
+            trees[i] = stages.nodeTree(asts[i]);
+        }
+    }
+
+    // Index of the expression for the next invocation
+    public int next() {
+        int i = next;
+        next = i + 1 == SIZE ? 0 : i + 1;
+        return i;
+    }
+}
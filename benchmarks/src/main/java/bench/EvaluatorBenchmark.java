@@ -0,0 +1,38 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** EvaluatorBenchmark
+ *
+ * Evaluator.evaluate() of ASTs parsed during setup, and ExactEvaluator.evaluate()
+ * of the same ASTs: none of them overflow, so the exact evaluator stays on its
+ * long path and the two scores should be close.
+ *
+ * execute runs the same expressions as self-specializing NodeTrees. The
+ * corpora have no variables, so after warmup every tree has folded itself
+ * into a constant: the score is the cost of a node call, with none of the
+ * tree walk's dispatch left.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+    @Benchmark
+    public int evaluate(CorpusState state) {
+        return state.stages.evaluate(state.asts[state.next()]);
+    }
+
+    @Benchmark
+    public int execute(CorpusState state) {
+        return state.stages.execute(state.trees[state.next()]);
+    }
+
+    @Benchmark
+    public Object evaluateExact(CorpusState state) {
+        return state.stages.evaluateExact(state.asts[state.next()]);
+    }
+}
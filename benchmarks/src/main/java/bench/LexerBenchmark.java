@@ -0,0 +1,26 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** LexerBenchmark
+ *
+ * Lexer.tokenize(), into a new List<Token> and into a reused TokenBuffer.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    @Benchmark
+    public Object tokenize(CorpusState state) {
+        return state.stages.tokenize(state.sources[state.next()]);
+    }
+
+    @Benchmark
+    public int tokenizeIntoBuffer(CorpusState state) {
+        return state.stages.tokenizeInto(state.sources[state.next()]);
+    }
+}
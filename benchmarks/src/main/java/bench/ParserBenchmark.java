@@ -0,0 +1,21 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** ParserBenchmark
+ *
+ * Parser.parse() of token lists lexed during setup.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Benchmark
+    public Object parse(CorpusState state) throws Exception {
+        return state.stages.parse(state.tokens[state.next()]);
+    }
+}
@@ -0,0 +1,22 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** PipelineBenchmark
+ *
+ * The whole pipeline, from source text to result: lexing into a reused
+ * TokenBuffer, parsing and evaluating.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Benchmark
+    public int run(CorpusState state) throws Exception {
+        return state.stages.run(state.sources[state.next()]);
+    }
+}
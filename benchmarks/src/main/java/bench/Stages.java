@@ -0,0 +1,51 @@
+package bench;
+
+/** Stages
+ *
+ * The pipeline stages as seen by the benchmarks.
+ *
+ * JMH does not allow benchmarks in the default package, and classes in a
+ * named package cannot refer to the compiler's default-package classes. The
+ * benchmarks therefore reach the compiler through this interface, which the
+ * default-package PipelineStages implements. The call is a monomorphic
+ * interface call that the JIT inlines, so it does not show up in the results.
+ *
+ * ASTs and token lists are passed around as Object for the same reason.
+ */
+public interface Stages {
+
+    // Lexer.tokenize(): a new List<Token>
+    Object tokenize(String source);
+
+    // Lexer.tokenize(TokenBuffer) into a reused buffer; returns the token count
+    int tokenizeInto(String source);
+
+    // Parser.parse() of a List<Token>; returns the Expr
+    Object parse(Object tokens) throws Exception;
+
+    // Evaluator.evaluate() of an Expr
+    int evaluate(Object expr);
+
+    // A NodeTree built from an Expr, not yet executed
+    Object nodeTree(Object expr);
+
+    // NodeTree.evaluate() with no variables bound
+    int execute(Object tree);
+
+    // ExactEvaluator.evaluate() of an Expr; returns the Long or BigInteger
+    Object evaluateExact(Object expr);
+
+    // AstPrinter.print() into a reused StringBuilder; returns the printed length
+    int print(Object expr);
+
+    // The whole pipeline, source to result, through a reused TokenBuffer
+    int run(String source) throws Exception;
+
+    static Stages load() {
+        try {
+            return (Stages) Class.forName("PipelineStages").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("PipelineStages is not on the class path", e);
+        }
+    }
+}